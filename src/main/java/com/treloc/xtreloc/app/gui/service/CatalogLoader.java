@@ -1,6 +1,7 @@
 package com.treloc.xtreloc.app.gui.service;
 
 import com.treloc.xtreloc.app.gui.model.Hypocenter;
+import com.treloc.xtreloc.io.TextTokenizer;
 
 import java.io.*;
 import java.util.*;
@@ -23,54 +24,53 @@ public class CatalogLoader {
         String fileName = file.getName().toLowerCase();
         boolean isCsv = fileName.endsWith(".csv");
 
-        try (BufferedReader br = new BufferedReader(new FileReader(file))) {
-            String line;
+        try (TextTokenizer in = TextTokenizer.open(file)) {
             boolean isFirstLine = true;
-            while ((line = br.readLine()) != null) {
-                if (line.isBlank())
+            while (in.nextLine()) {
+                if (in.isBlank())
                     continue;
                 if (isCsv && isFirstLine) {
                     isFirstLine = false;
-                    String lowerLine = line.toLowerCase();
+                    String lowerLine = in.line().toLowerCase();
                     if (lowerLine.contains("time") || lowerLine.contains("latitude")) {
                         continue;
                     }
                 }
                 
-                String[] p;
+                int n;
                 if (isCsv) {
-                    p = line.trim().split(",");
+                    n = in.split(',', false);
                 } else {
-                    p = line.trim().split("\\s+");
+                    n = in.splitWhitespace();
                 }
                 
-                if (p.length >= 4) {
-                    if (isCsv && p.length >= 8) {
-                        double xerr = p.length > 4 ? Double.parseDouble(p[4].trim()) : 0.0;
-                        double yerr = p.length > 5 ? Double.parseDouble(p[5].trim()) : 0.0;
-                        double zerr = p.length > 6 ? Double.parseDouble(p[6].trim()) : 0.0;
-                        double rms = p.length > 7 ? Double.parseDouble(p[7].trim()) : 0.0;
-                        String datFilePath = p.length > 8 ? p[8].trim() : null;
-                        String type = p.length > 9 ? p[9].trim() : null;
+                if (n >= 4) {
+                    if (isCsv && n >= 8) {
+                        double xerr = n > 4 ? in.getDouble(4) : 0.0;
+                        double yerr = n > 5 ? in.getDouble(5) : 0.0;
+                        double zerr = n > 6 ? in.getDouble(6) : 0.0;
+                        double rms = n > 7 ? in.getDouble(7) : 0.0;
+                        String datFilePath = n > 8 ? in.getString(8) : null;
+                        String type = n > 9 ? in.getString(9) : null;
                         Integer clusterId = null;
-                        if (p.length > 10 && !p[10].trim().isEmpty()) {
+                        if (n > 10 && !in.isEmpty(10)) {
                             try {
-                                clusterId = Integer.parseInt(p[10].trim());
+                                clusterId = in.getInt(10);
                             } catch (NumberFormatException e) {
                             }
                         }
                         list.add(new Hypocenter(
-                                p[0].trim(),
-                                Double.parseDouble(p[1].trim()),
-                                Double.parseDouble(p[2].trim()),
-                                Double.parseDouble(p[3].trim()),
+                                in.getString(0),
+                                in.getDouble(1),
+                                in.getDouble(2),
+                                in.getDouble(3),
                                 xerr, yerr, zerr, rms, clusterId, datFilePath, type));
                     } else {
                         list.add(new Hypocenter(
-                                p[0].trim(),
-                                Double.parseDouble(p[1].trim()),
-                                Double.parseDouble(p[2].trim()),
-                                Double.parseDouble(p[3].trim())));
+                                in.getString(0),
+                                in.getDouble(1),
+                                in.getDouble(2),
+                                in.getDouble(3)));
                     }
                 }
             }
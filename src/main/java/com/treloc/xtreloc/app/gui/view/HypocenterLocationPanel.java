@@ -1231,7 +1231,7 @@ public class HypocenterLocationPanel extends JPanel {
             }
             
             @Override
-            public void onClusterResidualUpdate(int clusterId, int iteration, double residual) {
+            public void onClusterResidualUpdate(int clusterId, int iteration, double residual, int solverIterations) {
                 String eventName = getCurrentEventName();
                 String clusterEventName = "Cluster " + clusterId;
                 
@@ -1242,8 +1242,8 @@ public class HypocenterLocationPanel extends JPanel {
                 if (convergenceLogPanel != null && convergenceLogPanel.isVisible()
                     && shouldStreamConvergenceToExecutionLog()) {
                     String logMessage = String.format(
-                        "Cluster %d, LSQR step %d (cumulative over TRD stages): Residual = %.6f s",
-                        clusterId, iteration + 1, residual);
+                        "Cluster %d, LSQR step %d (cumulative over TRD stages): Residual = %.6f s (%d LSQR iterations)",
+                        clusterId, iteration + 1, residual, solverIterations);
                     if (eventName != null) {
                         logMessage = String.format("[%s] %s", eventName, logMessage);
                     }
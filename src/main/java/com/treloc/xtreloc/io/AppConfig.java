@@ -138,6 +138,8 @@ public class AppConfig {
             if (p.has("useBinaryFormat")) m.useBinaryFormat = p.get("useBinaryFormat").asBoolean();
             if (p.has("doClustering")) m.doClustering = p.get("doClustering").asBoolean();
             if (p.has("calcTripleDiff")) m.calcTripleDiff = p.get("calcTripleDiff").asBoolean();
+            if (p.has("maxPairDistKm")) m.maxPairDistKm = p.get("maxPairDistKm").asDouble();
+            if (p.has("incremental")) m.incremental = p.get("incremental").asBoolean();
         }
         if ("TRD".equals(mode)) {
             if (p.has("maxTripleDiffCount")) m.maxTripleDiffCount = p.get("maxTripleDiffCount").asInt();
@@ -175,6 +177,10 @@ public class AppConfig {
         public Double locErrThreshold;
         public Boolean doClustering;
         public Boolean calcTripleDiff;
+        /** Maximum inter-event distance (km) of the event pairs in triple differences. Null = no limit. */
+        public Double maxPairDistKm;
+        /** Append new events (empty cluster ID) to the clusters and triple-difference files of an earlier run. */
+        public Boolean incremental;
 
         // TRD (from params.TRD)
         /** Maximum number of triple-difference data to use per cluster (residual smallest first). Null = no limit. */
@@ -1,11 +1,11 @@
 package com.treloc.xtreloc.io;
 
-import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Scanner;
 
 /**
  * Repository for station information
@@ -41,35 +41,34 @@ public final class StationRepository {
     public static StationRepository load(Path file) {
         List<Station> list = new ArrayList<>();
 
-        try (Scanner sc = new Scanner(new File(file.toString()))) {
-            int lineNum = 0;
-            while (sc.hasNextLine()) {
-                lineNum++;
-                String line = sc.nextLine().trim();
-                if (line.isEmpty()) {
+        try (TextTokenizer in = TextTokenizer.open(file.toFile())) {
+            while (in.nextLine()) {
+                if (in.isBlank()) {
                     continue;
                 }
-                String[] p = line.split("\\s+");
-                if (p.length < 6) {
+                int n = in.splitWhitespace();
+                if (n < 6) {
                     throw new ConfigException(
                         String.format("Station file %s line %d: expected at least 6 columns (code lat lon dep pc sc), got %d. Line: %s",
-                            file, lineNum, p.length, line));
+                            file, in.lineNumber(), n, in.line()));
                 }
                 try {
                     list.add(new Station(
-                            p[0],
-                            Double.parseDouble(p[1]),
-                            Double.parseDouble(p[2]),
-                            Double.parseDouble(p[3]),
-                            Double.parseDouble(p[4]),
-                            Double.parseDouble(p[5])));
+                            in.getString(0),
+                            in.getDouble(1),
+                            in.getDouble(2),
+                            in.getDouble(3),
+                            in.getDouble(4),
+                            in.getDouble(5)));
                 } catch (NumberFormatException e) {
                     throw new ConfigException(
-                        String.format("Station file %s line %d: invalid number. Line: %s", file, lineNum, line), e);
+                        String.format("Station file %s line %d: invalid number. Line: %s", file, in.lineNumber(), in.line()), e);
                 }
             }
-        } catch (FileNotFoundException e) {
+        } catch (NoSuchFileException | FileNotFoundException e) {
             throw new ConfigException("Station file not found: " + file, e);
+        } catch (IOException e) {
+            throw new ConfigException("Failed to read station file: " + file, e);
         }
 
         return new StationRepository(list);
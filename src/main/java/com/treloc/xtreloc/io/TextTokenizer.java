@@ -0,0 +1,417 @@
+package com.treloc.xtreloc.io;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Line and field reader for the text inputs: .dat files, station tables, catalogs and triple-difference CSV.
+ *
+ * <p>The file is read in blocks through a {@link FileChannel}. {@link #nextLine()} finds the next line in the
+ * block, and {@link #splitWhitespace()} or {@link #split(char, boolean)} record the start and end offsets of
+ * its fields, so no strings are created unless {@link #getString(int)} is called. Numbers are parsed from the
+ * bytes: {@link #getDouble(int)} returns exactly what {@link Double#parseDouble(String)} returns (plain decimals
+ * with at most 15 significant digits and a small exponent are computed with one correctly rounded operation;
+ * anything else is handed to {@code Double.parseDouble}), and {@link #getInt(int)} matches
+ * {@link Integer#parseInt(String)}. Field strings are decoded as UTF-8.
+ *
+ * <p>Lines end at LF, CR or CR LF. Lines and fields are trimmed like {@link String#trim()}; whitespace
+ * separators are those of the regex {@code \s}. Not thread-safe.
+ *
+ * @author xTreLoc Development Team
+ * @version 1.0
+ */
+public final class TextTokenizer implements Closeable {
+
+    private static final int DEFAULT_BUFFER_SIZE = 1 << 16;
+    /** Powers of ten that are exact doubles. */
+    private static final double[] POW10 = new double[23];
+    static {
+        POW10[0] = 1.0;
+        for (int i = 1; i < POW10.length; i++) {
+            POW10[i] = POW10[i - 1] * 10.0;
+        }
+    }
+
+    private final FileChannel channel;
+    private byte[] buf;
+    private int limit;
+    private boolean eof;
+    /** Start of the unread data: the byte after the terminator of the current line. */
+    private int next;
+    private int lineStart;
+    private int lineEnd;
+    private int lineNumber;
+    private int[] fieldStart = new int[16];
+    private int[] fieldEnd = new int[16];
+    private int fieldCount;
+
+    private TextTokenizer(FileChannel channel, int bufferSize) {
+        this.channel = channel;
+        this.buf = new byte[bufferSize];
+    }
+
+    /**
+     * Opens a file for reading.
+     *
+     * @param file the file
+     * @return the tokenizer, positioned before the first line
+     * @throws IOException if the file cannot be opened ({@link java.nio.file.NoSuchFileException} if missing)
+     */
+    public static TextTokenizer open(File file) throws IOException {
+        return open(file, DEFAULT_BUFFER_SIZE);
+    }
+
+    static TextTokenizer open(File file, int bufferSize) throws IOException {
+        return new TextTokenizer(FileChannel.open(file.toPath(), StandardOpenOption.READ), Math.max(2, bufferSize));
+    }
+
+    /**
+     * Advances to the next line, trimmed. Fields of the previous line are discarded.
+     *
+     * @return false at the end of the file
+     * @throws IOException if reading fails
+     */
+    public boolean nextLine() throws IOException {
+        fieldCount = 0;
+        int from = next;
+        while (true) {
+            int i = from;
+            while (i < limit && buf[i] != '\n' && buf[i] != '\r') {
+                i++;
+            }
+            if (i < limit && (buf[i] == '\n' || i + 1 < limit || eof)) {
+                int start = next;
+                next = buf[i] == '\r' && i + 1 < limit && buf[i + 1] == '\n' ? i + 2 : i + 1;
+                setLine(start, i);
+                return true;
+            }
+            if (eof) {
+                if (next >= limit) {
+                    return false;
+                }
+                int start = next;
+                next = limit;
+                setLine(start, limit);
+                return true;
+            }
+            // The line (or a CR that may be followed by LF) continues past the block: refill.
+            int scanned = i - next;
+            fill();
+            from = next + scanned;
+        }
+    }
+
+    private void setLine(int start, int end) {
+        while (start < end && (buf[start] & 0xFF) <= ' ') {
+            start++;
+        }
+        while (end > start && (buf[end - 1] & 0xFF) <= ' ') {
+            end--;
+        }
+        lineStart = start;
+        lineEnd = end;
+        lineNumber++;
+    }
+
+    /** Moves the unread bytes to the front (growing the buffer when they fill it) and reads more. */
+    private void fill() throws IOException {
+        int remaining = limit - next;
+        if (next > 0) {
+            System.arraycopy(buf, next, buf, 0, remaining);
+        } else if (remaining == buf.length) {
+            buf = Arrays.copyOf(buf, buf.length * 2);
+        }
+        next = 0;
+        limit = remaining;
+        ByteBuffer target = ByteBuffer.wrap(buf, limit, buf.length - limit);
+        int n = channel.read(target);
+        if (n < 0) {
+            eof = true;
+        } else {
+            limit += n;
+        }
+    }
+
+    /** @return the 1-based number of the current line */
+    public int lineNumber() {
+        return lineNumber;
+    }
+
+    /** @return true if the current line is empty or whitespace only */
+    public boolean isBlank() {
+        return lineStart == lineEnd;
+    }
+
+    /** @return the current line, trimmed */
+    public String line() {
+        return new String(buf, lineStart, lineEnd - lineStart, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Splits the current line at runs of whitespace, as {@code line.trim().split("\\s+")}.
+     *
+     * @return number of fields (0 for a blank line)
+     */
+    public int splitWhitespace() {
+        fieldCount = 0;
+        int i = lineStart;
+        while (i < lineEnd) {
+            int start = i;
+            while (i < lineEnd && !isSpace(buf[i])) {
+                i++;
+            }
+            addField(start, i);
+            while (i < lineEnd && isSpace(buf[i])) {
+                i++;
+            }
+        }
+        return fieldCount;
+    }
+
+    /**
+     * Splits the current line at a delimiter and trims each field, as {@code line.trim().split(",", -1)}
+     * (keeping trailing empty fields) or {@code line.trim().split(",")} (dropping them).
+     *
+     * @param delimiter an ASCII delimiter
+     * @param keepTrailingEmpty whether empty fields at the end of the line are kept
+     * @return number of fields
+     */
+    public int split(char delimiter, boolean keepTrailingEmpty) {
+        fieldCount = 0;
+        byte d = (byte) delimiter;
+        int nonEmpty = 0;
+        int start = lineStart;
+        for (int i = lineStart; i <= lineEnd; i++) {
+            if (i == lineEnd || buf[i] == d) {
+                if (i > start) {
+                    nonEmpty = fieldCount + 1;
+                }
+                int s = start;
+                int e = i;
+                while (s < e && (buf[s] & 0xFF) <= ' ') {
+                    s++;
+                }
+                while (e > s && (buf[e - 1] & 0xFF) <= ' ') {
+                    e--;
+                }
+                addField(s, e);
+                start = i + 1;
+            }
+        }
+        if (!keepTrailingEmpty && fieldCount > 1) {
+            // String.split drops trailing empty strings, but returns the whole input when there is no delimiter.
+            fieldCount = nonEmpty;
+        }
+        return fieldCount;
+    }
+
+    private void addField(int start, int end) {
+        if (fieldCount == fieldStart.length) {
+            fieldStart = Arrays.copyOf(fieldStart, fieldCount * 2);
+            fieldEnd = Arrays.copyOf(fieldEnd, fieldCount * 2);
+        }
+        fieldStart[fieldCount] = start;
+        fieldEnd[fieldCount] = end;
+        fieldCount++;
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == 0x0B || b == '\f' || b == '\r';
+    }
+
+    /** @return number of fields of the last split */
+    public int fieldCount() {
+        return fieldCount;
+    }
+
+    /** @return true if the field is empty */
+    public boolean isEmpty(int field) {
+        return fieldStart[checkField(field)] == fieldEnd[field];
+    }
+
+    /** @return the field as a string */
+    public String getString(int field) {
+        int s = fieldStart[checkField(field)];
+        return new String(buf, s, fieldEnd[field] - s, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Parses the field as {@link Double#parseDouble(String)} does.
+     *
+     * @throws NumberFormatException if the field is not a number
+     */
+    public double getDouble(int field) {
+        int i = fieldStart[checkField(field)];
+        int end = fieldEnd[field];
+        boolean negative = false;
+        if (i < end && (buf[i] == '-' || buf[i] == '+')) {
+            negative = buf[i] == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int significant = 0;
+        int scale = 0;
+        int digits = 0;
+        boolean point = false;
+        for (; i < end; i++) {
+            byte b = buf[i];
+            if (b >= '0' && b <= '9') {
+                digits++;
+                if (mantissa != 0 || b != '0') {
+                    if (++significant > 15) {
+                        return Double.parseDouble(getString(field));
+                    }
+                    mantissa = mantissa * 10 + (b - '0');
+                }
+                if (point) {
+                    scale--;
+                }
+            } else if (b == '.' && !point) {
+                point = true;
+            } else {
+                break;
+            }
+        }
+        if (digits == 0) {
+            return Double.parseDouble(getString(field));
+        }
+        if (i < end && (buf[i] == 'e' || buf[i] == 'E')) {
+            i++;
+            boolean negativeExp = false;
+            if (i < end && (buf[i] == '-' || buf[i] == '+')) {
+                negativeExp = buf[i] == '-';
+                i++;
+            }
+            int exp = 0;
+            int expDigits = 0;
+            for (; i < end && buf[i] >= '0' && buf[i] <= '9'; i++) {
+                exp = exp * 10 + (buf[i] - '0');
+                if (++expDigits > 8) {
+                    break;
+                }
+            }
+            if (expDigits == 0 || expDigits > 8) {
+                return Double.parseDouble(getString(field));
+            }
+            scale += negativeExp ? -exp : exp;
+        }
+        if (i < end) {
+            // Suffixes (d, f), hexadecimal, NaN, Infinity, or invalid input.
+            return Double.parseDouble(getString(field));
+        }
+        double value;
+        if (mantissa == 0) {
+            value = 0.0;
+        } else if (scale >= 0 && scale < POW10.length) {
+            value = mantissa * POW10[scale];
+        } else if (scale < 0 && -scale < POW10.length) {
+            value = mantissa / POW10[-scale];
+        } else {
+            return Double.parseDouble(getString(field));
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Parses the field as {@link Integer#parseInt(String)} does.
+     *
+     * @throws NumberFormatException if the field is not an int
+     */
+    public int getInt(int field) {
+        int i = fieldStart[checkField(field)];
+        int end = fieldEnd[field];
+        boolean negative = false;
+        if (i < end && (buf[i] == '-' || buf[i] == '+')) {
+            negative = buf[i] == '-';
+            i++;
+        }
+        if (i == end || end - i > 9) {
+            return Integer.parseInt(getString(field));
+        }
+        int value = 0;
+        for (; i < end; i++) {
+            byte b = buf[i];
+            if (b < '0' || b > '9') {
+                return Integer.parseInt(getString(field));
+            }
+            value = value * 10 + (b - '0');
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Looks the field up in a dictionary without creating a string.
+     *
+     * @return the value of the field's key, or -1 if absent
+     */
+    public int lookup(int field, Dictionary dictionary) {
+        int s = fieldStart[checkField(field)];
+        return dictionary.find(buf, s, fieldEnd[field]);
+    }
+
+    private int checkField(int field) {
+        if (field < 0 || field >= fieldCount) {
+            throw new IndexOutOfBoundsException("Field " + field + " of " + fieldCount + " on line " + lineNumber);
+        }
+        return field;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Maps keys (e.g. station codes) to their index, looked up from field bytes. When a key occurs more than
+     * once, the last index wins, as with repeated {@code Map.put}.
+     */
+    public static final class Dictionary {
+        private final byte[][] keys;
+        private final int[] values;
+        private final int mask;
+
+        /**
+         * @param keys the keys; key {@code i} maps to {@code i}
+         */
+        public Dictionary(String[] keys) {
+            int capacity = Integer.highestOneBit(Math.max(2, keys.length) * 2 - 1) * 2;
+            this.keys = new byte[capacity][];
+            this.values = new int[capacity];
+            this.mask = capacity - 1;
+            for (int i = 0; i < keys.length; i++) {
+                byte[] key = keys[i].getBytes(StandardCharsets.UTF_8);
+                int h = hash(key, 0, key.length) & mask;
+                while (this.keys[h] != null && !Arrays.equals(this.keys[h], key)) {
+                    h = (h + 1) & mask;
+                }
+                this.keys[h] = key;
+                this.values[h] = i;
+            }
+        }
+
+        int find(byte[] bytes, int from, int to) {
+            int h = hash(bytes, from, to) & mask;
+            while (keys[h] != null) {
+                if (Arrays.equals(keys[h], 0, keys[h].length, bytes, from, to)) {
+                    return values[h];
+                }
+                h = (h + 1) & mask;
+            }
+            return -1;
+        }
+
+        private static int hash(byte[] bytes, int from, int to) {
+            int h = 0;
+            for (int i = from; i < to; i++) {
+                h = 31 * h + bytes[i];
+            }
+            return h ^ (h >>> 16);
+        }
+    }
+}
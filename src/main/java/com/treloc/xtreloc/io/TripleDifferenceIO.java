@@ -1,7 +1,10 @@
 package com.treloc.xtreloc.io;
 
 import java.io.*;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -12,6 +15,13 @@ import java.util.logging.Logger;
  *
  * Binary format v1 (legacy): int (count), then per record: eve0, eve1, stn0, stn1, tdTime, distKm, clusterId.
  * Binary format v2: int magic (0x54444602 "TDF2"), int (count), then per record: eve0, eve1, stn0, stn1, tdTime, distKm, clusterId, residual.
+ * Binary format v3 (written by saveBinary): columnar, read through memory mapping. 32-byte header:
+ * int magic (0x54444603 "TDF3"), int flags (bit 0: rows sorted by distance; bit 1: event pairs bounded by
+ * distance), int clusterId, int count, double bucket width (km), int index length L, int pair distance bound
+ * (float bits, km; 0 when bit 1 is clear); then the distance index int[L]
+ * (index[k] = number of rows with distKm &lt; k * width; L = 0 when the rows are not sorted), padded to 8 bytes;
+ * then the columns tdTime double[count], residual double[count], eve0, eve1, stn0, stn1 int[count],
+ * distKm float[count]. All values are big-endian, as in v1/v2.
  *
  * @author K.M.
  * @version 0.1
@@ -23,6 +33,16 @@ public class TripleDifferenceIO {
     /** Magic for binary format v2 (with residual). Enables backward-compatible loading of v1. */
     private static final int BINARY_MAGIC_V2 = 0x54444602; // "TDF2" in ASCII
 
+    /** Magic for binary format v3 (columnar, distance index). */
+    private static final int BINARY_MAGIC_V3 = 0x54444603; // "TDF3" in ASCII
+
+    private static final int V3_HEADER_BYTES = 32;
+    private static final int V3_FLAG_SORTED_BY_DISTANCE = 1;
+    private static final int V3_FLAG_PAIR_DISTANCE_BOUND = 2;
+
+    /** Bucket width of the v3 distance index (km). TRD stage thresholds are whole kilometres. */
+    private static final double V3_INDEX_WIDTH_KM = 1.0;
+
     /**
      * Triple difference record structure.
      * residual: |observed_td - calculated_td| (sec). Double.NaN if not computed (e.g. legacy file).
@@ -57,53 +77,263 @@ public class TripleDifferenceIO {
     }
     
     /**
-     * Saves triple differences to a binary file.
-     * 
-     * @param tripleDifferences the list of triple differences
+     * Saves triple differences in binary format v3.
+     * Use loadBinary to read; v1 and v2 files are still supported.
+     *
+     * @param tripleDifferences the list of triple differences (all of one cluster)
      * @param outputFile the output file path
      * @throws IOException if I/O error occurs
      */
+    public static void saveBinary(List<TripleDifference> tripleDifferences, File outputFile) throws IOException {
+        saveBinary(TripleDifferenceTable.fromRecords(tripleDifferences, 0), outputFile);
+    }
+
     /**
-     * Saves triple differences in binary format v2 (with residual).
-     * Use loadBinary to read; v1 files (no residual) are still supported.
+     * Saves a triple-difference table in binary format v3 (columnar). If the table is sorted by distance
+     * ({@link TripleDifferenceTable#isSortedByDistance()}), the header records it together with the distance
+     * index, and readers use it without checking the rows again. A finite
+     * {@link TripleDifferenceTable#getMaxPairDistKm()} is recorded in the header as well.
+     *
+     * @param table the triple differences
+     * @param outputFile the output file path
+     * @throws IOException if I/O error occurs
      */
-    public static void saveBinary(List<TripleDifference> tripleDifferences, File outputFile) throws IOException {
-        try (DataOutputStream dos = new DataOutputStream(
-                new BufferedOutputStream(new FileOutputStream(outputFile)))) {
-            dos.writeInt(BINARY_MAGIC_V2);
-            dos.writeInt(tripleDifferences.size());
+    public static void saveBinary(TripleDifferenceTable table, File outputFile) throws IOException {
+        int n = table.size();
+        boolean sorted = table.isSortedByDistance();
+        try (TableWriter writer = openBinaryWriter(outputFile, table.getClusterId(), n, sorted,
+                sorted && n > 0 ? table.getDistKm(n - 1) : 0.0, table.getMaxPairDistKm())) {
+            writer.write(table);
+        }
+    }
+
+    /**
+     * Sink for a triple-difference table written in chunks, so the whole table never has to be in memory.
+     * Chunks are appended in call order.
+     */
+    public interface TableWriter extends Closeable {
+        /**
+         * Appends the rows of a chunk.
+         *
+         * @param chunk rows to append (the cluster ID of the file is the one given when opening)
+         * @throws IOException if I/O error occurs
+         */
+        void write(TripleDifferenceTable chunk) throws IOException;
+    }
+
+    /**
+     * Opens a binary (v3) writer. The column layout depends on the row count and, for sorted rows, on
+     * the length of the distance index, so both the count and the distance of the last row must be known
+     * in advance; the columns are filled chunk by chunk at their offsets and the header and distance index
+     * are written on {@link TableWriter#close()}.
+     *
+     * @param outputFile the output file path
+     * @param clusterId cluster ID recorded in the header
+     * @param count total number of rows that will be written
+     * @param sortedByDistance true if the rows arrive in ascending order of distance (checked while writing)
+     * @param lastDistKm distance of the last row (km); only used when {@code sortedByDistance}
+     * @param maxPairDistKm event-pair distance bound recorded in the header, or
+     *        {@link Double#POSITIVE_INFINITY} for none
+     * @return the writer
+     * @throws IOException if the file cannot be opened
+     */
+    public static TableWriter openBinaryWriter(File outputFile, int clusterId, int count, boolean sortedByDistance,
+                                               double lastDistKm, double maxPairDistKm) throws IOException {
+        return new BinaryTableWriter(outputFile, clusterId, count, sortedByDistance, lastDistKm, maxPairDistKm);
+    }
+
+    /** Column-wise positional writer for the v3 format; at most {@link #BLOCK_ROWS} rows are buffered. */
+    private static final class BinaryTableWriter implements TableWriter {
+        private static final int BLOCK_ROWS = 1 << 16;
+
+        private final File outputFile;
+        private final FileChannel ch;
+        private final int clusterId;
+        private final int count;
+        private final boolean sorted;
+        private final float lastDistKm;
+        private final double maxPairDistKm;
+        private final int[] index;
+        private final long dataOffset;
+        private final ByteBuffer buf = ByteBuffer.allocate(8 * BLOCK_ROWS);
+        private int written;
+        private int nextBucket;
+        private float prevDistKm;
+
+        BinaryTableWriter(File outputFile, int clusterId, int count, boolean sorted, double lastDistKm,
+                          double maxPairDistKm) throws IOException {
+            if (count < 0) {
+                throw new IllegalArgumentException("Negative row count: " + count);
+            }
+            if (sorted && !(lastDistKm >= 0)) {
+                throw new IllegalArgumentException("Invalid distance of the last row: " + lastDistKm);
+            }
+            this.outputFile = outputFile;
+            this.clusterId = clusterId;
+            this.count = count;
+            this.sorted = sorted;
+            this.lastDistKm = (float) lastDistKm;
+            this.maxPairDistKm = maxPairDistKm;
+            // Same layout as TripleDifferenceTable.distanceIndex: one entry per bucket up to the last row, plus one.
+            int buckets = count == 0 ? 0 : (int) Math.floor(this.lastDistKm / V3_INDEX_WIDTH_KM) + 1;
+            this.index = sorted ? new int[buckets + 1] : null;
+            int indexLength = index != null ? index.length : 0;
+            this.dataOffset = V3_HEADER_BYTES + 4L * (indexLength + (indexLength % 2));
+            this.ch = openForWrite(outputFile).getChannel();
+        }
 
-            for (TripleDifference td : tripleDifferences) {
-                dos.writeInt(td.eve0);
-                dos.writeInt(td.eve1);
-                dos.writeInt(td.stn0);
-                dos.writeInt(td.stn1);
-                dos.writeDouble(td.tdTime);
-                dos.writeDouble(td.distKm);
-                dos.writeInt(td.clusterId);
-                dos.writeDouble(Double.isNaN(td.residual) ? Double.NaN : td.residual);
+        @Override
+        public void write(TripleDifferenceTable chunk) throws IOException {
+            int m = chunk.size();
+            if ((long) written + m > count) {
+                throw new IllegalStateException("More rows than declared (" + count + ") for " + outputFile.getName());
             }
+            for (int from = 0; from < m; from += BLOCK_ROWS) {
+                writeBlock(chunk, from, Math.min(m, from + BLOCK_ROWS));
+            }
+        }
+
+        private void writeBlock(TripleDifferenceTable chunk, int from, int to) throws IOException {
+            int m = to - from;
+            long n = count;
+            if (sorted) {
+                for (int r = from; r < to; r++) {
+                    float d = (float) chunk.getDistKm(r);
+                    if (d < prevDistKm || d > lastDistKm) {
+                        throw new IllegalArgumentException("Row " + (written + r - from) + " of " + outputFile.getName()
+                            + " out of distance order: " + d + " km");
+                    }
+                    prevDistKm = d;
+                    int row = written + r - from;
+                    while (nextBucket < index.length && d >= nextBucket * V3_INDEX_WIDTH_KM) {
+                        index[nextBucket++] = row;
+                    }
+                }
+            }
+            long offset = dataOffset;
+            buf.clear();
+            for (int r = from; r < to; r++) buf.putDouble(chunk.getTdTime(r));
+            flush(offset + 8L * written);
+            offset += 8L * n;
+            for (int r = from; r < to; r++) buf.putDouble(chunk.getResidual(r));
+            flush(offset + 8L * written);
+            offset += 8L * n;
+            for (int r = from; r < to; r++) buf.putInt(chunk.getEve0(r));
+            flush(offset + 4L * written);
+            offset += 4L * n;
+            for (int r = from; r < to; r++) buf.putInt(chunk.getEve1(r));
+            flush(offset + 4L * written);
+            offset += 4L * n;
+            for (int r = from; r < to; r++) buf.putInt(chunk.getStn0(r));
+            flush(offset + 4L * written);
+            offset += 4L * n;
+            for (int r = from; r < to; r++) buf.putInt(chunk.getStn1(r));
+            flush(offset + 4L * written);
+            offset += 4L * n;
+            for (int r = from; r < to; r++) buf.putFloat((float) chunk.getDistKm(r));
+            flush(offset + 4L * written);
+            written += m;
+        }
+
+        /** Writes the buffer at a file position and clears it. */
+        private void flush(long position) throws IOException {
+            buf.flip();
+            while (buf.hasRemaining()) {
+                position += ch.write(buf, position);
+            }
+            buf.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                if (written != count) {
+                    throw new IOException("Wrote " + written + " of " + count + " triple differences to "
+                        + outputFile.getName());
+                }
+                boolean bounded = maxPairDistKm < Double.POSITIVE_INFINITY;
+                int indexLength = index != null ? index.length : 0;
+                ByteBuffer header = ByteBuffer.allocate((int) dataOffset);
+                header.putInt(BINARY_MAGIC_V3);
+                header.putInt((sorted ? V3_FLAG_SORTED_BY_DISTANCE : 0) | (bounded ? V3_FLAG_PAIR_DISTANCE_BOUND : 0));
+                header.putInt(clusterId);
+                header.putInt(count);
+                header.putDouble(V3_INDEX_WIDTH_KM);
+                header.putInt(indexLength);
+                header.putInt(bounded ? Float.floatToIntBits((float) maxPairDistKm) : 0);
+                for (int k = nextBucket; k < indexLength; k++) {
+                    index[k] = count;
+                }
+                for (int k = 0; k < indexLength; k++) {
+                    header.putInt(index[k]);
+                }
+                header.flip();
+                long position = 0;
+                while (header.hasRemaining()) {
+                    position += ch.write(header, position);
+                }
+            } finally {
+                ch.close();
+            }
+            logger.info("Saved " + count + " triple differences to binary file: " + outputFile.getAbsolutePath());
         }
-        logger.info("Saved " + tripleDifferences.size() + " triple differences to binary file: " + outputFile.getAbsolutePath());
     }
-    
+
     /**
-     * Loads triple differences from a binary file.
-     * 
+     * Opens a file for writing. A file that was memory-mapped by an earlier TRD run in this JVM cannot be
+     * overwritten on some platforms (Windows) until the mapping is garbage-collected, so a failed open is
+     * retried once after requesting a collection.
+     */
+    private static FileOutputStream openForWrite(File outputFile) throws IOException {
+        try {
+            return new FileOutputStream(outputFile);
+        } catch (FileNotFoundException e) {
+            if (!outputFile.exists()) {
+                throw e;
+            }
+            logger.log(Level.FINE, "Retrying write after releasing mappings: " + outputFile.getAbsolutePath(), e);
+            System.gc();
+            return new FileOutputStream(outputFile);
+        }
+    }
+
+    /**
+     * Loads triple differences from binary file.
+     * Supports v1 (no magic, 7 fields), v2 (magic TDF2, 8 fields with residual) and v3 (magic TDF3, columnar).
+     *
      * @param inputFile the input file path
      * @return list of triple differences
      * @throws IOException if I/O error occurs
      */
+    public static List<TripleDifference> loadBinary(File inputFile) throws IOException {
+        return loadBinaryTable(inputFile).toRecords();
+    }
+
     /**
-     * Loads triple differences from binary file.
-     * Supports v1 (no magic, 7 fields) and v2 (magic TDF2, 8 fields with residual).
+     * Loads a binary file into a columnar table. v3 files are memory-mapped (read-only, not copied to the
+     * heap); v1/v2 files are read record by record. The cluster ID of a v1/v2 table is that of the first
+     * record (files are written per cluster). The sort order is taken from the v3 header; v1/v2 rows are
+     * checked once after loading.
+     *
+     * @param inputFile the input file path
+     * @return table of triple differences in file order
+     * @throws IOException if I/O error occurs
      */
-    public static List<TripleDifference> loadBinary(File inputFile) throws IOException {
-        List<TripleDifference> tripleDifferences = new ArrayList<>();
+    public static TripleDifferenceTable loadBinaryTable(File inputFile) throws IOException {
+        int firstInt;
+        try (DataInputStream dis = new DataInputStream(new FileInputStream(inputFile))) {
+            firstInt = dis.readInt();
+        }
+        if (firstInt == BINARY_MAGIC_V3) {
+            TripleDifferenceTable table = mapV3(inputFile);
+            logger.info("Mapped " + table.size() + " triple differences from binary file: " + inputFile.getAbsolutePath());
+            return table;
+        }
 
+        TripleDifferenceTable table;
         try (DataInputStream dis = new DataInputStream(
-                new BufferedInputStream(new FileInputStream(inputFile)))) {
-            int firstInt = dis.readInt();
+                new BufferedInputStream(new FileInputStream(inputFile), 1 << 16))) {
+            dis.readInt();
             int numRecords;
             boolean hasResidual;
 
@@ -114,7 +344,11 @@ public class TripleDifferenceIO {
                 numRecords = firstInt;
                 hasResidual = false;
             }
+            if (numRecords < 0) {
+                throw new IOException("Invalid record count " + numRecords + " in " + inputFile.getName());
+            }
 
+            TripleDifferenceTable.Builder builder = null;
             for (int i = 0; i < numRecords; i++) {
                 int eve0 = dis.readInt();
                 int eve1 = dis.readInt();
@@ -124,32 +358,156 @@ public class TripleDifferenceIO {
                 double distKm = dis.readDouble();
                 int clusterId = dis.readInt();
                 double residual = hasResidual ? dis.readDouble() : Double.NaN;
+                if (builder == null) {
+                    builder = new TripleDifferenceTable.Builder(clusterId, numRecords);
+                }
+                builder.add(eve0, eve1, stn0, stn1, tdTime, distKm, residual);
+            }
+            table = builder != null ? builder.build() : TripleDifferenceTable.empty(0);
+        }
+        table.detectSortedByDistance();
+        logger.info("Loaded " + table.size() + " triple differences from binary file: " + inputFile.getAbsolutePath());
+        return table;
+    }
 
-                tripleDifferences.add(new TripleDifference(eve0, eve1, stn0, stn1,
-                        tdTime, distKm, clusterId, residual));
+    /**
+     * Maps the columns of a v3 file. Each column is a separate read-only mapping, so columns of up to 2 GB
+     * each are supported; the mappings stay valid after the channel is closed.
+     */
+    private static TripleDifferenceTable mapV3(File inputFile) throws IOException {
+        try (FileChannel ch = FileChannel.open(inputFile.toPath(), StandardOpenOption.READ)) {
+            long fileSize = ch.size();
+            if (fileSize < V3_HEADER_BYTES) {
+                throw new IOException("Truncated TDF3 header in " + inputFile.getName());
+            }
+            ByteBuffer header = ch.map(FileChannel.MapMode.READ_ONLY, 0, V3_HEADER_BYTES);
+            header.getInt(); // magic
+            int flags = header.getInt();
+            int clusterId = header.getInt();
+            int n = header.getInt();
+            double widthKm = header.getDouble();
+            int indexLength = header.getInt();
+            float maxPairDistKm = Float.intBitsToFloat(header.getInt());
+            boolean sorted = (flags & V3_FLAG_SORTED_BY_DISTANCE) != 0;
+            boolean bounded = (flags & V3_FLAG_PAIR_DISTANCE_BOUND) != 0;
+            if (n < 0 || indexLength < 0 || (sorted && !(widthKm > 0)) || (bounded && !(maxPairDistKm > 0))) {
+                throw new IOException("Invalid TDF3 header in " + inputFile.getName());
+            }
+            long offset = V3_HEADER_BYTES;
+            long indexBytes = 4L * (indexLength + (indexLength % 2));
+            long expected = offset + indexBytes + (long) n * (8 + 8 + 4 * 4 + 4);
+            if (fileSize < expected) {
+                throw new IOException("Truncated TDF3 file " + inputFile.getName() + ": "
+                    + fileSize + " bytes, expected " + expected);
             }
+            int[] index = null;
+            if (sorted && indexLength > 0) {
+                index = new int[indexLength];
+                ch.map(FileChannel.MapMode.READ_ONLY, offset, 4L * indexLength).asIntBuffer().get(index);
+            }
+            offset += indexBytes;
+            MappedByteBuffer tdTime = ch.map(FileChannel.MapMode.READ_ONLY, offset, 8L * n);
+            offset += 8L * n;
+            MappedByteBuffer residual = ch.map(FileChannel.MapMode.READ_ONLY, offset, 8L * n);
+            offset += 8L * n;
+            MappedByteBuffer eve0 = ch.map(FileChannel.MapMode.READ_ONLY, offset, 4L * n);
+            offset += 4L * n;
+            MappedByteBuffer eve1 = ch.map(FileChannel.MapMode.READ_ONLY, offset, 4L * n);
+            offset += 4L * n;
+            MappedByteBuffer stn0 = ch.map(FileChannel.MapMode.READ_ONLY, offset, 4L * n);
+            offset += 4L * n;
+            MappedByteBuffer stn1 = ch.map(FileChannel.MapMode.READ_ONLY, offset, 4L * n);
+            offset += 4L * n;
+            MappedByteBuffer distKm = ch.map(FileChannel.MapMode.READ_ONLY, offset, 4L * n);
+            TripleDifferenceTable table = new TripleDifferenceTable(clusterId, n, eve0.asIntBuffer(),
+                eve1.asIntBuffer(), stn0.asIntBuffer(), stn1.asIntBuffer(), tdTime.asDoubleBuffer(),
+                distKm.asFloatBuffer(), residual.asDoubleBuffer(), sorted, index, widthKm);
+            if (bounded) {
+                table.setMaxPairDistKm(maxPairDistKm);
+            }
+            return table;
+        }
+    }
+
+    /**
+     * Reads only the record count from the header of a binary file (v1, v2 or v3), without loading the records.
+     *
+     * @param inputFile the input file path
+     * @return number of records declared in the header
+     * @throws IOException if I/O error occurs or the file is too short
+     */
+    public static int readBinaryRecordCount(File inputFile) throws IOException {
+        try (DataInputStream dis = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(inputFile), 16))) {
+            int firstInt = dis.readInt();
+            if (firstInt == BINARY_MAGIC_V3) {
+                dis.readInt(); // flags
+                dis.readInt(); // clusterId
+                return dis.readInt();
+            }
+            return firstInt == BINARY_MAGIC_V2 ? dis.readInt() : firstInt;
         }
-        logger.info("Loaded " + tripleDifferences.size() + " triple differences from binary file: " + inputFile.getAbsolutePath());
-        return tripleDifferences;
     }
     
     /**
      * Saves triple differences to a CSV file.
      * 
-     * @param tripleDifferences the list of triple differences
+     * @param tripleDifferences the list of triple differences (all of one cluster)
      * @param outputFile the output file path
      * @throws IOException if I/O error occurs
      */
     public static void saveCSV(List<TripleDifference> tripleDifferences, File outputFile) throws IOException {
-        try (PrintWriter writer = new PrintWriter(new FileWriter(outputFile))) {
-            writer.println("eve0,eve1,stn0,stn1,tdTime,distKm,clusterId,residual");
-            for (TripleDifference td : tripleDifferences) {
-                String resStr = Double.isNaN(td.residual) ? "" : String.format("%.6e", td.residual);
-                writer.printf("%d,%d,%d,%d,%.3f,%.3f,%d,%s%n",
-                    td.eve0, td.eve1, td.stn0, td.stn1, td.tdTime, td.distKm, td.clusterId, resStr);
-            }
+        saveCSV(TripleDifferenceTable.fromRecords(tripleDifferences, 0), outputFile);
+    }
+
+    /**
+     * Saves a triple-difference table to a CSV file.
+     *
+     * @param table the triple differences
+     * @param outputFile the output file path
+     * @throws IOException if I/O error occurs
+     */
+    public static void saveCSV(TripleDifferenceTable table, File outputFile) throws IOException {
+        try (TableWriter writer = openCSVWriter(outputFile)) {
+            writer.write(table);
         }
-        logger.info("Saved " + tripleDifferences.size() + " triple differences to CSV file: " + outputFile.getAbsolutePath());
+    }
+
+    /**
+     * Opens a CSV writer; the header line is written immediately and the rows as chunks arrive.
+     *
+     * @param outputFile the output file path
+     * @return the writer
+     * @throws IOException if the file cannot be opened
+     */
+    public static TableWriter openCSVWriter(File outputFile) throws IOException {
+        PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(outputFile)));
+        writer.println("eve0,eve1,stn0,stn1,tdTime,distKm,clusterId,residual");
+        return new TableWriter() {
+            private int written;
+
+            @Override
+            public void write(TripleDifferenceTable table) throws IOException {
+                int n = table.size();
+                for (int r = 0; r < n; r++) {
+                    double residual = table.getResidual(r);
+                    String resStr = Double.isNaN(residual) ? "" : String.format("%.6e", residual);
+                    writer.printf("%d,%d,%d,%d,%.3f,%.3f,%d,%s%n",
+                        table.getEve0(r), table.getEve1(r), table.getStn0(r), table.getStn1(r),
+                        table.getTdTime(r), table.getDistKm(r), table.getClusterId(), resStr);
+                }
+                written += n;
+                if (writer.checkError()) {
+                    throw new IOException("Error writing " + outputFile.getAbsolutePath());
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                writer.close();
+                logger.info("Saved " + written + " triple differences to CSV file: " + outputFile.getAbsolutePath());
+            }
+        };
     }
     
     /**
@@ -160,42 +518,56 @@ public class TripleDifferenceIO {
      * @throws IOException if I/O error occurs
      */
     public static List<TripleDifference> loadCSV(File inputFile) throws IOException {
-        List<TripleDifference> tripleDifferences = new ArrayList<>();
+        return loadCSVTable(inputFile).toRecords();
+    }
+
+    /**
+     * Loads a CSV file into a columnar table. The cluster ID of the table is that of the first record.
+     *
+     * @param inputFile the input file path
+     * @return table of triple differences in file order
+     * @throws IOException if I/O error occurs
+     */
+    public static TripleDifferenceTable loadCSVTable(File inputFile) throws IOException {
+        TripleDifferenceTable.Builder builder = null;
         
-        try (BufferedReader br = new BufferedReader(new FileReader(inputFile))) {
-            String line = br.readLine(); // Skip header
-            if (line == null || !line.contains("eve0")) {
+        try (TextTokenizer in = TextTokenizer.open(inputFile)) {
+            String header = in.nextLine() ? in.line() : null; // Skip header
+            if (header == null || !header.contains("eve0")) {
                 throw new IOException("Invalid CSV header");
             }
-            boolean hasResidualColumn = line.contains("residual");
+            boolean hasResidualColumn = header.contains("residual");
 
-            while ((line = br.readLine()) != null) {
-                if (line.trim().isEmpty()) continue;
+            while (in.nextLine()) {
+                if (in.isBlank()) continue;
 
-                String[] parts = line.trim().split(",", -1);
-                if (parts.length >= 7) {
-                    int eve0 = Integer.parseInt(parts[0].trim());
-                    int eve1 = Integer.parseInt(parts[1].trim());
-                    int stn0 = Integer.parseInt(parts[2].trim());
-                    int stn1 = Integer.parseInt(parts[3].trim());
-                    double tdTime = Double.parseDouble(parts[4].trim());
-                    double distKm = Double.parseDouble(parts[5].trim());
-                    int clusterId = Integer.parseInt(parts[6].trim());
+                int n = in.split(',', true);
+                if (n >= 7) {
+                    int eve0 = in.getInt(0);
+                    int eve1 = in.getInt(1);
+                    int stn0 = in.getInt(2);
+                    int stn1 = in.getInt(3);
+                    double tdTime = in.getDouble(4);
+                    double distKm = in.getDouble(5);
+                    int clusterId = in.getInt(6);
                     double residual = Double.NaN;
-                    if (hasResidualColumn && parts.length >= 8 && parts[7] != null && !parts[7].trim().isEmpty()) {
+                    if (hasResidualColumn && n >= 8 && !in.isEmpty(7)) {
                         try {
-                            residual = Double.parseDouble(parts[7].trim());
+                            residual = in.getDouble(7);
                         } catch (NumberFormatException e) {
-                            logger.log(Level.FINE, "Skip invalid residual column value: " + parts[7].trim(), e);
+                            logger.log(Level.FINE, "Skip invalid residual column value: " + in.getString(7), e);
                         }
                     }
-                    tripleDifferences.add(new TripleDifference(eve0, eve1, stn0, stn1,
-                            tdTime, distKm, clusterId, residual));
+                    if (builder == null) {
+                        builder = new TripleDifferenceTable.Builder(clusterId, 1024);
+                    }
+                    builder.add(eve0, eve1, stn0, stn1, tdTime, distKm, residual);
                 }
             }
         }
-        logger.info("Loaded " + tripleDifferences.size() + " triple differences from CSV file: " + inputFile.getAbsolutePath());
-        return tripleDifferences;
+        TripleDifferenceTable table = builder != null ? builder.build() : TripleDifferenceTable.empty(0);
+        table.detectSortedByDistance();
+        logger.info("Loaded " + table.size() + " triple differences from CSV file: " + inputFile.getAbsolutePath());
+        return table;
     }
 }
-
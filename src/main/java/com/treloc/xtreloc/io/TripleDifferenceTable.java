@@ -0,0 +1,528 @@
+package com.treloc.xtreloc.io;
+
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Columnar table of triple differences for one cluster.
+ *
+ * <p>Each column holds one value per row: event indices ({@code eve0}, {@code eve1}),
+ * station indices ({@code stn0}, {@code stn1}), observed triple difference {@code tdTime} (sec),
+ * inter-event distance {@code distKm} and travel-time {@code residual} (sec, NaN when not computed).
+ * The distance is only used for ordering and stage filtering, so it is stored as {@code float}; a row
+ * takes 36 bytes instead of a {@link TripleDifferenceIO.TripleDifference} object plus its list slot.
+ * The cluster ID is shared by all rows.
+ *
+ * <p>Columns are NIO buffers: heap buffers over arrays for tables built with {@link Builder}, and
+ * read-only memory-mapped buffers for tables opened from a TDF3 file
+ * ({@link TripleDifferenceIO#loadBinaryTable(java.io.File)}). Mapped tables are not copied to the heap;
+ * only the pages that are accessed are read, and the pages are shared between processes.
+ *
+ * <p>Apart from {@link #setResidual(int, double)} and {@link #sortByDistance()} (not supported on
+ * mapped tables) tables are not modified after construction. A table knows whether its rows are sorted by
+ * distance (set by {@link #sortByDistance()} or recorded in the file); on a sorted table
+ * {@link #filterByDistance(double)} is a binary search that returns a prefix view sharing the columns,
+ * so TRD stages with increasing thresholds do not copy rows. Other selections copy the selected rows.
+ * A table built from distance-bounded event pairs (CLS {@code maxPairDistKm}) also records that bound;
+ * pairs beyond it are missing from the table, not merely filtered.
+ *
+ * @author xTreLoc Development Team
+ * @version 1.0
+ */
+public final class TripleDifferenceTable {
+
+    private final int clusterId;
+    private final int size;
+    private final IntBuffer eve0;
+    private final IntBuffer eve1;
+    private final IntBuffer stn0;
+    private final IntBuffer stn1;
+    private final DoubleBuffer tdTime;
+    private final FloatBuffer distKm;
+    private final DoubleBuffer residual;
+    /** Distance index (rows sorted by distance only): distIndex[k] = number of rows with distKm &lt; k * distIndexWidthKm. */
+    private final int[] distIndex;
+    private final double distIndexWidthKm;
+    private boolean sortedByDistance;
+    /** Largest inter-event distance of the pairs the table was built from (km); infinite when unbounded. */
+    private double maxPairDistKm = Double.POSITIVE_INFINITY;
+
+    TripleDifferenceTable(int clusterId, int size, IntBuffer eve0, IntBuffer eve1, IntBuffer stn0, IntBuffer stn1,
+                          DoubleBuffer tdTime, FloatBuffer distKm, DoubleBuffer residual,
+                          boolean sortedByDistance, int[] distIndex, double distIndexWidthKm) {
+        this.clusterId = clusterId;
+        this.size = size;
+        this.eve0 = eve0;
+        this.eve1 = eve1;
+        this.stn0 = stn0;
+        this.stn1 = stn1;
+        this.tdTime = tdTime;
+        this.distKm = distKm;
+        this.residual = residual;
+        this.distIndex = distIndex;
+        this.distIndexWidthKm = distIndexWidthKm;
+        this.sortedByDistance = sortedByDistance;
+    }
+
+    /**
+     * Returns an empty table.
+     *
+     * @param clusterId cluster ID
+     * @return table with no rows
+     */
+    public static TripleDifferenceTable empty(int clusterId) {
+        return new Builder(clusterId, 0).build();
+    }
+
+    /**
+     * Builds a table from record objects.
+     *
+     * @param records triple differences of one cluster
+     * @param clusterId cluster ID used when {@code records} is empty
+     * @return table with the records in list order
+     * @throws IllegalArgumentException if the records belong to different clusters
+     */
+    public static TripleDifferenceTable fromRecords(List<TripleDifferenceIO.TripleDifference> records, int clusterId) {
+        int cid = records.isEmpty() ? clusterId : records.get(0).clusterId;
+        Builder b = new Builder(cid, records.size());
+        for (TripleDifferenceIO.TripleDifference td : records) {
+            if (td.clusterId != cid) {
+                throw new IllegalArgumentException("Mixed cluster IDs in triple differences: " + cid + " and " + td.clusterId);
+            }
+            b.add(td.eve0, td.eve1, td.stn0, td.stn1, td.tdTime, td.distKm, td.residual);
+        }
+        TripleDifferenceTable table = b.build();
+        table.detectSortedByDistance();
+        return table;
+    }
+
+    /**
+     * Converts the rows to record objects.
+     *
+     * @return list of triple differences in row order
+     */
+    public List<TripleDifferenceIO.TripleDifference> toRecords() {
+        List<TripleDifferenceIO.TripleDifference> records = new ArrayList<>(size);
+        for (int r = 0; r < size; r++) {
+            records.add(new TripleDifferenceIO.TripleDifference(getEve0(r), getEve1(r), getStn0(r), getStn1(r),
+                getTdTime(r), getDistKm(r), clusterId, getResidual(r)));
+        }
+        return records;
+    }
+
+    public int getClusterId() {
+        return clusterId;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int getEve0(int row) {
+        return eve0.get(row);
+    }
+
+    public int getEve1(int row) {
+        return eve1.get(row);
+    }
+
+    public int getStn0(int row) {
+        return stn0.get(row);
+    }
+
+    public int getStn1(int row) {
+        return stn1.get(row);
+    }
+
+    public double getTdTime(int row) {
+        return tdTime.get(row);
+    }
+
+    public double getDistKm(int row) {
+        return distKm.get(row);
+    }
+
+    /** Residual in seconds (absolute value). Double.NaN when not available. */
+    public double getResidual(int row) {
+        return residual.get(row);
+    }
+
+    /**
+     * Sets the residual of one row.
+     *
+     * @param row row index
+     * @param value residual in seconds, or Double.NaN
+     * @throws java.nio.ReadOnlyBufferException if the table is memory-mapped
+     */
+    public void setResidual(int row, double value) {
+        residual.put(row, value);
+    }
+
+    /**
+     * @return true if the rows are known to be in ascending order of distance
+     */
+    public boolean isSortedByDistance() {
+        return sortedByDistance;
+    }
+
+    /**
+     * @return largest inter-event distance of the event pairs that were joined (km), or
+     *         {@link Double#POSITIVE_INFINITY} when all pairs of the cluster were joined
+     */
+    public double getMaxPairDistKm() {
+        return maxPairDistKm;
+    }
+
+    /**
+     * Records the inter-event distance bound of the event pairs the table was built from.
+     *
+     * @param maxPairDistKm distance bound (km, &gt; 0), or {@link Double#POSITIVE_INFINITY} for none
+     */
+    public void setMaxPairDistKm(double maxPairDistKm) {
+        if (!(maxPairDistKm > 0)) {
+            throw new IllegalArgumentException("maxPairDistKm must be positive: " + maxPairDistKm);
+        }
+        this.maxPairDistKm = maxPairDistKm;
+    }
+
+    /**
+     * Checks the row order once and records whether the rows are sorted by distance. Used for files that
+     * do not record the sort order (TDF1/TDF2, CSV).
+     *
+     * @return true if the rows are sorted by distance
+     */
+    boolean detectSortedByDistance() {
+        if (!sortedByDistance) {
+            boolean sorted = true;
+            for (int r = 1; r < size && sorted; r++) {
+                sorted = distKm.get(r) >= distKm.get(r - 1);
+            }
+            sortedByDistance = sorted;
+        }
+        return sortedByDistance;
+    }
+
+    /**
+     * Sorts the rows by distance (ascending) in place. The sort is stable, so rows at equal distance keep
+     * their order. Rows that are already in order (e.g. built in distance order) are only checked.
+     *
+     * @throws java.nio.ReadOnlyBufferException if the table is memory-mapped and not sorted
+     */
+    public void sortByDistance() {
+        if (detectSortedByDistance()) {
+            return;
+        }
+        // distKm >= 0, so the raw float bits order like the values; the row index in the low word
+        // makes the keys unique and the sort stable.
+        long[] keys = new long[size];
+        for (int r = 0; r < size; r++) {
+            keys[r] = ((long) Float.floatToIntBits(distKm.get(r)) << 32) | r;
+        }
+        Arrays.sort(keys);
+        int[] order = new int[size];
+        for (int r = 0; r < size; r++) {
+            order[r] = (int) keys[r];
+        }
+        keys = null;
+        permute(eve0, order);
+        permute(eve1, order);
+        permute(stn0, order);
+        permute(stn1, order);
+        permute(tdTime, order);
+        permute(distKm, order);
+        permute(residual, order);
+        sortedByDistance = true;
+    }
+
+    private void permute(IntBuffer col, int[] order) {
+        int[] src = new int[size];
+        col.get(0, src);
+        for (int r = 0; r < size; r++) {
+            col.put(r, src[order[r]]);
+        }
+    }
+
+    private void permute(DoubleBuffer col, int[] order) {
+        double[] src = new double[size];
+        col.get(0, src);
+        for (int r = 0; r < size; r++) {
+            col.put(r, src[order[r]]);
+        }
+    }
+
+    private void permute(FloatBuffer col, int[] order) {
+        float[] src = new float[size];
+        col.get(0, src);
+        for (int r = 0; r < size; r++) {
+            col.put(r, src[order[r]]);
+        }
+    }
+
+    /**
+     * Computes the distance index of a sorted table: {@code index[k]} is the number of rows with
+     * {@code distKm < k * widthKm}, for k = 0 .. floor(max distance / widthKm) + 1 (the last entry is the size).
+     *
+     * @param widthKm bucket width (km)
+     * @return the index, or null if the rows are not sorted by distance
+     */
+    int[] distanceIndex(double widthKm) {
+        if (distIndex != null && distIndexWidthKm == widthKm) {
+            return distIndex;
+        }
+        if (!sortedByDistance) {
+            return null;
+        }
+        int buckets = size == 0 ? 0 : (int) Math.floor(distKm.get(size - 1) / widthKm) + 1;
+        int[] index = new int[buckets + 1];
+        int r = 0;
+        for (int k = 0; k <= buckets; k++) {
+            double bound = k * widthKm;
+            while (r < size && distKm.get(r) < bound) {
+                r++;
+            }
+            index[k] = r;
+        }
+        return index;
+    }
+
+    /**
+     * Returns the rows with {@code distKm < maxDistKm}, in their current order. On a table sorted by
+     * distance this is a prefix view (no copy, see {@link #prefix(int)}); otherwise the rows are copied.
+     *
+     * @param maxDistKm distance threshold (km, exclusive)
+     * @return table with the selected rows (this table when all rows are kept)
+     */
+    public TripleDifferenceTable filterByDistance(double maxDistKm) {
+        if (sortedByDistance) {
+            return prefix(countBelow(maxDistKm));
+        }
+        boolean[] keep = new boolean[size];
+        for (int r = 0; r < size; r++) {
+            keep[r] = distKm.get(r) < maxDistKm;
+        }
+        return select(keep);
+    }
+
+    /**
+     * Counts the rows with {@code distKm < maxDistKm}. On a sorted table this is a binary search, narrowed
+     * to one bucket when the table has a distance index (TDF3 file).
+     *
+     * @param maxDistKm distance threshold (km, exclusive)
+     * @return number of rows below the threshold
+     */
+    public int countBelow(double maxDistKm) {
+        if (!sortedByDistance) {
+            int count = 0;
+            for (int r = 0; r < size; r++) {
+                if (distKm.get(r) < maxDistKm) count++;
+            }
+            return count;
+        }
+        int lo = 0;
+        int hi = size;
+        if (distIndex != null) {
+            if (!(maxDistKm > 0)) {
+                return 0;
+            }
+            double bucket = Math.floor(maxDistKm / distIndexWidthKm);
+            if (bucket >= distIndex.length - 1) {
+                return size;
+            }
+            lo = distIndex[(int) bucket];
+            hi = distIndex[(int) bucket + 1];
+        }
+        // First row in [lo, hi) with distKm >= maxDistKm.
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (distKm.get(mid) < maxDistKm) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Returns a view of the first {@code count} rows. The view shares the columns with this table
+     * (residuals set through one are visible in the other) and keeps its sort order.
+     *
+     * @param count number of rows
+     * @return view of rows 0 .. count-1 (this table when {@code count == size()})
+     */
+    public TripleDifferenceTable prefix(int count) {
+        if (count < 0 || count > size) {
+            throw new IllegalArgumentException("Prefix length " + count + " out of range [0, " + size + "]");
+        }
+        if (count == size) {
+            return this;
+        }
+        TripleDifferenceTable view = new TripleDifferenceTable(clusterId, count, eve0, eve1, stn0, stn1, tdTime,
+            distKm, residual, sortedByDistance, null, 0.0);
+        view.maxPairDistKm = maxPairDistKm;
+        return view;
+    }
+
+    /**
+     * Returns the rows whose flag is set, in their current order.
+     *
+     * @param keep one flag per row
+     * @return table with the selected rows (this table when all rows are kept)
+     */
+    public TripleDifferenceTable select(boolean[] keep) {
+        if (keep.length != size) {
+            throw new IllegalArgumentException("Selection length mismatch: expected " + size + ", got " + keep.length);
+        }
+        int count = 0;
+        for (int r = 0; r < size; r++) {
+            if (keep[r]) count++;
+        }
+        if (count == size) {
+            return this;
+        }
+        Builder b = new Builder(clusterId, count);
+        for (int r = 0; r < size; r++) {
+            if (keep[r]) {
+                b.add(getEve0(r), getEve1(r), getStn0(r), getStn1(r), getTdTime(r), distKm.get(r), getResidual(r));
+            }
+        }
+        TripleDifferenceTable selected = b.build();
+        selected.sortedByDistance = sortedByDistance;
+        selected.maxPairDistKm = maxPairDistKm;
+        return selected;
+    }
+
+    /**
+     * Returns the rows between events of a subset, with the events renumbered, in their current order.
+     *
+     * @param eventMap new index of each event, or -1 for events outside the subset
+     * @return table with the rows whose two events are both in the subset
+     */
+    public TripleDifferenceTable subset(int[] eventMap) {
+        int count = 0;
+        for (int r = 0; r < size; r++) {
+            if (eventMap[getEve0(r)] >= 0 && eventMap[getEve1(r)] >= 0) count++;
+        }
+        Builder b = new Builder(clusterId, count);
+        for (int r = 0; r < size; r++) {
+            int e0 = eventMap[getEve0(r)];
+            int e1 = eventMap[getEve1(r)];
+            if (e0 >= 0 && e1 >= 0) {
+                b.add(e0, e1, getStn0(r), getStn1(r), getTdTime(r), distKm.get(r), getResidual(r));
+            }
+        }
+        TripleDifferenceTable sub = b.build();
+        sub.sortedByDistance = sortedByDistance;
+        sub.maxPairDistKm = maxPairDistKm;
+        return sub;
+    }
+
+    /**
+     * Growable builder. Column arrays grow by 1.5x and are trimmed by {@link #build()}.
+     */
+    public static final class Builder {
+        private final int clusterId;
+        private int size;
+        private int[] eve0;
+        private int[] eve1;
+        private int[] stn0;
+        private int[] stn1;
+        private double[] tdTime;
+        private float[] distKm;
+        private double[] residual;
+
+        /**
+         * @param clusterId cluster ID of all rows
+         * @param initialCapacity expected number of rows
+         */
+        public Builder(int clusterId, int initialCapacity) {
+            if (initialCapacity < 0) {
+                throw new IllegalArgumentException("Negative capacity: " + initialCapacity);
+            }
+            this.clusterId = clusterId;
+            allocate(initialCapacity);
+        }
+
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Appends a row without residual.
+         */
+        public Builder add(int eve0, int eve1, int stn0, int stn1, double tdTime, double distKm) {
+            return add(eve0, eve1, stn0, stn1, tdTime, distKm, Double.NaN);
+        }
+
+        /**
+         * Appends a row.
+         */
+        public Builder add(int eve0, int eve1, int stn0, int stn1, double tdTime, double distKm, double residual) {
+            if (size == this.eve0.length) {
+                allocate(Math.max(16, size + (size >> 1)));
+            }
+            this.eve0[size] = eve0;
+            this.eve1[size] = eve1;
+            this.stn0[size] = stn0;
+            this.stn1[size] = stn1;
+            this.tdTime[size] = tdTime;
+            this.distKm[size] = (float) distKm;
+            this.residual[size] = residual;
+            size++;
+            return this;
+        }
+
+        /**
+         * Appends all rows of another builder, in order. The other builder is left unchanged.
+         */
+        public Builder addAll(Builder other) {
+            if (other.size == 0) {
+                return this;
+            }
+            if (size + other.size > this.eve0.length) {
+                allocate(Math.max(size + other.size, size + (size >> 1)));
+            }
+            System.arraycopy(other.eve0, 0, eve0, size, other.size);
+            System.arraycopy(other.eve1, 0, eve1, size, other.size);
+            System.arraycopy(other.stn0, 0, stn0, size, other.size);
+            System.arraycopy(other.stn1, 0, stn1, size, other.size);
+            System.arraycopy(other.tdTime, 0, tdTime, size, other.size);
+            System.arraycopy(other.distKm, 0, distKm, size, other.size);
+            System.arraycopy(other.residual, 0, residual, size, other.size);
+            size += other.size;
+            return this;
+        }
+
+        private void allocate(int capacity) {
+            eve0 = eve0 == null ? new int[capacity] : Arrays.copyOf(eve0, capacity);
+            eve1 = eve1 == null ? new int[capacity] : Arrays.copyOf(eve1, capacity);
+            stn0 = stn0 == null ? new int[capacity] : Arrays.copyOf(stn0, capacity);
+            stn1 = stn1 == null ? new int[capacity] : Arrays.copyOf(stn1, capacity);
+            tdTime = tdTime == null ? new double[capacity] : Arrays.copyOf(tdTime, capacity);
+            distKm = distKm == null ? new float[capacity] : Arrays.copyOf(distKm, capacity);
+            residual = residual == null ? new double[capacity] : Arrays.copyOf(residual, capacity);
+        }
+
+        /**
+         * Builds the table. The builder must not be used afterwards.
+         *
+         * @return table with the appended rows
+         */
+        public TripleDifferenceTable build() {
+            if (eve0.length != size) {
+                allocate(size);
+            }
+            return new TripleDifferenceTable(clusterId, size, IntBuffer.wrap(eve0), IntBuffer.wrap(eve1),
+                IntBuffer.wrap(stn0), IntBuffer.wrap(stn1), DoubleBuffer.wrap(tdTime), FloatBuffer.wrap(distKm),
+                DoubleBuffer.wrap(residual), false, null, 0.0);
+        }
+    }
+}
@@ -119,6 +119,34 @@ public class COOSparseMatrix {
         return 0.0;
     }
     
+    /**
+     * Returns the number of stored (non-zero) entries.
+     * 
+     * @return number of entries
+     */
+    public int getNonZeroCount() {
+        return entries.size();
+    }
+    
+    /**
+     * Callback receiving one stored entry.
+     */
+    @FunctionalInterface
+    public interface EntryConsumer {
+        void accept(int row, int col, double value);
+    }
+    
+    /**
+     * Visits all stored entries in insertion order.
+     * 
+     * @param consumer callback invoked once per entry
+     */
+    public void forEachEntry(EntryConsumer consumer) {
+        for (Entry e : entries) {
+            consumer.accept(e.row, e.col, e.value);
+        }
+    }
+    
     /**
      * Computes matrix-vector product (y = A * x).
      * 
@@ -0,0 +1,293 @@
+package com.treloc.xtreloc.solver;
+
+import com.treloc.xtreloc.util.SharedComputePool;
+import org.apache.commons.math3.linear.OpenMapRealMatrix;
+
+import java.util.Arrays;
+
+/**
+ * Immutable sparse matrix in CSR (Compressed Sparse Row) format.
+ *
+ * <p>Used as the execution format of the LSQR operators: rows are stored contiguously, so
+ * {@code y = A x} and {@code x = A^T y} are single passes over primitive arrays. Both products
+ * write into caller-supplied arrays (no allocation per call) and are row-partitioned over
+ * {@link SharedComputePool} when the matrix is large enough. Partitions are balanced by the
+ * number of non-zeros, not by the number of rows.
+ *
+ * <p>The transpose product scatters into columns, so each partition accumulates into its own
+ * buffer; buffers are then reduced column-wise. The buffers are kept between calls, hence an
+ * instance must not be used by several threads at the same time.
+ *
+ * @author xTreLoc Development Team
+ * @version 1.0
+ */
+public class CSRSparseMatrix {
+    /** Below this many non-zeros per partition the parallel overhead is not worth paying. */
+    private static final int MIN_NNZ_PER_PARTITION = 1 << 15;
+
+    private final int rows;
+    private final int cols;
+    private final int[] rowPtr;
+    private final int[] colIdx;
+    private final double[] values;
+    private final int[] partitionBounds;
+    private double[][] partialBuffers;
+
+    /**
+     * Creates a CSR matrix from its raw arrays.
+     *
+     * @param rows number of rows
+     * @param cols number of columns
+     * @param rowPtr row pointers (length {@code rows + 1})
+     * @param colIdx column index of each non-zero
+     * @param values value of each non-zero
+     * @param parallelism maximum number of partitions used by the products (1 = sequential)
+     */
+    public CSRSparseMatrix(int rows, int cols, int[] rowPtr, int[] colIdx, double[] values, int parallelism) {
+        if (rows < 0 || cols < 0) {
+            throw new IllegalArgumentException("Matrix dimensions must be non-negative");
+        }
+        if (rowPtr.length != rows + 1 || colIdx.length != values.length || rowPtr[rows] != values.length) {
+            throw new IllegalArgumentException("Inconsistent CSR arrays");
+        }
+        this.rows = rows;
+        this.cols = cols;
+        this.rowPtr = rowPtr;
+        this.colIdx = colIdx;
+        this.values = values;
+        this.partitionBounds = balancedRowPartitions(rowPtr, rows, parallelism);
+    }
+
+    /**
+     * Converts a COO matrix to CSR. Entries of the same row keep their insertion order.
+     *
+     * @param coo source matrix
+     * @param parallelism maximum number of partitions used by the products
+     * @return CSR matrix
+     */
+    public static CSRSparseMatrix fromCOO(COOSparseMatrix coo, int parallelism) {
+        int m = coo.getRowDimension();
+        int nnz = coo.getNonZeroCount();
+        int[] rowPtr = new int[m + 1];
+        coo.forEachEntry((r, c, v) -> rowPtr[r + 1]++);
+        for (int i = 0; i < m; i++) {
+            rowPtr[i + 1] += rowPtr[i];
+        }
+        int[] next = new int[m];
+        System.arraycopy(rowPtr, 0, next, 0, m);
+        int[] colIdx = new int[nnz];
+        double[] values = new double[nnz];
+        coo.forEachEntry((r, c, v) -> {
+            int k = next[r]++;
+            colIdx[k] = c;
+            values[k] = v;
+        });
+        return new CSRSparseMatrix(m, coo.getColumnDimension(), rowPtr, colIdx, values, parallelism);
+    }
+
+    /**
+     * Converts an {@link OpenMapRealMatrix} to CSR (one scan of all positions).
+     *
+     * @param matrix source matrix
+     * @param parallelism maximum number of partitions used by the products
+     * @return CSR matrix
+     */
+    public static CSRSparseMatrix fromOpenMap(OpenMapRealMatrix matrix, int parallelism) {
+        int m = matrix.getRowDimension();
+        int n = matrix.getColumnDimension();
+        int[] rowPtr = new int[m + 1];
+        int capacity = Math.max(16, m * 3);
+        int[] colIdx = new int[capacity];
+        double[] values = new double[capacity];
+        int nnz = 0;
+        for (int i = 0; i < m; i++) {
+            for (int j = 0; j < n; j++) {
+                double v = matrix.getEntry(i, j);
+                if (v != 0.0) {
+                    if (nnz == colIdx.length) {
+                        int newCap = colIdx.length * 2;
+                        colIdx = Arrays.copyOf(colIdx, newCap);
+                        values = Arrays.copyOf(values, newCap);
+                    }
+                    colIdx[nnz] = j;
+                    values[nnz] = v;
+                    nnz++;
+                }
+            }
+            rowPtr[i + 1] = nnz;
+        }
+        return new CSRSparseMatrix(m, n, rowPtr, Arrays.copyOf(colIdx, nnz),
+            Arrays.copyOf(values, nnz), parallelism);
+    }
+
+    private static int[] balancedRowPartitions(int[] rowPtr, int rows, int parallelism) {
+        int nnz = rowPtr[rows];
+        int p = Math.max(1, Math.min(parallelism, nnz / MIN_NNZ_PER_PARTITION));
+        p = Math.min(p, Math.max(1, rows));
+        int[] bounds = new int[p + 1];
+        int row = 0;
+        for (int k = 1; k < p; k++) {
+            long target = (long) nnz * k / p;
+            while (row < rows && rowPtr[row] < target) {
+                row++;
+            }
+            bounds[k] = row;
+        }
+        bounds[p] = rows;
+        return bounds;
+    }
+
+    public int getRowDimension() {
+        return rows;
+    }
+
+    public int getColumnDimension() {
+        return cols;
+    }
+
+    /**
+     * @return number of stored non-zeros
+     */
+    public int getNonZeroCount() {
+        return values.length;
+    }
+
+    /**
+     * @return number of row partitions used by the products
+     */
+    public int getPartitionCount() {
+        return partitionBounds.length - 1;
+    }
+
+    /**
+     * Computes {@code y = A x}, overwriting {@code y}.
+     *
+     * @param x input vector (length = number of columns)
+     * @param y output vector (length = number of rows)
+     */
+    public void operate(double[] x, double[] y) {
+        if (x.length != cols || y.length != rows) {
+            throw new IllegalArgumentException(String.format(
+                "Vector length mismatch: expected x=%d, y=%d, got x=%d, y=%d", cols, rows, x.length, y.length));
+        }
+        SharedComputePool.forEachPartition(partitionBounds, (part, from, to) -> {
+            for (int i = from; i < to; i++) {
+                double sum = 0.0;
+                for (int k = rowPtr[i], end = rowPtr[i + 1]; k < end; k++) {
+                    sum += values[k] * x[colIdx[k]];
+                }
+                y[i] = sum;
+            }
+        });
+    }
+
+    /**
+     * Computes {@code x = A^T y}, overwriting {@code x}.
+     *
+     * @param y input vector (length = number of rows)
+     * @param x output vector (length = number of columns)
+     */
+    public void transposeOperate(double[] y, double[] x) {
+        if (y.length != rows || x.length != cols) {
+            throw new IllegalArgumentException(String.format(
+                "Vector length mismatch: expected y=%d, x=%d, got y=%d, x=%d", rows, cols, y.length, x.length));
+        }
+        int p = partitionBounds.length - 1;
+        if (p <= 1) {
+            Arrays.fill(x, 0.0);
+            scatterTranspose(y, x, 0, rows);
+            return;
+        }
+        if (partialBuffers == null) {
+            partialBuffers = new double[p][cols];
+        }
+        final double[][] partials = partialBuffers;
+        SharedComputePool.forEachPartition(partitionBounds, (part, from, to) -> {
+            double[] acc = partials[part];
+            Arrays.fill(acc, 0.0);
+            scatterTranspose(y, acc, from, to);
+        });
+        SharedComputePool.forEachPartition(cols, p, (part, from, to) -> {
+            for (int j = from; j < to; j++) {
+                double sum = 0.0;
+                for (int q = 0; q < p; q++) {
+                    sum += partials[q][j];
+                }
+                x[j] = sum;
+            }
+        });
+    }
+
+    /**
+     * @return Euclidean norm of each column
+     */
+    public double[] columnNorms() {
+        return columnNorms(null);
+    }
+
+    /**
+     * Euclidean norm of each column of W A, where W = diag(rowWeights).
+     *
+     * @param rowWeights one weight per row, or {@code null} for unit weights
+     * @return column norms (length cols)
+     */
+    public double[] columnNorms(double[] rowWeights) {
+        double[] norms = new double[cols];
+        for (int i = 0; i < rows; i++) {
+            double w = rowWeights != null ? rowWeights[i] : 1.0;
+            for (int k = rowPtr[i], end = rowPtr[i + 1]; k < end; k++) {
+                double v = w * values[k];
+                norms[colIdx[k]] += v * v;
+            }
+        }
+        for (int j = 0; j < cols; j++) {
+            norms[j] = Math.sqrt(norms[j]);
+        }
+        return norms;
+    }
+
+    /**
+     * Dense A^T A, accumulated from the outer product of each row (O(sum of nnz^2 per row)).
+     *
+     * @return normal matrix (cols x cols)
+     */
+    public double[][] normalMatrix() {
+        return normalMatrix(null);
+    }
+
+    /**
+     * Dense (W A)^T (W A) = A^T W^2 A, where W = diag(rowWeights).
+     *
+     * @param rowWeights one weight per row, or {@code null} for unit weights
+     * @return normal matrix (cols x cols)
+     */
+    public double[][] normalMatrix(double[] rowWeights) {
+        double[][] ata = new double[cols][cols];
+        for (int i = 0; i < rows; i++) {
+            double w2 = rowWeights != null ? rowWeights[i] * rowWeights[i] : 1.0;
+            if (w2 == 0.0) {
+                continue;
+            }
+            for (int k = rowPtr[i], end = rowPtr[i + 1]; k < end; k++) {
+                double[] row = ata[colIdx[k]];
+                double vk = w2 * values[k];
+                for (int l = rowPtr[i]; l < end; l++) {
+                    row[colIdx[l]] += vk * values[l];
+                }
+            }
+        }
+        return ata;
+    }
+
+    private void scatterTranspose(double[] y, double[] acc, int fromRow, int toRow) {
+        for (int i = fromRow; i < toRow; i++) {
+            double yi = y[i];
+            if (yi == 0.0) {
+                continue;
+            }
+            for (int k = rowPtr[i], end = rowPtr[i + 1]; k < end; k++) {
+                acc[colIdx[k]] += values[k] * yi;
+            }
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.treloc.xtreloc.solver;
+
+/**
+ * Right-preconditioned (column-scaled) and damped form of a least-squares operator.
+ *
+ * <p>For an operator A (m x n), a positive scale vector D and a damping factor {@code damp},
+ * this operator is
+ * <pre>
+ *   [   A D  ]        so that   min || [A D; damp D] y - [b; 0] ||  with  x = D y
+ *   [ damp D ]
+ * </pre>
+ * is the same problem as {@code min ||A x - b||^2 + damp^2 ||x||^2}. With D = 1 / column norms,
+ * the columns of the scaled system have unit norm, which removes the lon/lat (s/deg) versus depth
+ * (s/km) scale difference of the triple-difference design matrix from the condition number.
+ *
+ * <p>The damping is carried by explicit rows (LSQR is run with {@code damp = 0}) so that it keeps
+ * acting on the unscaled x; LSQR's built-in damping would regularize the scaled y instead.
+ * Variances map back as {@code var(x_j) = D_j^2 var(y_j)}.
+ *
+ * @author xTreLoc Development Team
+ * @version 1.0
+ */
+public class ColumnScaledOperator implements ScipyLSQR.LinearOperator {
+    private final ScipyLSQR.LinearOperator a;
+    private final double[] scale;
+    private final double damp;
+    private final int m;
+    private final int n;
+    private final double[] xBuf;
+    private final double[] yBuf;
+
+    /**
+     * @param a operator to scale
+     * @param scale column scale D (length n, positive)
+     * @param damp damping factor (0 = no damping rows)
+     */
+    public ColumnScaledOperator(ScipyLSQR.LinearOperator a, double[] scale, double damp) {
+        if (scale.length != a.getColumnDimension()) {
+            throw new IllegalArgumentException(String.format(
+                "Scale length mismatch: expected %d, got %d", a.getColumnDimension(), scale.length));
+        }
+        this.a = a;
+        this.scale = scale;
+        this.damp = damp;
+        this.m = a.getRowDimension();
+        this.n = a.getColumnDimension();
+        this.xBuf = new double[n];
+        this.yBuf = damp != 0.0 ? new double[m] : null;
+    }
+
+    /**
+     * Scale that normalizes the columns of {@code a}: {@code 1 / ||A_j||}, or 1 for empty columns.
+     *
+     * @param a operator
+     * @return column scale
+     */
+    public static double[] inverseColumnNorms(ScipyLSQR.LinearOperator a) {
+        double[] s = a.columnNorms();
+        for (int j = 0; j < s.length; j++) {
+            s[j] = s[j] > 0.0 ? 1.0 / s[j] : 1.0;
+        }
+        return s;
+    }
+
+    @Override
+    public int getRowDimension() {
+        return damp != 0.0 ? m + n : m;
+    }
+
+    @Override
+    public int getColumnDimension() {
+        return n;
+    }
+
+    @Override
+    public void matvec(double[] y, double[] out) {
+        for (int j = 0; j < n; j++) {
+            xBuf[j] = scale[j] * y[j];
+        }
+        if (damp == 0.0) {
+            a.matvec(xBuf, out);
+            return;
+        }
+        a.matvec(xBuf, yBuf);
+        System.arraycopy(yBuf, 0, out, 0, m);
+        for (int j = 0; j < n; j++) {
+            out[m + j] = damp * xBuf[j];
+        }
+    }
+
+    @Override
+    public void rmatvec(double[] u, double[] out) {
+        if (damp == 0.0) {
+            a.rmatvec(u, out);
+            for (int j = 0; j < n; j++) {
+                out[j] *= scale[j];
+            }
+            return;
+        }
+        System.arraycopy(u, 0, yBuf, 0, m);
+        a.rmatvec(yBuf, out);
+        for (int j = 0; j < n; j++) {
+            out[j] = scale[j] * (out[j] + damp * u[m + j]);
+        }
+    }
+
+    @Override
+    public double[] columnNorms() {
+        double[] norms = a.columnNorms();
+        for (int j = 0; j < n; j++) {
+            norms[j] = scale[j] * Math.sqrt(norms[j] * norms[j] + damp * damp);
+        }
+        return norms;
+    }
+
+    /**
+     * Extends the right-hand side of A with zeros for the damping rows.
+     *
+     * @param b right-hand side of A (length m)
+     * @return right-hand side of this operator
+     */
+    public double[] augment(double[] b) {
+        if (damp == 0.0) {
+            return b;
+        }
+        double[] out = new double[m + n];
+        System.arraycopy(b, 0, out, 0, m);
+        return out;
+    }
+
+    /**
+     * Maps a result obtained on this operator back to the original variables: {@code x = D y} and
+     * {@code var = D^2 var_y}. Norms and condition estimates refer to the scaled system.
+     *
+     * @param result LSQR result on this operator (modified in place)
+     * @return the same result object
+     */
+    public ScipyLSQR.LSQRResult unscale(ScipyLSQR.LSQRResult result) {
+        for (int j = 0; j < n; j++) {
+            result.x[j] *= scale[j];
+            if (result.var != null) {
+                result.var[j] *= scale[j] * scale[j];
+            }
+        }
+        result.xnorm = ScipyLSQR.norm(result.x);
+        return result;
+    }
+}
@@ -37,6 +37,20 @@ public interface ConvergenceCallback {
     default void onClusterResidualUpdate(int clusterId, int iteration, double residual) {
         // Optional: default implementation does nothing
     }
+
+    /**
+     * Called when cluster-specific residual is updated (for TRD mode), with the number of
+     * iterations the least-squares solver needed for this step.
+     * The default implementation forwards to {@link #onClusterResidualUpdate(int, int, double)}.
+     *
+     * @param clusterId cluster ID
+     * @param iteration cumulative LSQR step index across all TRD distance stages for this cluster
+     * @param residual current residual value
+     * @param solverIterations LSQR iterations used for this step
+     */
+    default void onClusterResidualUpdate(int clusterId, int iteration, double residual, int solverIterations) {
+        onClusterResidualUpdate(clusterId, iteration, residual);
+    }
     
     /**
      * Called when iteration information is updated (for LMO mode).
@@ -16,7 +16,7 @@ import org.apache.commons.math3.ml.clustering.Cluster;
 
 import com.treloc.xtreloc.io.AppConfig;
 import com.treloc.xtreloc.io.TripleDifferenceIO;
-import com.treloc.xtreloc.io.TripleDifferenceIO.TripleDifference;
+import com.treloc.xtreloc.io.TripleDifferenceTable;
 import com.treloc.xtreloc.util.BatchExecutorFactory;
 import com.treloc.xtreloc.util.SolverLogger;
 
@@ -45,6 +45,8 @@ import com.treloc.xtreloc.io.VelocityModelLoadException;
  * @version 1.0
  */
 public class HypoTripleDiff extends SolverBase {
+    private static final String SOLVER_LSQR = "lsqr";
+    private static final String SOLVER_LSMR = "lsmr";
     private static final Logger logger = Logger.getLogger(HypoTripleDiff.class.getName());
     
     private String catalogFile;
@@ -56,11 +58,32 @@ public class HypoTripleDiff extends SolverBase {
     private int[] iterNumArray;
     private int[] distKmArray;
     private int[] dampFactArray;
+    /** Least-squares solver per stage ("lsqr" or "lsmr"). */
+    private String[] solverArray;
     private double lsqrAtol = 1e-6;
     private double lsqrBtol = 1e-6;
     private double lsqrConlim = 1e8;
     private int lsqrIterLim = 1000;
     private boolean calcVar = true;
+    /**
+     * Use the matrix-free {@link TripleDifferenceOperator} instead of materializing G.
+     * {@code null} = automatic (matrix-free when rows * columns exceeds 10^7).
+     */
+    private Boolean matrixFree;
+    /** Scale the columns of the weighted design matrix to unit norm before LSQR. */
+    private boolean lsqrColumnScaling = true;
+    /** Solve the normal equations directly (Cholesky) when 3 * numTarget is at most this value; 0 = always iterative. */
+    private int directSolverMaxUnknowns = 1500;
+    /** Write {@code trd_checkpoint_<cid>.bin} to outDir after each stage; removed when the run completes. */
+    private boolean checkpointEnabled = true;
+    /** Restore matching checkpoints: skip finished clusters and continue after the last completed stage. */
+    private boolean resume = false;
+    /** Keep events already relocated by TRD (type TRD in the catalog) fixed and solve only the other events. */
+    private boolean incremental = false;
+    /** Split clusters with more target events than this into overlapping spatial blocks; 0 = never split. */
+    private int blockMaxEvents = 0;
+    /** Halo width around each block (km); null = the smallest stage distKm. */
+    private Double blockOverlapKm;
     /** Maximum number of triple-diff data to use per cluster (smallest residual first). Null = no limit. */
     private final Integer maxTripleDiffCount;
     private java.util.function.Consumer<String> logConsumer;
@@ -151,6 +174,7 @@ public class HypoTripleDiff extends SolverBase {
             this.iterNumArray = parseIntArray(trdSolver, "iterNum", new int[]{10, 10});
             this.distKmArray = parseIntArray(trdSolver, "distKm", new int[]{50, 20});
             this.dampFactArray = parseIntArray(trdSolver, "dampFact", new int[]{0, 1});
+            this.solverArray = parseSolverArray(trdSolver, iterNumArray.length);
             
             if (trdSolver.has("lsqrAtol")) {
                 this.lsqrAtol = trdSolver.get("lsqrAtol").asDouble();
@@ -167,15 +191,46 @@ public class HypoTripleDiff extends SolverBase {
             if (trdSolver.has("lsqrCalcVar")) {
                 this.calcVar = trdSolver.get("lsqrCalcVar").asBoolean();
             }
+            if (trdSolver.has("matrixFree")) {
+                this.matrixFree = trdSolver.get("matrixFree").asBoolean();
+            }
+            if (trdSolver.has("lsqrColumnScaling")) {
+                this.lsqrColumnScaling = trdSolver.get("lsqrColumnScaling").asBoolean();
+            }
+            if (trdSolver.has("directSolverMaxUnknowns")) {
+                this.directSolverMaxUnknowns = trdSolver.get("directSolverMaxUnknowns").asInt();
+            }
+            if (trdSolver.has("checkpoint")) {
+                this.checkpointEnabled = trdSolver.get("checkpoint").asBoolean();
+            }
+            if (trdSolver.has("resume")) {
+                this.resume = trdSolver.get("resume").asBoolean();
+            }
+            if (trdSolver.has("incremental")) {
+                this.incremental = trdSolver.get("incremental").asBoolean();
+            }
+            if (trdSolver.has("blockMaxEvents")) {
+                this.blockMaxEvents = trdSolver.get("blockMaxEvents").asInt();
+            }
+            if (trdSolver.has("blockOverlapKm")) {
+                this.blockOverlapKm = trdSolver.get("blockOverlapKm").asDouble();
+            }
         } else {
             this.iterNumArray = new int[]{10, 10};
             this.distKmArray = new int[]{50, 20};
             this.dampFactArray = new int[]{0, 1};
         }
+        if (solverArray == null) {
+            solverArray = new String[iterNumArray.length];
+            java.util.Arrays.fill(solverArray, SOLVER_LSQR);
+        }
         
         if (iterNumArray.length != distKmArray.length || iterNumArray.length != dampFactArray.length) {
             throw new IllegalArgumentException("The length of iterNum, distKm, and dampFact must be the same.");
         }
+        if (solverArray.length != iterNumArray.length) {
+            throw new IllegalArgumentException("The length of solver must be 1 or the same as iterNum.");
+        }
         
         try {
             AppConfig clsConfig = new AppConfig();
@@ -215,6 +270,40 @@ public class HypoTripleDiff extends SolverBase {
         this.logConsumer = logConsumer;
     }
     
+    /**
+     * Parses the per-stage solver ("lsqr" or "lsmr"). A single value (string or one-element array) applies to all stages.
+     *
+     * @return solver names, or {@code null} when the key is absent
+     */
+    private static String[] parseSolverArray(com.fasterxml.jackson.databind.JsonNode node, int stages) {
+        if (!node.has("solver") || node.get("solver").isNull()) {
+            return null;
+        }
+        com.fasterxml.jackson.databind.JsonNode v = node.get("solver");
+        List<String> names = new ArrayList<>();
+        if (v.isArray()) {
+            for (var element : v) {
+                names.add(element.asText());
+            }
+        } else {
+            for (String part : v.asText().trim().split("\\s*,\\s*")) {
+                names.add(part);
+            }
+        }
+        if (names.size() == 1 && stages > 1) {
+            names = new ArrayList<>(Collections.nCopies(stages, names.get(0)));
+        }
+        String[] solvers = new String[names.size()];
+        for (int i = 0; i < solvers.length; i++) {
+            String name = names.get(i).trim().toLowerCase(java.util.Locale.ROOT);
+            if (!SOLVER_LSQR.equals(name) && !SOLVER_LSMR.equals(name)) {
+                throw new IllegalArgumentException("Unknown TRD solver: " + names.get(i) + " (expected lsqr or lsmr)");
+            }
+            solvers[i] = name;
+        }
+        return solvers;
+    }
+
     private int[] parseIntArray(com.fasterxml.jackson.databind.JsonNode node, String key, int[] defaultValue) {
         if (!node.has(key) || node.get(key).isNull()) {
             return defaultValue;
@@ -340,13 +429,16 @@ public class HypoTripleDiff extends SolverBase {
             }
             
             
-            logger.info("Discovering clusters from catalog (no full load for memory): " + catalogPathToUse);
+            logger.info("Discovering clusters from catalog (single pass): " + catalogPathToUse);
             SolverLogger.info("TRD: Discovering clusters from catalog.");
+            // Catalog and .dat files are read once; discovery, noise output and relocation share this index.
+            java.util.TreeMap<Integer, List<Point>> clusterIndex;
             List<Integer> clusterIds = new ArrayList<>();
+            spatialCls.setLoadProgressListener((loaded, total) ->
+                SolverLogger.fine("TRD: Loaded " + loaded + "/" + total + " catalog events."));
             try {
-                for (int cid = 1; ; cid++) {
-                    List<Point> pts = spatialCls.loadPointsFromCatalogByCluster(catalogPathToUse, cid);
-                    if (pts.isEmpty()) break;
+                clusterIndex = spatialCls.loadClusterIndex(catalogPathToUse);
+                for (int cid = 1; clusterIndex.containsKey(cid); cid++) {
                     clusterIds.add(cid);
                 }
             } catch (Exception e) {
@@ -370,8 +462,17 @@ public class HypoTripleDiff extends SolverBase {
 
             List<Integer> missingBinClusters = new ArrayList<>();
             for (Integer cid : clusterIds) {
-                List<TripleDifference> testLoad = loadTripleDiff(cid);
-                if (testLoad.isEmpty()) {
+                // Header only: the records are loaded once, when the cluster is relocated.
+                File binFile = resolveTripleDiffFile(cid);
+                int records = 0;
+                if (binFile != null) {
+                    try {
+                        records = TripleDifferenceIO.readBinaryRecordCount(binFile);
+                    } catch (IOException e) {
+                        logger.warning("Error reading triple difference file header: " + binFile.getAbsolutePath() + ": " + e.getMessage());
+                    }
+                }
+                if (records <= 0) {
                     missingBinClusters.add(cid);
                 }
             }
@@ -403,7 +504,7 @@ public class HypoTripleDiff extends SolverBase {
             try (java.io.PrintWriter catalogWriter = new java.io.PrintWriter(new java.io.FileWriter(outputCatalogPath))) {
                 catalogWriter.println("time,latitude,longitude,depth,xerr,yerr,zerr,rms,file,mode,cid");
 
-                List<Point> noisePoints = spatialCls.loadPointsFromCatalogByCluster(catalogPathToUse, 0);
+                List<Point> noisePoints = clusterIndex.getOrDefault(0, Collections.emptyList());
                 for (Point originalPoint : noisePoints) {
                     Point point = new Point(
                         originalPoint.getTime(),
@@ -422,497 +523,1073 @@ public class HypoTripleDiff extends SolverBase {
                     writePointToDatFile(point);
                 }
 
-                for (int clusterId : clusterIds) {
-                if (Thread.currentThread().isInterrupted()) {
-                    logger.info("Triple difference relocation interrupted by user");
-                    SolverLogger.info("TRD: Interrupted by user");
-                    throw new RuntimeException("Cancelled");
-                }
-
-                List<Point> originalClusterPoints = spatialCls.loadPointsFromCatalogByCluster(catalogPathToUse, clusterId);
-                if (originalClusterPoints.isEmpty()) {
-                    continue;
-                }
-                
-                List<Point> clusterPoints = new ArrayList<>();
-                for (Point originalPoint : originalClusterPoints) {
-                        Point point = new Point(
-                            originalPoint.getTime(),
-                            originalPoint.getLat(),
-                            originalPoint.getLon(),
-                            originalPoint.getDep(),
-                            originalPoint.getElat(),
-                            originalPoint.getElon(),
-                            originalPoint.getEdep(),
-                            originalPoint.getRes(),
-                            originalPoint.getFilePath(),
-                            originalPoint.getType(),
-                            originalPoint.getCid()
-                        );
-                        point.setLagTable(originalPoint.getLagTable());
-                        point.setUsedIdx(originalPoint.getUsedIdx());
-                    clusterPoints.add(point);
+                // Independent clusters run concurrently; the remaining threads go to each cluster's partial table.
+                int clusterJobs = Math.max(1, Math.min(numJobs, clusterIds.size()));
+                int partialJobs = Math.max(1, numJobs / clusterJobs);
+                List<Integer> schedule = new ArrayList<>(clusterIds);
+                if (clusterJobs > 1) {
+                    // Largest first, so the long clusters do not end up running alone at the end.
+                    java.util.Map<Integer, Long> sizes = new java.util.HashMap<>();
+                    for (int cid : clusterIds) {
+                        File f = resolveTripleDiffFile(cid);
+                        sizes.put(cid, f != null ? f.length() : 0L);
+                    }
+                    schedule.sort((a, b) -> Long.compare(sizes.get(b), sizes.get(a)));
+                    logger.info("TRD: Relocating " + clusterIds.size() + " clusters concurrently (clusterJobs=" + clusterJobs
+                        + ", partialJobs=" + partialJobs + ", largest first: " + schedule.get(0) + ")");
+                    SolverLogger.info("TRD: Relocating clusters concurrently (clusterJobs=" + clusterJobs + ").");
                 }
-                
-                int[] targMap = new int[clusterPoints.size()];
-                int numTarget = 0;
-                int refCount = 0;
-                int errCount = 0;
-                for (int i = 0; i < clusterPoints.size(); i++) {
-                    if (clusterPoints.get(i).getType().equals("ERR") || clusterPoints.get(i).getType().equals("REF")) {
-                        targMap[i] = -1;
-                        if (clusterPoints.get(i).getType().equals("REF")) {
-                            refCount++;
+                java.util.concurrent.ExecutorService executor = clusterJobs > 1
+                    ? BatchExecutorFactory.newFixedThreadPoolBounded(
+                        clusterJobs, BatchExecutorFactory.suggestedQueueCapacity(clusterIds.size()))
+                    : null;
+                boolean completed = false;
+                try {
+                    java.util.Map<Integer, java.util.concurrent.Future<List<Point>>> futures = new java.util.HashMap<>();
+                    if (executor != null) {
+                        for (final int cid : schedule) {
+                            final List<Point> originalClusterPoints = clusterIndex.remove(cid);
+                            futures.put(cid, executor.submit(() -> {
+                                if (Thread.currentThread().isInterrupted()) {
+                                    throw new RuntimeException("Cancelled");
+                                }
+                                if (originalClusterPoints.isEmpty()) {
+                                    return Collections.<Point>emptyList();
+                                }
+                                return relocateCluster(cid, originalClusterPoints, partialJobs);
+                            }));
+                        }
+                    }
+                    // Output is written in cluster order regardless of completion order.
+                    for (int clusterId : clusterIds) {
+                        if (Thread.currentThread().isInterrupted()) {
+                            logger.info("Triple difference relocation interrupted by user");
+                            SolverLogger.info("TRD: Interrupted by user");
+                            throw new RuntimeException("Cancelled");
+                        }
+                        List<Point> relocated;
+                        if (executor == null) {
+                            // Removed from the index so its lag tables can be collected once written.
+                            List<Point> originalClusterPoints = clusterIndex.remove(clusterId);
+                            relocated = originalClusterPoints.isEmpty()
+                                ? Collections.emptyList()
+                                : relocateCluster(clusterId, originalClusterPoints, partialJobs);
                         } else {
-                            errCount++;
+                            try {
+                                relocated = futures.get(clusterId).get();
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                                throw new RuntimeException("Cancelled");
+                            } catch (java.util.concurrent.ExecutionException e) {
+                                Throwable cause = e.getCause();
+                                if (cause instanceof RuntimeException) {
+                                    throw (RuntimeException) cause;
+                                }
+                                throw new RuntimeException("Relocation of cluster " + clusterId + " failed", cause);
+                            }
+                        }
+                        for (Point point : relocated) {
+                            appendPointToCatalog(catalogWriter, point);
+                            writePointToDatFile(point);
+                        }
+                    }
+                    completed = true;
+                } finally {
+                    if (executor != null) {
+                        if (completed) {
+                            executor.shutdown();
+                        } else {
+                            // Failure or cancellation: interrupt the clusters still running.
+                            executor.shutdownNow();
                         }
-                    } else {
-                        targMap[i] = numTarget;
-                        numTarget++;
                     }
                 }
-                if (refCount > 0) {
-                    logger.info("Cluster " + clusterId + ": " + refCount + " REF events will not be updated (excluded from relocation)");
-                    SolverLogger.info("TRD: Cluster " + clusterId + ": " + refCount + " REF events excluded from relocation");
+
+                catalogWriter.flush();
+            }
+            lastOutputCatalogAbsolutePath = outputCatalogPath;
+            if (checkpointEnabled) {
+                // The catalog is complete, so the checkpoints are no longer needed.
+                for (int cid : clusterIds) {
+                    File checkpointFile = TrdCheckpoint.fileFor(outDir.toFile(), cid);
+                    if (checkpointFile.exists() && !checkpointFile.delete()) {
+                        logger.warning("TRD: Could not delete checkpoint " + checkpointFile.getAbsolutePath());
+                    }
+                }
+            }
+            logger.info("Triple difference relocation completed. Output catalog: " + outputCatalogFile);
+            SolverLogger.info("TRD: Completed. Output catalog: " + outputCatalogFile);
+            
+        } catch (IllegalArgumentException e) {
+            StringBuilder errorMsg = new StringBuilder("Triple difference relocation failed (IllegalArgumentException):\n");
+            errorMsg.append("  ").append(e.getMessage()).append("\n");
+            errorMsg.append("  Catalog file: ").append(catalogPathToUse != null ? catalogPathToUse : "not determined").append("\n");
+            errorMsg.append("  Target directory: ").append(targetDir != null ? targetDir.toFile().getAbsolutePath() : "not set").append("\n");
+            errorMsg.append("  Output directory: ").append(outDir != null ? outDir.toFile().getAbsolutePath() : "not set").append("\n");
+            logger.severe(errorMsg.toString());
+            SolverLogger.severe("TRD: " + errorMsg.toString());
+            throw e;
+        } catch (Exception e) {
+            StringBuilder errorMsg = new StringBuilder("Triple difference relocation failed with unexpected error:\n");
+            errorMsg.append("  Error type: ").append(e.getClass().getName()).append("\n");
+            errorMsg.append("  Error message: ").append(e.getMessage()).append("\n");
+            if (catalogPathToUse != null) {
+                errorMsg.append("  Catalog file: ").append(catalogPathToUse).append("\n");
+            }
+            if (targetDir != null) {
+                errorMsg.append("  Target directory: ").append(targetDir.toFile().getAbsolutePath()).append("\n");
+            }
+            if (outDir != null) {
+                errorMsg.append("  Output directory: ").append(outDir.toFile().getAbsolutePath()).append("\n");
+            }
+            logger.severe(errorMsg.toString());
+            SolverLogger.severe("TRD: " + errorMsg.toString());
+            if (e.getCause() != null) {
+                logger.severe("  Caused by: " + e.getCause().getClass().getName() + ": " + e.getCause().getMessage());
+                SolverLogger.severe("TRD: Caused by: " + e.getCause().getClass().getSimpleName() + ": " + e.getCause().getMessage());
+            }
+            logger.log(Level.SEVERE, "TRD: unexpected error stack trace", e);
+            throw new RuntimeException("Triple difference relocation failed", e);
+        }
+    }
+    
+    /**
+     * Relocates one cluster through all TRD stages.
+     *
+     * <p>Works on copies of the catalog points, so clusters are independent and may be relocated
+     * concurrently. Nothing is written here; the caller appends the returned points to the catalog.
+     *
+     * @param clusterId cluster ID
+     * @param originalClusterPoints points of the cluster as read from the catalog
+     * @param partialJobs number of threads for this cluster (partial derivative table and solver products)
+     * @return relocated points (type set to TRD unless REF/ERR), or an empty list if the cluster was skipped
+     */
+    private List<Point> relocateCluster(int clusterId, List<Point> originalClusterPoints, int partialJobs) {
+        
+        List<Point> clusterPoints = new ArrayList<>();
+        for (Point originalPoint : originalClusterPoints) {
+            clusterPoints.add(copyPoint(originalPoint));
+        }
+        
+        int[] targMap = new int[clusterPoints.size()];
+        // Incremental mode: events relocated by an earlier TRD run are fixed references like REF events.
+        boolean[] frozen = new boolean[clusterPoints.size()];
+        int numTarget = 0;
+        int refCount = 0;
+        int errCount = 0;
+        int frozenCount = 0;
+        for (int i = 0; i < clusterPoints.size(); i++) {
+            if (incremental && clusterPoints.get(i).getType().equals("TRD")) {
+                targMap[i] = -1;
+                frozen[i] = true;
+                frozenCount++;
+            } else if (clusterPoints.get(i).getType().equals("ERR") || clusterPoints.get(i).getType().equals("REF")) {
+                targMap[i] = -1;
+                if (clusterPoints.get(i).getType().equals("REF")) {
+                    refCount++;
+                } else {
+                    errCount++;
                 }
-                if (errCount > 0) {
-                    logger.info("Cluster " + clusterId + ": " + errCount + " ERR events excluded from relocation");
-                    SolverLogger.info("TRD: Cluster " + clusterId + ": " + errCount + " ERR events excluded from relocation");
+            } else {
+                targMap[i] = numTarget;
+                numTarget++;
+            }
+        }
+        if (refCount > 0) {
+            logger.info("Cluster " + clusterId + ": " + refCount + " REF events will not be updated (excluded from relocation)");
+            SolverLogger.info("TRD: Cluster " + clusterId + ": " + refCount + " REF events excluded from relocation");
+        }
+        if (errCount > 0) {
+            logger.info("Cluster " + clusterId + ": " + errCount + " ERR events excluded from relocation");
+            SolverLogger.info("TRD: Cluster " + clusterId + ": " + errCount + " ERR events excluded from relocation");
+        }
+        
+        if (frozenCount > 0) {
+            logger.info("Cluster " + clusterId + ": " + frozenCount + " previously relocated (TRD) events kept fixed, "
+                + numTarget + " new events to relocate");
+            SolverLogger.info("TRD: Cluster " + clusterId + ": " + frozenCount + " TRD events fixed, " + numTarget + " new events");
+            if (numTarget == 0) {
+                // Nothing new joined this cluster: keep it as it is.
+                return clusterPoints;
+            }
+        }
+        if (numTarget == 0) {
+            logger.warning("Cluster " + clusterId + " has no target events, skipping");
+            SolverLogger.warning("TRD: Cluster " + clusterId + " has no target events, skipping");
+            return Collections.emptyList();
+        }
+        
+        long fingerprint = checkpointEnabled || resume ? checkpointFingerprint(clusterId, clusterPoints) : 0L;
+        int firstStage = 0;
+        if (resume) {
+            TrdCheckpoint checkpoint = loadCheckpoint(clusterId, fingerprint, clusterPoints.size());
+            if (checkpoint != null) {
+                checkpoint.restore(clusterPoints, targMap);
+                if (checkpoint.complete) {
+                    logger.info("TRD: Cluster " + clusterId + " restored from completed checkpoint, skipping relocation");
+                    SolverLogger.info("TRD: Cluster " + clusterId + " already completed (checkpoint), skipping.");
+                    return clusterPoints;
                 }
-                
-                if (numTarget == 0) {
-                    logger.warning("Cluster " + clusterId + " has no target events, skipping");
-                    SolverLogger.warning("TRD: Cluster " + clusterId + " has no target events, skipping");
-                    continue;
+                firstStage = checkpoint.completedStages;
+                logger.info("TRD: Cluster " + clusterId + " resumed from checkpoint after stage " + firstStage
+                    + "/" + iterNumArray.length);
+                SolverLogger.info("TRD: Cluster " + clusterId + " resuming after stage " + firstStage + "/" + iterNumArray.length);
+            }
+        }
+        
+        Cluster<Point> cluster = new Cluster<>();
+        clusterPoints.forEach(cluster::addPoint);
+        
+        TripleDifferenceTable tripDiff = loadTripleDiff(clusterId);
+        if (tripDiff.isEmpty()) {
+            logger.warning("No triple difference data found for cluster " + clusterId + ", skipping");
+            SolverLogger.warning("TRD: No triple difference data for cluster " + clusterId + ", skipping");
+            return Collections.emptyList();
+        }
+        int maxStageDistKm = java.util.Arrays.stream(distKmArray).max().orElse(0);
+        if (maxStageDistKm > tripDiff.getMaxPairDistKm()) {
+            // Pairs beyond the CLS bound were never joined, so wider stages see fewer rows than intended.
+            String msg = "Cluster " + clusterId + ": distKm up to " + maxStageDistKm + " km exceeds the event-pair bound "
+                + tripDiff.getMaxPairDistKm() + " km of the triple difference file; pairs beyond it are missing";
+            logger.warning(msg);
+            SolverLogger.warning("TRD: " + msg);
+        }
+        if (frozenCount > 0) {
+            // Rows between two fixed events do not enter the system; drop them before selection and filtering.
+            boolean[] keep = new boolean[tripDiff.size()];
+            for (int r = 0; r < keep.length; r++) {
+                keep[r] = targMap[tripDiff.getEve0(r)] >= 0 || targMap[tripDiff.getEve1(r)] >= 0;
+            }
+            int total = tripDiff.size();
+            tripDiff = tripDiff.select(keep);
+            logger.info("Cluster " + clusterId + ": " + tripDiff.size() + " of " + total
+                + " triple differences involve a new event");
+            SolverLogger.info("TRD: Cluster " + clusterId + ": " + tripDiff.size() + " triple differences involve a new event");
+            if (tripDiff.isEmpty()) {
+                logger.warning("No triple difference data involving new events for cluster " + clusterId + ", skipping");
+                SolverLogger.warning("TRD: No triple difference data for new events in cluster " + clusterId + ", skipping");
+                return Collections.emptyList();
+            }
+        }
+        tripDiff = selectTripleDiffByResidual(tripDiff);
+        if (tripDiff.isEmpty()) {
+            logger.warning("No triple difference data left after selection for cluster " + clusterId + ", skipping");
+            SolverLogger.warning("TRD: No triple difference data after selection for cluster " + clusterId + ", skipping");
+            return Collections.emptyList();
+        }
+
+        double[][][] fixedRows = initFixedRows(clusterPoints.size(), targMap, tripDiff);
+        if (blockMaxEvents > 0 && numTarget > blockMaxEvents) {
+            relocateInBlocks(clusterId, clusterPoints, targMap, frozen, tripDiff, partialJobs);
+        } else {
+            // Fixed TRD events anchor the frame; the centroid rows would pull the new events' mean shift to zero.
+            relocateStages(clusterId, clusterPoints, targMap, tripDiff, fixedRows, firstStage, partialJobs, fingerprint,
+                true, frozenCount == 0, convergenceCallback);
+        }
+        
+        // Recompute final triple-difference residuals and set per-event RMS for relocated hypocenters
+        try {
+            cluster = new Cluster<>();
+            clusterPoints.forEach(cluster::addPoint);
+            numTarget = compactTargMap(targMap);
+            double[] rmsPerEvent = computeFinalRmsPerEvent(cluster, tripDiff, targMap, numTarget, partialJobs, fixedRows);
+            for (int k = 0; k < clusterPoints.size(); k++) {
+                // Fixed TRD events keep the RMS of the run that relocated them.
+                if (k < rmsPerEvent.length && !Double.isNaN(rmsPerEvent[k]) && !frozen[k]) {
+                    clusterPoints.get(k).setRes(rmsPerEvent[k]);
                 }
-                
-                Cluster<Point> cluster = new Cluster<>();
-                clusterPoints.forEach(cluster::addPoint);
-                
-                List<TripleDifference> tripDiff = loadTripleDiff(clusterId);
-                if (tripDiff.isEmpty()) {
-                    logger.warning("No triple difference data found for cluster " + clusterId + ", skipping");
-                    SolverLogger.warning("TRD: No triple difference data for cluster " + clusterId + ", skipping");
-                    continue;
+            }
+        } catch (Exception e) {
+            logger.warning("TRD: Could not compute final RMS per event for cluster " + clusterId + ": " + e.getMessage());
+            SolverLogger.warning("TRD: Could not compute final RMS for cluster " + clusterId + ": " + e.getMessage());
+        }
+        
+        for (Point point : clusterPoints) {
+            if (!point.getType().equals("ERR") && !point.getType().equals("REF")) {
+                point.setType("TRD");
+            }
+        }
+        saveCheckpoint(clusterId, fingerprint, iterNumArray.length, true, clusterPoints, targMap);
+        return clusterPoints;
+    }
+
+    /** Copies a point, sharing its lag table and used station indices. */
+    private static Point copyPoint(Point originalPoint) {
+        Point point = new Point(
+            originalPoint.getTime(),
+            originalPoint.getLat(),
+            originalPoint.getLon(),
+            originalPoint.getDep(),
+            originalPoint.getElat(),
+            originalPoint.getElon(),
+            originalPoint.getEdep(),
+            originalPoint.getRes(),
+            originalPoint.getFilePath(),
+            originalPoint.getType(),
+            originalPoint.getCid()
+        );
+        point.setLagTable(originalPoint.getLagTable());
+        point.setUsedIdx(originalPoint.getUsedIdx());
+        return point;
+    }
+
+    /**
+     * Relocates a large cluster as overlapping spatial blocks (see {@link TrdBlockDecomposition}).
+     *
+     * <p>Each block runs all stages on copies of its events with the triple differences between them, so the
+     * design matrix of a solve is bounded by the block size; up to {@code partialJobs} blocks run concurrently,
+     * and each block's partial table and solver products get an equal share of the {@code partialJobs} threads.
+     * Each event then takes the position from the block that owns it (its core), moved by that
+     * block's shift, which aligns the blocks on the events they share. Errors and ERR marks come from the
+     * owning block as well. The convergence callback gets one series for the cluster once the blocks are
+     * merged: each step combines that step of all blocks.
+     *
+     * @param clusterId cluster ID
+     * @param clusterPoints points of the cluster, updated in place
+     * @param targMap target index per point (-1 = fixed); set to -1 for events marked ERR
+     * @param frozen events kept fixed by incremental mode
+     * @param tripDiff triple differences of the cluster
+     * @param partialJobs number of threads for this cluster
+     */
+    private void relocateInBlocks(int clusterId, List<Point> clusterPoints, int[] targMap, boolean[] frozen,
+                                  TripleDifferenceTable tripDiff, int partialJobs) {
+        int n = clusterPoints.size();
+        double lat0 = 0.0;
+        double lon0 = 0.0;
+        for (Point p : clusterPoints) {
+            lat0 += p.getLat() / n;
+            lon0 += p.getLon() / n;
+        }
+        double deg2km = HypoUtils.getDeg2Km();
+        double cosLat0 = Math.cos(Math.toRadians(lat0));
+        double[] x = new double[n];
+        double[] y = new double[n];
+        boolean[] isTarget = new boolean[n];
+        for (int k = 0; k < n; k++) {
+            x[k] = (clusterPoints.get(k).getLon() - lon0) * cosLat0 * deg2km;
+            y[k] = (clusterPoints.get(k).getLat() - lat0) * deg2km;
+            isTarget[k] = targMap[k] >= 0;
+        }
+        double overlapKm = blockOverlapKm != null ? blockOverlapKm
+            : java.util.Arrays.stream(distKmArray).min().orElse(0);
+        List<TrdBlockDecomposition.Block> blocks =
+            TrdBlockDecomposition.partition(x, y, isTarget, blockMaxEvents, overlapKm);
+        int numBlocks = blocks.size();
+        logger.info("Cluster " + clusterId + ": split into " + numBlocks + " blocks (at most " + blockMaxEvents
+            + " target events per block, overlap " + overlapKm + " km)");
+        SolverLogger.info("TRD: Cluster " + clusterId + ": split into " + numBlocks + " blocks (overlap " + overlapKm + " km)");
+
+        // blockJobs blocks at a time, each with jobsPerBlock partitions: at most partialJobs threads in total.
+        int blockJobs = Math.max(1, Math.min(partialJobs, numBlocks));
+        int jobsPerBlock = Math.max(1, partialJobs / blockJobs);
+        logger.fine("Cluster " + clusterId + ": " + blockJobs + " blocks at a time, " + jobsPerBlock + " threads per block");
+        int steps = java.util.Arrays.stream(iterNumArray).sum();
+        double[][] stepResiduals = new double[numBlocks][steps];
+        int[][] stepIterations = new int[numBlocks][steps];
+        ConvergenceCallback[] blockCallbacks = new ConvergenceCallback[numBlocks];
+        for (int b = 0; b < numBlocks && convergenceCallback != null; b++) {
+            java.util.Arrays.fill(stepResiduals[b], Double.NaN);
+            blockCallbacks[b] = stepRecorder(stepResiduals[b], stepIterations[b]);
+        }
+        List<List<Point>> results = new ArrayList<>(Collections.nCopies(numBlocks, (List<Point>) null));
+        java.util.concurrent.ExecutorService executor = blockJobs > 1
+            ? BatchExecutorFactory.newFixedThreadPoolBounded(blockJobs, BatchExecutorFactory.suggestedQueueCapacity(numBlocks))
+            : null;
+        boolean completed = false;
+        try {
+            List<java.util.concurrent.Future<List<Point>>> futures = new ArrayList<>();
+            for (int b = 0; b < numBlocks; b++) {
+                final int blockIndex = b;
+                if (executor != null) {
+                    futures.add(executor.submit(() -> relocateBlock(clusterId, blockIndex, blocks, clusterPoints,
+                        targMap, frozen, tripDiff, jobsPerBlock, blockCallbacks[blockIndex])));
+                } else {
+                    results.set(b, relocateBlock(clusterId, b, blocks, clusterPoints, targMap, frozen, tripDiff, jobsPerBlock,
+                        blockCallbacks[b]));
+                }
+            }
+            for (int b = 0; b < futures.size(); b++) {
+                try {
+                    results.set(b, futures.get(b).get());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("Cancelled");
+                } catch (java.util.concurrent.ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+                    throw new RuntimeException("Relocation of cluster " + clusterId + " block " + (b + 1) + " failed", cause);
+                }
+            }
+            completed = true;
+        } finally {
+            if (executor != null) {
+                if (completed) {
+                    executor.shutdown();
+                } else {
+                    executor.shutdownNow();
                 }
-                tripDiff = selectTripleDiffByResidual(tripDiff);
-                if (tripDiff.isEmpty()) {
-                    logger.warning("No triple difference data left after selection for cluster " + clusterId + ", skipping");
-                    SolverLogger.warning("TRD: No triple difference data after selection for cluster " + clusterId + ", skipping");
+            }
+        }
+
+        // Block shifts are estimated in local km; the Cauchy scale is the overlap width.
+        double[][][] positions = new double[numBlocks][][];
+        boolean[][] valid = new boolean[numBlocks][];
+        for (int b = 0; b < numBlocks; b++) {
+            int[] members = blocks.get(b).members;
+            List<Point> relocated = results.get(b);
+            positions[b] = new double[members.length][];
+            valid[b] = new boolean[members.length];
+            for (int k = 0; relocated != null && k < members.length; k++) {
+                Point p = relocated.get(k);
+                positions[b][k] = new double[] {
+                    (p.getLon() - lon0) * cosLat0 * deg2km, (p.getLat() - lat0) * deg2km, p.getDep() };
+                valid[b][k] = targMap[members[k]] >= 0 && !"ERR".equals(p.getType());
+            }
+        }
+        double[][] shifts = TrdBlockDecomposition.shifts(n, blocks, positions, valid, Math.max(overlapKm, 1.0));
+        double maxShiftKm = 0.0;
+        for (double[] sh : shifts) {
+            maxShiftKm = Math.max(maxShiftKm, Math.sqrt(sh[0] * sh[0] + sh[1] * sh[1] + sh[2] * sh[2]));
+        }
+        logger.info(String.format("Cluster %d: blocks aligned on shared events (largest block shift %.3f km)",
+            clusterId, maxShiftKm));
+
+        for (int b = 0; b < numBlocks; b++) {
+            List<Point> relocated = results.get(b);
+            if (relocated == null) {
+                continue;
+            }
+            int[] members = blocks.get(b).members;
+            for (int e : blocks.get(b).core) {
+                if (targMap[e] < 0) {
                     continue;
                 }
+                int k = java.util.Arrays.binarySearch(members, e);
+                Point source = relocated.get(k);
+                Point target = clusterPoints.get(e);
+                target.setLon(source.getLon() + shifts[b][0] / (cosLat0 * deg2km));
+                target.setLat(source.getLat() + shifts[b][1] / deg2km);
+                target.setDep(source.getDep() + shifts[b][2]);
+                target.setElon(source.getElon());
+                target.setElat(source.getElat());
+                target.setEdep(source.getEdep());
+                if ("ERR".equals(source.getType())) {
+                    target.setType("ERR");
+                    targMap[e] = -1;
+                }
+            }
+        }
+
+        // Weighted residual norms of the blocks add in quadrature; solver iterations add up.
+        for (int step = 0; step < steps && convergenceCallback != null; step++) {
+            double sumSq = 0.0;
+            int solverIterations = 0;
+            boolean reported = false;
+            for (int b = 0; b < numBlocks; b++) {
+                double residual = stepResiduals[b][step];
+                if (!Double.isNaN(residual)) {
+                    sumSq += residual * residual;
+                    solverIterations += stepIterations[b][step];
+                    reported = true;
+                }
+            }
+            if (reported) {
+                convergenceCallback.onClusterResidualUpdate(clusterId, step, Math.sqrt(sumSq), solverIterations);
+            }
+        }
+    }
+
+    /** Callback that stores the residual and solver iterations of each step instead of reporting them. */
+    private static ConvergenceCallback stepRecorder(double[] residuals, int[] iterations) {
+        return new ConvergenceCallback() {
+            @Override
+            public void onResidualUpdate(int iteration, double residual) {
+            }
+
+            @Override
+            public void onClusterResidualUpdate(int clusterId, int iteration, double residual, int solverIterations) {
+                residuals[iteration] = residual;
+                iterations[iteration] = solverIterations;
+            }
+        };
+    }
+
+    /**
+     * Relocates one block on copies of its member points. A block holding an event fixed by incremental mode
+     * is solved in that event's frame, without the centroid constraint.
+     *
+     * @param jobsPerBlock threads for this block's partial derivative table and solver products
+     * @param callback records the steps of this block, or null
+     * @return the relocated copies in member order, or null if the block has no target events or no data
+     */
+    private List<Point> relocateBlock(int clusterId, int blockIndex, List<TrdBlockDecomposition.Block> blocks,
+                                      List<Point> clusterPoints, int[] targMap, boolean[] frozen,
+                                      TripleDifferenceTable tripDiff, int jobsPerBlock, ConvergenceCallback callback) {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new RuntimeException("Cancelled");
+        }
+        int[] members = blocks.get(blockIndex).members;
+        int[] local = new int[clusterPoints.size()];
+        java.util.Arrays.fill(local, -1);
+        List<Point> points = new ArrayList<>(members.length);
+        int[] blockTargMap = new int[members.length];
+        int targets = 0;
+        boolean anchored = false;
+        for (int k = 0; k < members.length; k++) {
+            anchored |= frozen[members[k]];
+            local[members[k]] = k;
+            points.add(copyPoint(clusterPoints.get(members[k])));
+            blockTargMap[k] = targMap[members[k]] >= 0 ? targets++ : -1;
+        }
+        TripleDifferenceTable sub = tripDiff.subset(local);
+        logger.info("Cluster " + clusterId + ", block " + (blockIndex + 1) + "/" + blocks.size() + ": "
+            + members.length + " events (" + blocks.get(blockIndex).core.length + " core, " + targets + " to relocate), "
+            + sub.size() + " triple differences");
+        SolverLogger.info("TRD: Cluster " + clusterId + ", block " + (blockIndex + 1) + "/" + blocks.size() + ": "
+            + members.length + " events, " + sub.size() + " triple differences");
+        if (targets == 0 || sub.isEmpty()) {
+            return null;
+        }
+        relocateStages(clusterId, points, blockTargMap, sub, initFixedRows(members.length, blockTargMap, sub),
+            0, jobsPerBlock, 0L, false, !anchored, callback);
+        return points;
+    }
+
+    /**
+     * Prepares the reusable partial table rows: events that are not targets and appear in no triple difference
+     * are never read, so they share an empty row and are not traced. Rows of the other fixed events are added
+     * by {@link #relocateStages} once computed.
+     */
+    private double[][][] initFixedRows(int numEvents, int[] targMap, TripleDifferenceTable tripDiff) {
+        double[][][] fixedRows = new double[numEvents][][];
+        boolean[] referenced = new boolean[numEvents];
+        for (int r = 0; r < tripDiff.size(); r++) {
+            referenced[tripDiff.getEve0(r)] = true;
+            referenced[tripDiff.getEve1(r)] = true;
+        }
+        double[][] emptyRow = new double[stationTable.length][4];
+        for (int k = 0; k < numEvents; k++) {
+            if (!referenced[k] && targMap[k] == -1) {
+                fixedRows[k] = emptyRow;
+            }
+        }
+        return fixedRows;
+    }
 
-                for (int i = 0; i < iterNumArray.length; i++) {
+    /**
+     * Runs the TRD stages from {@code firstStage} on, updating the points and {@code targMap} in place.
+     *
+     * @param clusterId cluster ID (for logging, callbacks and checkpoints)
+     * @param clusterPoints points to relocate (indices as in {@code tripDiff})
+     * @param targMap target index per point, -1 for fixed points
+     * @param tripDiff triple differences, sorted by distance
+     * @param fixedRows reusable partial table rows (see {@link #initFixedRows}); filled in as events stop moving
+     * @param firstStage first stage to run
+     * @param partialJobs number of threads for the partial derivative table and the solver products
+     * @param fingerprint checkpoint fingerprint
+     * @param checkpoints whether to write a checkpoint after each stage
+     * @param centroidConstraint whether to add the centroid constraint rows (false when fixed events set the frame)
+     * @param callback receives the residual of each step, or null
+     */
+    private void relocateStages(int clusterId, List<Point> clusterPoints, int[] targMap, TripleDifferenceTable tripDiff,
+                                double[][][] fixedRows, int firstStage, int partialJobs, long fingerprint,
+                                boolean checkpoints, boolean centroidConstraint, ConvergenceCallback callback) {
+        Cluster<Point> cluster = new Cluster<>();
+        clusterPoints.forEach(cluster::addPoint);
+        int numTarget = compactTargMap(targMap);
+        // Iterative solver steps over all solves, to compare runs with and without lsqrColumnScaling.
+        long solverIterations = 0;
+        int solves = 0;
+
+        for (int i = firstStage; i < iterNumArray.length; i++) {
+            if (Thread.currentThread().isInterrupted()) {
+                logger.info("Triple difference relocation interrupted by user");
+                SolverLogger.info("TRD: Interrupted by user");
+                throw new RuntimeException("Cancelled");
+            }
+            
+            int distKm = distKmArray[i];
+            int iterNum = iterNumArray[i];
+            int dampFact = dampFactArray[i];
+            int globalIterOffset = 0;
+            for (int ii = 0; ii < i; ii++) {
+                globalIterOffset += iterNumArray[ii];
+            }
+            
+            logger.info("Cluster " + clusterId + ", iteration stage " + (i + 1) + "/" + iterNumArray.length + 
+                       " (distKm=" + distKm + ", iterNum=" + iterNum + ", dampFact=" + dampFact + ", solver=" + solverArray[i] + ")");
+            SolverLogger.info("TRD: Cluster " + clusterId + ", stage " + (i + 1) + "/" + iterNumArray.length + " (distKm=" + distKm + ", iterNum=" + iterNum + ", dampFact=" + dampFact + ", solver=" + solverArray[i] + ")");
+            
+            TripleDifferenceTable filteredTripDiff = tripDiff.filterByDistance(distKm);
+            
+            if (filteredTripDiff.isEmpty()) {
+                logger.warning("No triple difference data within " + distKm + " km for cluster " + clusterId + 
+                             " (total triple differences: " + tripDiff.size() + ")");
+                SolverLogger.warning("TRD: No triple difference data within " + distKm + " km for cluster " + clusterId);
+                continue;
+            }
+            
+            logger.info("Cluster " + clusterId + ", stage " + (i + 1) + ": Using " + filteredTripDiff.size() + 
+                       " triple differences (filtered from " + tripDiff.size() + " total)");
+            SolverLogger.info("TRD: Cluster " + clusterId + ", stage " + (i + 1) + ": using " + filteredTripDiff.size() + " triple differences");
+            
+            double[] dm = null;
+            
+            for (int j = 0; j < iterNum; j++) {
+                if (Thread.currentThread().isInterrupted()) {
+                    logger.info("Triple difference relocation interrupted by user");
+                    SolverLogger.info("TRD: Interrupted by user");
+                    throw new RuntimeException("Cancelled");
+                }
+                try {
+                    logger.info("Cluster " + clusterId + ", stage " + (i + 1) + ", iteration " + (j + 1) + "/" + iterNum);
+                    SolverLogger.info("TRD: Cluster " + clusterId + ", stage " + (i + 1) + "/" + iterNumArray.length + ", iteration " + (j + 1) + "/" + iterNum);
+                    
+                    boolean isLastStage = (i == iterNumArray.length - 1);
+                    boolean isLastIteration = (j == iterNum - 1);
+                    boolean shouldCalcVar = calcVar && isLastStage && isLastIteration;
+                    
+                    // After ERR marking, targMap can have gaps (e.g. indices 0,2,3); matrix columns are 0..numTarget-1 only.
+                    if (targMapHasGaps(targMap)) {
+                        dm = null;
+                    }
+                    numTarget = compactTargMap(targMap);
+                    
+                    if (numTarget == 0) {
+                        logger.warning("Cluster " + clusterId + " has no valid target events after filtering, skipping remaining iterations");
+                        SolverLogger.warning("TRD: Cluster " + clusterId + " has no valid target events after filtering, skipping.");
+                        break;
+                    }
+                    
+                    double[][][] partialTbl = createPartialTblArray(cluster, targMap, partialJobs, fixedRows);
+                    for (int k = 0; k < targMap.length; k++) {
+                        if (targMap[k] == -1 && fixedRows[k] == null) {
+                            fixedRows[k] = partialTbl[k];
+                        }
+                    }
+                    if (Thread.currentThread().isInterrupted()) {
+                        logger.info("Triple difference relocation interrupted by user");
+                        SolverLogger.info("TRD: Interrupted by user");
+                        throw new RuntimeException("Cancelled");
+                    }
+                    if (targMapHasGaps(targMap)) {
+                        dm = null;
+                    }
+                    numTarget = compactTargMap(targMap);
+                    if (numTarget == 0) {
+                        logger.warning("Cluster " + clusterId + " has no valid target events after partial table, skipping remaining iterations");
+                        SolverLogger.warning("TRD: Cluster " + clusterId + " has no valid target events after partial table, skipping.");
+                        break;
+                    }
+                    Object[] dG = matrixDG(filteredTripDiff, cluster, partialTbl, distKm, targMap, numTarget,
+                        centroidConstraint, partialJobs);
                     if (Thread.currentThread().isInterrupted()) {
                         logger.info("Triple difference relocation interrupted by user");
                         SolverLogger.info("TRD: Interrupted by user");
                         throw new RuntimeException("Cancelled");
                     }
+                    double[] d = (double[]) dG[0];
+                    Object GObj = dG[1];
                     
-                    int distKm = distKmArray[i];
-                    int iterNum = iterNumArray[i];
-                    int dampFact = dampFactArray[i];
-                    int globalIterOffset = 0;
-                    for (int ii = 0; ii < i; ii++) {
-                        globalIterOffset += iterNumArray[ii];
+                    if (d.length == 0) {
+                        throw new IllegalArgumentException("Empty residual vector d. This may indicate no valid triple differences.");
                     }
                     
-                    logger.info("Cluster " + clusterId + ", iteration stage " + (i + 1) + "/" + iterNumArray.length + 
-                               " (distKm=" + distKm + ", iterNum=" + iterNum + ", dampFact=" + dampFact + ")");
-                    SolverLogger.info("TRD: Cluster " + clusterId + ", stage " + (i + 1) + "/" + iterNumArray.length + " (distKm=" + distKm + ", iterNum=" + iterNum + ", dampFact=" + dampFact + ")");
+                    int gRows, gCols;
+                    if (GObj instanceof OpenMapRealMatrix) {
+                        OpenMapRealMatrix G = (OpenMapRealMatrix) GObj;
+                        gRows = G.getRowDimension();
+                        gCols = G.getColumnDimension();
+                    } else if (GObj instanceof TripleDifferenceOperator) {
+                        TripleDifferenceOperator G = (TripleDifferenceOperator) GObj;
+                        gRows = G.getRowDimension();
+                        gCols = G.getColumnDimension();
+                    } else {
+                        throw new IllegalArgumentException("Unknown matrix type: " + GObj.getClass().getName());
+                    }
                     
-                    List<TripleDifference> filteredTripDiff = filterTripDiffByDistance(tripDiff, distKm);
+                    if (gRows == 0 || gCols == 0) {
+                        throw new IllegalArgumentException("Empty design matrix G. This may indicate no valid triple differences.");
+                    }
                     
-                    if (filteredTripDiff.isEmpty()) {
-                        logger.warning("No triple difference data within " + distKm + " km for cluster " + clusterId + 
-                                     " (total triple differences: " + tripDiff.size() + ")");
-                        SolverLogger.warning("TRD: No triple difference data within " + distKm + " km for cluster " + clusterId);
-                        continue;
+                    int expectedDmLength = 3 * numTarget;
+                    if (gCols != expectedDmLength) {
+                        throw new IllegalArgumentException(
+                            "Design matrix G column dimension mismatch. " +
+                            "Expected: " + expectedDmLength + " (3 * numTarget), " +
+                            "Actual: " + gCols);
                     }
                     
-                    logger.info("Cluster " + clusterId + ", stage " + (i + 1) + ": Using " + filteredTripDiff.size() + 
-                               " triple differences (filtered from " + tripDiff.size() + " total)");
-                    SolverLogger.info("TRD: Cluster " + clusterId + ", stage " + (i + 1) + ": using " + filteredTripDiff.size() + " triple differences");
+                    // Previous iteration may have left dm with old length after numTarget decreased (ERR marking).
+                    if (dm != null && dm.length != expectedDmLength) {
+                        logger.warning(String.format(
+                            "Cluster %d, stage %d, iteration %d: dm length mismatch. " +
+                            "Expected: %d (3 * numTarget), Actual: %d. " +
+                            "Resetting dm to null (numTarget may have changed due to ERR marking).",
+                            clusterId, i + 1, j + 1, expectedDmLength, dm.length));
+                        SolverLogger.warning("TRD: Cluster " + clusterId + " dm length mismatch, resetting.");
+                        dm = null;
+                    }
                     
-                    double[] dm = null;
+                    // Unit weights (null) on the first iteration of a stage, biweight afterwards.
+                    double[] weights = null;
+                    if (j > 0 && dm != null) {
+                        double[] residuals = calculateResiduals(GObj, d, dm);
+                        weights = RobustStatistics.tukeyBiweight(residuals, 4.685);
+                    }
                     
-                    for (int j = 0; j < iterNum; j++) {
-                        if (Thread.currentThread().isInterrupted()) {
-                            logger.info("Triple difference relocation interrupted by user");
-                            SolverLogger.info("TRD: Interrupted by user");
-                            throw new RuntimeException("Cancelled");
+                    logger.fine("TRD: applyWeights start (d.length=" + d.length + ")");
+                    SolverLogger.fine("TRD: applyWeights start");
+                    // Weights are a diagonal scaling inside the operator (W G), so G is never copied.
+                    ScipyLSQR.LinearOperator Aop;
+                    if (GObj instanceof TripleDifferenceOperator) {
+                        TripleDifferenceOperator op = (TripleDifferenceOperator) GObj;
+                        op.setWeights(weights);
+                        Aop = op;
+                    } else {
+                        ScipyLSQR.SparseLinearOperator op = new ScipyLSQR.SparseLinearOperator(
+                            (OpenMapRealMatrix) GObj, partialJobs);
+                        op.setWeights(weights);
+                        Aop = op;
+                    }
+                    // d is rebuilt by matrixDG every iteration, so it is weighted in place.
+                    double[] dWeighted = d;
+                    if (weights != null) {
+                        for (int k = 0; k < d.length; k++) {
+                            dWeighted[k] *= weights[k];
                         }
-                        try {
-                            logger.info("Cluster " + clusterId + ", stage " + (i + 1) + ", iteration " + (j + 1) + "/" + iterNum);
-                            SolverLogger.info("TRD: Cluster " + clusterId + ", stage " + (i + 1) + "/" + iterNumArray.length + ", iteration " + (j + 1) + "/" + iterNum);
-                            
-                            boolean isLastStage = (i == iterNumArray.length - 1);
-                            boolean isLastIteration = (j == iterNum - 1);
-                            boolean shouldCalcVar = calcVar && isLastStage && isLastIteration;
-                            
-                            // After ERR marking, targMap can have gaps (e.g. indices 0,2,3); matrix columns are 0..numTarget-1 only.
-                            if (targMapHasGaps(targMap)) {
-                                dm = null;
-                            }
-                            numTarget = compactTargMap(targMap);
-                            
-                            if (numTarget == 0) {
-                                logger.warning("Cluster " + clusterId + " has no valid target events after filtering, skipping remaining iterations");
-                                SolverLogger.warning("TRD: Cluster " + clusterId + " has no valid target events after filtering, skipping.");
-                                break;
-                            }
-                            
-                            double[][][] partialTbl = createPartialTblArray(cluster, targMap);
-                            if (Thread.currentThread().isInterrupted()) {
-                                logger.info("Triple difference relocation interrupted by user");
-                                SolverLogger.info("TRD: Interrupted by user");
-                                throw new RuntimeException("Cancelled");
-                            }
-                            if (targMapHasGaps(targMap)) {
-                                dm = null;
-                            }
-                            numTarget = compactTargMap(targMap);
-                            if (numTarget == 0) {
-                                logger.warning("Cluster " + clusterId + " has no valid target events after partial table, skipping remaining iterations");
-                                SolverLogger.warning("TRD: Cluster " + clusterId + " has no valid target events after partial table, skipping.");
-                                break;
-                            }
-                            Object[] dG = matrixDG(filteredTripDiff, cluster, partialTbl, distKm, targMap, numTarget);
-                            if (Thread.currentThread().isInterrupted()) {
-                                logger.info("Triple difference relocation interrupted by user");
-                                SolverLogger.info("TRD: Interrupted by user");
-                                throw new RuntimeException("Cancelled");
-                            }
-                            double[] d = (double[]) dG[0];
-                            Object GObj = dG[1];
-                            
-                            if (d.length == 0) {
-                                throw new IllegalArgumentException("Empty residual vector d. This may indicate no valid triple differences.");
-                            }
-                            
-                            int gRows, gCols;
-                            if (GObj instanceof OpenMapRealMatrix) {
-                                OpenMapRealMatrix G = (OpenMapRealMatrix) GObj;
-                                gRows = G.getRowDimension();
-                                gCols = G.getColumnDimension();
-                            } else if (GObj instanceof COOSparseMatrix) {
-                                COOSparseMatrix G = (COOSparseMatrix) GObj;
-                                gRows = G.getRowDimension();
-                                gCols = G.getColumnDimension();
-                            } else {
-                                throw new IllegalArgumentException("Unknown matrix type: " + GObj.getClass().getName());
-                            }
-                            
-                            if (gRows == 0 || gCols == 0) {
-                                throw new IllegalArgumentException("Empty design matrix G. This may indicate no valid triple differences.");
-                            }
-                            
-                            int expectedDmLength = 3 * numTarget;
-                            if (gCols != expectedDmLength) {
-                                throw new IllegalArgumentException(
-                                    "Design matrix G column dimension mismatch. " +
-                                    "Expected: " + expectedDmLength + " (3 * numTarget), " +
-                                    "Actual: " + gCols);
-                            }
-                            
-                            // Previous iteration may have left dm with old length after numTarget decreased (ERR marking).
-                            if (dm != null && dm.length != expectedDmLength) {
-                                logger.warning(String.format(
-                                    "Cluster %d, stage %d, iteration %d: dm length mismatch. " +
-                                    "Expected: %d (3 * numTarget), Actual: %d. " +
-                                    "Resetting dm to null (numTarget may have changed due to ERR marking).",
-                                    clusterId, i + 1, j + 1, expectedDmLength, dm.length));
-                                SolverLogger.warning("TRD: Cluster " + clusterId + " dm length mismatch, resetting.");
-                                dm = null;
-                            }
-                            
-                            double[] weights;
-                            if (j == 0 || dm == null) {
-                                weights = new double[d.length];
-                                for (int k = 0; k < weights.length; k++) {
-                                    weights[k] = 1.0;
-                                }
-                            } else {
-                                double[] residuals = calculateResiduals(GObj, d, dm);
-                                weights = turkeyBiweight(residuals, 4.685);
-                            }
-                            
-                            logger.fine("TRD: applyWeights start (d.length=" + d.length + ")");
-                            SolverLogger.fine("TRD: applyWeights start");
-                            Object GWeighted = applyWeightsToMatrix(GObj, weights);
-                            double[] dWeighted = applyWeightsToVector(d, weights);
-                            logger.fine("TRD: applyWeights done");
-                            SolverLogger.fine("TRD: applyWeights done");
-                            
-                            logger.fine("TRD LSQR: starting (rows=" + gRows + ", cols=" + gCols + ")");
-                            SolverLogger.fine("TRD: LSQR start (rows=" + gRows + ", cols=" + gCols + ")");
-                            ScipyLSQR.LSQRResult result;
-                            if (GWeighted instanceof OpenMapRealMatrix) {
-                                result = ScipyLSQR.lsqr(
-                                    (OpenMapRealMatrix) GWeighted,
-                                    dWeighted,
-                                    dampFact,
-                                    lsqrAtol,
-                                    lsqrBtol,
-                                    lsqrConlim,
-                                    lsqrIterLim,
-                                    showLSQR,
-                                    shouldCalcVar,
-                                    null,
-                                    logConsumer);
-                            } else {
-                                result = ScipyLSQR.lsqr(
-                                    (COOSparseMatrix) GWeighted,
-                                    dWeighted,
-                                    dampFact,
-                                    lsqrAtol,
-                                    lsqrBtol,
-                                    lsqrConlim,
-                                    lsqrIterLim,
-                                    showLSQR,
-                                    shouldCalcVar,
-                                    null,
-                                    logConsumer);
-                            }
-                            
-                            logger.fine("TRD LSQR: done itn=" + (result != null ? result.itn : -1) + " r2norm=" + (result != null ? result.r2norm : Double.NaN));
-                            SolverLogger.fine("TRD: LSQR done (itn=" + (result != null ? result.itn : -1) + ")");
-                            if (Thread.currentThread().isInterrupted()) {
-                                logger.info("Triple difference relocation interrupted by user");
-                                SolverLogger.info("TRD: Interrupted by user");
-                                throw new RuntimeException("Cancelled");
-                            }
-                            if (convergenceCallback != null && result != null) {
-                                double residualRMS = result.r2norm;
-                                // Use cumulative index across TRD stages so GUI plot/log advances past stage 1
-                                // (per-stage j alone resets to 0 each stage and looks like "stuck" in step 1).
-                                convergenceCallback.onClusterResidualUpdate(clusterId, globalIterOffset + j, residualRMS);
-                            }
-                            
-                            if (result == null) {
-                                throw new IllegalArgumentException("LSQR solver returned null result.");
-                            }
-                            
-                            dm = result.x;
-                            
-                            if (dm == null || dm.length == 0) {
-                                throw new IllegalArgumentException("LSQR solver returned empty solution vector.");
-                            }
-                            
-                            // When numTarget decreased (e.g. ERR marking), dm may be longer than expected. Use only the
-                            // prefix dm[0..expectedDmLength-1] to update the current numTarget points; skip only if dm is too short.
-                            if (dm.length < expectedDmLength) {
-                                logger.warning(String.format(
-                                    "Cluster %d, stage %d, iteration %d: solution dm too short. " +
-                                    "Expected: %d (3 * numTarget), Actual: %d. Skipping position update this iteration.",
-                                    clusterId, i + 1, j + 1, expectedDmLength, dm.length));
-                                SolverLogger.warning("TRD: Cluster " + clusterId + " dm too short, skipping position update.");
-                                dm = null;
-                            } else if (dm.length > expectedDmLength) {
-                                logger.warning(String.format(
-                                    "Cluster %d, stage %d, iteration %d: solution dm longer than expected (numTarget may have decreased). " +
-                                    "Expected: %d, Actual: %d. Updating only the first %d components for valid targets.",
-                                    clusterId, i + 1, j + 1, expectedDmLength, dm.length, expectedDmLength));
-                                SolverLogger.warning("TRD: Cluster " + clusterId + " dm length mismatch, using prefix for valid targets only.");
-                            }
-                            
-                            double[] var = null;
-                            if (shouldCalcVar && result != null && result.var != null) {
-                                var = result.var;
-                            }
-                            
-                            if (dm != null) {
-                            // Use only indices [0, numTarget-1] when dm is longer than expected (ERR reduced numTarget).
-                            int effectiveDmLength = Math.min(dm.length, expectedDmLength);
-                            for (int k = 0; k < clusterPoints.size(); k++) {
-                                if (targMap[k] == -1) {
-                                    continue;
-                                }
-                                Point point = clusterPoints.get(k);
-                                int targIdx = targMap[k];
-                                if (targIdx * 3 + 2 >= effectiveDmLength) {
-                                    // This target index is beyond current numTarget (e.g. ERR reduced count); exclude from relocation.
-                                    logger.warning("Cluster " + clusterId + ": excluding point " + k + " from relocation (targIdx=" + targIdx + " >= numTarget=" + numTarget + "). Target mapping was reduced by ERR marking.");
-                                    SolverLogger.warning("TRD: Excluding point " + k + " from relocation (targIdx out of range after ERR marking).");
-                                    targMap[k] = -1;
-                                    continue;
-                                }
-                                // Always apply solution update (dm) to position; then mark ERR if depth out of range (excluded from next iterations).
-                                double newLon = point.getLon() + dm[targIdx * 3];
-                                double newLat = point.getLat() + dm[targIdx * 3 + 1];
-                                double newDep = point.getDep() + dm[targIdx * 3 + 2];
-                                point.setLon(newLon);
-                                point.setLat(newLat);
-                                point.setDep(newDep);
+                    }
+                    logger.fine("TRD: applyWeights done");
+                    SolverLogger.fine("TRD: applyWeights done");
+                    
+                    logger.fine("TRD LSQR: starting (rows=" + gRows + ", cols=" + gCols + ")");
+                    SolverLogger.fine("TRD: LSQR start (rows=" + gRows + ", cols=" + gCols + ")");
+                    ScipyLSQR.LSQRResult result = solveLsqr(Aop, dWeighted, dampFact, shouldCalcVar,
+                        SOLVER_LSMR.equals(solverArray[i]));
+                    
+                    logger.fine("TRD LSQR: done itn=" + (result != null ? result.itn : -1) + " r2norm=" + (result != null ? result.r2norm : Double.NaN));
+                    SolverLogger.fine("TRD: LSQR done (itn=" + (result != null ? result.itn : -1) + ")");
+                    if (result != null) {
+                        solverIterations += result.itn;
+                        solves++;
+                    }
+                    if (Thread.currentThread().isInterrupted()) {
+                        logger.info("Triple difference relocation interrupted by user");
+                        SolverLogger.info("TRD: Interrupted by user");
+                        throw new RuntimeException("Cancelled");
+                    }
+                    if (callback != null && result != null) {
+                        double residualRMS = result.r2norm;
+                        // Use cumulative index across TRD stages so GUI plot/log advances past stage 1
+                        // (per-stage j alone resets to 0 each stage and looks like "stuck" in step 1).
+                        callback.onClusterResidualUpdate(clusterId, globalIterOffset + j, residualRMS, result.itn);
+                    }
+                    
+                    if (result == null) {
+                        throw new IllegalArgumentException("LSQR solver returned null result.");
+                    }
+                    
+                    dm = result.x;
+                    
+                    if (dm == null || dm.length == 0) {
+                        throw new IllegalArgumentException("LSQR solver returned empty solution vector.");
+                    }
+                    
+                    // When numTarget decreased (e.g. ERR marking), dm may be longer than expected. Use only the
+                    // prefix dm[0..expectedDmLength-1] to update the current numTarget points; skip only if dm is too short.
+                    if (dm.length < expectedDmLength) {
+                        logger.warning(String.format(
+                            "Cluster %d, stage %d, iteration %d: solution dm too short. " +
+                            "Expected: %d (3 * numTarget), Actual: %d. Skipping position update this iteration.",
+                            clusterId, i + 1, j + 1, expectedDmLength, dm.length));
+                        SolverLogger.warning("TRD: Cluster " + clusterId + " dm too short, skipping position update.");
+                        dm = null;
+                    } else if (dm.length > expectedDmLength) {
+                        logger.warning(String.format(
+                            "Cluster %d, stage %d, iteration %d: solution dm longer than expected (numTarget may have decreased). " +
+                            "Expected: %d, Actual: %d. Updating only the first %d components for valid targets.",
+                            clusterId, i + 1, j + 1, expectedDmLength, dm.length, expectedDmLength));
+                        SolverLogger.warning("TRD: Cluster " + clusterId + " dm length mismatch, using prefix for valid targets only.");
+                    }
+                    
+                    double[] var = null;
+                    if (shouldCalcVar && result != null && result.var != null) {
+                        var = result.var;
+                    }
+                    
+                    if (dm != null) {
+                    // Use only indices [0, numTarget-1] when dm is longer than expected (ERR reduced numTarget).
+                    int effectiveDmLength = Math.min(dm.length, expectedDmLength);
+                    for (int k = 0; k < clusterPoints.size(); k++) {
+                        if (targMap[k] == -1) {
+                            continue;
+                        }
+                        Point point = clusterPoints.get(k);
+                        int targIdx = targMap[k];
+                        if (targIdx * 3 + 2 >= effectiveDmLength) {
+                            // This target index is beyond current numTarget (e.g. ERR reduced count); exclude from relocation.
+                            logger.warning("Cluster " + clusterId + ": excluding point " + k + " from relocation (targIdx=" + targIdx + " >= numTarget=" + numTarget + "). Target mapping was reduced by ERR marking.");
+                            SolverLogger.warning("TRD: Excluding point " + k + " from relocation (targIdx out of range after ERR marking).");
+                            targMap[k] = -1;
+                            continue;
+                        }
+                        // Always apply solution update (dm) to position; then mark ERR if depth out of range (excluded from next iterations).
+                        double newLon = point.getLon() + dm[targIdx * 3];
+                        double newLat = point.getLat() + dm[targIdx * 3 + 1];
+                        double newDep = point.getDep() + dm[targIdx * 3 + 2];
+                        point.setLon(newLon);
+                        point.setLat(newLat);
+                        point.setDep(newDep);
 
-                                if (newDep < stnBottom || newDep > hypBottom) {
-                                    logger.warning("Point " + point.getTime() + " in cluster " + clusterId +
-                                                 " has depth " + newDep + " outside valid range [" + stnBottom + ", " + hypBottom + "]. Marking as ERR (position still updated).");
-                                    SolverLogger.warning("TRD: Point " + point.getTime() + " in cluster " + clusterId + " depth outside range, marked ERR.");
-                                    point.setType("ERR");
-                                    targMap[k] = -1;
-                                } else {
-                                    if (shouldCalcVar && var != null && targIdx * 3 + 2 < var.length) {
-                                        double lonVar = var[targIdx * 3];
-                                        double latVar = var[targIdx * 3 + 1];
-                                        double depVar = var[targIdx * 3 + 2];
+                        if (newDep < stnBottom || newDep > hypBottom) {
+                            logger.warning("Point " + point.getTime() + " in cluster " + clusterId +
+                                         " has depth " + newDep + " outside valid range [" + stnBottom + ", " + hypBottom + "]. Marking as ERR (position still updated).");
+                            SolverLogger.warning("TRD: Point " + point.getTime() + " in cluster " + clusterId + " depth outside range, marked ERR.");
+                            point.setType("ERR");
+                            targMap[k] = -1;
+                        } else {
+                            if (shouldCalcVar && var != null && targIdx * 3 + 2 < var.length) {
+                                double lonVar = var[targIdx * 3];
+                                double latVar = var[targIdx * 3 + 1];
+                                double depVar = var[targIdx * 3 + 2];
 
-                                        double lonStd = Math.sqrt(Math.max(0.0, lonVar));
-                                        double latStd = Math.sqrt(Math.max(0.0, latVar));
-                                        double depStd = Math.sqrt(Math.max(0.0, depVar));
+                                double lonStd = Math.sqrt(Math.max(0.0, lonVar));
+                                double latStd = Math.sqrt(Math.max(0.0, latVar));
+                                double depStd = Math.sqrt(Math.max(0.0, depVar));
 
-                                        double newLatRad = Math.toRadians(newLat);
-                                        double elon = lonStd * HypoUtils.getDeg2Km() * Math.cos(newLatRad);
-                                        double elat = latStd * HypoUtils.getDeg2Km();
-                                        double edep = depStd;
+                                double newLatRad = Math.toRadians(newLat);
+                                double elon = lonStd * HypoUtils.getDeg2Km() * Math.cos(newLatRad);
+                                double elat = latStd * HypoUtils.getDeg2Km();
+                                double edep = depStd;
 
-                                        point.setElon(elon);
-                                        point.setElat(elat);
-                                        point.setEdep(edep);
-                                    }
-                                }
-                            }
-                            }
-                            
-                            cluster = new Cluster<>();
-                            clusterPoints.forEach(cluster::addPoint);
-                        } catch (IndexOutOfBoundsException e) {
-                            String errorMsg = String.format(
-                                "Index out of bounds error in cluster %d, stage %d, iteration %d:\n" +
-                                "  Error: %s\n" +
-                                "  Number of target events: %d\n" +
-                                "  Number of cluster points: %d\n" +
-                                "  This may indicate a problem with the matrix dimensions or target mapping.",
-                                clusterId, i + 1, j + 1, e.getMessage(), numTarget, clusterPoints.size());
-                            logger.severe(errorMsg);
-                            SolverLogger.severe("TRD: " + errorMsg);
-                            throw new RuntimeException(errorMsg, e);
-                        } catch (Exception e) {
-                            String errorMsg = String.format(
-                                "Error in cluster %d, stage %d, iteration %d:\n" +
-                                "  Error: %s\n" +
-                                "  Number of target events: %d\n" +
-                                "  Number of cluster points: %d\n" +
-                                "  Number of triple differences: %d",
-                                clusterId, i + 1, j + 1, e.getMessage(), numTarget, clusterPoints.size(), filteredTripDiff.size());
-                            logger.severe(errorMsg);
-                            SolverLogger.severe("TRD: " + errorMsg);
-                            if (e.getCause() != null) {
-                                logger.severe("  Caused by: " + e.getCause().getMessage());
-                                SolverLogger.severe("TRD: Caused by: " + e.getCause().getMessage());
+                                point.setElon(elon);
+                                point.setElat(elat);
+                                point.setEdep(edep);
                             }
-                            throw new RuntimeException(errorMsg, e);
                         }
                     }
-                }
-                
-                // Recompute final triple-difference residuals and set per-event RMS for relocated hypocenters
-                try {
+                    }
+                    
                     cluster = new Cluster<>();
                     clusterPoints.forEach(cluster::addPoint);
-                    numTarget = compactTargMap(targMap);
-                    double[] rmsPerEvent = computeFinalRmsPerEvent(cluster, tripDiff, targMap, numTarget);
-                    for (int k = 0; k < clusterPoints.size(); k++) {
-                        if (k < rmsPerEvent.length && !Double.isNaN(rmsPerEvent[k])) {
-                            clusterPoints.get(k).setRes(rmsPerEvent[k]);
-                        }
-                    }
+                } catch (IndexOutOfBoundsException e) {
+                    String errorMsg = String.format(
+                        "Index out of bounds error in cluster %d, stage %d, iteration %d:\n" +
+                        "  Error: %s\n" +
+                        "  Number of target events: %d\n" +
+                        "  Number of cluster points: %d\n" +
+                        "  This may indicate a problem with the matrix dimensions or target mapping.",
+                        clusterId, i + 1, j + 1, e.getMessage(), numTarget, clusterPoints.size());
+                    logger.severe(errorMsg);
+                    SolverLogger.severe("TRD: " + errorMsg);
+                    throw new RuntimeException(errorMsg, e);
                 } catch (Exception e) {
-                    logger.warning("TRD: Could not compute final RMS per event for cluster " + clusterId + ": " + e.getMessage());
-                    SolverLogger.warning("TRD: Could not compute final RMS for cluster " + clusterId + ": " + e.getMessage());
-                }
-                
-                for (Point point : clusterPoints) {
-                    if (!point.getType().equals("ERR") && !point.getType().equals("REF")) {
-                        point.setType("TRD");
+                    String errorMsg = String.format(
+                        "Error in cluster %d, stage %d, iteration %d:\n" +
+                        "  Error: %s\n" +
+                        "  Number of target events: %d\n" +
+                        "  Number of cluster points: %d\n" +
+                        "  Number of triple differences: %d",
+                        clusterId, i + 1, j + 1, e.getMessage(), numTarget, clusterPoints.size(), filteredTripDiff.size());
+                    logger.severe(errorMsg);
+                    SolverLogger.severe("TRD: " + errorMsg);
+                    if (e.getCause() != null) {
+                        logger.severe("  Caused by: " + e.getCause().getMessage());
+                        SolverLogger.severe("TRD: Caused by: " + e.getCause().getMessage());
                     }
-                    appendPointToCatalog(catalogWriter, point);
-                    writePointToDatFile(point);
-                }
+                    throw new RuntimeException(errorMsg, e);
                 }
-
-                catalogWriter.flush();
             }
-            lastOutputCatalogAbsolutePath = outputCatalogPath;
-            logger.info("Triple difference relocation completed. Output catalog: " + outputCatalogFile);
-            SolverLogger.info("TRD: Completed. Output catalog: " + outputCatalogFile);
-            
-        } catch (IllegalArgumentException e) {
-            StringBuilder errorMsg = new StringBuilder("Triple difference relocation failed (IllegalArgumentException):\n");
-            errorMsg.append("  ").append(e.getMessage()).append("\n");
-            errorMsg.append("  Catalog file: ").append(catalogPathToUse != null ? catalogPathToUse : "not determined").append("\n");
-            errorMsg.append("  Target directory: ").append(targetDir != null ? targetDir.toFile().getAbsolutePath() : "not set").append("\n");
-            errorMsg.append("  Output directory: ").append(outDir != null ? outDir.toFile().getAbsolutePath() : "not set").append("\n");
-            logger.severe(errorMsg.toString());
-            SolverLogger.severe("TRD: " + errorMsg.toString());
-            throw e;
-        } catch (Exception e) {
-            StringBuilder errorMsg = new StringBuilder("Triple difference relocation failed with unexpected error:\n");
-            errorMsg.append("  Error type: ").append(e.getClass().getName()).append("\n");
-            errorMsg.append("  Error message: ").append(e.getMessage()).append("\n");
-            if (catalogPathToUse != null) {
-                errorMsg.append("  Catalog file: ").append(catalogPathToUse).append("\n");
+            if (checkpoints) {
+                saveCheckpoint(clusterId, fingerprint, i + 1, false, clusterPoints, targMap);
             }
-            if (targetDir != null) {
-                errorMsg.append("  Target directory: ").append(targetDir.toFile().getAbsolutePath()).append("\n");
+        }
+        logger.info("Cluster " + clusterId + ": " + solverIterations + " solver iterations over " + solves
+            + " solves (column scaling " + (lsqrColumnScaling ? "on" : "off") + ")");
+        SolverLogger.info("TRD: Cluster " + clusterId + ": " + solverIterations + " solver iterations over " + solves + " solves");
+    }
+
+    /**
+     * Fingerprint of everything a checkpoint depends on: the stage and solver parameters, the triple-difference
+     * file (size and modification time) and the initial state of the cluster's points.
+     */
+    private long checkpointFingerprint(int clusterId, List<Point> points) {
+        try {
+            java.security.MessageDigest md = java.security.MessageDigest.getInstance("SHA-256");
+            java.nio.ByteBuffer buf = java.nio.ByteBuffer.allocate(64);
+            java.util.function.Consumer<String> text = str -> md.update(str.getBytes(java.nio.charset.StandardCharsets.UTF_8));
+            text.accept(java.util.Arrays.toString(iterNumArray) + java.util.Arrays.toString(distKmArray)
+                + java.util.Arrays.toString(dampFactArray) + java.util.Arrays.toString(solverArray)
+                + lsqrAtol + "," + lsqrBtol + "," + lsqrConlim + "," + lsqrIterLim + "," + calcVar + ","
+                + matrixFree + "," + lsqrColumnScaling + "," + directSolverMaxUnknowns + ","
+                + maxTripleDiffCount + "," + incremental + "," + blockMaxEvents + "," + blockOverlapKm + "," + hypBottom + "," + stnBottom + "," + clusterId);
+            File binFile = resolveTripleDiffFile(clusterId);
+            if (binFile != null) {
+                text.accept(binFile.getAbsolutePath());
+                buf.clear();
+                buf.putLong(binFile.length()).putLong(binFile.lastModified());
+                md.update(buf.array(), 0, buf.position());
             }
-            if (outDir != null) {
-                errorMsg.append("  Output directory: ").append(outDir.toFile().getAbsolutePath()).append("\n");
+            for (Point p : points) {
+                text.accept(p.getTime() + "|" + p.getType());
+                buf.clear();
+                buf.putDouble(p.getLat()).putDouble(p.getLon()).putDouble(p.getDep());
+                md.update(buf.array(), 0, buf.position());
             }
-            logger.severe(errorMsg.toString());
-            SolverLogger.severe("TRD: " + errorMsg.toString());
-            if (e.getCause() != null) {
-                logger.severe("  Caused by: " + e.getCause().getClass().getName() + ": " + e.getCause().getMessage());
-                SolverLogger.severe("TRD: Caused by: " + e.getCause().getClass().getSimpleName() + ": " + e.getCause().getMessage());
+            return java.nio.ByteBuffer.wrap(md.digest()).getLong();
+        } catch (java.security.NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    /**
+     * Loads the checkpoint of a cluster if it exists and was written for the same parameters and data.
+     *
+     * @return the checkpoint, or null if there is none or it does not match
+     */
+    private TrdCheckpoint loadCheckpoint(int clusterId, long fingerprint, int numPoints) {
+        File file = TrdCheckpoint.fileFor(outDir.toFile(), clusterId);
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            TrdCheckpoint checkpoint = TrdCheckpoint.read(file);
+            if (!checkpoint.matches(clusterId, fingerprint, numPoints, iterNumArray.length)) {
+                logger.warning("TRD: Checkpoint " + file.getAbsolutePath()
+                    + " was written for different parameters or input data; relocating cluster " + clusterId + " from the start");
+                SolverLogger.warning("TRD: Checkpoint for cluster " + clusterId + " does not match this run, ignored.");
+                return null;
             }
-            logger.log(Level.SEVERE, "TRD: unexpected error stack trace", e);
-            throw new RuntimeException("Triple difference relocation failed", e);
+            return checkpoint;
+        } catch (IOException e) {
+            logger.warning("TRD: Could not read checkpoint " + file.getAbsolutePath() + ": " + e.getMessage());
+            SolverLogger.warning("TRD: Could not read checkpoint for cluster " + clusterId + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /** Writes the checkpoint of a cluster; a failure is logged and does not stop the relocation. */
+    private void saveCheckpoint(int clusterId, long fingerprint, int completedStages, boolean complete,
+                                List<Point> points, int[] targMap) {
+        if (!checkpointEnabled) {
+            return;
+        }
+        File file = TrdCheckpoint.fileFor(outDir.toFile(), clusterId);
+        try {
+            TrdCheckpoint.write(file, clusterId, fingerprint, completedStages, complete, points, targMap);
+        } catch (IOException e) {
+            logger.warning("TRD: Could not write checkpoint " + file.getAbsolutePath() + ": " + e.getMessage());
+            SolverLogger.warning("TRD: Could not write checkpoint for cluster " + clusterId + ": " + e.getMessage());
         }
     }
     
-    private List<TripleDifference> loadTripleDiff(int clusterId) {
+    /**
+     * Locates {@code triple_diff_<clusterId>.bin} in the target directory, then in the output directory.
+     *
+     * @return the file, or {@code null} if it exists in neither
+     */
+    private File resolveTripleDiffFile(int clusterId) {
+        String fileName = "triple_diff_" + clusterId + ".bin";
+        File file = new File(targetDir != null ? targetDir.toFile() : new File("."), fileName);
+        if (file.exists()) {
+            return file;
+        }
+        file = new File(outDir != null ? outDir.toFile() : new File("."), fileName);
+        return file.exists() ? file : null;
+    }
+    
+    /**
+     * Solves the weighted system. Small systems (3 * numTarget up to {@code directSolverMaxUnknowns}) are solved
+     * directly with {@link NormalEquationsSolver}, which also gives the exact variance; if the normal matrix is
+     * not positive definite, the iterative solver is used instead.
+     * LSQR (or LSMR) runs with column scaling when enabled, through {@link ColumnScaledOperator}, which keeps
+     * the damping on the unscaled dm.
+     *
+     * @param Aop weighted design operator
+     * @param b weighted data vector
+     * @param damp damping factor of the current stage
+     * @param shouldCalcVar whether to estimate the variance of dm; LSMR has no variance estimate, so LSQR is used
+     * @param useLsmr solve with {@link LSMR} instead of LSQR
+     * @return solver result in the original (unscaled) variables
+     */
+    private ScipyLSQR.LSQRResult solveLsqr(ScipyLSQR.LinearOperator Aop, double[] b, double damp,
+                                          boolean shouldCalcVar, boolean useLsmr) {
+        if (Aop.getColumnDimension() <= directSolverMaxUnknowns) {
+            try {
+                return NormalEquationsSolver.solve(Aop, b, damp, shouldCalcVar);
+            } catch (org.apache.commons.math3.linear.NonPositiveDefiniteMatrixException e) {
+                logger.fine("TRD: normal matrix not positive definite (" + Aop.getColumnDimension()
+                    + " unknowns), using the iterative solver");
+            }
+        }
+        if (useLsmr && shouldCalcVar) {
+            logger.fine("TRD: using LSQR instead of LSMR for the final iteration (variance estimate)");
+            useLsmr = false;
+        }
+        if (!lsqrColumnScaling) {
+            return runSolver(useLsmr, Aop, b, damp, shouldCalcVar);
+        }
+        ColumnScaledOperator op = new ColumnScaledOperator(Aop, ColumnScaledOperator.inverseColumnNorms(Aop), damp);
+        ScipyLSQR.LSQRResult result = runSolver(useLsmr, op, op.augment(b), 0.0, shouldCalcVar);
+        return result != null ? op.unscale(result) : null;
+    }
+
+    private ScipyLSQR.LSQRResult runSolver(boolean useLsmr, ScipyLSQR.LinearOperator A, double[] b, double damp,
+                                           boolean shouldCalcVar) {
+        if (useLsmr) {
+            return LSMR.lsmr(A, b, damp, lsqrAtol, lsqrBtol, lsqrConlim, lsqrIterLim, showLSQR, null, logConsumer);
+        }
+        return ScipyLSQR.lsqr(A, b, damp, lsqrAtol, lsqrBtol, lsqrConlim, lsqrIterLim,
+            showLSQR, shouldCalcVar, null, logConsumer);
+    }
+
+    private TripleDifferenceTable loadTripleDiff(int clusterId) {
         String fileName = "triple_diff_" + clusterId + ".bin";
-        
         File targetDirFile = targetDir != null ? targetDir.toFile() : new File(".");
-        File file = new File(targetDirFile, fileName);
+        File outDirFile = outDir != null ? outDir.toFile() : new File(".");
+        File file = resolveTripleDiffFile(clusterId);
         
-        if (!file.exists()) {
-            File outDirFile = outDir != null ? outDir.toFile() : new File(".");
-            file = new File(outDirFile, fileName);
-            
-            if (!file.exists()) {
-                logger.warning("Triple difference file not found: " + fileName + 
-                             " (searched in target directory: " + targetDirFile.getAbsolutePath() + 
-                             ", output directory: " + outDirFile.getAbsolutePath() + ")");
-                SolverLogger.warning("TRD: Triple difference file not found: " + fileName);
-                return new ArrayList<>();
-            } else {
-                logger.info("Using triple difference file from output directory: " + file.getAbsolutePath());
-                SolverLogger.info("TRD: Using triple difference file from output directory: " + file.getAbsolutePath());
-            }
-        } else {
+        if (file == null) {
+            logger.warning("Triple difference file not found: " + fileName + 
+                         " (searched in target directory: " + targetDirFile.getAbsolutePath() + 
+                         ", output directory: " + outDirFile.getAbsolutePath() + ")");
+            SolverLogger.warning("TRD: Triple difference file not found: " + fileName);
+            return TripleDifferenceTable.empty(clusterId);
+        } else if (file.getParentFile() != null && file.getParentFile().equals(targetDirFile)) {
             logger.info("Using triple difference file from target directory: " + file.getAbsolutePath());
             SolverLogger.info("TRD: Using triple difference file from target directory: " + file.getAbsolutePath());
+        } else {
+            logger.info("Using triple difference file from output directory: " + file.getAbsolutePath());
+            SolverLogger.info("TRD: Using triple difference file from output directory: " + file.getAbsolutePath());
         }
         
         try {
-            return TripleDifferenceIO.loadBinary(file);
+            return TripleDifferenceIO.loadBinaryTable(file);
         } catch (IOException e) {
             logger.severe("Error reading triple difference file: " + e.getMessage());
             SolverLogger.severe("TRD: Error reading triple difference file: " + e.getMessage());
-            return new ArrayList<>();
+            return TripleDifferenceTable.empty(clusterId);
         }
     }
     
     /**
-     * @return an Object array containing [d (double[]), G (OpenMapRealMatrix or COOSparseMatrix)]
+     * @return an Object array containing [d (double[]), G (OpenMapRealMatrix or TripleDifferenceOperator)]
      * 
-     * <p>This method automatically selects the appropriate sparse matrix implementation
-     * based on matrix size. For large matrices (M * 3*N > 10^7), COOSparseMatrix is used;
-     * otherwise, OpenMapRealMatrix is used.
+     * <p>This method automatically selects the design matrix representation based on matrix size.
+     * For large matrices (M * 3*N > 10^7), or when {@code matrixFree} is set, G is not materialized and a
+     * {@link TripleDifferenceOperator} is returned; otherwise, OpenMapRealMatrix is used.
+     *
+     * <p>With {@code centroidConstraint}, three rows {@code sum dm_k = 0} follow the data rows. They fix the
+     * frame of a cluster solved on its own; when fixed (incremental) events set the frame they are left out.
+     *
+     * <p>{@code jobs} bounds the partitions of the operator's products, so concurrent clusters stay within
+     * {@code numJobs} threads in total.
      */
-    private Object[] matrixDG(List<TripleDifference> trpDiff, Cluster<Point> cluster, 
-                              double[][][] partialTbl, double distanceThreshold, int[] targMap, int numTarget) {
+    private Object[] matrixDG(TripleDifferenceTable trpDiff, Cluster<Point> cluster, 
+                              double[][][] partialTbl, double distanceThreshold, int[] targMap, int numTarget,
+                              boolean centroidConstraint, int jobs) {
         int M = trpDiff.size();
         int N = numTarget;
         logger.fine("TRD matrixDG: start M=" + M + " N=" + N + " (3*N=" + (3 * N) + ")");
@@ -921,82 +1598,59 @@ public class HypoTripleDiff extends SolverBase {
         // Count valid rows (excluding REF-REF pairs and rows with targMap index >= N)
         int validRowCount = 0;
         for (int m = 0; m < M; m++) {
-            TripleDifference td = trpDiff.get(m);
-            int nCol0 = targMap[td.eve0];
-            int nCol1 = targMap[td.eve1];
+            int nCol0 = targMap[trpDiff.getEve0(m)];
+            int nCol1 = targMap[trpDiff.getEve1(m)];
             if (nCol0 == -1 && nCol1 == -1) continue;
             if ((nCol0 >= 0 && nCol0 >= N) || (nCol1 >= 0 && nCol1 >= N)) continue;
             validRowCount++;
         }
         
-        int M_constrained = validRowCount + 3;
-        double[] d = new double[M_constrained];
+        int M_constrained = validRowCount + (centroidConstraint ? 3 : 0);
         
         long matrixSize = (long) M_constrained * (long) (3 * N);
-        boolean useCOO = matrixSize > 10_000_000L;
+        boolean useOperator = matrixFree != null ? matrixFree : matrixSize > 10_000_000L;
         
-        if (useCOO) {
+        if (useOperator) {
             logger.info(String.format(
-                "Using COOSparseMatrix for large matrix (M=%d, N=%d, size=%d). " +
-                "This avoids array size limitations.",
+                "Using matrix-free triple-difference operator (M=%d, N=%d, size=%d). " +
+                "G is evaluated on the fly and not stored.",
                 M_constrained, N, matrixSize));
-            SolverLogger.info("TRD: Using COOSparseMatrix for large matrix (M=" + M_constrained + ", N=" + N + ").");
-            COOSparseMatrix G = new COOSparseMatrix(M_constrained, 3 * N);
+            SolverLogger.info("TRD: Using matrix-free operator (M=" + M_constrained + ", N=" + N + ").");
+            int[] eve0 = new int[validRowCount];
+            int[] eve1 = new int[validRowCount];
+            int[] stn0 = new int[validRowCount];
+            int[] stn1 = new int[validRowCount];
+            double[] tdTime = new double[validRowCount];
             
             int rowIdx = 0;
             int skipCountOutOfRange = 0;
             for (int m = 0; m < M; m++) {
-                TripleDifference td = trpDiff.get(m);
-                int eve0 = td.eve0;
-                int eve1 = td.eve1;
-                int stnk = td.stn0;
-                int stnl = td.stn1;
-                
-                int nCol0 = targMap[eve0];
-                int nCol1 = targMap[eve1];
+                int nCol0 = targMap[trpDiff.getEve0(m)];
+                int nCol1 = targMap[trpDiff.getEve1(m)];
                 
                 // Skip REF-REF pairs (both are -1)
                 if (nCol0 == -1 && nCol1 == -1) {
                     continue;
                 }
                 
-                // Skip when targMap value >= numTarget (happens when targMap has gaps after ERR marking; design matrix has columns 0..numTarget-1 only).
+                // Skip when targMap value >= numTarget (happens when targMap has gaps after ERR marking).
                 if ((nCol0 >= 0 && nCol0 >= N) || (nCol1 >= 0 && nCol1 >= N)) {
                     skipCountOutOfRange++;
                     if (skipCountOutOfRange <= 3) {
                         logger.warning(String.format(
                             "Skipping triple difference: targMap index out of range. eve0=%d, nCol0=%d, eve1=%d, nCol1=%d, numTarget=%d",
-                            eve0, nCol0, eve1, nCol1, N));
+                            trpDiff.getEve0(m), nCol0, trpDiff.getEve1(m), nCol1, N));
                         SolverLogger.warning("TRD: Skipping triple difference (targMap index out of range).");
                     }
                     continue;
                 }
                 
-                if (nCol1 >= 0) {
-                    G.setEntry(rowIdx, 3 * nCol1, partialTbl[eve1][stnl][0] - partialTbl[eve1][stnk][0]);
-                    G.setEntry(rowIdx, 3 * nCol1 + 1, partialTbl[eve1][stnl][1] - partialTbl[eve1][stnk][1]);
-                    G.setEntry(rowIdx, 3 * nCol1 + 2, partialTbl[eve1][stnl][2] - partialTbl[eve1][stnk][2]);
-                }
-                
-                if (nCol0 >= 0) {
-                    G.setEntry(rowIdx, 3 * nCol0, -(partialTbl[eve0][stnl][0] - partialTbl[eve0][stnk][0]));
-                    G.setEntry(rowIdx, 3 * nCol0 + 1, -(partialTbl[eve0][stnl][1] - partialTbl[eve0][stnk][1]));
-                    G.setEntry(rowIdx, 3 * nCol0 + 2, -(partialTbl[eve0][stnl][2] - partialTbl[eve0][stnk][2]));
-                }
-                // Note: If nCol0 == -1 (REF event), no column entry is set (REF position is fixed, δx = 0)
-                
-                // Calculate residual (using partialTbl for both events, including REF)
-                double cal0 = partialTbl[eve0][stnl][3] - partialTbl[eve0][stnk][3];
-                double cal1 = partialTbl[eve1][stnl][3] - partialTbl[eve1][stnk][3];
-                double lagCal = cal1 - cal0;
-                double lagObs = td.tdTime;
-                d[rowIdx] = lagObs - lagCal;
-                
+                eve0[rowIdx] = trpDiff.getEve0(m);
+                eve1[rowIdx] = trpDiff.getEve1(m);
+                stn0[rowIdx] = trpDiff.getStn0(m);
+                stn1[rowIdx] = trpDiff.getStn1(m);
+                tdTime[rowIdx] = trpDiff.getTdTime(m);
                 rowIdx++;
-                if (rowIdx % 100000 == 0 && rowIdx > 0) {
-                    logger.fine("TRD matrixDG COO: row progress " + rowIdx + "/" + validRowCount);
-                    SolverLogger.fine("TRD: matrixDG COO rows " + rowIdx);
-                }
             }
             
             if (skipCountOutOfRange > 0) {
@@ -1004,41 +1658,23 @@ public class HypoTripleDiff extends SolverBase {
                 SolverLogger.info("TRD: Skipped " + skipCountOutOfRange + " triple-diff(s) (targMap index out of range).");
             }
             
-            logger.fine("TRD matrixDG COO: data rows done, adding constraint rows");
-            SolverLogger.fine("TRD: matrixDG COO constraint rows");
-            // Add constraint rows: sum{delta m} = 0 for each component (x, y, z)
-            // Constraint row for x component: sum(delta_x_i) = 0
-            for (int k = 0; k < N; k++) {
-                G.setEntry(validRowCount, 3 * k, 1.0);
-            }
-            d[validRowCount] = 0.0;
-            
-            // Constraint row for y component: sum(delta_y_i) = 0
-            for (int k = 0; k < N; k++) {
-                G.setEntry(validRowCount + 1, 3 * k + 1, 1.0);
-            }
-            d[validRowCount + 1] = 0.0;
-            
-            // Constraint row for z component: sum(delta_z_i) = 0
-            for (int k = 0; k < N; k++) {
-                G.setEntry(validRowCount + 2, 3 * k + 2, 1.0);
-            }
-            d[validRowCount + 2] = 0.0;
-            
-            logger.fine("TRD matrixDG: COO done (rows=" + M_constrained + ")");
-            SolverLogger.fine("TRD: matrixDG COO done");
+            TripleDifferenceOperator G = new TripleDifferenceOperator(
+                validRowCount, eve0, eve1, stn0, stn1, partialTbl, targMap, N, jobs, centroidConstraint);
+            double[] d = G.observedMinusCalculated(tdTime);
+            logger.fine("TRD matrixDG: operator done (rows=" + M_constrained + ")");
+            SolverLogger.fine("TRD: matrixDG operator done");
             return new Object[] { d, G };
         } else {
+            double[] d = new double[M_constrained];
             OpenMapRealMatrix G = new OpenMapRealMatrix(M_constrained, 3 * N);
             
             int rowIdx = 0;
             int skipCountOutOfRange = 0;
             for (int m = 0; m < M; m++) {
-                TripleDifference td = trpDiff.get(m);
-                int eve0 = td.eve0;
-                int eve1 = td.eve1;
-                int stnk = td.stn0;
-                int stnl = td.stn1;
+                int eve0 = trpDiff.getEve0(m);
+                int eve1 = trpDiff.getEve1(m);
+                int stnk = trpDiff.getStn0(m);
+                int stnl = trpDiff.getStn1(m);
                 
                 int nCol0 = targMap[eve0];
                 int nCol1 = targMap[eve1];
@@ -1077,7 +1713,7 @@ public class HypoTripleDiff extends SolverBase {
                 double cal0 = partialTbl[eve0][stnl][3] - partialTbl[eve0][stnk][3];
                 double cal1 = partialTbl[eve1][stnl][3] - partialTbl[eve1][stnk][3];
                 double lagCal = cal1 - cal0;
-                double lagObs = td.tdTime;
+                double lagObs = trpDiff.getTdTime(m);
                 d[rowIdx] = lagObs - lagCal;
                 
                 rowIdx++;
@@ -1091,6 +1727,11 @@ public class HypoTripleDiff extends SolverBase {
                 SolverLogger.info("TRD: Skipped " + skipCountOutOfRange + " triple-diff(s) (targMap index out of range).");
             }
             
+            if (!centroidConstraint) {
+                logger.fine("TRD matrixDG: OpenMap done (rows=" + M_constrained + ", no constraint rows)");
+                SolverLogger.fine("TRD: matrixDG OpenMap done");
+                return new Object[] { d, G };
+            }
             logger.fine("TRD matrixDG OpenMap: adding constraint rows");
             // Add constraint rows: sum{delta m} = 0 for each component (x, y, z)
             // Constraint row for x component: sum(delta_x_i) = 0
@@ -1117,10 +1758,6 @@ public class HypoTripleDiff extends SolverBase {
         }
     }
     
-    private double[][][] createPartialTblArray(Cluster<Point> cluster) {
-        return createPartialTblArray(cluster, null);
-    }
-    
     /**
      * True if non-negative targMap entries are not exactly {@code 0 .. count-1}
      * (e.g. after marking ERR without renumbering remaining targets).
@@ -1168,17 +1805,22 @@ public class HypoTripleDiff extends SolverBase {
      *
      * @param cluster the cluster of events
      * @param targMap optional; if non-null, set to -1 for any point that fails partial derivative calculation so caller can recompute numTarget
+     * @param jobs number of threads (1 = sequential)
+     * @param fixedRows optional; rows that are non-null here are reused instead of computed (events that do not move)
      * @return three-dimensional array of partial derivatives
      */
-    private double[][][] createPartialTblArray(Cluster<Point> cluster, int[] targMap) {
+    private double[][][] createPartialTblArray(Cluster<Point> cluster, int[] targMap, int jobs, double[][][] fixedRows) {
         List<Point> points = cluster.getPoints();
         int numEvents = points.size();
         int numStations = stationTable.length;
-        double[][][] partialTbl = new double[numEvents][numStations][4];
-        logger.fine("TRD createPartialTblArray: start numEvents=" + numEvents + " numStations=" + numStations + " numJobs=" + numJobs);
+        double[][][] partialTbl = new double[numEvents][][];
+        for (int i = 0; i < numEvents; i++) {
+            partialTbl[i] = fixedRows != null && fixedRows[i] != null ? fixedRows[i] : new double[numStations][4];
+        }
+        logger.fine("TRD createPartialTblArray: start numEvents=" + numEvents + " numStations=" + numStations + " jobs=" + jobs);
         SolverLogger.fine("TRD: createPartialTblArray start (events=" + numEvents + ", stations=" + numStations + ")");
         
-        if (numEvents <= 1 || numJobs <= 1) {
+        if (numEvents <= 1 || jobs <= 1) {
             int i = 0;
             for (Point point : points) {
                 if (Thread.currentThread().isInterrupted()) {
@@ -1188,6 +1830,10 @@ public class HypoTripleDiff extends SolverBase {
                     logger.finer("TRD createPartialTblArray: single-thread progress point " + i + "/" + numEvents);
                     SolverLogger.finest("TRD: partial progress " + i + "/" + numEvents);
                 }
+                if (fixedRows != null && fixedRows[i] != null) {
+                    i++;
+                    continue;
+                }
                 int[] usedIdx = new int[numStations];
                 for (int j = 0; j < numStations; j++) {
                     usedIdx[j] = j;
@@ -1233,11 +1879,14 @@ public class HypoTripleDiff extends SolverBase {
         } else {
             java.util.concurrent.ExecutorService executor =
                 BatchExecutorFactory.newFixedThreadPoolBounded(
-                        numJobs, BatchExecutorFactory.suggestedQueueCapacity(numEvents));
+                        jobs, BatchExecutorFactory.suggestedQueueCapacity(numEvents));
             java.util.List<java.util.concurrent.Future<Void>> futures = new java.util.ArrayList<>();
             
             try {
                 for (int i = 0; i < numEvents; i++) {
+                    if (fixedRows != null && fixedRows[i] != null) {
+                        continue;
+                    }
                     final int eventIndex = i;
                     final Point point = points.get(i);
                     
@@ -1331,120 +1980,6 @@ public class HypoTripleDiff extends SolverBase {
         return partialTbl;
     }
     
-    /**
-     * Calculates the median of a list of values.
-     * 
-     * @param values the list of values (will be sorted in-place)
-     * @return the median value, or 0.0 if the list is empty
-     */
-    private double calculateMedian(List<Double> values) {
-        if (values.isEmpty()) {
-            return 0.0;
-        }
-        Collections.sort(values);
-        int size = values.size();
-        if (size % 2 == 0) {
-            return (values.get(size / 2 - 1) + values.get(size / 2)) / 2.0;
-        } else {
-            return values.get(size / 2);
-        }
-    }
-    
-    /**
-     * Calculates Turkey biweight weights for robust estimation.
-     * This function downweights outliers based on their residuals.
-     * 
-     * @param residuals array of residuals
-     * @param c tuning constant (default: 4.685)
-     * @return array of weights (0 to 1)
-     */
-    private double[] turkeyBiweight(double[] residuals, double c) {
-        if (residuals.length == 0) {
-            return new double[0];
-        }
-        
-        List<Double> residualList = new ArrayList<>();
-        for (double r : residuals) {
-            residualList.add(r);
-        }
-        double median = calculateMedian(residualList);
-        
-        List<Double> absDeviations = new ArrayList<>();
-        for (double r : residuals) {
-            absDeviations.add(Math.abs(r - median));
-        }
-        double mad = calculateMedian(absDeviations);
-        
-        double scale = c * mad + Double.MIN_VALUE;
-        
-        double[] weights = new double[residuals.length];
-        for (int i = 0; i < residuals.length; i++) {
-            double u = residuals[i] / scale;
-            if (Math.abs(u) > 1.0) {
-                weights[i] = 0.0;
-            } else {
-                weights[i] = Math.pow(1.0 - u * u, 2);
-            }
-        }
-        
-        return weights;
-    }
-    
-    /**
-     * Applies weights to a sparse matrix by multiplying each row by its weight.
-     * 
-     * @param G the matrix to weight
-     * @param weights array of weights (one per row)
-     * @return weighted matrix (same type as input)
-     */
-    private Object applyWeightsToMatrix(Object G, double[] weights) {
-        if (G instanceof OpenMapRealMatrix) {
-            OpenMapRealMatrix GMat = (OpenMapRealMatrix) G;
-            OpenMapRealMatrix GWeighted = new OpenMapRealMatrix(GMat.getRowDimension(), GMat.getColumnDimension());
-            for (int i = 0; i < GMat.getRowDimension(); i++) {
-                for (int j = 0; j < GMat.getColumnDimension(); j++) {
-                    double value = GMat.getEntry(i, j);
-                    if (value != 0.0) {
-                        GWeighted.setEntry(i, j, value * weights[i]);
-                    }
-                }
-            }
-            return GWeighted;
-        } else if (G instanceof COOSparseMatrix) {
-            COOSparseMatrix GMat = (COOSparseMatrix) G;
-            COOSparseMatrix GWeighted = new COOSparseMatrix(GMat.getRowDimension(), GMat.getColumnDimension());
-            for (int i = 0; i < GMat.getRowDimension(); i++) {
-                for (int j = 0; j < GMat.getColumnDimension(); j++) {
-                    double value = GMat.getEntry(i, j);
-                    if (value != 0.0) {
-                        GWeighted.setEntry(i, j, value * weights[i]);
-                    }
-                }
-            }
-            return GWeighted;
-        } else {
-            throw new IllegalArgumentException("Unknown matrix type: " + G.getClass().getName());
-        }
-    }
-    
-    /**
-     * Applies weights to a vector by multiplying each element by its weight.
-     * 
-     * @param d the vector to weight
-     * @param weights array of weights (one per element)
-     * @return weighted vector
-     */
-    private double[] applyWeightsToVector(double[] d, double[] weights) {
-        if (d.length != weights.length) {
-            throw new IllegalArgumentException("Vector and weights must have the same length");
-        }
-        double[] dWeighted = new double[d.length];
-        for (int i = 0; i < d.length; i++) {
-            dWeighted[i] = d[i] * weights[i];
-        }
-        return dWeighted;
-    }
-    
     /**
      * Calculates residuals: residuals = d - G * dm
      * 
@@ -1462,9 +1997,8 @@ public class HypoTripleDiff extends SolverBase {
         if (G instanceof OpenMapRealMatrix) {
             OpenMapRealMatrix GMat = (OpenMapRealMatrix) G;
             gCols = GMat.getColumnDimension();
-        } else if (G instanceof COOSparseMatrix) {
-            COOSparseMatrix GMat = (COOSparseMatrix) G;
-            gCols = GMat.getColumnDimension();
+        } else if (G instanceof TripleDifferenceOperator) {
+            gCols = ((TripleDifferenceOperator) G).getColumnDimension();
         } else {
             throw new IllegalArgumentException("Unknown matrix type: " + G.getClass().getName());
         }
@@ -1489,113 +2023,122 @@ public class HypoTripleDiff extends SolverBase {
             for (int i = 0; i < d.length; i++) {
                 residuals[i] = d[i] - Gdm[i];
             }
-        } else if (G instanceof COOSparseMatrix) {
-            COOSparseMatrix GMat = (COOSparseMatrix) G;
-            double[] Gdm = GMat.operate(dm);
-            if (Gdm.length != d.length) {
-                throw new IllegalArgumentException(String.format(
-                    "Dimension mismatch: G * dm length (%d) != d length (%d)",
-                    Gdm.length, d.length));
-            }
-            for (int i = 0; i < d.length; i++) {
-                residuals[i] = d[i] - Gdm[i];
-            }
         } else {
-            throw new IllegalArgumentException("Unknown matrix type: " + G.getClass().getName());
+            return ((TripleDifferenceOperator) G).residuals(d, dm);
         }
         
         return residuals;
     }
     
-    /**
-     * @return the filtered triple difference
-     */
-    private List<TripleDifference> filterTripDiffByDistance(List<TripleDifference> tripDiff, int distKm) {
-        List<TripleDifference> filtered = new ArrayList<>();
-        for (TripleDifference td : tripDiff) {
-            if (td.distKm < distKm) {
-                filtered.add(td);
-            }
-        }
-        return filtered;
-    }
-
     /**
      * Selects triple-difference data by residual: sort by residual (smallest first), NaN last,
      * take 1.5 * maxTripleDiffCount as candidate pool, then randomly select maxTripleDiffCount from it.
      * Then ensures every event is covered by at least one selected triple-diff (adds from rest if needed).
+     * The selected rows keep their order in {@code tripDiff} (sorted by distance).
      *
-     * @param tripDiff full list of triple differences (e.g. from loadTripleDiff)
-     * @return list after sorting, random selection, and coverage guarantee
+     * @param tripDiff all triple differences (e.g. from loadTripleDiff)
+     * @return table of the selected rows
      */
-    private List<TripleDifference> selectTripleDiffByResidual(List<TripleDifference> tripDiff) {
+    private TripleDifferenceTable selectTripleDiffByResidual(TripleDifferenceTable tripDiff) {
         if (maxTripleDiffCount == null || maxTripleDiffCount <= 0) {
             return tripDiff;
         }
-        List<TripleDifference> sorted = new ArrayList<>(tripDiff);
-        sorted.sort((a, b) -> {
-            boolean aNaN = Double.isNaN(a.residual);
-            boolean bNaN = Double.isNaN(b.residual);
-            if (aNaN && bNaN) return 0;
-            if (aNaN) return 1;
-            if (bNaN) return -1;
-            return Double.compare(a.residual, b.residual);
-        });
-        int poolSize = Math.min(sorted.size(), (int) Math.ceil(maxTripleDiffCount * 1.5));
+        int n = tripDiff.size();
+        int poolSize = Math.min(n, (int) Math.ceil(maxTripleDiffCount * 1.5));
         if (poolSize <= maxTripleDiffCount) {
-            return sorted;
+            return tripDiff;
+        }
+        // Residuals are >= 0 or NaN, so the float bits order like the values with NaN last;
+        // the row index in the low word keeps equal residuals in row order.
+        long[] keys = new long[n];
+        for (int r = 0; r < n; r++) {
+            keys[r] = ((long) Float.floatToIntBits((float) tripDiff.getResidual(r)) << 32) | r;
+        }
+        // Only the pool needs to be separated from the rest; neither side has to be sorted.
+        RobustStatistics.selectSmallest(keys, poolSize);
+        int[] pool = new int[poolSize];
+        for (int k = 0; k < poolSize; k++) {
+            pool[k] = (int) keys[k];
         }
-        List<TripleDifference> pool = new ArrayList<>(sorted.subList(0, poolSize));
         Random rnd = new Random();
-        Collections.shuffle(pool, rnd);
-        List<TripleDifference> selected = new ArrayList<>(pool.subList(0, maxTripleDiffCount));
-        java.util.Set<TripleDifference> selectedSet = new java.util.HashSet<>(selected);
-        java.util.Set<Integer> covered = new java.util.HashSet<>();
-        for (TripleDifference td : selected) {
-            covered.add(td.eve0);
-            covered.add(td.eve1);
-        }
-        java.util.Set<Integer> allEvents = new java.util.HashSet<>();
-        for (TripleDifference td : sorted) {
-            allEvents.add(td.eve0);
-            allEvents.add(td.eve1);
-        }
-        java.util.Set<Integer> uncovered = new java.util.HashSet<>(allEvents);
-        uncovered.removeAll(covered);
-        int startForCoverage = poolSize;
-        for (int r = startForCoverage; r < sorted.size() && !uncovered.isEmpty(); r++) {
-            TripleDifference td = sorted.get(r);
-            if (selectedSet.contains(td)) continue;
-            boolean coversAny = false;
-            if (uncovered.contains(td.eve0)) { uncovered.remove(td.eve0); coversAny = true; }
-            if (uncovered.contains(td.eve1)) { uncovered.remove(td.eve1); coversAny = true; }
-            if (coversAny) {
-                selected.add(td);
-                selectedSet.add(td);
-            }
-        }
-        if (!uncovered.isEmpty()) {
-            for (int r = 0; r < poolSize && !uncovered.isEmpty(); r++) {
-                TripleDifference td = sorted.get(r);
-                if (selectedSet.contains(td)) continue;
-                boolean coversAny = false;
-                if (uncovered.contains(td.eve0)) { uncovered.remove(td.eve0); coversAny = true; }
-                if (uncovered.contains(td.eve1)) { uncovered.remove(td.eve1); coversAny = true; }
-                if (coversAny) {
-                    selected.add(td);
-                    selectedSet.add(td);
+        for (int k = poolSize - 1; k > 0; k--) {
+            int j = rnd.nextInt(k + 1);
+            int t = pool[k];
+            pool[k] = pool[j];
+            pool[j] = t;
+        }
+        boolean[] selected = new boolean[n];
+        int maxEve = 0;
+        for (int r = 0; r < n; r++) {
+            maxEve = Math.max(maxEve, Math.max(tripDiff.getEve0(r), tripDiff.getEve1(r)));
+        }
+        boolean[] uncovered = new boolean[maxEve + 1];
+        for (int r = 0; r < n; r++) {
+            uncovered[tripDiff.getEve0(r)] = true;
+            uncovered[tripDiff.getEve1(r)] = true;
+        }
+        int numUncovered = 0;
+        for (boolean u : uncovered) {
+            if (u) numUncovered++;
+        }
+        for (int k = 0; k < maxTripleDiffCount; k++) {
+            int r = pool[k];
+            selected[r] = true;
+            numUncovered -= cover(uncovered, tripDiff.getEve0(r), tripDiff.getEve1(r));
+        }
+        // Add rows for uncovered events: first from outside the pool, then from the unselected pool rows.
+        // Only rows touching a still-uncovered event are candidates; just those are put in residual order.
+        int added = 0;
+        for (int pass = 0; pass < 2 && numUncovered > 0; pass++) {
+            long[] candidates = pass == 0
+                ? coverageCandidates(tripDiff, keys, poolSize, n, selected, uncovered)
+                : coverageCandidates(tripDiff, keys, 0, poolSize, selected, uncovered);
+            for (int k = 0; k < candidates.length && numUncovered > 0; k++) {
+                int r = (int) candidates[k];
+                int cleared = cover(uncovered, tripDiff.getEve0(r), tripDiff.getEve1(r));
+                if (cleared > 0) {
+                    selected[r] = true;
+                    added++;
+                    numUncovered -= cleared;
                 }
             }
         }
-        int added = selected.size() - maxTripleDiffCount;
+        int total = maxTripleDiffCount + added;
         if (added > 0) {
-            logger.info("TRD: Pool " + poolSize + " (1.5×limit), random select " + maxTripleDiffCount + ", added " + added + " for coverage (total " + selected.size() + "); had " + tripDiff.size());
-            SolverLogger.info("TRD: Pool 1.5×limit, random select " + maxTripleDiffCount + ", +" + added + " for coverage (total " + selected.size() + ").");
+            logger.info("TRD: Pool " + poolSize + " (1.5×limit), random select " + maxTripleDiffCount + ", added " + added + " for coverage (total " + total + "); had " + n);
+            SolverLogger.info("TRD: Pool 1.5×limit, random select " + maxTripleDiffCount + ", +" + added + " for coverage (total " + total + ").");
         } else {
-            logger.info("TRD: Pool " + poolSize + " (1.5×limit), random select " + maxTripleDiffCount + "; had " + tripDiff.size());
-            SolverLogger.info("TRD: Using " + maxTripleDiffCount + " triple differences (from 1.5× pool, random), was " + tripDiff.size());
+            logger.info("TRD: Pool " + poolSize + " (1.5×limit), random select " + maxTripleDiffCount + "; had " + n);
+            SolverLogger.info("TRD: Using " + maxTripleDiffCount + " triple differences (from 1.5× pool, random), was " + n);
+        }
+        return tripDiff.select(selected);
+    }
+
+    /**
+     * Returns the keys in {@code keys[from..to)} of unselected rows that touch an uncovered event, sorted.
+     * Rows not touching one now cannot clear anything later, since events only become covered.
+     */
+    private static long[] coverageCandidates(TripleDifferenceTable tripDiff, long[] keys, int from, int to,
+                                             boolean[] selected, boolean[] uncovered) {
+        long[] candidates = new long[Math.max(0, to - from)];
+        int count = 0;
+        for (int k = from; k < to; k++) {
+            int r = (int) keys[k];
+            if (!selected[r] && (uncovered[tripDiff.getEve0(r)] || uncovered[tripDiff.getEve1(r)])) {
+                candidates[count++] = keys[k];
+            }
         }
-        return selected;
+        candidates = java.util.Arrays.copyOf(candidates, count);
+        java.util.Arrays.sort(candidates);
+        return candidates;
+    }
+
+    /** Clears the uncovered flags of both events; returns how many were cleared. */
+    private static int cover(boolean[] uncovered, int eve0, int eve1) {
+        int cleared = 0;
+        if (uncovered[eve0]) { uncovered[eve0] = false; cleared++; }
+        if (uncovered[eve1]) { uncovered[eve1] = false; cleared++; }
+        return cleared;
     }
 
     /**
@@ -1606,43 +2149,43 @@ public class HypoTripleDiff extends SolverBase {
      * @param tripDiff full list of triple differences for this cluster
      * @param targMap mapping from event index to target index (-1 for REF)
      * @param numTarget number of target events
+     * @param jobs number of threads for the partial derivative table and the residual products
+     * @param fixedRows partial table rows of events that did not move (reused), or null
      * @return array of RMS per event (same order as cluster.getPoints()); NaN if no residuals for that event
      */
-    private double[] computeFinalRmsPerEvent(Cluster<Point> cluster, List<TripleDifference> tripDiff,
-                                             int[] targMap, int numTarget) {
+    private double[] computeFinalRmsPerEvent(Cluster<Point> cluster, TripleDifferenceTable tripDiff,
+                                             int[] targMap, int numTarget, int jobs, double[][][] fixedRows) {
         List<Point> points = cluster.getPoints();
         int numEvents = points.size();
         double[] rmsPerEvent = new double[numEvents];
         java.util.Arrays.fill(rmsPerEvent, Double.NaN);
         
-        double[][][] partialTbl = createPartialTblArray(cluster);
-        Object[] dG = matrixDG(tripDiff, cluster, partialTbl, 0, targMap, numTarget);
+        double[][][] partialTbl = createPartialTblArray(cluster, null, jobs, fixedRows);
+        // Only the data rows are used here.
+        Object[] dG = matrixDG(tripDiff, cluster, partialTbl, 0, targMap, numTarget, false, jobs);
         double[] d = (double[]) dG[0];
-        int validRowCount = d.length - 3;
+        int validRowCount = d.length;
         if (validRowCount <= 0) {
             return rmsPerEvent;
         }
         int M = tripDiff.size();
         int N = numTarget;
-        List<int[]> rowToEve = new ArrayList<>();
-        for (int m = 0; m < M; m++) {
-            TripleDifference td = tripDiff.get(m);
-            int nCol0 = targMap[td.eve0];
-            int nCol1 = targMap[td.eve1];
+        double[] sumSq = new double[numEvents];
+        int[] count = new int[numEvents];
+        // Rows of d follow the valid rows of tripDiff (same skip rules as matrixDG).
+        int i = 0;
+        for (int m = 0; m < M && i < validRowCount; m++) {
+            int eve0 = tripDiff.getEve0(m);
+            int eve1 = tripDiff.getEve1(m);
+            int nCol0 = targMap[eve0];
+            int nCol1 = targMap[eve1];
             if (nCol0 == -1 && nCol1 == -1) {
                 continue;
             }
             if ((nCol0 >= 0 && nCol0 >= N) || (nCol1 >= 0 && nCol1 >= N)) {
                 continue;
             }
-            rowToEve.add(new int[]{td.eve0, td.eve1});
-        }
-        double[] sumSq = new double[numEvents];
-        int[] count = new int[numEvents];
-        for (int i = 0; i < validRowCount && i < rowToEve.size(); i++) {
-            double r = d[i];
-            int eve0 = rowToEve.get(i)[0];
-            int eve1 = rowToEve.get(i)[1];
+            double r = d[i++];
             sumSq[eve0] += r * r;
             count[eve0]++;
             sumSq[eve1] += r * r;
@@ -0,0 +1,253 @@
+package com.treloc.xtreloc.solver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.apache.commons.math3.ml.clustering.Cluster;
+
+import com.treloc.xtreloc.util.SharedComputePool;
+
+/**
+ * DBSCAN over geographic points with a {@link SphericalKdTree} range index and parallel neighbourhood queries.
+ *
+ * <p>Produces the same clusters, in the same order and with the same point order, as commons-math
+ * {@code DBSCANClusterer} with {@link HaversineDistance}: the neighbours of a point are the other points at
+ * most {@code eps} km away, a point is core with at least {@code minPts} neighbours, clusters are numbered by
+ * their first core point in input order, a border point joins the first cluster that reaches it, and the
+ * points of a cluster are listed in the breadth-first order of the sequential expansion.
+ *
+ * <p>The work is split into passes that run on the shared compute pool: core flags, union-find over pairs
+ * of core neighbours (linking to the smaller index, so each root is the first core point of its cluster),
+ * the owning cluster of each border point, and finally the expansion order, one cluster per task.
+ *
+ * @author xTreLoc Development Team
+ * @version 1.0
+ */
+final class IndexedDbscan {
+
+    private final double eps;
+    private final int minPts;
+
+    /**
+     * @param eps neighbourhood radius (km, &ge; 0)
+     * @param minPts minimum number of neighbours of a core point, the point itself not included (&ge; 0)
+     */
+    IndexedDbscan(double eps, int minPts) {
+        if (!(eps >= 0)) {
+            throw new IllegalArgumentException("eps must be non-negative: " + eps);
+        }
+        if (minPts < 0) {
+            throw new IllegalArgumentException("minPts must be non-negative: " + minPts);
+        }
+        this.eps = eps;
+        this.minPts = minPts;
+    }
+
+    /**
+     * Clusters the points.
+     *
+     * @param points points to cluster
+     * @param partitions number of parallel partitions (1 = sequential)
+     * @return the clusters; noise points are in none
+     */
+    List<Cluster<Point>> cluster(List<Point> points, int partitions) {
+        int n = points.size();
+        if (n == 0) {
+            return new ArrayList<>();
+        }
+        double[] lat = new double[n];
+        double[] lon = new double[n];
+        for (int i = 0; i < n; i++) {
+            lat[i] = points.get(i).getLat();
+            lon[i] = points.get(i).getLon();
+        }
+        SphericalKdTree tree = new SphericalKdTree(lat, lon);
+        // The chord bound is only a prefilter (with a margin for rounding); membership is decided with the
+        // haversine distance as in the sequential clusterer.
+        double maxChord2 = SphericalKdTree.kmToChord2(eps) * (1.0 + 1e-9) + 1e-15;
+        Neighbourhoods neighbourhoods = new Neighbourhoods(tree, lat, lon, eps, maxChord2);
+
+        boolean[] core = new boolean[n];
+        SharedComputePool.forEachPartition(n, partitions, (part, from, to) -> {
+            SphericalKdTree.IntList buf = new SphericalKdTree.IntList();
+            for (int i = from; i < to; i++) {
+                core[i] = neighbourhoods.query(i, buf) >= minPts;
+            }
+        });
+
+        AtomicIntegerArray parent = new AtomicIntegerArray(n);
+        for (int i = 0; i < n; i++) {
+            parent.set(i, i);
+        }
+        SharedComputePool.forEachPartition(n, partitions, (part, from, to) -> {
+            SphericalKdTree.IntList buf = new SphericalKdTree.IntList();
+            for (int i = from; i < to; i++) {
+                if (!core[i]) continue;
+                neighbourhoods.query(i, buf);
+                for (int k = 0; k < buf.size; k++) {
+                    int j = buf.data[k];
+                    if (j > i && core[j]) {
+                        union(parent, i, j);
+                    }
+                }
+            }
+        });
+
+        // Clusters are numbered by their root, the first core point in input order.
+        int[] clusterOf = new int[n];
+        Arrays.fill(clusterOf, -1);
+        List<Integer> starts = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            if (core[i] && find(parent, i) == i) {
+                clusterOf[i] = starts.size();
+                starts.add(i);
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            if (core[i]) {
+                clusterOf[i] = clusterOf[find(parent, i)];
+            }
+        }
+        // A border point belongs to the first cluster, in creation order, with a core point among its neighbours.
+        SharedComputePool.forEachPartition(n, partitions, (part, from, to) -> {
+            SphericalKdTree.IntList buf = new SphericalKdTree.IntList();
+            for (int i = from; i < to; i++) {
+                if (core[i]) continue;
+                neighbourhoods.query(i, buf);
+                int owner = Integer.MAX_VALUE;
+                for (int k = 0; k < buf.size; k++) {
+                    int j = buf.data[k];
+                    if (core[j]) {
+                        owner = Math.min(owner, clusterOf[j]);
+                    }
+                }
+                if (owner != Integer.MAX_VALUE) {
+                    clusterOf[i] = owner;
+                }
+            }
+        });
+
+        int numClusters = starts.size();
+        List<Cluster<Point>> clusters = new ArrayList<>(numClusters);
+        for (int c = 0; c < numClusters; c++) {
+            clusters.add(new Cluster<>());
+        }
+        SharedComputePool.forEachPartition(numClusters, partitions, (part, from, to) -> {
+            int[] seen = new int[n];
+            Arrays.fill(seen, -1);
+            SphericalKdTree.IntList seeds = new SphericalKdTree.IntList();
+            SphericalKdTree.IntList buf = new SphericalKdTree.IntList();
+            for (int c = from; c < to; c++) {
+                expand(c, starts.get(c), points, core, clusterOf, neighbourhoods, seen, seeds, buf, clusters.get(c));
+            }
+        });
+        return clusters;
+    }
+
+    /**
+     * Lists the points of one cluster in the order of the sequential expansion: the start point, then the
+     * seed list, which grows by the not yet listed neighbours of each core point as it is reached.
+     */
+    private static void expand(int c, int start, List<Point> points, boolean[] core, int[] clusterOf,
+                               Neighbourhoods neighbourhoods, int[] seen, SphericalKdTree.IntList seeds,
+                               SphericalKdTree.IntList buf, Cluster<Point> cluster) {
+        cluster.addPoint(points.get(start));
+        seen[start] = c;
+        seeds.clear();
+        neighbourhoods.query(start, buf);
+        for (int k = 0; k < buf.size; k++) {
+            seen[buf.data[k]] = c;
+            seeds.add(buf.data[k]);
+        }
+        for (int s = 0; s < seeds.size; s++) {
+            int current = seeds.data[s];
+            if (core[current]) {
+                neighbourhoods.query(current, buf);
+                for (int k = 0; k < buf.size; k++) {
+                    int j = buf.data[k];
+                    if (seen[j] != c) {
+                        seen[j] = c;
+                        seeds.add(j);
+                    }
+                }
+            }
+            // Border points taken by an earlier cluster stay there.
+            if (clusterOf[current] == c) {
+                cluster.addPoint(points.get(current));
+            }
+        }
+    }
+
+    private static int find(AtomicIntegerArray parent, int x) {
+        while (true) {
+            int p = parent.get(x);
+            if (p == x) {
+                return x;
+            }
+            int gp = parent.get(p);
+            if (gp != p) {
+                parent.compareAndSet(x, p, gp);
+            }
+            x = p;
+        }
+    }
+
+    /** Links the larger root under the smaller one, so every root is the smallest index of its set. */
+    private static void union(AtomicIntegerArray parent, int a, int b) {
+        while (true) {
+            a = find(parent, a);
+            b = find(parent, b);
+            if (a == b) {
+                return;
+            }
+            if (a < b) {
+                int t = a;
+                a = b;
+                b = t;
+            }
+            if (parent.compareAndSet(a, a, b)) {
+                return;
+            }
+        }
+    }
+
+    /** Neighbour queries: tree prefilter, exact haversine test, results in input order. */
+    private static final class Neighbourhoods {
+        private final SphericalKdTree tree;
+        private final double[] lat;
+        private final double[] lon;
+        private final double eps;
+        private final double maxChord2;
+        private final HaversineDistance distance = new HaversineDistance();
+
+        Neighbourhoods(SphericalKdTree tree, double[] lat, double[] lon, double eps, double maxChord2) {
+            this.tree = tree;
+            this.lat = lat;
+            this.lon = lon;
+            this.eps = eps;
+            this.maxChord2 = maxChord2;
+        }
+
+        /** Fills {@code out} with the neighbours of point i, ascending, and returns their number. */
+        int query(int i, SphericalKdTree.IntList out) {
+            out.clear();
+            tree.within(i, maxChord2, out);
+            double[] a = new double[2];
+            double[] b = { lat[i], lon[i] };
+            int kept = 0;
+            for (int k = 0; k < out.size; k++) {
+                int j = out.data[k];
+                a[0] = lat[j];
+                a[1] = lon[j];
+                if (distance.compute(a, b) <= eps) {
+                    out.data[kept++] = j;
+                }
+            }
+            out.size = kept;
+            Arrays.sort(out.data, 0, kept);
+            return kept;
+        }
+    }
+}
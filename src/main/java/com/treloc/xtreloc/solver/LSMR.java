@@ -0,0 +1,291 @@
+package com.treloc.xtreloc.solver;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/**
+ * LSMR: iterative solver for sparse least-squares problems
+ * <pre>
+ *   min || A x - b ||^2 + damp^2 || x ||^2
+ * </pre>
+ * D. C.-L. Fong and M. A. Saunders, LSMR: An iterative algorithm for sparse least-squares problems,
+ * SIAM J. Sci. Comput. 33(5), 2950--2971 (2011). This follows the SciPy implementation
+ * ({@code scipy.sparse.linalg.lsmr}).
+ *
+ * <p>LSMR is mathematically equivalent to MINRES on the normal equations, so {@code ||A' r||} decreases
+ * monotonically; with the same {@code atol}/{@code btol} it usually stops earlier than LSQR on
+ * ill-conditioned systems. It uses the same {@link ScipyLSQR.LinearOperator} as LSQR and returns a
+ * {@link ScipyLSQR.LSQRResult} with the same stop codes. No variance estimate is produced
+ * ({@code var} is {@code null}).
+ *
+ * @author xTreLoc Development Team
+ * @version 1.0
+ */
+public final class LSMR {
+    private static final Logger LOG = Logger.getLogger(LSMR.class.getName());
+
+    private LSMR() {
+    }
+
+    private static void logLine(Consumer<String> logConsumer, String line) {
+        if (logConsumer != null) {
+            logConsumer.accept(line);
+        } else {
+            LOG.fine(line);
+        }
+    }
+
+    /**
+     * Solves the damped least-squares problem with LSMR.
+     *
+     * @param A linear operator (m x n)
+     * @param b right-hand side (length m)
+     * @param damp damping factor
+     * @param atol stopping tolerance on {@code ||A' r|| / (||A|| ||r||)}
+     * @param btol stopping tolerance on {@code ||r|| / ||b||}
+     * @param conlim stop when the condition estimate exceeds this value
+     * @param maxiter iteration limit ({@code null} = min(m, n))
+     * @param show log the iterations
+     * @param x0 initial guess, or {@code null}
+     * @param logConsumer receives log lines when {@code show} is true (FINE logger otherwise)
+     * @return solution; {@code r1norm} = ||b - Ax||, {@code r2norm} = sqrt(||b - Ax||^2 + damp^2 ||x||^2),
+     *         {@code arnorm} = ||A' r||, {@code var} = null
+     */
+    public static ScipyLSQR.LSQRResult lsmr(ScipyLSQR.LinearOperator A, double[] b, double damp, double atol,
+                                           double btol, double conlim, Integer maxiter, boolean show,
+                                           double[] x0, Consumer<String> logConsumer) {
+        int m = A.getRowDimension();
+        int n = A.getColumnDimension();
+        if (b.length != m) {
+            throw new IllegalArgumentException(String.format(
+                "Right-hand side length mismatch: expected %d, got %d", m, b.length));
+        }
+        int iterLim = maxiter != null ? maxiter : Math.min(m, n);
+        if (show) {
+            logLine(logConsumer, " ");
+            logLine(logConsumer, "LSMR            Least-squares solution of  Ax = b");
+            logLine(logConsumer, "The matrix A has " + m + " rows and " + n + " columns");
+            logLine(logConsumer, String.format("damp = %20.14e", damp));
+            logLine(logConsumer, String.format("atol = %8.2e                 conlim = %8.2e", atol, conlim));
+            logLine(logConsumer, String.format("btol = %8.2e                maxiter = %8d", btol, iterLim));
+        }
+
+        double[] u = Arrays.copyOf(b, m);
+        double normb = ScipyLSQR.norm(b);
+        double[] x;
+        double[] Av = new double[m];
+        double[] Atu = new double[n];
+        double beta;
+        if (x0 == null) {
+            x = new double[n];
+            beta = normb;
+        } else {
+            x = Arrays.copyOf(x0, n);
+            A.matvec(x, Av);
+            ScipyLSQR.axpy(-1.0, Av, u);
+            beta = ScipyLSQR.norm(u);
+        }
+
+        double[] v = new double[n];
+        double alpha = 0.0;
+        if (beta > 0) {
+            ScipyLSQR.scal(1.0 / beta, u);
+            A.rmatvec(u, v);
+            alpha = ScipyLSQR.norm(v);
+        }
+        if (alpha > 0) {
+            ScipyLSQR.scal(1.0 / alpha, v);
+        }
+
+        int itn = 0;
+        double zetabar = alpha * beta;
+        double alphabar = alpha;
+        double rho = 1.0;
+        double rhobar = 1.0;
+        double cbar = 1.0;
+        double sbar = 0.0;
+
+        double[] h = Arrays.copyOf(v, n);
+        double[] hbar = new double[n];
+
+        // Estimation of ||r||.
+        double betadd = beta;
+        double betad = 0.0;
+        double rhodold = 1.0;
+        double tautildeold = 0.0;
+        double thetatilde = 0.0;
+        double zeta = 0.0;
+        double d = 0.0;
+
+        // Estimation of ||A|| and cond(A).
+        double normA2 = alpha * alpha;
+        double maxrbar = 0.0;
+        double minrbar = 1e100;
+        double normA = Math.sqrt(normA2);
+        double condA = 1.0;
+        double normx = x0 != null ? ScipyLSQR.norm(x) : 0.0;
+
+        int istop = 0;
+        double ctol = conlim > 0 ? 1.0 / conlim : 0.0;
+        double normr = beta;
+        double normar = alpha * beta;
+        if (normar == 0.0 || normb == 0.0) {
+            if (normb == 0.0) {
+                Arrays.fill(x, 0.0);
+                normx = 0.0;
+            }
+            return result(x, istop, itn, normr, normA, condA, normar, normx, damp);
+        }
+
+        if (show) {
+            logLine(logConsumer, "   itn      x(1)       norm r    norm Ar  compatible   LS      norm A   cond A");
+        }
+
+        while (itn < iterLim) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new RuntimeException("Cancelled");
+            }
+            itn++;
+
+            // Bidiagonalization: beta*u = A v - alpha*u, alpha*v = A' u - beta*v.
+            A.matvec(v, Av);
+            ScipyLSQR.axpby(1.0, Av, -alpha, u);
+            beta = ScipyLSQR.norm(u);
+            if (beta > 0) {
+                ScipyLSQR.scal(1.0 / beta, u);
+                A.rmatvec(u, Atu);
+                ScipyLSQR.axpby(1.0, Atu, -beta, v);
+                alpha = ScipyLSQR.norm(v);
+                if (alpha > 0) {
+                    ScipyLSQR.scal(1.0 / alpha, v);
+                }
+            }
+
+            // Rotation Qhat_{k,2k+1} (damping).
+            double[] r = ScipyLSQR._sym_ortho(alphabar, damp);
+            double chat = r[0];
+            double shat = r[1];
+            double alphahat = r[2];
+
+            // Rotation Q_i: B_i to R_i.
+            double rhoold = rho;
+            r = ScipyLSQR._sym_ortho(alphahat, beta);
+            double c = r[0];
+            double s = r[1];
+            rho = r[2];
+            double thetanew = s * alpha;
+            alphabar = c * alpha;
+
+            // Rotation Qbar_i: R_i^T to Rbar_i.
+            double rhobarold = rhobar;
+            double zetaold = zeta;
+            double thetabar = sbar * rho;
+            double rhotemp = cbar * rho;
+            r = ScipyLSQR._sym_ortho(cbar * rho, thetanew);
+            cbar = r[0];
+            sbar = r[1];
+            rhobar = r[2];
+            zeta = cbar * zetabar;
+            zetabar = -sbar * zetabar;
+
+            // Update hbar, x, h.
+            double hbarScale = -(thetabar * rho / (rhoold * rhobarold));
+            double xStep = zeta / (rho * rhobar);
+            double hScale = -(thetanew / rho);
+            for (int i = 0; i < n; i++) {
+                double hb = hbarScale * hbar[i] + h[i];
+                hbar[i] = hb;
+                x[i] += xStep * hb;
+                h[i] = hScale * h[i] + v[i];
+            }
+
+            // Estimate ||r||.
+            double betaacute = chat * betadd;
+            double betacheck = -shat * betadd;
+            double betahat = c * betaacute;
+            betadd = -s * betaacute;
+
+            double thetatildeold = thetatilde;
+            r = ScipyLSQR._sym_ortho(rhodold, thetabar);
+            double ctildeold = r[0];
+            double stildeold = r[1];
+            double rhotildeold = r[2];
+            thetatilde = stildeold * rhobar;
+            rhodold = ctildeold * rhobar;
+            betad = -stildeold * betad + ctildeold * betahat;
+
+            tautildeold = (zetaold - thetatildeold * tautildeold) / rhotildeold;
+            double taud = (zeta - thetatilde * tautildeold) / rhodold;
+            d = d + betacheck * betacheck;
+            normr = Math.sqrt(d + (betad - taud) * (betad - taud) + betadd * betadd);
+
+            // Estimate ||A|| and cond(A).
+            normA2 = normA2 + beta * beta;
+            normA = Math.sqrt(normA2);
+            normA2 = normA2 + alpha * alpha;
+            maxrbar = Math.max(maxrbar, rhobarold);
+            if (itn > 1) {
+                minrbar = Math.min(minrbar, rhobarold);
+            }
+            condA = Math.max(maxrbar, rhotemp) / Math.min(minrbar, rhotemp);
+
+            // Convergence tests.
+            normar = Math.abs(zetabar);
+            normx = ScipyLSQR.norm(x);
+
+            double test1 = normr / normb;
+            double test2 = (normA * normr) != 0 ? normar / (normA * normr) : Double.POSITIVE_INFINITY;
+            double test3 = 1.0 / condA;
+            double t1 = test1 / (1.0 + normA * normx / normb);
+            double rtol = btol + atol * normA * normx / normb;
+
+            if (itn >= iterLim) {
+                istop = 7;
+            }
+            if (1 + test3 <= 1) {
+                istop = 6;
+            }
+            if (1 + test2 <= 1) {
+                istop = 5;
+            }
+            if (1 + t1 <= 1) {
+                istop = 4;
+            }
+            if (test3 <= ctol) {
+                istop = 3;
+            }
+            if (test2 <= atol) {
+                istop = 2;
+            }
+            if (test1 <= rtol) {
+                istop = 1;
+            }
+
+            if (show && (n <= 40 || itn <= 10 || itn >= iterLim - 10 || itn % 10 == 0
+                    || test3 <= 1.1 * ctol || test2 <= 1.1 * atol || test1 <= 1.1 * rtol || istop != 0)) {
+                logLine(logConsumer, String.format("%6d %12.5e %10.3e %10.3e  %8.1e %8.1e %8.1e %8.1e",
+                    itn, x[0], normr, normar, test1, test2, normA, condA));
+            }
+            if (istop > 0) {
+                break;
+            }
+        }
+
+        if (show) {
+            logLine(logConsumer, " ");
+            logLine(logConsumer, String.format("LSMR finished: istop = %d, itn = %d", istop, itn));
+            logLine(logConsumer, String.format("normA = %12.5e    normAr = %12.5e", normA, normar));
+            logLine(logConsumer, String.format("condA = %12.5e    normx  = %12.5e", condA, normx));
+            logLine(logConsumer, String.format("normr = %12.5e", normr));
+        }
+        return result(x, istop, itn, normr, normA, condA, normar, normx, damp);
+    }
+
+    private static ScipyLSQR.LSQRResult result(double[] x, int istop, int itn, double normr, double normA,
+                                               double condA, double normar, double normx, double damp) {
+        double r1sq = normr * normr - damp * damp * normx * normx;
+        double r1norm = Math.sqrt(Math.max(0.0, r1sq));
+        return new ScipyLSQR.LSQRResult(x, istop, itn, r1norm, normr, normA, condA, normar, normx, null);
+    }
+}
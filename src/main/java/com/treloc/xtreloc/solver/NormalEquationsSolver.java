@@ -0,0 +1,104 @@
+package com.treloc.xtreloc.solver;
+
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.ArrayRealVector;
+import org.apache.commons.math3.linear.CholeskyDecomposition;
+import org.apache.commons.math3.linear.DecompositionSolver;
+import org.apache.commons.math3.linear.NonPositiveDefiniteMatrixException;
+import org.apache.commons.math3.linear.RealMatrix;
+
+/**
+ * Direct solver for small damped least-squares problems via the normal equations
+ * <pre>
+ *   (A' A + damp^2 I) x = A' b
+ * </pre>
+ * factorized with Cholesky.
+ *
+ * <p>For a few hundred unknowns, forming A'A (one pass over the rows) and factorizing it costs less
+ * than hundreds of LSQR iterations, and the variance is exact: {@code var = diag((A'A + damp^2 I)^-1)},
+ * the quantity LSQR's {@code var} approximates. The normal matrix is dense (n x n), so this is only
+ * meant for small n. It is Jacobi-scaled (unit diagonal) before factorization, so the positivity test
+ * of the decomposition is independent of the units of the columns.
+ *
+ * @author xTreLoc Development Team
+ * @version 1.0
+ */
+public final class NormalEquationsSolver {
+
+    private NormalEquationsSolver() {
+    }
+
+    /**
+     * Solves the damped least-squares problem.
+     *
+     * @param A linear operator (m x n)
+     * @param b right-hand side (length m)
+     * @param damp damping factor
+     * @param calcVar whether to compute the variance (inverse of the normal matrix)
+     * @return result in {@link ScipyLSQR.LSQRResult} form: {@code itn = 0}, {@code istop = 2}
+     *         (least-squares solution), residual norms computed from the solution, {@code acond} = NaN
+     * @throws NonPositiveDefiniteMatrixException if the normal matrix is (numerically) singular
+     */
+    public static ScipyLSQR.LSQRResult solve(ScipyLSQR.LinearOperator A, double[] b, double damp, boolean calcVar) {
+        int m = A.getRowDimension();
+        int n = A.getColumnDimension();
+        if (b.length != m) {
+            throw new IllegalArgumentException(String.format(
+                "Right-hand side length mismatch: expected %d, got %d", m, b.length));
+        }
+        double[][] ata = A.normalMatrix();
+        double dampsq = damp * damp;
+        double anormSq = 0.0;
+        double[] s = new double[n];
+        for (int j = 0; j < n; j++) {
+            anormSq += ata[j][j];
+            ata[j][j] += dampsq;
+            s[j] = ata[j][j] > 0.0 ? 1.0 / Math.sqrt(ata[j][j]) : 1.0;
+        }
+        anormSq += n * dampsq;
+        for (int i = 0; i < n; i++) {
+            double[] row = ata[i];
+            for (int j = 0; j < n; j++) {
+                row[j] *= s[i] * s[j];
+            }
+        }
+
+        double[] atb = new double[n];
+        A.rmatvec(b, atb);
+        for (int j = 0; j < n; j++) {
+            atb[j] *= s[j];
+        }
+
+        RealMatrix scaled = new Array2DRowRealMatrix(ata, false);
+        DecompositionSolver cholesky = new CholeskyDecomposition(scaled).getSolver();
+        double[] x = cholesky.solve(new ArrayRealVector(atb, false)).toArray();
+        for (int j = 0; j < n; j++) {
+            x[j] *= s[j];
+        }
+
+        double[] var = null;
+        if (calcVar) {
+            RealMatrix inv = cholesky.getInverse();
+            var = new double[n];
+            for (int j = 0; j < n; j++) {
+                var[j] = inv.getEntry(j, j) * s[j] * s[j];
+            }
+        }
+
+        double[] r = new double[m];
+        A.matvec(x, r);
+        for (int i = 0; i < m; i++) {
+            r[i] = b[i] - r[i];
+        }
+        double r1norm = ScipyLSQR.norm(r);
+        double xnorm = ScipyLSQR.norm(x);
+        double r2norm = Math.sqrt(r1norm * r1norm + dampsq * xnorm * xnorm);
+        double[] atr = new double[n];
+        A.rmatvec(r, atr);
+        for (int j = 0; j < n; j++) {
+            atr[j] -= dampsq * x[j];
+        }
+        return new ScipyLSQR.LSQRResult(x, 2, 0, r1norm, r2norm, Math.sqrt(anormSq), Double.NaN,
+            ScipyLSQR.norm(atr), xnorm, var);
+    }
+}
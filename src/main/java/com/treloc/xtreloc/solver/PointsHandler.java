@@ -1,66 +1,58 @@
 package com.treloc.xtreloc.solver;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
+import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.LinkedHashSet;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
 import java.util.logging.Logger;
 
+import com.treloc.xtreloc.io.TextTokenizer;
+
 public class PointsHandler {
     private static final Logger logger = Logger.getLogger(PointsHandler.class.getName());
     private Point mainPoint;
-    private Map<String, Integer> codeIndexMap;
 
     public PointsHandler() {
         this.mainPoint = null;
-        this.codeIndexMap = new HashMap<>();
     }
 
     public void readDatFile(String datFile, String[] codeStrings, double threshold) throws IOException {
-        codeIndexMap.clear();
-        for (int i = 0; i < codeStrings.length; i++) {
-            codeIndexMap.put(codeStrings[i], i);
-        }
+        TextTokenizer.Dictionary codeIndex = new TextTokenizer.Dictionary(codeStrings);
 
-        try (BufferedReader br = new BufferedReader(new FileReader(datFile))) {
-            String line1 = br.readLine();
-            if (line1 == null) {
+        try (TextTokenizer in = TextTokenizer.open(new File(datFile))) {
+            if (!in.nextLine()) {
                 throw new IOException("Empty file: " + datFile);
             }
-            String[] parts1 = line1.trim().split("\\s+");
-            if (parts1.length < 3) {
+            int n1 = in.splitWhitespace();
+            if (n1 < 3) {
                 throw new IOException(
                     String.format("Invalid format in %s: first line must have at least 3 numeric columns (lat lon dep). Got %d columns: %s",
-                        datFile, parts1.length, line1.trim()));
+                        datFile, n1, in.line()));
             }
-            double lat = Double.parseDouble(parts1[0]);
-            double lon = Double.parseDouble(parts1[1]);
-            double dep = Double.parseDouble(parts1[2]);
-            String type = parts1.length > 3 ? parts1[3] : "";
+            double lat = in.getDouble(0);
+            double lon = in.getDouble(1);
+            double dep = in.getDouble(2);
+            String type = n1 > 3 ? in.getString(3) : "";
 
-            String line2 = br.readLine();
+            boolean hasLine2 = in.nextLine();
             double elat = 0.0;
             double elon = 0.0;
             double edep = 0.0;
             double res = 0.0;
             boolean hasErrorLine = false;
             
-            if (line2 != null && !line2.trim().isEmpty()) {
-                String[] parts2 = line2.trim().split("\\s+");
+            if (hasLine2 && !in.isBlank()) {
+                int n2 = in.splitWhitespace();
                 try {
-                    Double.parseDouble(parts2[0]);
-                    if (parts2.length >= 4) {
-                        elat = Double.parseDouble(parts2[0]);
-                        elon = Double.parseDouble(parts2[1]);
-                        edep = Double.parseDouble(parts2[2]);
-                        res = Double.parseDouble(parts2[3]);
+                    in.getDouble(0);
+                    if (n2 >= 4) {
+                        elat = in.getDouble(0);
+                        elon = in.getDouble(1);
+                        edep = in.getDouble(2);
+                        res = in.getDouble(3);
                         hasErrorLine = true;
                     }
                 } catch (NumberFormatException e) {
@@ -69,40 +61,37 @@ public class PointsHandler {
             }
 
             List<double[]> lagList = new ArrayList<>();
-            Set<Integer> usedIdxSet = new LinkedHashSet<>();
+            boolean[] used = new boolean[codeStrings.length];
+            int[] usedOrder = new int[codeStrings.length];
+            int numUsed = 0;
 
-            String line;
-            if (hasErrorLine) {
-                line = br.readLine();
-            } else {
-                line = line2;
-            }
-            
-            while (line != null) {
-                if (line.trim().isEmpty()) continue;
-                String[] parts = line.trim().split("\\s+");
-                if (parts.length < 3) continue;
+            // Without an error line, the second line is the first lag line.
+            boolean hasLine = hasErrorLine ? in.nextLine() : hasLine2;
+            for (; hasLine; hasLine = in.nextLine()) {
+                if (in.splitWhitespace() < 3) continue; // blank or short line
 
-                String code1 = parts[0];
-                String code2 = parts[1];
-                double lagTime = Double.parseDouble(parts[2]);
-                double weight = parts.length > 3 ? Double.parseDouble(parts[3]) : 1.0;
+                double lagTime = in.getDouble(2);
+                double weight = in.fieldCount() > 3 ? in.getDouble(3) : 1.0;
 
-                Integer idx1 = codeIndexMap.get(code1);
-                Integer idx2 = codeIndexMap.get(code2);
+                int idx1 = in.lookup(0, codeIndex);
+                int idx2 = in.lookup(1, codeIndex);
 
-                if (idx1 != null && idx2 != null) {
+                if (idx1 >= 0 && idx2 >= 0) {
                     if (threshold <= 0.0 || weight >= threshold) {
                         lagList.add(new double[]{idx1, idx2, lagTime, weight});
-                        usedIdxSet.add(idx1);
-                        usedIdxSet.add(idx2);
+                        if (!used[idx1]) {
+                            used[idx1] = true;
+                            usedOrder[numUsed++] = idx1;
+                        }
+                        if (!used[idx2]) {
+                            used[idx2] = true;
+                            usedOrder[numUsed++] = idx2;
+                        }
                     }
                 }
-                
-                line = br.readLine();
             }
             double[][] lagTable = lagList.toArray(new double[lagList.size()][]);
-            int[] usedIdx = usedIdxSet.stream().mapToInt(i -> i).toArray();
+            int[] usedIdx = Arrays.copyOf(usedOrder, numUsed);
 
             mainPoint = new Point("", lat, lon, dep, elat, elon, edep, res, datFile, type, -1);
             mainPoint.setLagTable(lagTable);
@@ -0,0 +1,221 @@
+package com.treloc.xtreloc.solver;
+
+import java.util.Arrays;
+
+/**
+ * Selection-based robust statistics on primitive arrays: median, MAD and Tukey biweight weights in O(n)
+ * expected time, and partial selection of the k smallest keys.
+ *
+ * <p>Selection is a median-of-three quickselect that falls back to sorting the remaining range when
+ * partitioning degenerates, so the worst case is O(n log n). NaN values are treated as larger than every
+ * number (the order of {@link Double#compare}), which matches sorting a {@code List<Double>}.
+ *
+ * @author xTreLoc Development Team
+ * @version 1.0
+ */
+public final class RobustStatistics {
+
+    /** Ranges up to this length are finished with insertion sort. */
+    private static final int INSERTION_SORT_THRESHOLD = 16;
+
+    private RobustStatistics() {
+    }
+
+    /**
+     * Median of the values; the input is not modified.
+     *
+     * @param values the values
+     * @return the median (mean of the two middle values for even length), or 0.0 if empty
+     */
+    public static double median(double[] values) {
+        return medianInPlace(Arrays.copyOf(values, values.length), values.length);
+    }
+
+    /**
+     * Median of {@code a[0..n)}, reordering that range.
+     *
+     * @param a values (reordered)
+     * @param n number of values
+     * @return the median (mean of the two middle values for even n), or 0.0 if n == 0
+     */
+    public static double medianInPlace(double[] a, int n) {
+        if (n == 0) {
+            return 0.0;
+        }
+        // Move NaNs to the end: they rank above every number.
+        int numbers = 0;
+        for (int i = 0; i < n; i++) {
+            if (!Double.isNaN(a[i])) {
+                double t = a[numbers];
+                a[numbers++] = a[i];
+                a[i] = t;
+            }
+        }
+        int hi = n / 2;
+        if (hi >= numbers) {
+            return Double.NaN;
+        }
+        double upper = select(a, numbers, hi);
+        if (n % 2 != 0) {
+            return upper;
+        }
+        // After selection a[0..hi) holds the hi smallest values; the largest of them is the lower middle.
+        double lower = a[0];
+        for (int i = 1; i < hi; i++) {
+            if (a[i] > lower) {
+                lower = a[i];
+            }
+        }
+        return (lower + upper) / 2.0;
+    }
+
+    /**
+     * Median absolute deviation {@code median(|x - center|)}.
+     *
+     * @param values the values (not modified)
+     * @param center the center, usually the median
+     * @param scratch work array of at least {@code values.length}, or null to allocate one
+     * @return the MAD, or 0.0 if empty
+     */
+    public static double mad(double[] values, double center, double[] scratch) {
+        int n = values.length;
+        double[] dev = scratch != null && scratch.length >= n ? scratch : new double[n];
+        for (int i = 0; i < n; i++) {
+            dev[i] = Math.abs(values[i] - center);
+        }
+        return medianInPlace(dev, n);
+    }
+
+    /**
+     * Tukey biweight weights {@code w = (1 - u^2)^2} for {@code |u| <= 1} and 0 otherwise, with
+     * {@code u = r / (c * MAD)} and the MAD taken around the median of the residuals.
+     *
+     * @param residuals residuals
+     * @param c tuning constant (4.685 for 95% efficiency)
+     * @return weights in [0, 1], one per residual (0 for a NaN residual)
+     */
+    public static double[] tukeyBiweight(double[] residuals, double c) {
+        int n = residuals.length;
+        double[] weights = new double[n];
+        if (n == 0) {
+            return weights;
+        }
+        // The weight array doubles as the scratch space for both selections.
+        System.arraycopy(residuals, 0, weights, 0, n);
+        double median = medianInPlace(weights, n);
+        double mad = mad(residuals, median, weights);
+        // Divide rather than multiply by 1/scale: with a zero MAD the reciprocal overflows and 0 * Inf is NaN.
+        double scale = c * mad + Double.MIN_VALUE;
+        for (int i = 0; i < n; i++) {
+            double u = residuals[i] / scale;
+            double t = 1.0 - u * u;
+            weights[i] = t > 0.0 ? t * t : 0.0;
+        }
+        return weights;
+    }
+
+    /**
+     * Rearranges {@code a[0..n)} so that {@code a[k]} is the value of rank k, smaller-or-equal values are
+     * before it and greater-or-equal values after it. The range must not contain NaN.
+     *
+     * @return {@code a[k]}
+     */
+    static double select(double[] a, int n, int k) {
+        int lo = 0;
+        int hi = n - 1;
+        int budget = 2 * (32 - Integer.numberOfLeadingZeros(n)) + 8;
+        while (hi - lo > INSERTION_SORT_THRESHOLD) {
+            if (--budget < 0) {
+                Arrays.sort(a, lo, hi + 1);
+                return a[k];
+            }
+            int mid = (lo + hi) >>> 1;
+            if (a[mid] < a[lo]) swap(a, lo, mid);
+            if (a[hi] < a[lo]) swap(a, lo, hi);
+            if (a[hi] < a[mid]) swap(a, mid, hi);
+            double pivot = a[mid];
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (a[i] < pivot) i++;
+                while (a[j] > pivot) j--;
+                if (i <= j) {
+                    swap(a, i++, j--);
+                }
+            }
+            if (k <= j) {
+                hi = j;
+            } else if (k >= i) {
+                lo = i;
+            } else {
+                return a[k];
+            }
+        }
+        for (int i = lo + 1; i <= hi; i++) {
+            double v = a[i];
+            int j = i - 1;
+            while (j >= lo && a[j] > v) {
+                a[j + 1] = a[j];
+                j--;
+            }
+            a[j + 1] = v;
+        }
+        return a[k];
+    }
+
+    /**
+     * Rearranges {@code a} so that {@code a[0..k)} holds its k smallest values (in no particular order).
+     *
+     * @param a keys (reordered)
+     * @param k number of smallest keys to move to the front (0 &lt;= k &lt;= a.length)
+     */
+    public static void selectSmallest(long[] a, int k) {
+        if (k <= 0 || k >= a.length) {
+            return;
+        }
+        int lo = 0;
+        int hi = a.length - 1;
+        int budget = 2 * (32 - Integer.numberOfLeadingZeros(a.length)) + 8;
+        while (hi - lo > INSERTION_SORT_THRESHOLD) {
+            if (--budget < 0) {
+                Arrays.sort(a, lo, hi + 1);
+                return;
+            }
+            int mid = (lo + hi) >>> 1;
+            if (a[mid] < a[lo]) swap(a, lo, mid);
+            if (a[hi] < a[lo]) swap(a, lo, hi);
+            if (a[hi] < a[mid]) swap(a, mid, hi);
+            long pivot = a[mid];
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (a[i] < pivot) i++;
+                while (a[j] > pivot) j--;
+                if (i <= j) {
+                    swap(a, i++, j--);
+                }
+            }
+            // a[lo..j] <= pivot <= a[i..hi]; the boundary k falls in at most one side.
+            if (k <= j) {
+                hi = j;
+            } else if (k > i) {
+                lo = i;
+            } else {
+                return;
+            }
+        }
+        Arrays.sort(a, lo, hi + 1);
+    }
+
+    private static void swap(double[] a, int i, int j) {
+        double t = a[i];
+        a[i] = a[j];
+        a[j] = t;
+    }
+
+    private static void swap(long[] a, int i, int j) {
+        long t = a[i];
+        a[i] = a[j];
+        a[j] = t;
+    }
+}
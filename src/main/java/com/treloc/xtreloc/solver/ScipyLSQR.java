@@ -82,46 +82,163 @@ public class ScipyLSQR {
 		}
 	}
 
-	public static class SparseLinearOperator {
-		private final OpenMapRealMatrix matrix;
-		private final COOSparseMatrix cooMatrix;
+	/**
+	 * Linear operator used by LSQR. Products write into caller-supplied arrays so the
+	 * iteration loop does not allocate.
+	 */
+	public interface LinearOperator {
+		int getRowDimension();
+
+		int getColumnDimension();
+
+		/**
+		 * Computes y = A x (y is overwritten).
+		 */
+		void matvec(double[] x, double[] y);
+
+		/**
+		 * Computes x = A' y (x is overwritten).
+		 */
+		void rmatvec(double[] y, double[] x);
+
+		/**
+		 * Euclidean norm of each column of A (used for column scaling).
+		 * The default probes A with unit vectors (one product per column); operators that know
+		 * their entries should override it with a single pass.
+		 */
+		default double[] columnNorms() {
+			int n = getColumnDimension();
+			double[] e = new double[n];
+			double[] col = new double[getRowDimension()];
+			double[] norms = new double[n];
+			for (int j = 0; j < n; j++) {
+				e[j] = 1.0;
+				matvec(e, col);
+				e[j] = 0.0;
+				norms[j] = norm(col);
+			}
+			return norms;
+		}
+
+		/**
+		 * Dense normal matrix A'A (n x n), used by the direct solver for small n.
+		 * The default builds it column by column (one product each way per column); operators
+		 * that know their entries should override it with a single pass over the rows.
+		 */
+		default double[][] normalMatrix() {
+			int n = getColumnDimension();
+			double[] e = new double[n];
+			double[] col = new double[getRowDimension()];
+			double[][] ata = new double[n][n];
+			for (int j = 0; j < n; j++) {
+				e[j] = 1.0;
+				matvec(e, col);
+				e[j] = 0.0;
+				rmatvec(col, ata[j]);
+			}
+			return ata;
+		}
+	}
+
+	/**
+	 * Operator backed by a sparse matrix. The matrix is converted once to CSR, so both
+	 * products are single passes over primitive arrays, row-partitioned over
+	 * {@code parallelism} threads for large matrices.
+	 */
+	public static class SparseLinearOperator implements LinearOperator {
+		private final CSRSparseMatrix csr;
+		private double[] weights;
+		private double[] weightedY;
 
 		public SparseLinearOperator(OpenMapRealMatrix matrix) {
-			this.matrix = matrix;
-			this.cooMatrix = null;
+			this(matrix, 1);
 		}
-		
+
 		public SparseLinearOperator(COOSparseMatrix cooMatrix) {
-			this.matrix = null;
-			this.cooMatrix = cooMatrix;
+			this(cooMatrix, 1);
+		}
+
+		public SparseLinearOperator(OpenMapRealMatrix matrix, int parallelism) {
+			this.csr = CSRSparseMatrix.fromOpenMap(matrix, parallelism);
+		}
+
+		public SparseLinearOperator(COOSparseMatrix cooMatrix, int parallelism) {
+			this.csr = CSRSparseMatrix.fromCOO(cooMatrix, parallelism);
+		}
+
+		public SparseLinearOperator(CSRSparseMatrix csr) {
+			this.csr = csr;
 		}
 
+		@Override
 		public int getRowDimension() {
-			if (cooMatrix != null) {
-				return cooMatrix.getRowDimension();
-			}
-			return matrix.getRowDimension();
+			return csr.getRowDimension();
 		}
 
+		@Override
 		public int getColumnDimension() {
-			if (cooMatrix != null) {
-				return cooMatrix.getColumnDimension();
+			return csr.getColumnDimension();
+		}
+
+		/**
+		 * Sets row weights: the operator becomes W A with W = diag(weights), without copying A.
+		 * Not thread-safe: {@link #rmatvec(double[], double[])} uses a scratch vector.
+		 *
+		 * @param weights one weight per row, or {@code null} for unit weights
+		 */
+		public void setWeights(double[] weights) {
+			if (weights != null && weights.length != getRowDimension()) {
+				throw new IllegalArgumentException(String.format(
+					"Weight vector length mismatch: expected %d, got %d", getRowDimension(), weights.length));
 			}
-			return matrix.getColumnDimension();
+			this.weights = weights;
 		}
 
-		public double[] matvec(double[] x) {
-			if (cooMatrix != null) {
-				return cooMatrix.operate(x);
+		@Override
+		public void matvec(double[] x, double[] y) {
+			csr.operate(x, y);
+			if (weights != null) {
+				for (int i = 0; i < y.length; i++) {
+					y[i] *= weights[i];
+				}
 			}
-			return matrix.operate(x);
 		}
 
-		public double[] rmatvec(double[] x) {
-			if (cooMatrix != null) {
-				return cooMatrix.transposeOperate(x);
+		@Override
+		public void rmatvec(double[] y, double[] x) {
+			if (weights == null) {
+				csr.transposeOperate(y, x);
+				return;
 			}
-			return matrix.transpose().operate(x);
+			if (weightedY == null) {
+				weightedY = new double[y.length];
+			}
+			for (int i = 0; i < y.length; i++) {
+				weightedY[i] = weights[i] * y[i];
+			}
+			csr.transposeOperate(weightedY, x);
+		}
+
+		@Override
+		public double[] columnNorms() {
+			return csr.columnNorms(weights);
+		}
+
+		@Override
+		public double[][] normalMatrix() {
+			return csr.normalMatrix(weights);
+		}
+
+		public double[] matvec(double[] x) {
+			double[] y = new double[getRowDimension()];
+			matvec(x, y);
+			return y;
+		}
+
+		public double[] rmatvec(double[] y) {
+			double[] x = new double[getColumnDimension()];
+			rmatvec(y, x);
+			return x;
 		}
 	}
 
@@ -251,6 +368,45 @@ public class ScipyLSQR {
 		return c;
 	}
 
+	/**
+	 * In-place scaling: x = a * x.
+	 * 
+	 * @param a the scalar
+	 * @param x the vector to scale (overwritten)
+	 */
+	public static void scal(double a, double[] x) {
+		for (int i = 0; i < x.length; i++) {
+			x[i] *= a;
+		}
+	}
+
+	/**
+	 * In-place update: y = a * x + y.
+	 * 
+	 * @param a the scalar
+	 * @param x the input vector
+	 * @param y the vector to update (overwritten)
+	 */
+	public static void axpy(double a, double[] x, double[] y) {
+		for (int i = 0; i < y.length; i++) {
+			y[i] += a * x[i];
+		}
+	}
+
+	/**
+	 * In-place update: y = a * x + b * y.
+	 * 
+	 * @param a the scalar applied to x
+	 * @param x the input vector
+	 * @param b the scalar applied to y
+	 * @param y the vector to update (overwritten)
+	 */
+	public static void axpby(double a, double[] x, double b, double[] y) {
+		for (int i = 0; i < y.length; i++) {
+			y[i] = a * x[i] + b * y[i];
+		}
+	}
+
 	/**
 	 * Finds the least-squares solution to a large, sparse, linear system of
 	 * equations.
@@ -336,10 +492,20 @@ public class ScipyLSQR {
 		return lsqrInternal(Aop, b, damp, atol, btol, conlim, iter_lim, show, calc_var, x0, logConsumer);
 	}
 	
+	/**
+	 * LSQR method overload for an arbitrary {@link LinearOperator} (e.g. a parallel
+	 * {@link SparseLinearOperator} or a matrix-free operator).
+	 */
+	public static LSQRResult lsqr(LinearOperator A, double[] b, double damp, double atol, double btol,
+			double conlim, Integer iter_lim, boolean show, boolean calc_var, double[] x0, java.util.function.Consumer<String> logConsumer) {
+		return lsqrInternal(A, b, damp, atol, btol, conlim, iter_lim, show, calc_var, x0, logConsumer);
+	}
+
 	/**
 	 * Internal implementation of LSQR algorithm (common processing).
+	 * All work vectors are allocated once; the iteration loop only uses in-place kernels.
 	 */
-	private static LSQRResult lsqrInternal(SparseLinearOperator Aop, double[] b, double damp, double atol, double btol,
+	private static LSQRResult lsqrInternal(LinearOperator Aop, double[] b, double damp, double atol, double btol,
 			double conlim, Integer iter_lim, boolean show, boolean calc_var, double[] x0, java.util.function.Consumer<String> logConsumer) {
 		int m = Aop.getRowDimension();
 		int n = Aop.getColumnDimension();
@@ -393,6 +559,10 @@ public class ScipyLSQR {
 		double[] u = Arrays.copyOf(b, b.length);
 		double bnorm = norm(b);
 
+		// Scratch vectors for the products (reused every iteration).
+		double[] Av = new double[m];
+		double[] Atu = new double[n];
+
 		double[] x;
 		double beta;
 		if (x0 == null) {
@@ -400,24 +570,24 @@ public class ScipyLSQR {
 			beta = bnorm;
 		} else {
 			x = Arrays.copyOf(x0, x0.length);
-			double[] Ax = Aop.matvec(x);
-			u = subtract(u, Ax);
+			Aop.matvec(x, Av);
+			axpy(-1.0, Av, u);
 			beta = norm(u);
 		}
 
 		double alfa = 0;
-		double[] v;
+		double[] v = new double[n];
 		if (beta > 0) {
-			u = scale(u, 1.0 / beta);
-			v = Aop.rmatvec(u);
+			scal(1.0 / beta, u);
+			Aop.rmatvec(u, v);
 			alfa = norm(v);
 		} else {
-			v = Arrays.copyOf(x, x.length);
+			System.arraycopy(x, 0, v, 0, n);
 			alfa = 0;
 		}
 
 		if (alfa > 0) {
-			v = scale(v, 1.0 / alfa);
+			scal(1.0 / alfa, v);
 		}
 		double[] w = Arrays.copyOf(v, v.length);
 
@@ -464,20 +634,18 @@ public class ScipyLSQR {
 			// next beta, u, alfa, v. These satisfy the relations
 			// beta*u = A@v - alfa*u,
 			// alfa*v = A'@u - beta*v.
-			double[] Av = Aop.matvec(v);
-			double[] scaledU = scale(u, alfa);
-			u = subtract(Av, scaledU);
+			Aop.matvec(v, Av);
+			axpby(1.0, Av, -alfa, u);
 			beta = norm(u);
 
 			if (beta > 0) {
-				u = scale(u, 1.0 / beta);
+				scal(1.0 / beta, u);
 				anorm = Math.sqrt(anorm * anorm + alfa * alfa + beta * beta + dampsq);
-				double[] Atu = Aop.rmatvec(u);
-				double[] scaledV = scale(v, beta);
-				v = subtract(Atu, scaledV);
+				Aop.rmatvec(u, Atu);
+				axpby(1.0, Atu, -beta, v);
 				alfa = norm(v);
 				if (alfa > 0) {
-					v = scale(v, 1.0 / alfa);
+					scal(1.0 / alfa, v);
 				}
 			}
 
@@ -514,17 +682,20 @@ public class ScipyLSQR {
 
 			double t1 = phi / rho;
 			double t2 = -theta / rho;
-			double[] dk = scale(w, 1.0 / rho);
-
-			x = add(x, scale(w, t1));
-			w = add(v, scale(w, t2));
-			ddnorm = ddnorm + norm(dk) * norm(dk);
-
-			if (calc_var) {
-				for (int i = 0; i < var.length; i++) {
-					var[i] = var[i] + dk[i] * dk[i];
+			// dk = w / rho; x = x + t1 * w; w = v + t2 * w (fused, in place).
+			double rhoInv = 1.0 / rho;
+			double dkNormSq = 0.0;
+			for (int i = 0; i < n; i++) {
+				double wi = w[i];
+				double dki = wi * rhoInv;
+				dkNormSq += dki * dki;
+				if (calc_var) {
+					var[i] += dki * dki;
 				}
+				x[i] += t1 * wi;
+				w[i] = v[i] + t2 * wi;
 			}
+			ddnorm = ddnorm + dkNormSq;
 
 			// Use a plane rotation on the right to eliminate the
 			// super-diagonal element (theta) of the upper-bidiagonal matrix.
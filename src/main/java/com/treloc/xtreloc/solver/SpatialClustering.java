@@ -2,10 +2,16 @@ package com.treloc.xtreloc.solver;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
@@ -13,7 +19,6 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.apache.commons.math3.ml.clustering.Cluster;
-import org.apache.commons.math3.ml.clustering.DBSCANClusterer;
 import org.apache.commons.math3.stat.descriptive.rank.Median;
 
 import net.sf.geographiclib.Geodesic;
@@ -22,10 +27,11 @@ import net.sf.geographiclib.GeodesicData;
 import com.treloc.xtreloc.app.gui.service.CatalogLoader;
 import com.treloc.xtreloc.app.gui.model.Hypocenter;
 import com.treloc.xtreloc.io.TripleDifferenceIO;
-import com.treloc.xtreloc.io.TripleDifferenceIO.TripleDifference;
+import com.treloc.xtreloc.io.TripleDifferenceTable;
 import com.treloc.xtreloc.io.AppConfig;
 import com.treloc.xtreloc.util.BatchExecutorFactory;
 import com.treloc.xtreloc.util.CatalogFileNameGenerator;
+import com.treloc.xtreloc.util.SharedComputePool;
 import com.treloc.xtreloc.util.SolverLogger;
 import com.treloc.xtreloc.util.TimeFormatConverter;
 
@@ -42,9 +48,20 @@ import com.treloc.xtreloc.io.VelocityModelLoadException;
  */
 public class SpatialClustering extends SolverBase {
     private static final Logger logger = Logger.getLogger(SpatialClustering.class.getName());
+    /** Catalog size from which k-distances and DBSCAN neighbourhoods are computed in parallel. */
+    private static final int PARALLEL_MIN_POINTS = 2048;
+    /** Number of event pairs in a cluster from which triple differences are computed in parallel. */
+    private static final long TRIPLE_DIFF_PARALLEL_MIN_PAIRS = 20000;
+    /** Rows per chunk when triple differences are streamed to file (about 36 MB of columns). */
+    private static final int TRIPLE_DIFF_CHUNK_ROWS = 1 << 20;
+    /** Catalog events per task when .dat files are parsed in parallel (also the progress step). */
+    private static final int DAT_LOAD_CHUNK = 256;
+    /** Rows from which residuals are attached in parallel. */
+    private static final int RESIDUAL_PARALLEL_MIN_ROWS = 1 << 16;
     
     private Point refPoint;
     private int minPts;
+    private volatile LoadProgressListener loadProgressListener;
     private double eps;
     private Double epsPercentile; // Data inclusion rate when eps < 0 (0-1, null means use elbow method)
     private String catalogFile;
@@ -56,6 +73,10 @@ public class SpatialClustering extends SolverBase {
     private int numJobs; // Parallel jobs for cluster triple-difference calculation (1 = sequential)
     private boolean doClustering; // If true, run DBSCAN; if false, use existing cluster IDs in catalog
     private boolean calcTripleDiff; // If true, compute triple differences; if false, clustering only
+    private double maxPairDistKm; // Maximum inter-event distance of joined event pairs (infinite = all pairs)
+    private boolean incremental; // If true, append new events to the clusters of an earlier run
+    // Incremental run: index of the first new event of each cluster that received new events (0 = new cluster)
+    private Map<Integer, Integer> incrementalFirstNew;
     
     /**
      * Constructs a SpatialClustering object with the specified configuration.
@@ -123,6 +144,9 @@ public class SpatialClustering extends SolverBase {
             this.useBinaryFormat = clsConfig.useBinaryFormat != null ? clsConfig.useBinaryFormat : true;
             this.doClustering = clsConfig.doClustering != null ? clsConfig.doClustering : true;
             this.calcTripleDiff = clsConfig.calcTripleDiff != null ? clsConfig.calcTripleDiff : true;
+            this.maxPairDistKm = clsConfig.maxPairDistKm != null && clsConfig.maxPairDistKm > 0
+                ? clsConfig.maxPairDistKm : Double.POSITIVE_INFINITY; // null or <= 0 means all pairs
+            this.incremental = clsConfig.incremental != null ? clsConfig.incremental : false;
             this.numJobs = appConfig.numJobs > 0 ? appConfig.numJobs : 1;
             logger.info("SpatialClustering initialized: outputDir=" + this.outputDir + 
                        ", targetDir=" + (this.targetDir != null ? this.targetDir : "null") +
@@ -132,6 +156,8 @@ public class SpatialClustering extends SolverBase {
                        ", rmsThreshold=" + (this.rmsThreshold != null ? this.rmsThreshold : "null (no filtering)") +
                        ", locErrThreshold=" + (this.locErrThreshold != null ? this.locErrThreshold : "null (no filtering)") +
                        ", doClustering=" + this.doClustering + ", calcTripleDiff=" + this.calcTripleDiff +
+                       ", maxPairDistKm=" + (this.maxPairDistKm < Double.POSITIVE_INFINITY ? this.maxPairDistKm : "null (all pairs)") +
+                       ", incremental=" + this.incremental +
                        ", useBinaryFormat=" + this.useBinaryFormat +
                        ", numJobs=" + this.numJobs);
         } else {
@@ -257,6 +283,8 @@ public class SpatialClustering extends SolverBase {
                 SolverLogger.info("CLS: doClustering=false. Dat files written=" + datFilesWritten + ", skipped=" + datFilesSkipped +
                     ". Catalog saved to: " + outputCatalogFile.getAbsolutePath());
                 clusteredCatalogFile = outputCatalogFile.getAbsolutePath();
+            } else if (incremental && hasExistingClusterIds) {
+                clusteredCatalogFile = assignIncremental(allPoints);
             } else if (hasExistingClusterIds) {
                 // Cluster IDs are already set - skip clustering and use existing IDs
                 int pointsWithCid = (int) allPoints.stream().filter(p -> p.getCid() >= 0).count();
@@ -457,38 +485,25 @@ public class SpatialClustering extends SolverBase {
                 return;
             }
 
-            // Process each cluster: load -> compute triple diff -> save to binary immediately (no accumulation in memory)
+            // Load the clustered catalog once (the lag tables as written to the output .dat files), then process
+            // each cluster: compute triple diff -> save to binary immediately (no accumulation in memory)
+            TreeMap<Integer, List<Point>> clusterIndex = loadClusterIndex(clusteredCatalogFile);
+            List<Integer> clusterIds = new ArrayList<>();
+            int nextClusterId = 1;
+            while (clusterIndex.containsKey(nextClusterId)) {
+                clusterIds.add(nextClusterId++);
+            }
+            logger.info("No more clusters found. Stopping at clusterId=" + nextClusterId);
+            SolverLogger.info("CLS: Found " + clusterIds.size() + " cluster(s) to process for triple differences.");
             int totalTripleDiffs = 0;
             if (numJobs <= 1) {
                 logger.info("Starting triple difference calculation (sequential)...");
                 SolverLogger.info("CLS: Starting triple difference calculation (sequential).");
-                int clusterId = 1;
-                while (true) {
+                for (int clusterId : clusterIds) {
                     if (Thread.currentThread().isInterrupted()) throw new RuntimeException("Cancelled");
-                    List<Point> clusterPoints = loadPointsFromCatalogByCluster(clusteredCatalogFile, clusterId);
-                    if (clusterPoints.isEmpty()) {
-                        logger.info("No more clusters found. Stopping at clusterId=" + clusterId);
-                        SolverLogger.info("CLS: Found " + (clusterId - 1) + " cluster(s) to process for triple differences.");
-                        break;
-                    }
-                    totalTripleDiffs += processOneCluster(clusterId, clusterPoints);
-                    clusterId++;
+                    totalTripleDiffs += processCluster(clusterId, clusterIndex.remove(clusterId));
                 }
             } else {
-                // Parallel: discover cluster IDs first (lightweight), then each worker loads its cluster and processes
-                List<Integer> clusterIds = new ArrayList<>();
-                int clusterId = 1;
-                while (true) {
-                    if (Thread.currentThread().isInterrupted()) throw new RuntimeException("Cancelled");
-                    List<Point> clusterPoints = loadPointsFromCatalogByCluster(clusteredCatalogFile, clusterId);
-                    if (clusterPoints.isEmpty()) {
-                        logger.info("No more clusters found. Stopping at clusterId=" + clusterId);
-                        SolverLogger.info("CLS: Found " + (clusterId - 1) + " cluster(s) to process for triple differences.");
-                        break;
-                    }
-                    clusterIds.add(clusterId);
-                    clusterId++;
-                }
                 logger.info("Starting triple difference calculation for " + clusterIds.size() + " clusters (numJobs=" + numJobs + ")...");
                 SolverLogger.info("CLS: Starting triple difference calculation for " + clusterIds.size() + " cluster(s), numJobs=" + numJobs + ".");
                 ExecutorService executor = BatchExecutorFactory.newFixedThreadPoolBounded(
@@ -496,11 +511,10 @@ public class SpatialClustering extends SolverBase {
                 try {
                     List<java.util.concurrent.Future<Integer>> futures = new ArrayList<>();
                     for (final int cid : clusterIds) {
+                        final List<Point> clusterPoints = clusterIndex.remove(cid);
                         futures.add(executor.submit(() -> {
                             if (Thread.currentThread().isInterrupted()) return 0;
-                            List<Point> clusterPoints = loadPointsFromCatalogByCluster(clusteredCatalogFile, cid);
-                            if (clusterPoints.isEmpty()) return 0;
-                            return processOneCluster(cid, clusterPoints);
+                            return processCluster(cid, clusterPoints);
                         }));
                     }
                     for (java.util.concurrent.Future<Integer> f : futures) {
@@ -550,8 +564,206 @@ public class SpatialClustering extends SolverBase {
         }
     }
     
+    /**
+     * Assigns the new events of an incremental run and writes the clustered catalog.
+     *
+     * <p>Events with a cluster ID (the catalog of an earlier CLS run) keep it; events without one are new.
+     * A new event within eps of a clustered event joins the cluster of the nearest one, as a border point
+     * would. The remaining new events and the earlier noise events are clustered with DBSCAN on their own,
+     * and the clusters found get new IDs after the largest existing one; the rest is noise (CID=0). Clusters
+     * are not merged or split, so a full run should still be made from time to time.
+     *
+     * <p>The catalog lists the earlier events first, in their input order, then the new ones, so within an
+     * existing cluster the earlier events keep their indices in its triple-difference file and the new
+     * events follow them. .dat files that already exist in the output directory are not written again.
+     *
+     * @param allPoints the events of the input catalog
+     * @return path of the clustered catalog
+     * @throws IOException if the catalog cannot be written
+     */
+    private String assignIncremental(List<Point> allPoints) throws IOException {
+        List<Point> earlier = new ArrayList<>();
+        List<Point> added = new ArrayList<>();
+        for (Point p : allPoints) {
+            (p.getCid() >= 0 ? earlier : added).add(p);
+        }
+        double currentEps = resolveEps(allPoints);
+        int maxCid = 0;
+        Map<Integer, Integer> earlierCount = new TreeMap<>();
+        List<Point> clustered = new ArrayList<>();
+        List<Point> pool = new ArrayList<>();
+        for (Point p : earlier) {
+            maxCid = Math.max(maxCid, p.getCid());
+            if (p.getCid() > 0) {
+                earlierCount.merge(p.getCid(), 1, Integer::sum);
+                clustered.add(p);
+            } else {
+                pool.add(p);
+            }
+        }
+
+        // New events near a clustered event join its cluster. The tree holds the clustered events followed
+        // by the new ones, so each new event queries its own position.
+        List<Point> indexed = new ArrayList<>(clustered);
+        indexed.addAll(added);
+        SphericalKdTree tree = locationIndex(indexed);
+        double maxChord2 = SphericalKdTree.kmToChord2(currentEps) * (1.0 + 1e-9) + 1e-15;
+        HaversineDistance distance = new HaversineDistance();
+        SphericalKdTree.IntList buf = new SphericalKdTree.IntList();
+        int joined = 0;
+        for (int a = 0; a < added.size(); a++) {
+            Point p = added.get(a);
+            buf.clear();
+            tree.within(clustered.size() + a, maxChord2, buf);
+            int nearest = -1;
+            double nearestKm = Double.POSITIVE_INFINITY;
+            for (int k = 0; k < buf.size; k++) {
+                int j = buf.data[k];
+                if (j >= clustered.size()) continue;
+                Point q = clustered.get(j);
+                double km = distance.compute(new double[] { p.getLat(), p.getLon() }, new double[] { q.getLat(), q.getLon() });
+                if (km <= currentEps && (km < nearestKm || (km == nearestKm && j < nearest))) {
+                    nearest = j;
+                    nearestKm = km;
+                }
+            }
+            if (nearest >= 0) {
+                p.setCid(clustered.get(nearest).getCid());
+                joined++;
+            } else {
+                pool.add(p);
+            }
+        }
+
+        int partitions = pool.size() >= PARALLEL_MIN_POINTS ? 4 * SharedComputePool.parallelism() : 1;
+        List<Cluster<Point>> clusters = new IndexedDbscan(currentEps, this.minPts).cluster(pool, partitions);
+        Set<Point> inNewCluster = new HashSet<>();
+        int nextCid = maxCid + 1;
+        for (Cluster<Point> cluster : clusters) {
+            for (Point p : cluster.getPoints()) {
+                p.setCid(nextCid);
+                inNewCluster.add(p);
+            }
+            nextCid++;
+        }
+        int noise = 0;
+        for (Point p : added) {
+            if (p.getCid() < 0) {
+                p.setCid(0);
+                noise++;
+            }
+        }
+
+        // Clusters to update: existing ones that received events (appended after the earlier members)
+        // and new ones (all pairs).
+        incrementalFirstNew = new TreeMap<>();
+        for (Point p : added) {
+            if (p.getCid() > 0) {
+                incrementalFirstNew.put(p.getCid(), p.getCid() <= maxCid ? earlierCount.getOrDefault(p.getCid(), 0) : 0);
+            }
+        }
+        for (Point p : inNewCluster) {
+            incrementalFirstNew.put(p.getCid(), 0);
+        }
+        logger.info("Incremental clustering (eps=" + currentEps + " km): " + added.size() + " new events, " + joined
+            + " joined existing clusters, " + clusters.size() + " new clusters"
+            + (clusters.isEmpty() ? "" : " (CID " + (maxCid + 1) + "-" + (nextCid - 1) + ")") + ", " + noise + " noise; clusters to update: " + incrementalFirstNew.keySet());
+        SolverLogger.info("CLS: Incremental. New events=" + added.size() + ", joined existing clusters=" + joined
+            + ", new clusters=" + clusters.size() + ", noise=" + noise + ", clusters to update=" + incrementalFirstNew.size() + ".");
+
+        String safeOutputDir = resolveOutputDir();
+        File outputDirFile = new File(safeOutputDir);
+        int datFilesWritten = 0;
+        int datFilesSkipped = 0;
+        List<Point> ordered = new ArrayList<>(earlier);
+        ordered.addAll(added);
+        for (Point point : ordered) {
+            if (point.getCid() <= 0) continue; // copy .dat only for clustered points (CID > 0)
+            if (Thread.currentThread().isInterrupted()) throw new RuntimeException("Cancelled");
+            String datFileName;
+            if (point.getFilePath() != null && !point.getFilePath().isEmpty()) {
+                datFileName = new File(point.getFilePath()).getName();
+                if (!datFileName.toLowerCase().endsWith(".dat")) {
+                    datFileName = datFileName + ".dat";
+                }
+            } else {
+                String timeStr = point.getTime();
+                datFileName = (timeStr.contains("T") || timeStr.contains("-")
+                    ? TimeFormatConverter.toYymmddHhmmss(timeStr) : timeStr) + ".dat";
+            }
+            File outputDatFile = new File(outputDirFile, datFileName);
+            if (!outputDatFile.exists()) {
+                try {
+                    PointsHandler pointsHandler = new PointsHandler();
+                    pointsHandler.setMainPoint(point);
+                    pointsHandler.writeDatFile(outputDatFile.getAbsolutePath(), this.codeStrings);
+                    datFilesWritten++;
+                } catch (Exception e) {
+                    String errorStr = "Failed to write dat file for point in CLS mode: " + outputDatFile.getAbsolutePath()
+                        + ": " + e.getMessage();
+                    logger.warning(errorStr);
+                    SolverLogger.warning("CLS: " + errorStr);
+                    datFilesSkipped++;
+                    continue;
+                }
+            }
+            point.setFilePath(outputDatFile.getName());
+        }
+        File outputCatalogFile = CatalogFileNameGenerator.generateCatalogFileName(
+            this.catalogFile, "CLS", outputDirFile);
+        writePointsToCatalog(ordered, outputCatalogFile.getAbsolutePath());
+        logger.info("Dat files written: " + datFilesWritten + ", skipped: " + datFilesSkipped);
+        SolverLogger.info("CLS: Dat files written=" + datFilesWritten + ", skipped=" + datFilesSkipped +
+            ". Clustered catalog saved to: " + outputCatalogFile.getAbsolutePath());
+        return outputCatalogFile.getAbsolutePath();
+    }
+
+    /** Output directory from the configuration, or the current directory (created if missing). */
+    private String resolveOutputDir() {
+        String safeOutputDir = this.outputDir;
+        if (safeOutputDir == null || safeOutputDir.isEmpty() || safeOutputDir.equals("/")) {
+            safeOutputDir = ".";
+            logger.warning("outputDir is invalid (" + this.outputDir + "), using current directory");
+            SolverLogger.warning("CLS: outputDir is invalid; using current directory.");
+        }
+        File outputDirFile = new File(safeOutputDir);
+        if (!outputDirFile.exists()) {
+            outputDirFile.mkdirs();
+            logger.info("Created output directory: " + outputDirFile.getAbsolutePath());
+            SolverLogger.info("CLS: Created output directory: " + outputDirFile.getAbsolutePath());
+        }
+        return safeOutputDir;
+    }
+
+    /**
+     * Computes and saves the triple differences of one cluster: all of them, or in an incremental run only
+     * those of the new events of clusters that received any.
+     *
+     * @return number of triple differences saved
+     */
+    private int processCluster(int clusterId, List<Point> clusterPoints) {
+        if (incrementalFirstNew == null) {
+            return processOneCluster(clusterId, clusterPoints);
+        }
+        Integer firstNew = incrementalFirstNew.get(clusterId);
+        if (firstNew == null) {
+            logger.info("Cluster " + clusterId + ": no new events; triple differences unchanged");
+            return 0;
+        }
+        if (firstNew == 0) {
+            return processOneCluster(clusterId, clusterPoints);
+        }
+        return appendToCluster(clusterId, clusterPoints, firstNew);
+    }
+
     /**
      * Processes one cluster: computes triple differences and saves to file.
+     *
+     * <p>The rows are streamed: the event pairs are ordered by distance and their rows counted first,
+     * then chunks of about {@link #TRIPLE_DIFF_CHUNK_ROWS} rows are joined, scored and written in turn.
+     * Since the pair order is the row order, no sort (external or in memory) is needed, and memory is
+     * bounded by the pairs and one chunk instead of the whole table.
+     *
      * @return number of triple differences saved
      */
     private int processOneCluster(int clusterId, List<Point> clusterPoints) {
@@ -562,24 +774,247 @@ public class SpatialClustering extends SolverBase {
         }
         logger.info("Cluster " + clusterId + ": " + pointsWithLagTable + " out of " + clusterPoints.size() + " points have lag tables");
 
-        List<TripleDifference> trpDiff = calcTripleDifferences(clusterPoints, clusterId);
-        logger.info("Cluster " + clusterId + ": calculated " + trpDiff.size() + " triple differences");
-
-        trpDiff = attachResiduals(clusterPoints, trpDiff, clusterId);
+        PairJoin join = PairJoin.of(clusterPoints, clusterId, maxPairDistKm);
+        int[] rowCounts = join.countRows();
+        long total = 0;
+        int lastPair = -1;
+        for (int k = 0; k < rowCounts.length; k++) {
+            total += rowCounts[k];
+            if (rowCounts[k] > 0) lastPair = k;
+        }
+        logger.info("Cluster " + clusterId + ": calculated " + total + " triple differences");
 
-        if (trpDiff.isEmpty()) {
+        if (total == 0) {
             String warningMsg = "Cluster " + clusterId + ": No triple differences calculated. This may be because lag tables are missing or no matching pairs found.";
             logger.warning(warningMsg);
             SolverLogger.warning("CLS: " + warningMsg);
             return 0;
         }
-        saveTripleDifferences(trpDiff, clusterId);
-        logger.info("Cluster " + clusterId + ": " + trpDiff.size() + " triple differences saved");
+        if (total > Integer.MAX_VALUE) {
+            String errorMsg = "ERROR: Cluster " + clusterId + ": " + total + " triple differences exceed the file limit of "
+                + Integer.MAX_VALUE + "; set maxPairDistKm or split the cluster.";
+            logger.severe(errorMsg);
+            SolverLogger.severe(errorMsg);
+            return 0;
+        }
+
+        double[][] trvTbl = travelTimeTable(clusterPoints);
+        int invalidCount = 0;
+        try (TripleDifferenceIO.TableWriter writer =
+                 openTripleDifferenceWriter(clusterId, (int) total, join.distKm(lastPair))) {
+            int from = 0;
+            while (from < join.size()) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new RuntimeException("Cancelled");
+                }
+                int to = from;
+                long rows = 0;
+                while (to < join.size() && (rows == 0 || rows + rowCounts[to] <= TRIPLE_DIFF_CHUNK_ROWS)) {
+                    rows += rowCounts[to++];
+                }
+                TripleDifferenceTable chunk = join.join(from, to).build();
+                if (trvTbl != null) {
+                    invalidCount += attachResiduals(trvTbl, chunk);
+                }
+                writer.write(chunk);
+                from = to;
+            }
+        } catch (IOException e) {
+            String errorMsg = "ERROR: Writing triple differences: " + e.getMessage();
+            if (e.getCause() != null) {
+                errorMsg += "\n  Caused by: " + e.getCause().getClass().getSimpleName() + ": " + e.getCause().getMessage();
+            }
+            logger.severe(errorMsg);
+            SolverLogger.severe(errorMsg);
+            logger.log(Level.SEVERE, "CLS: failed writing triple differences", e);
+            return 0;
+        }
+        if (invalidCount > 0) {
+            logger.info("CLS: Cluster " + clusterId + " residuals: " + (total - invalidCount)
+                    + " computed, " + invalidCount + " invalid (NaN).");
+        }
+        logger.info("Cluster " + clusterId + ": " + total + " triple differences saved");
         SolverLogger.info("CLS: Cluster " + clusterId + ": " + pointsWithLagTable + "/" + clusterPoints.size() + " points with lag tables, " +
-            trpDiff.size() + " triple differences saved.");
-        return trpDiff.size();
+            total + " triple differences saved.");
+        return (int) total;
     }
     
+    /**
+     * Adds the triple differences of the new events of a cluster to its existing binary file. Only the pairs
+     * with at least one new event are joined; their rows are merged with the existing rows in distance order
+     * (ties in pair order, as in a full run) and the file is replaced. The existing file is looked up in the
+     * output directory and then next to the input catalog. Without a usable file (missing, CSV output,
+     * unsorted, a different {@code maxPairDistKm}, or event indices beyond the earlier members) all pairs of
+     * the cluster are computed instead.
+     *
+     * @param firstNew index of the first new event; the earlier members keep indices 0 .. firstNew-1
+     * @return number of triple differences saved
+     */
+    private int appendToCluster(int clusterId, List<Point> clusterPoints, int firstNew) {
+        String fileName = "triple_diff_" + clusterId + ".bin";
+        File existingFile = new File(resolveOutputDir(), fileName);
+        File catalogDir = new File(this.catalogFile).getAbsoluteFile().getParentFile();
+        if (!existingFile.isFile() && catalogDir != null) {
+            existingFile = new File(catalogDir, fileName);
+        }
+        String reason = null;
+        TripleDifferenceTable existing = null;
+        if (!this.useBinaryFormat) {
+            reason = "CSV output";
+        } else if (!existingFile.isFile()) {
+            reason = "no existing " + fileName;
+        } else {
+            try {
+                existing = TripleDifferenceIO.loadBinaryTable(existingFile);
+                if (!existing.isSortedByDistance()) {
+                    reason = "existing rows not sorted by distance";
+                } else if ((float) existing.getMaxPairDistKm() != (float) maxPairDistKm) {
+                    // TDF3 stores the bound as a float.
+                    reason = "existing maxPairDistKm " + existing.getMaxPairDistKm() + " differs from " + maxPairDistKm;
+                } else {
+                    for (int r = 0; r < existing.size() && reason == null; r++) {
+                        if (existing.getEve0(r) >= firstNew || existing.getEve1(r) >= firstNew) {
+                            reason = "existing rows refer to events beyond the " + firstNew + " earlier members";
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                reason = "cannot read " + existingFile.getAbsolutePath() + ": " + e.getMessage();
+            }
+        }
+        if (reason != null) {
+            String msg = "Cluster " + clusterId + ": computing all triple differences (" + reason + ")";
+            logger.info(msg);
+            SolverLogger.info("CLS: " + msg);
+            return processOneCluster(clusterId, clusterPoints);
+        }
+
+        SolverLogger.info("CLS: Appending triple differences of " + (clusterPoints.size() - firstNew)
+            + " new events to cluster " + clusterId + ".");
+        PairJoin join = PairJoin.of(clusterPoints, clusterId, maxPairDistKm, firstNew);
+        int[] rowCounts = join.countRows();
+        long added = 0;
+        int lastPair = -1;
+        for (int k = 0; k < rowCounts.length; k++) {
+            added += rowCounts[k];
+            if (rowCounts[k] > 0) lastPair = k;
+        }
+        long total = existing.size() + added;
+        if (total > Integer.MAX_VALUE) {
+            String errorMsg = "ERROR: Cluster " + clusterId + ": " + total + " triple differences exceed the file limit of "
+                + Integer.MAX_VALUE + "; set maxPairDistKm or split the cluster.";
+            logger.severe(errorMsg);
+            SolverLogger.severe(errorMsg);
+            return 0;
+        }
+        double lastDistKm = existing.isEmpty() ? 0.0 : existing.getDistKm(existing.size() - 1);
+        if (lastPair >= 0) {
+            lastDistKm = Math.max(lastDistKm, join.distKm(lastPair));
+        }
+
+        double[][] trvTbl = travelTimeTable(clusterPoints);
+        File outputFile = new File(resolveOutputDir(), fileName);
+        File tmpFile = new File(resolveOutputDir(), fileName + ".tmp");
+        try {
+            try (TripleDifferenceIO.TableWriter writer = TripleDifferenceIO.openBinaryWriter(
+                    tmpFile, clusterId, (int) total, true, lastDistKm, maxPairDistKm)) {
+                mergeTripleDifferences(existing, join, rowCounts, trvTbl, writer);
+            }
+            existing = null;
+            replaceFile(tmpFile, outputFile);
+        } catch (IOException e) {
+            String errorMsg = "ERROR: Writing triple differences: " + e.getMessage();
+            logger.severe(errorMsg);
+            SolverLogger.severe(errorMsg);
+            logger.log(Level.SEVERE, "CLS: failed appending triple differences", e);
+            tmpFile.delete();
+            return 0;
+        }
+        logger.info("Cluster " + clusterId + ": " + added + " triple differences appended, " + total + " in total");
+        SolverLogger.info("CLS: Cluster " + clusterId + ": " + added + " triple differences appended (" + total
+            + " in total) to " + outputFile.getAbsolutePath() + ".");
+        return (int) added;
+    }
+
+    /**
+     * Writes the existing rows of a cluster merged with the rows of the pairs of its new events, in the order
+     * of a full run. The new rows are joined chunk by chunk, so only one chunk is in memory.
+     *
+     * @param existing the rows among the earlier events, sorted by distance
+     * @param join the pairs involving new events
+     * @param rowCounts row count per pair of {@code join}
+     * @param trvTbl travel times for residuals of the new rows, or null for none
+     * @param writer receives the merged rows
+     * @throws IOException if writing fails
+     */
+    static void mergeTripleDifferences(TripleDifferenceTable existing, PairJoin join, int[] rowCounts,
+                                       double[][] trvTbl, TripleDifferenceIO.TableWriter writer) throws IOException {
+        TripleDifferenceTable.Builder out = new TripleDifferenceTable.Builder(existing.getClusterId(), 1024);
+        int o = 0;
+        int from = 0;
+        while (from < join.size()) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new RuntimeException("Cancelled");
+            }
+            int to = from;
+            long rows = 0;
+            while (to < join.size() && (rows == 0 || rows + rowCounts[to] <= TRIPLE_DIFF_CHUNK_ROWS)) {
+                rows += rowCounts[to++];
+            }
+            TripleDifferenceTable chunk = join.join(from, to).build();
+            if (trvTbl != null) {
+                attachResiduals(trvTbl, chunk);
+            }
+            for (int r = 0; r < chunk.size(); r++) {
+                while (o < existing.size() && compareRows(existing, o, chunk, r) < 0) {
+                    out = appendRow(existing, o++, out, writer);
+                }
+                out = appendRow(chunk, r, out, writer);
+            }
+            from = to;
+        }
+        while (o < existing.size()) {
+            out = appendRow(existing, o++, out, writer);
+        }
+        writer.write(out.build());
+    }
+
+    /** Orders rows as a full run writes them: by float distance, then by event pair. */
+    private static int compareRows(TripleDifferenceTable a, int ra, TripleDifferenceTable b, int rb) {
+        int c = Float.compare((float) a.getDistKm(ra), (float) b.getDistKm(rb));
+        if (c != 0) return c;
+        c = Integer.compare(a.getEve0(ra), b.getEve0(rb));
+        return c != 0 ? c : Integer.compare(a.getEve1(ra), b.getEve1(rb));
+    }
+
+    /** Appends a row to the buffer, writing the buffer out once it holds a chunk. */
+    private static TripleDifferenceTable.Builder appendRow(TripleDifferenceTable table, int r,
+                                                           TripleDifferenceTable.Builder out,
+                                                           TripleDifferenceIO.TableWriter writer) throws IOException {
+        out.add(table.getEve0(r), table.getEve1(r), table.getStn0(r), table.getStn1(r), table.getTdTime(r),
+            table.getDistKm(r), table.getResidual(r));
+        if (out.size() < TRIPLE_DIFF_CHUNK_ROWS) {
+            return out;
+        }
+        writer.write(out.build());
+        return new TripleDifferenceTable.Builder(table.getClusterId(), 1024);
+    }
+
+    /**
+     * Moves a finished file over its target. A target that is still memory-mapped cannot be replaced on
+     * some platforms (Windows) until the mapping is garbage-collected, so a failed move is retried once
+     * after requesting a collection.
+     */
+    private static void replaceFile(File source, File target) throws IOException {
+        try {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Retrying move after releasing mappings: " + target.getAbsolutePath(), e);
+            System.gc();
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
     /**
      * Runs the clustering process using DBSCAN with distances in kilometers.
      *
@@ -588,6 +1023,38 @@ public class SpatialClustering extends SolverBase {
      * @return a list of clusters formed
      */
     public List<Cluster<Point>> runClustering(List<Point> points, Point refPoint) {
+        double currentEps = resolveEps(points);
+        int partitions = points.size() >= PARALLEL_MIN_POINTS ? 4 * SharedComputePool.parallelism() : 1;
+        List<Cluster<Point>> clusters = new IndexedDbscan(currentEps, this.minPts).cluster(points, partitions);
+        int clusterId = 1;
+        for (Cluster<Point> cluster : clusters) {
+            for (Point point : cluster.getPoints()) {
+                point.setCid(clusterId);
+            }
+            clusterId++;
+        }
+        
+        logger.info("There are " + clusters.size() + " clusters.");
+        for (Cluster<Point> cluster : clusters) {
+            logger.info("CID-" + cluster.getPoints().get(0).getCid() + " has " + cluster.getPoints().size() + " events.");
+        }
+        StringBuilder sb = new StringBuilder("CLS: DBSCAN result: " + clusters.size() + " cluster(s). Sizes: ");
+        for (int i = 0; i < clusters.size(); i++) {
+            if (i > 0) sb.append(", ");
+            sb.append("CID-").append(clusters.get(i).getPoints().get(0).getCid()).append("=").append(clusters.get(i).getPoints().size());
+        }
+        SolverLogger.info(sb.toString());
+        return clusters;
+    }
+
+    /**
+     * Returns the DBSCAN radius: the configured eps, or for eps &lt;= 0 an estimate from the k-distances of
+     * the points (percentile or elbow method).
+     *
+     * @param points the points to be clustered
+     * @return eps in km
+     */
+    private double resolveEps(List<Point> points) {
         // Use this.eps to ensure we use the current configuration value
         double currentEps = this.eps;
         
@@ -631,28 +1098,7 @@ public class SpatialClustering extends SolverBase {
             );
             SolverLogger.info("CLS: Using given epsilon=" + currentEps + " km, minPts=" + this.minPts + ".");
         }
-        
-        DBSCANClusterer<Point> clusterer = new DBSCANClusterer<>(currentEps, this.minPts, new HaversineDistance());
-        List<Cluster<Point>> clusters = clusterer.cluster(points);
-        int clusterId = 1;
-        for (Cluster<Point> cluster : clusters) {
-            for (Point point : cluster.getPoints()) {
-                point.setCid(clusterId);
-            }
-            clusterId++;
-        }
-        
-        logger.info("There are " + clusters.size() + " clusters.");
-        for (Cluster<Point> cluster : clusters) {
-            logger.info("CID-" + cluster.getPoints().get(0).getCid() + " has " + cluster.getPoints().size() + " events.");
-        }
-        StringBuilder sb = new StringBuilder("CLS: DBSCAN result: " + clusters.size() + " cluster(s). Sizes: ");
-        for (int i = 0; i < clusters.size(); i++) {
-            if (i > 0) sb.append(", ");
-            sb.append("CID-").append(clusters.get(i).getPoints().get(0).getCid()).append("=").append(clusters.get(i).getPoints().size());
-        }
-        SolverLogger.info(sb.toString());
-        return clusters;
+        return currentEps;
     }
     
     private List<Double> kDistances;
@@ -679,26 +1125,29 @@ public class SpatialClustering extends SolverBase {
     /**
      * Computes the k-distance for each point in the list.
      *
+     * <p>Neighbours are found with a {@link SphericalKdTree}, queried in parallel on the shared compute pool
+     * for large catalogs, so the cost grows as N log N instead of N&sup2; log N for a full scan.
+     *
      * @param points the list of points
      * @param k      the number of nearest neighbors to consider
-     * @return a list of k-distances
+     * @return a list of k-distances, sorted ascending (empty if there are not more than k points)
      */
-    private static List<Double> computeKDistance(List<Point> points, int k) {
-        HaversineDistance distance = new HaversineDistance();
-        List<Double> kDistances = new ArrayList<>();
-        
-        for (Point p : points) {
-            List<Double> distances = points.stream()
-                    .filter(other -> other != p) // Exclude itself
-                    .map(other -> distance.compute(p.getPoint(), other.getPoint()))
-                    .sorted()
-                    .collect(Collectors.toList());
-            
-            if (distances.size() >= k) {
-                kDistances.add(distances.get(k - 1));
+    static List<Double> computeKDistance(List<Point> points, int k) {
+        int n = points.size();
+        int partitions = n >= PARALLEL_MIN_POINTS ? 4 * SharedComputePool.parallelism() : 1;
+        double[] kth = locationIndex(points).kthNeighbourKm(k, partitions);
+        double[] sorted = new double[n];
+        int count = 0;
+        for (double d : kth) {
+            if (!Double.isNaN(d)) {
+                sorted[count++] = d;
             }
         }
-        kDistances.sort(Double::compareTo);
+        Arrays.sort(sorted, 0, count);
+        List<Double> kDistances = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            kDistances.add(sorted[i]);
+        }
         return kDistances;
     }
     
@@ -739,192 +1188,591 @@ public class SpatialClustering extends SolverBase {
     /**
      * Calculates the triple differences for a cluster and returns the results.
      *
+     * <p>Each event's lag table is indexed once by station pair ({@link LagIndex}), so a pair of events is
+     * joined by probing the index of the second event with the rows of the first instead of comparing all
+     * row combinations. The event pairs are ordered by distance before the join (ties in pair order), so the
+     * rows come out in the order of a stable sort by distance and the table needs no row sort. Both passes
+     * are split over the shared compute pool for large clusters; each partition fills its own buffer and the
+     * buffers are concatenated in order.
+     *
      * @param points   the list of points in the cluster
      * @param clusterId the ID of the cluster
-     * @return the list of calculated triple-difference objects
+     * @return the calculated triple differences, sorted by distance
      */
-    private static List<TripleDifference> calcTripleDifferences(List<Point> points, int clusterId) {
-        List<TripleDifference> tripleDifferences = new ArrayList<>();
-        int skippedNoLagTable = 0;
-        int skippedType = 0;
-        int pairsProcessed = 0;
-        
-        for (int eid1 = 0; eid1 < points.size(); eid1++) {
-            for (int eid2 = eid1 + 1; eid2 < points.size(); eid2++) {
-                Point p1 = points.get(eid1);
-                Point p2 = points.get(eid2);
-                pairsProcessed++;
-                
-                if (p1.getType().equals("REF") && p2.getType().equals("REF")) {
-                    skippedType++;
-                    continue;
-                } else if (p1.getType().equals("ERR") || p2.getType().equals("ERR")) {
-                    skippedType++;
-                    continue;
+    static TripleDifferenceTable calcTripleDifferences(List<Point> points, int clusterId) {
+        return calcTripleDifferences(points, clusterId, Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * Calculates the triple differences of the event pairs at most {@code maxPairDistKm} apart. With a
+     * finite bound the candidate pairs of each event come from a {@link SphericalKdTree} range query
+     * instead of a scan over all later events, so only neighbouring pairs get a geodesic; the bound is
+     * recorded in the table ({@link TripleDifferenceTable#getMaxPairDistKm()}).
+     *
+     * @param points   the list of points in the cluster
+     * @param clusterId the ID of the cluster
+     * @param maxPairDistKm maximum inter-event distance (km, inclusive), or {@link Double#POSITIVE_INFINITY}
+     * @return the calculated triple differences, sorted by distance
+     */
+    static TripleDifferenceTable calcTripleDifferences(List<Point> points, int clusterId, double maxPairDistKm) {
+        PairJoin join = PairJoin.of(points, clusterId, maxPairDistKm);
+        TripleDifferenceTable table = join.join(0, join.size()).build();
+        table.sortByDistance();
+        if (maxPairDistKm < Double.POSITIVE_INFINITY) {
+            table.setMaxPairDistKm(maxPairDistKm);
+        }
+        return table;
+    }
+
+    /**
+     * The event pairs of a cluster to join, in join order: by distance, ties in pair order. Any range of
+     * pairs can be joined on its own, and consecutive ranges give consecutive rows of the full table, so a
+     * cluster can be written in chunks without holding all rows. The pairs take 16 bytes each; the rows,
+     * one per common station pair, are usually far more numerous.
+     */
+    static final class PairJoin {
+        private final List<Point> points;
+        private final int clusterId;
+        private final LagIndex[] indices;
+        private final int[] eve0;
+        private final int[] eve1;
+        private final double[] distKm;
+        private final boolean parallel;
+
+        private PairJoin(List<Point> points, int clusterId, LagIndex[] indices, int[] eve0, int[] eve1,
+                         double[] distKm, boolean parallel) {
+            this.points = points;
+            this.clusterId = clusterId;
+            this.indices = indices;
+            this.eve0 = eve0;
+            this.eve1 = eve1;
+            this.distKm = distKm;
+            this.parallel = parallel;
+        }
+
+        /**
+         * Selects and orders the event pairs of a cluster (pass 1 of the triple-difference calculation).
+         *
+         * @param points   the list of points in the cluster
+         * @param clusterId the ID of the cluster
+         * @param maxPairDistKm maximum inter-event distance (km, inclusive), or {@link Double#POSITIVE_INFINITY}
+         * @return the pairs in join order
+         */
+        static PairJoin of(List<Point> points, int clusterId, double maxPairDistKm) {
+            return of(points, clusterId, maxPairDistKm, 0);
+        }
+
+        /**
+         * Selects and orders the event pairs that involve at least one event from {@code firstNew} on, for
+         * appending events to a cluster whose pairs among the earlier events are already joined.
+         *
+         * @param points   the list of points in the cluster
+         * @param clusterId the ID of the cluster
+         * @param maxPairDistKm maximum inter-event distance (km, inclusive), or {@link Double#POSITIVE_INFINITY}
+         * @param firstNew index of the first new event (0 = all pairs)
+         * @return the pairs in join order
+         */
+        static PairJoin of(List<Point> points, int clusterId, double maxPairDistKm, int firstNew) {
+            if (!(maxPairDistKm > 0)) {
+                throw new IllegalArgumentException("maxPairDistKm must be positive: " + maxPairDistKm);
+            }
+            int n = points.size();
+            if (firstNew < 0 || firstNew > n) {
+                throw new IllegalArgumentException("firstNew " + firstNew + " out of range [0, " + n + "]");
+            }
+            LagIndex[] indices = new LagIndex[n];
+            boolean[] usable = new boolean[n];
+            boolean[] isRef = new boolean[n];
+            for (int e = 0; e < n; e++) {
+                Point p = points.get(e);
+                usable[e] = !p.getType().equals("ERR");
+                isRef[e] = p.getType().equals("REF");
+                if (p.getLagTable() != null) {
+                    indices[e] = new LagIndex(p.getLagTable());
                 }
-                
-                GeodesicData g = Geodesic.WGS84.Inverse(p1.getLat(), p1.getLon(), p2.getLat(), p2.getLon());
-                double distKm = g.s12 / 1000.0; // Distance in km
-                double[][] lagTable1 = p1.getLagTable();
-                double[][] lagTable2 = p2.getLagTable();
-                
-                if (lagTable1 == null || lagTable2 == null) {
-                    skippedNoLagTable++;
-                    continue;
+            }
+            long pairsProcessed = (long) n * (n - 1) / 2 - (long) firstNew * (firstNew - 1) / 2;
+            boolean bounded = maxPairDistKm < Double.POSITIVE_INFINITY && n > 1;
+            SphericalKdTree pairTree = bounded ? locationIndex(points) : null;
+            // The sphere only prefilters: WGS84 geodesics differ from great circles by well under 1 %.
+            double pairChord2 = bounded ? SphericalKdTree.kmToChord2(maxPairDistKm * 1.01) + 1e-15 : 0.0;
+            boolean parallel = pairsProcessed >= TRIPLE_DIFF_PARALLEL_MIN_PAIRS;
+            int partitions = parallel ? Math.max(1, Math.min(4 * SharedComputePool.parallelism(), n - 1)) : 1;
+
+            // Event e1 pairs with the n - max(e1 + 1, firstNew) later (new) events, so the partitions are
+            // balanced by pair count; with a distance bound each event has a range query and a few neighbours,
+            // so they are balanced by event count.
+            int[] bounds = new int[partitions + 1];
+            long totalWork = bounded ? n : pairsProcessed;
+            long cumulative = 0;
+            int part = 1;
+            for (int e1 = 0; e1 < n && part < partitions; e1++) {
+                cumulative += bounded ? 1 : n - Math.max(e1 + 1, firstNew);
+                if (cumulative * partitions >= totalWork * part) {
+                    bounds[part++] = e1 + 1;
                 }
-                
-                for (double[] row1 : lagTable1) {
-                    for (double[] row2 : lagTable2) {
-                        if (row1[0] == row2[0] && row1[1] == row2[1]) {
-                            double diff = row2[2] - row1[2];
-                            tripleDifferences.add(new TripleDifference(
-                                eid1, eid2, (int) row1[0], (int) row1[1], 
-                                diff, distKm, clusterId));
+            }
+            for (; part <= partitions; part++) {
+                bounds[part] = n;
+            }
+            PairList[] partPairs = new PairList[partitions];
+            long[][] skipped = new long[partitions][3];
+            SharedComputePool.forEachPartition(bounds, (partition, from, to) -> {
+                PairList pairs = new PairList();
+                long[] count = skipped[partition];
+                SphericalKdTree.IntList candidates = new SphericalKdTree.IntList();
+                for (int eid1 = from; eid1 < to; eid1++) {
+                    Point p1 = points.get(eid1);
+                    int start = Math.max(eid1 + 1, firstNew);
+                    int numCandidates;
+                    if (pairTree != null) {
+                        // Later events near eid1, in ascending order so the pair order matches the full scan.
+                        candidates.clear();
+                        pairTree.within(eid1, pairChord2, candidates);
+                        int kept = 0;
+                        for (int k = 0; k < candidates.size; k++) {
+                            if (candidates.data[k] >= start) {
+                                candidates.data[kept++] = candidates.data[k];
+                            }
+                        }
+                        candidates.size = kept;
+                        Arrays.sort(candidates.data, 0, kept);
+                        numCandidates = kept;
+                        count[2] += n - start - kept;
+                    } else {
+                        numCandidates = n - start;
+                    }
+                    for (int k = 0; k < numCandidates; k++) {
+                        int eid2 = pairTree != null ? candidates.data[k] : start + k;
+                        if ((isRef[eid1] && isRef[eid2]) || !usable[eid1] || !usable[eid2]) {
+                            count[1]++;
+                            continue;
+                        }
+                        if (indices[eid1] == null || indices[eid2] == null) {
+                            count[0]++;
+                            continue;
                         }
+                        Point p2 = points.get(eid2);
+                        GeodesicData g = Geodesic.WGS84.Inverse(p1.getLat(), p1.getLon(), p2.getLat(), p2.getLon());
+                        double distKm = g.s12 / 1000.0; // Distance in km
+                        if (distKm > maxPairDistKm) {
+                            count[2]++;
+                            continue;
+                        }
+                        pairs.add(eid1, eid2, distKm);
                     }
                 }
+                partPairs[partition] = pairs;
+            });
+            long skippedNoLagTable = 0;
+            long skippedType = 0;
+            long skippedDistance = 0;
+            PairList pairs = new PairList();
+            for (int i = 0; i < partitions; i++) {
+                pairs.addAll(partPairs[i]);
+                skippedNoLagTable += skipped[i][0];
+                skippedType += skipped[i][1];
+                skippedDistance += skipped[i][2];
+            }
+
+            // Distances are stored as float: order by the float bits (distances are >= 0), then by pair order.
+            long[] keys = new long[pairs.size];
+            for (int k = 0; k < pairs.size; k++) {
+                keys[k] = ((long) Float.floatToIntBits((float) pairs.distKm[k]) << 32) | k;
+            }
+            Arrays.sort(keys);
+            int[] eve0 = new int[pairs.size];
+            int[] eve1 = new int[pairs.size];
+            double[] distKm = new double[pairs.size];
+            for (int k = 0; k < keys.length; k++) {
+                int pair = (int) keys[k];
+                eve0[k] = pairs.eve0[pair];
+                eve1[k] = pairs.eve1[pair];
+                distKm[k] = pairs.distKm[pair];
             }
+
+            Logger logger = Logger.getLogger(SpatialClustering.class.getName());
+            logger.info("Cluster " + clusterId + " triple diff calculation: " +
+                       pairsProcessed + " pairs processed, " +
+                       skippedNoLagTable + " skipped (no lag table), " +
+                       skippedType + " skipped (type), " +
+                       (bounded ? skippedDistance + " skipped (beyond " + maxPairDistKm + " km), " : "") +
+                       keys.length + " pairs to join");
+            return new PairJoin(points, clusterId, indices, eve0, eve1, distKm, parallel);
+        }
+
+        /** Number of event pairs. */
+        int size() {
+            return eve0.length;
+        }
+
+        /** Inter-event distance (km) of the pair at a join position. */
+        double distKm(int pair) {
+            return distKm[pair];
+        }
+
+        /**
+         * Counts the rows each pair contributes, without building them.
+         *
+         * @return row count per pair, in join order
+         */
+        int[] countRows() {
+            int[] counts = new int[eve0.length];
+            SharedComputePool.forEachPartition(eve0.length, partitions(eve0.length), (partition, from, to) -> {
+                for (int k = from; k < to; k++) {
+                    LagIndex index2 = indices[eve1[k]];
+                    int rows = 0;
+                    for (double[] row1 : points.get(eve0[k]).getLagTable()) {
+                        for (int r2 = index2.first(row1[0], row1[1]); r2 >= 0; r2 = index2.next(r2)) {
+                            rows++;
+                        }
+                    }
+                    counts[k] = rows;
+                }
+            });
+            return counts;
+        }
+
+        /**
+         * Joins the lag tables of a range of pairs (pass 2). Each partition fills its own buffer and the
+         * buffers are concatenated in order.
+         *
+         * @param fromPair first pair (inclusive)
+         * @param toPair   last pair (exclusive)
+         * @return the rows of the pairs, in join order
+         */
+        TripleDifferenceTable.Builder join(int fromPair, int toPair) {
+            int numPairs = toPair - fromPair;
+            TripleDifferenceTable.Builder[] buffers = new TripleDifferenceTable.Builder[partitions(numPairs)];
+            SharedComputePool.forEachPartition(numPairs, buffers.length, (partition, from, to) -> {
+                TripleDifferenceTable.Builder buffer = new TripleDifferenceTable.Builder(clusterId, 1024);
+                for (int k = fromPair + from; k < fromPair + to; k++) {
+                    int eid1 = eve0[k];
+                    int eid2 = eve1[k];
+                    double[][] lagTable2 = points.get(eid2).getLagTable();
+                    LagIndex index2 = indices[eid2];
+                    for (double[] row1 : points.get(eid1).getLagTable()) {
+                        for (int r2 = index2.first(row1[0], row1[1]); r2 >= 0; r2 = index2.next(r2)) {
+                            double diff = lagTable2[r2][2] - row1[2];
+                            buffer.add(eid1, eid2, (int) row1[0], (int) row1[1], diff, distKm[k]);
+                        }
+                    }
+                }
+                buffers[partition] = buffer;
+            });
+            if (buffers.length == 1) {
+                return buffers[0] != null ? buffers[0] : new TripleDifferenceTable.Builder(clusterId, 0);
+            }
+            int total = 0;
+            for (TripleDifferenceTable.Builder buffer : buffers) {
+                total += buffer != null ? buffer.size() : 0;
+            }
+            TripleDifferenceTable.Builder tripleDifferences = new TripleDifferenceTable.Builder(clusterId, total);
+            for (TripleDifferenceTable.Builder buffer : buffers) {
+                if (buffer != null) {
+                    tripleDifferences.addAll(buffer);
+                }
+            }
+            return tripleDifferences;
+        }
+
+        private int partitions(int numPairs) {
+            return parallel ? Math.max(1, Math.min(4 * SharedComputePool.parallelism(), numPairs)) : 1;
+        }
+    }
+
+    /** Range index over the epicentres of the points, in list order. */
+    private static SphericalKdTree locationIndex(List<Point> points) {
+        double[] lat = new double[points.size()];
+        double[] lon = new double[points.size()];
+        for (int e = 0; e < lat.length; e++) {
+            lat[e] = points.get(e).getLat();
+            lon[e] = points.get(e).getLon();
+        }
+        return new SphericalKdTree(lat, lon);
+    }
+
+    /** Growable list of event pairs with their distance. */
+    private static final class PairList {
+        int[] eve0 = new int[16];
+        int[] eve1 = new int[16];
+        double[] distKm = new double[16];
+        int size;
+
+        void add(int e0, int e1, double km) {
+            if (size == eve0.length) {
+                grow(size + (size >> 1));
+            }
+            eve0[size] = e0;
+            eve1[size] = e1;
+            distKm[size] = km;
+            size++;
+        }
+
+        void addAll(PairList other) {
+            if (size + other.size > eve0.length) {
+                grow(size + other.size);
+            }
+            System.arraycopy(other.eve0, 0, eve0, size, other.size);
+            System.arraycopy(other.eve1, 0, eve1, size, other.size);
+            System.arraycopy(other.distKm, 0, distKm, size, other.size);
+            size += other.size;
+        }
+
+        private void grow(int capacity) {
+            eve0 = Arrays.copyOf(eve0, capacity);
+            eve1 = Arrays.copyOf(eve1, capacity);
+            distKm = Arrays.copyOf(distKm, capacity);
         }
-        
-        Logger logger = Logger.getLogger(SpatialClustering.class.getName());
-        logger.info("Cluster " + clusterId + " triple diff calculation: " + 
-                   pairsProcessed + " pairs processed, " + 
-                   skippedNoLagTable + " skipped (no lag table), " +
-                   skippedType + " skipped (type), " +
-                   tripleDifferences.size() + " triple differences found");
-        
-        tripleDifferences.sort((a, b) -> Double.compare(a.distKm, b.distKm));
-        return tripleDifferences;
     }
 
     /**
-     * Computes travel-time residual for each triple difference using catalog positions and attaches it.
-     * residual = |observed_td - predicted_td| (predicted from current catalog + velocity model).
-     * If station table is missing or travel time fails, residuals are left as NaN.
+     * Rows of one lag table by station pair: an open-addressing hash table on the packed
+     * {@code (stn0, stn1)} key whose entries chain the rows with that key in ascending order.
+     */
+    static final class LagIndex {
+        private final long[] keys;
+        private final int[] heads;
+        private final int[] nextRow;
+        private final int mask;
+
+        LagIndex(double[][] lagTable) {
+            int capacity = Integer.highestOneBit(Math.max(4, lagTable.length * 2) - 1) << 1;
+            keys = new long[capacity];
+            heads = new int[capacity];
+            Arrays.fill(heads, -1);
+            nextRow = new int[lagTable.length];
+            mask = capacity - 1;
+            // Insert from the last row so each chain lists its rows in ascending order.
+            for (int r = lagTable.length - 1; r >= 0; r--) {
+                long key = pack(lagTable[r][0], lagTable[r][1]);
+                int slot = slot(key);
+                nextRow[r] = heads[slot];
+                keys[slot] = key;
+                heads[slot] = r;
+            }
+        }
+
+        /** First row with the station pair, or -1. */
+        int first(double stn0, double stn1) {
+            return heads[slot(pack(stn0, stn1))];
+        }
+
+        /** Next row with the same station pair after {@code row}, or -1. */
+        int next(int row) {
+            return nextRow[row];
+        }
+
+        /** Slot holding {@code key}, or the empty slot where it belongs. */
+        private int slot(long key) {
+            int h = (int) ((key * 0x9E3779B97F4A7C15L) >>> 40) & mask;
+            while (heads[h] >= 0 && keys[h] != key) {
+                h = (h + 1) & mask;
+            }
+            return h;
+        }
+
+        private static long pack(double stn0, double stn1) {
+            return ((long) (int) stn0 << 32) | ((int) stn1 & 0xFFFFFFFFL);
+        }
+    }
+
+    /**
+     * Computes the travel times from each cluster event (catalog position) to the stations of its lag table,
+     * for residuals. A triple difference only pairs stations that both events observed, so the other
+     * stations are not traced. Events are computed in parallel on the shared compute pool.
      *
      * @param clusterPoints points in the cluster (same order as eve0/eve1 in triple diffs)
-     * @param tripleDifferences list of triple differences (without residual)
-     * @param clusterId cluster ID for logging
-     * @return new list of TripleDifference with residual set (or same list if computation skipped)
+     * @return travel times [event][station], {@code Double.MAX_VALUE} where unavailable or not observed;
+     *         null if residuals cannot be computed (no station table, or travel time failure)
      */
-    private List<TripleDifference> attachResiduals(List<Point> clusterPoints,
-                                                   List<TripleDifference> tripleDifferences,
-                                                   int clusterId) {
-        if (tripleDifferences.isEmpty()) return tripleDifferences;
+    private double[][] travelTimeTable(List<Point> clusterPoints) {
         if (stationTable == null || stationTable.length == 0) {
             logger.warning("CLS: Cannot compute residuals (no station table); saving without residual.");
             SolverLogger.warning("CLS: No station table; triple differences saved without residual.");
-            return tripleDifferences;
+            return null;
         }
         int numStations = stationTable.length;
-        int[] usedIdx = new int[numStations];
-        for (int j = 0; j < numStations; j++) usedIdx[j] = j;
-
-        double[][] trvTbl = new double[clusterPoints.size()][numStations];
+        int n = clusterPoints.size();
+        double[][] trvTbl = new double[n][];
+        Thread caller = Thread.currentThread();
+        int partitions = n > 1 ? Math.min(n, 4 * SharedComputePool.parallelism()) : 1;
         try {
-            for (int i = 0; i < clusterPoints.size(); i++) {
-                double[] tt = travelTime(stationTable, usedIdx, clusterPoints.get(i));
-                for (int j = 0; j < numStations; j++) {
-                    trvTbl[i][j] = (tt != null && j < tt.length) ? tt[j] : Double.MAX_VALUE;
+            SharedComputePool.forEachPartition(n, partitions, (part, from, to) -> {
+                boolean[] observed = new boolean[numStations];
+                for (int i = from; i < to; i++) {
+                    if (caller.isInterrupted()) {
+                        throw new RuntimeException("Cancelled");
+                    }
+                    int[] usedIdx = observedStations(clusterPoints.get(i).getLagTable(), observed);
+                    double[] tt = usedIdx.length > 0 ? travelTime(stationTable, usedIdx, clusterPoints.get(i)) : null;
+                    double[] row = new double[numStations];
+                    Arrays.fill(row, Double.MAX_VALUE);
+                    for (int j : usedIdx) {
+                        if (tt != null && j < tt.length) {
+                            row[j] = tt[j];
+                        }
+                    }
+                    trvTbl[i] = row;
                 }
-            }
+            });
         } catch (Exception e) {
+            if (caller.isInterrupted()) {
+                throw new RuntimeException("Cancelled");
+            }
             logger.warning("CLS: Travel time computation failed; saving without residual: " + e.getMessage());
             SolverLogger.warning("CLS: Travel time failed; triple differences saved without residual.");
-            return tripleDifferences;
+            return null;
         }
+        return trvTbl;
+    }
 
-        List<TripleDifference> withResidual = new ArrayList<>(tripleDifferences.size());
+    /**
+     * Lists the stations of a lag table (both columns) that are in the station table, ascending.
+     *
+     * @param lagTable lag table rows [stn0, stn1, lag, weight], or null
+     * @param observed scratch flags, one per station; left all false
+     * @return station indices
+     */
+    private static int[] observedStations(double[][] lagTable, boolean[] observed) {
+        if (lagTable == null) {
+            return new int[0];
+        }
+        int count = 0;
+        for (double[] row : lagTable) {
+            for (int c = 0; c < 2; c++) {
+                int s = (int) row[c];
+                if (s >= 0 && s < observed.length && !observed[s]) {
+                    observed[s] = true;
+                    count++;
+                }
+            }
+        }
+        int[] idx = new int[count];
+        int k = 0;
+        for (int s = 0; k < count; s++) {
+            if (observed[s]) {
+                idx[k++] = s;
+                observed[s] = false;
+            }
+        }
+        return idx;
+    }
+
+    /**
+     * Computes travel-time residual for each triple difference using catalog positions and attaches it.
+     * residual = |observed_td - predicted_td| (predicted from current catalog + velocity model).
+     * Large tables are split into row ranges computed in parallel.
+     *
+     * @param trvTbl travel times from {@link #travelTimeTable(List)}
+     * @param tripleDifferences triple differences; residuals are set in place
+     * @return number of rows whose residual could not be computed (left as NaN)
+     */
+    static int attachResiduals(double[][] trvTbl, TripleDifferenceTable tripleDifferences) {
+        int n = tripleDifferences.size();
+        int partitions = n >= RESIDUAL_PARALLEL_MIN_ROWS ? 4 * SharedComputePool.parallelism() : 1;
+        int[] invalid = new int[Math.max(1, Math.min(partitions, n))];
+        SharedComputePool.forEachPartition(n, partitions, (part, from, to) ->
+            invalid[part] = attachResiduals(trvTbl, tripleDifferences, from, to));
         int invalidCount = 0;
-        for (TripleDifference td : tripleDifferences) {
-            int e0 = td.eve0;
-            int e1 = td.eve1;
-            int s0 = td.stn0;
-            int s1 = td.stn1;
+        for (int c : invalid) {
+            invalidCount += c;
+        }
+        return invalidCount;
+    }
+
+    private static int attachResiduals(double[][] trvTbl, TripleDifferenceTable tripleDifferences, int from, int to) {
+        int numStations = trvTbl.length > 0 ? trvTbl[0].length : 0;
+        int invalidCount = 0;
+        for (int r = from; r < to; r++) {
+            int e0 = tripleDifferences.getEve0(r);
+            int e1 = tripleDifferences.getEve1(r);
+            int s0 = tripleDifferences.getStn0(r);
+            int s1 = tripleDifferences.getStn1(r);
             if (e0 >= trvTbl.length || e1 >= trvTbl.length
                     || s0 >= numStations || s1 >= numStations) {
-                withResidual.add(new TripleDifference(td.eve0, td.eve1, td.stn0, td.stn1,
-                        td.tdTime, td.distKm, td.clusterId, Double.NaN));
+                tripleDifferences.setResidual(r, Double.NaN);
                 invalidCount++;
                 continue;
             }
-            double t00 = trvTbl[e0][s0];
-            double t01 = trvTbl[e0][s1];
-            double t10 = trvTbl[e1][s0];
-            double t11 = trvTbl[e1][s1];
+            double[] tt0 = trvTbl[e0];
+            double[] tt1 = trvTbl[e1];
+            double t00 = tt0[s0];
+            double t01 = tt0[s1];
+            double t10 = tt1[s0];
+            double t11 = tt1[s1];
             if (t00 >= Double.MAX_VALUE - 1 || t01 >= Double.MAX_VALUE - 1
                     || t10 >= Double.MAX_VALUE - 1 || t11 >= Double.MAX_VALUE - 1) {
-                withResidual.add(new TripleDifference(td.eve0, td.eve1, td.stn0, td.stn1,
-                        td.tdTime, td.distKm, td.clusterId, Double.NaN));
+                tripleDifferences.setResidual(r, Double.NaN);
                 invalidCount++;
                 continue;
             }
             double predTd = (t10 - t11) - (t00 - t01);
-            double residual = Math.abs(td.tdTime - predTd);
-            withResidual.add(new TripleDifference(td.eve0, td.eve1, td.stn0, td.stn1,
-                    td.tdTime, td.distKm, td.clusterId, residual));
+            tripleDifferences.setResidual(r, Math.abs(tripleDifferences.getTdTime(r) - predTd));
         }
-        if (invalidCount > 0) {
-            logger.info("CLS: Cluster " + clusterId + " residuals: " + (tripleDifferences.size() - invalidCount)
-                    + " computed, " + invalidCount + " invalid (NaN).");
-        }
-        return withResidual;
+        return invalidCount;
     }
 
     /**
-     * Saves the triple differences to a file (binary or CSV).
+     * Opens the triple-difference file of a cluster (binary or CSV) for chunked writing.
      *
-     * @param tripleDifferences the list of triple differences
-     * @param clusterId         the ID of the cluster
+     * @param clusterId  the ID of the cluster
+     * @param count      total number of rows
+     * @param lastDistKm distance of the last row (km); rows are written in distance order
+     * @return the writer
+     * @throws IOException if the file cannot be opened
      */
-    private void saveTripleDifferences(List<TripleDifference> tripleDifferences, int clusterId) {
-        try {
-            String safeOutputDir = this.outputDir;
-            if (safeOutputDir == null || safeOutputDir.isEmpty() || safeOutputDir.equals("/")) {
-                safeOutputDir = ".";
-                logger.warning("outputDir is invalid (" + this.outputDir + "), using current directory");
-                SolverLogger.warning("CLS: outputDir is invalid; using current directory.");
-            }
-            
-            File outputDirFile = new File(safeOutputDir);
-            if (!outputDirFile.exists()) {
-                outputDirFile.mkdirs();
-                logger.info("Created output directory: " + outputDirFile.getAbsolutePath());
-                SolverLogger.info("CLS: Created output directory: " + outputDirFile.getAbsolutePath());
-            }
-            
-            logger.info("Saving triple differences: useBinaryFormat=" + this.useBinaryFormat + ", clusterId=" + clusterId);
-            SolverLogger.info("CLS: Saving triple differences for cluster " + clusterId + " (" + (this.useBinaryFormat ? "binary" : "CSV") + ").");
-            
-            File outputFile;
-            if (this.useBinaryFormat) {
-                outputFile = new File(safeOutputDir, "triple_diff_" + clusterId + ".bin");
-                TripleDifferenceIO.saveBinary(tripleDifferences, outputFile);
-                logger.info("Triple differences (binary) saved to: " + outputFile.getAbsolutePath());
-            } else {
-                outputFile = new File(safeOutputDir, "triple_diff_" + clusterId + ".csv");
-                TripleDifferenceIO.saveCSV(tripleDifferences, outputFile);
-                logger.info("Triple differences (CSV) saved to: " + outputFile.getAbsolutePath());
-            }
-        } catch (IOException e) {
-            String errorMsg = "ERROR: Writing triple differences: " + e.getMessage();
-            if (e.getCause() != null) {
-                errorMsg += "\n  Caused by: " + e.getCause().getClass().getSimpleName() + ": " + e.getCause().getMessage();
-            }
-            logger.severe(errorMsg);
-            SolverLogger.severe(errorMsg);
-            logger.log(Level.SEVERE, "CLS: failed writing triple differences", e);
-        } catch (Exception e) {
-            String errorMsg = "ERROR: Unexpected error writing triple differences: " + e.getMessage();
-            if (e.getCause() != null) {
-                errorMsg += "\n  Caused by: " + e.getCause().getClass().getSimpleName() + ": " + e.getCause().getMessage();
-            }
-            logger.severe(errorMsg);
-            SolverLogger.severe(errorMsg);
-            logger.log(Level.SEVERE, "CLS: unexpected error writing triple differences", e);
+    private TripleDifferenceIO.TableWriter openTripleDifferenceWriter(int clusterId, int count, double lastDistKm)
+            throws IOException {
+        String safeOutputDir = this.outputDir;
+        if (safeOutputDir == null || safeOutputDir.isEmpty() || safeOutputDir.equals("/")) {
+            safeOutputDir = ".";
+            logger.warning("outputDir is invalid (" + this.outputDir + "), using current directory");
+            SolverLogger.warning("CLS: outputDir is invalid; using current directory.");
+        }
+        
+        File outputDirFile = new File(safeOutputDir);
+        if (!outputDirFile.exists()) {
+            outputDirFile.mkdirs();
+            logger.info("Created output directory: " + outputDirFile.getAbsolutePath());
+            SolverLogger.info("CLS: Created output directory: " + outputDirFile.getAbsolutePath());
+        }
+        
+        logger.info("Saving triple differences: useBinaryFormat=" + this.useBinaryFormat + ", clusterId=" + clusterId);
+        SolverLogger.info("CLS: Saving triple differences for cluster " + clusterId + " (" + (this.useBinaryFormat ? "binary" : "CSV") + ").");
+        
+        if (this.useBinaryFormat) {
+            File outputFile = new File(safeOutputDir, "triple_diff_" + clusterId + ".bin");
+            logger.info("Writing triple differences (binary) to: " + outputFile.getAbsolutePath());
+            return TripleDifferenceIO.openBinaryWriter(outputFile, clusterId, count, true, lastDistKm, maxPairDistKm);
         }
+        File outputFile = new File(safeOutputDir, "triple_diff_" + clusterId + ".csv");
+        logger.info("Writing triple differences (CSV) to: " + outputFile.getAbsolutePath());
+        return TripleDifferenceIO.openCSVWriter(outputFile);
     }
     
+    /**
+     * Receives the progress of catalog loading.
+     */
+    public interface LoadProgressListener {
+        /**
+         * Called after each batch of .dat files is parsed, possibly from a worker thread of the shared pool.
+         *
+         * @param loaded number of catalog events processed so far
+         * @param total number of catalog events (after filtering)
+         */
+        void onProgress(int loaded, int total);
+    }
+
+    /**
+     * Sets the listener for the progress of catalog loading (.dat parsing).
+     *
+     * @param listener the listener, or null for none
+     */
+    public void setLoadProgressListener(LoadProgressListener listener) {
+        this.loadProgressListener = listener;
+    }
+
     /**
      * Loads points from a catalog file.
      * 
@@ -973,9 +1821,9 @@ public class SpatialClustering extends SolverBase {
                 totalBeforeFilter, filteredHypocenters.size(), filteredByRms, filteredByLocErr));
         }
         
-        // Convert Hypocenter to Point and load lag tables from .dat files
-        int pointsWithLagTable = 0;
-        int pointsWithoutLagTable = 0;
+        // Convert Hypocenter to Point and resolve the .dat files against one listing per candidate directory
+        DirectoryIndex directoryIndex = new DirectoryIndex();
+        File[] datFiles = new File[filteredHypocenters.size()];
         for (Hypocenter h : filteredHypocenters) {
             if (Thread.currentThread().isInterrupted()) throw new RuntimeException("Cancelled");
             int cid = (h.clusterId != null && h.clusterId >= 0) ? h.clusterId : -1;
@@ -984,114 +1832,62 @@ public class SpatialClustering extends SolverBase {
                 h.xerr, h.yerr, h.zerr, h.rms,
                 h.datFilePath != null ? h.datFilePath : "", h.type != null ? h.type : "", cid
             );
-            
-            // Try to load lag table from corresponding .dat file
-            File datFile = null;
-            
-            // First, try in target directory (if specified) - this is the primary search location
-            if (this.targetDir != null && !this.targetDir.isEmpty()) {
-                File targetDirFile = new File(this.targetDir);
-                if (targetDirFile.exists() && targetDirFile.isDirectory()) {
-                    // Try using datFilePath if available
-                    if (h.datFilePath != null && !h.datFilePath.isEmpty()) {
-                        String datFilePath = h.datFilePath;
-                        if (!datFilePath.endsWith(".dat")) {
-                            datFilePath = datFilePath + ".dat";
-                        }
-                        datFile = new File(targetDirFile, datFilePath);
-                    }
-                    // If not found, try constructing from time
-                    if ((datFile == null || !datFile.exists())) {
-                        String datFileName = TimeFormatConverter.toYymmddHhmmss(h.time) + ".dat";
-                        datFile = new File(targetDirFile, datFileName);
-                    }
-                }
-            }
-            
-            // If not found in target directory, try using datFilePath if available (relative path from catalog)
-            if ((datFile == null || !datFile.exists()) && h.datFilePath != null && !h.datFilePath.isEmpty()) {
-                File catalogDir = file.getParentFile();
-                String datFilePath = h.datFilePath;
-                if (!datFilePath.endsWith(".dat")) {
-                    datFilePath = datFilePath + ".dat";
-                }
-                // First, try in original catalog file's directory (where .dat files are usually located)
-                File originalCatalogDir = new File(this.catalogFile).getParentFile();
-                if (originalCatalogDir != null && originalCatalogDir.exists()) {
-                    datFile = new File(originalCatalogDir, datFilePath);
-                }
-                // If not found, try in current catalog file's directory
-                if ((datFile == null || !datFile.exists()) && catalogDir != null) {
-                    datFile = new File(catalogDir, datFilePath);
-                }
-                // If still not found, try as absolute path
-                if (datFile == null || !datFile.exists()) {
-                    datFile = new File(datFilePath);
-                }
-            }
-            
-            if (datFile == null || !datFile.exists()) {
-                String datFileName = TimeFormatConverter.toYymmddHhmmss(h.time) + ".dat";
-                // First, try in original catalog file's directory (where .dat files are usually located)
-                File originalCatalogDir = new File(this.catalogFile).getParentFile();
-                if (originalCatalogDir != null && originalCatalogDir.exists()) {
-                    datFile = new File(originalCatalogDir, datFileName);
-                }
-                // If not found, try in current catalog file's directory
-                if ((datFile == null || !datFile.exists()) && file.getParentFile() != null) {
-                    File catalogDir = file.getParentFile();
-                    datFile = new File(catalogDir, datFileName);
-                }
-                // If still not found, try as absolute path
-                if (datFile == null || !datFile.exists()) {
-                    datFile = new File(datFileName);
-                }
-            }
-            
-            // If still not found, try in current directory
-            if (datFile == null || !datFile.exists()) {
-                String datFileName = TimeFormatConverter.toYymmddHhmmss(h.time) + ".dat";
-                datFile = new File(datFileName);
-            }
-            
-            // If still not found, try in output directory (for CLS mode)
-            if (datFile == null || !datFile.exists()) {
-                String datFileName = TimeFormatConverter.toYymmddHhmmss(h.time) + ".dat";
-                File outputDirFile = new File(this.outputDir);
-                if (outputDirFile.exists() && outputDirFile.isDirectory()) {
-                    datFile = new File(outputDirFile, datFileName);
-                }
-            }
-            
-            if (datFile != null && datFile.exists()) {
+            datFiles[points.size()] = resolveDatFile(h, file, directoryIndex);
+            points.add(point);
+        }
+
+        // Parse the .dat files in parallel; messages are logged afterwards in catalog order
+        boolean[] found = new boolean[datFiles.length];
+        for (int i = 0; i < datFiles.length; i++) {
+            found[i] = datFiles[i] != null && directoryIndex.exists(datFiles[i]);
+        }
+        String[] warnings = new String[datFiles.length];
+        Thread caller = Thread.currentThread();
+        LoadProgressListener progress = this.loadProgressListener;
+        java.util.concurrent.atomic.AtomicInteger loaded = new java.util.concurrent.atomic.AtomicInteger();
+        int partitions = (datFiles.length + DAT_LOAD_CHUNK - 1) / DAT_LOAD_CHUNK;
+        SharedComputePool.forEachPartition(datFiles.length, partitions, (part, from, to) -> {
+            for (int i = from; i < to; i++) {
+                if (caller.isInterrupted()) throw new RuntimeException("Cancelled");
+                if (!found[i]) continue;
+                File datFile = datFiles[i];
                 try {
                     com.treloc.xtreloc.solver.PointsHandler handler = new com.treloc.xtreloc.solver.PointsHandler();
                     handler.readDatFile(datFile.getAbsolutePath(), codeStrings, threshold);
                     Point datPoint = handler.getMainPoint();
                     if (datPoint != null && datPoint.getLagTable() != null) {
-                        point.setLagTable(datPoint.getLagTable());
-                        point.setUsedIdx(datPoint.getUsedIdx());
-                        pointsWithLagTable++;
+                        points.get(i).setLagTable(datPoint.getLagTable());
+                        points.get(i).setUsedIdx(datPoint.getUsedIdx());
                     } else {
-                        pointsWithoutLagTable++;
-                        String warningMsg = "Lag table is null for " + datFile.getName();
-                        logger.warning(warningMsg);
-                        SolverLogger.warning("CLS: " + warningMsg);
+                        warnings[i] = "Lag table is null for " + datFile.getName();
                     }
                 } catch (Exception e) {
-                    pointsWithoutLagTable++;
-                    String warningMsg = "Failed to load lag table from " + datFile.getAbsolutePath() + ": " + e.getMessage();
-                    logger.warning(warningMsg);
-                    SolverLogger.warning("CLS: " + warningMsg);
+                    warnings[i] = "Failed to load lag table from " + datFile.getAbsolutePath() + ": " + e.getMessage();
                 }
-            } else {
+            }
+            int done = loaded.addAndGet(to - from);
+            logger.fine("Loaded .dat files: " + done + "/" + datFiles.length);
+            if (progress != null) {
+                progress.onProgress(done, datFiles.length);
+            }
+        });
+        if (Thread.currentThread().isInterrupted()) throw new RuntimeException("Cancelled");
+
+        int pointsWithLagTable = 0;
+        int pointsWithoutLagTable = 0;
+        for (int i = 0; i < datFiles.length; i++) {
+            if (!found[i]) {
                 pointsWithoutLagTable++;
-                String warningMsg = "Dat file not found for time=" + h.time + " (tried: " + 
-                             (datFile != null ? datFile.getAbsolutePath() : "null") + ")";
+                String warningMsg = "Dat file not found for time=" + filteredHypocenters.get(i).time + " (tried: " +
+                             (datFiles[i] != null ? datFiles[i].getAbsolutePath() : "null") + ")";
                 logger.warning(warningMsg);
+            } else if (warnings[i] != null) {
+                pointsWithoutLagTable++;
+                logger.warning(warnings[i]);
+                SolverLogger.warning("CLS: " + warnings[i]);
+            } else {
+                pointsWithLagTable++;
             }
-            
-            points.add(point);
         }
 
         if (logSummary) {
@@ -1105,6 +1901,126 @@ public class SpatialClustering extends SolverBase {
         return loadPointsFromCatalog(catalogFile, true);
     }
 
+    /**
+     * Finds the .dat file of a catalog event. Candidates are tried in this order: the target directory
+     * (catalog file name, then the name derived from the origin time), the catalog file name in the original
+     * catalog's directory, the current catalog's directory and as given, then the time-derived name in those
+     * places, and finally the time-derived name in the output directory.
+     *
+     * @param h catalog event
+     * @param catalog the catalog file being loaded
+     * @param index directory listings for the existence checks
+     * @return the first existing candidate, or the last one tried when none exists
+     */
+    private File resolveDatFile(Hypocenter h, File catalog, DirectoryIndex index) {
+        String datFilePath = null;
+        if (h.datFilePath != null && !h.datFilePath.isEmpty()) {
+            datFilePath = h.datFilePath.endsWith(".dat") ? h.datFilePath : h.datFilePath + ".dat";
+        }
+        String timeFileName = TimeFormatConverter.toYymmddHhmmss(h.time) + ".dat";
+        File originalCatalogDir = new File(this.catalogFile).getParentFile();
+        if (originalCatalogDir != null && !index.isDirectory(originalCatalogDir)) {
+            originalCatalogDir = null;
+        }
+        File catalogDir = catalog.getParentFile();
+
+        List<File> candidates = new ArrayList<>();
+        if (this.targetDir != null && !this.targetDir.isEmpty() && index.isDirectory(new File(this.targetDir))) {
+            File targetDirFile = new File(this.targetDir);
+            if (datFilePath != null) {
+                candidates.add(new File(targetDirFile, datFilePath));
+            }
+            candidates.add(new File(targetDirFile, timeFileName));
+        }
+        if (datFilePath != null) {
+            if (originalCatalogDir != null) {
+                candidates.add(new File(originalCatalogDir, datFilePath));
+            }
+            if (catalogDir != null) {
+                candidates.add(new File(catalogDir, datFilePath));
+            }
+            candidates.add(new File(datFilePath));
+        }
+        if (originalCatalogDir != null) {
+            candidates.add(new File(originalCatalogDir, timeFileName));
+        }
+        if (catalogDir != null) {
+            candidates.add(new File(catalogDir, timeFileName));
+        }
+        candidates.add(new File(timeFileName));
+        if (this.outputDir != null && index.isDirectory(new File(this.outputDir))) {
+            candidates.add(new File(this.outputDir, timeFileName));
+        }
+        for (File candidate : candidates) {
+            if (index.exists(candidate)) {
+                return candidate;
+            }
+        }
+        return candidates.get(candidates.size() - 1);
+    }
+
+    /**
+     * Existence checks against directory listings. Each directory is listed once, so resolving the .dat
+     * files of a whole catalog costs a few listings instead of several stat calls per event (slow on network
+     * file systems). Not thread-safe.
+     */
+    static final class DirectoryIndex {
+        /** File names per absolute directory; null when the directory cannot be listed. */
+        private final Map<File, Set<String>> names = new HashMap<>();
+        /** Lower-case file names per directory, for file systems that ignore case. */
+        private final Map<File, Set<String>> lowerCaseNames = new HashMap<>();
+        /** Directories that exist but cannot be listed. */
+        private final Set<File> unlisted = new HashSet<>();
+
+        /** @return true if the file (or directory) exists, as {@link File#exists()} */
+        boolean exists(File file) {
+            File dir = file.getAbsoluteFile().getParentFile();
+            if (dir == null) {
+                return file.exists(); // file system root
+            }
+            Set<String> listed = listing(dir);
+            if (listed == null) {
+                // Not a directory, or not readable: a listing cannot decide (a file may still be accessible).
+                return index(dir) && file.exists();
+            }
+            String name = file.getName();
+            if (listed.contains(name)) {
+                return true;
+            }
+            // Found under another case: exists only on a case-insensitive file system.
+            return lowerCaseNames.get(dir).contains(name.toLowerCase(java.util.Locale.ROOT)) && file.exists();
+        }
+
+        /** @return true if the path is a directory, as {@link File#isDirectory()} */
+        boolean isDirectory(File dir) {
+            return index(dir.getAbsoluteFile());
+        }
+
+        private boolean index(File dir) {
+            return listing(dir) != null || unlisted.contains(dir);
+        }
+
+        private Set<String> listing(File dir) {
+            if (names.containsKey(dir)) {
+                return names.get(dir);
+            }
+            String[] list = dir.list();
+            Set<String> listed = null;
+            if (list != null) {
+                listed = new HashSet<>(Arrays.asList(list));
+                Set<String> lower = new HashSet<>();
+                for (String name : list) {
+                    lower.add(name.toLowerCase(java.util.Locale.ROOT));
+                }
+                lowerCaseNames.put(dir, lower);
+            } else if (dir.isDirectory()) {
+                unlisted.add(dir);
+            }
+            names.put(dir, listed);
+            return listed;
+        }
+    }
+
     /**
      * Loads points from a catalog file filtered by cluster ID.
      * 
@@ -1122,6 +2038,24 @@ public class SpatialClustering extends SolverBase {
             .filter(p -> p.getCid() == clusterId)
             .collect(Collectors.toList());
     }
+
+    /**
+     * Loads a catalog file once and groups its points by cluster ID.
+     * Use this instead of repeated {@link #loadPointsFromCatalogByCluster(String, int)} calls when
+     * several clusters are needed, since each of those calls re-parses the catalog and re-reads the .dat files.
+     *
+     * @param catalogFile the catalog file path
+     * @return points (with lag tables) per cluster ID, in ascending ID order; noise is under ID 0,
+     *         points without a cluster ID under -1. Points keep their catalog order within a cluster.
+     * @throws IOException if I/O error occurs
+     */
+    public java.util.TreeMap<Integer, List<Point>> loadClusterIndex(String catalogFile) throws IOException {
+        java.util.TreeMap<Integer, List<Point>> index = new java.util.TreeMap<>();
+        for (Point p : loadPointsFromCatalog(catalogFile, false)) {
+            index.computeIfAbsent(p.getCid(), k -> new ArrayList<>()).add(p);
+        }
+        return index;
+    }
     
     /**
      * Writes points to a catalog file with cluster IDs.
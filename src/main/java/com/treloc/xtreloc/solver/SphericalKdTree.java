@@ -0,0 +1,320 @@
+package com.treloc.xtreloc.solver;
+
+import java.util.Arrays;
+
+import com.treloc.xtreloc.util.SharedComputePool;
+
+/**
+ * Static k-d tree over geographic points for nearest-neighbour queries in great-circle distance.
+ *
+ * <p>Points are stored as unit vectors, where the chord length is a monotonic function of the great-circle
+ * angle, so the tree can prune with plain Euclidean bounds and still rank neighbours exactly as
+ * {@link HaversineDistance} does. The tree is implicit: a permutation of the points where the median of
+ * each range {@code [lo, hi)} sits at {@code (lo + hi) / 2} and splits the range on its widest axis; ranges
+ * of at most {@value #LEAF_SIZE} points are scanned. Building takes O(N log N), a k-nearest query about
+ * O(k log N) and a radius query about O(log N + m) for m results. Queries only read the tree and may run
+ * concurrently.
+ *
+ * @author xTreLoc Development Team
+ * @version 1.0
+ */
+final class SphericalKdTree {
+
+    private static final double EARTH_RADIUS_KM = 6371.0;
+    private static final int LEAF_SIZE = 8;
+
+    /** Growable list of point indices, reused across queries by one thread. */
+    static final class IntList {
+        int[] data = new int[16];
+        int size;
+
+        void add(int value) {
+            if (size == data.length) {
+                data = Arrays.copyOf(data, data.length + (data.length >> 1));
+            }
+            data[size++] = value;
+        }
+
+        void clear() {
+            size = 0;
+        }
+    }
+
+    private final double[] lat;
+    private final double[] lon;
+    /** Unit vectors, {@code xyz[3 * i + axis]} for point i (input order). */
+    private final double[] xyz;
+    /** Point indices in tree order. */
+    private final int[] order;
+    /** Split axis of the node whose median sits at each tree position. */
+    private final byte[] axis;
+
+    /**
+     * Builds the tree.
+     *
+     * @param lat latitudes in degrees
+     * @param lon longitudes in degrees
+     */
+    SphericalKdTree(double[] lat, double[] lon) {
+        if (lat.length != lon.length) {
+            throw new IllegalArgumentException("lat and lon must have the same length");
+        }
+        int n = lat.length;
+        this.lat = lat;
+        this.lon = lon;
+        xyz = new double[3 * n];
+        order = new int[n];
+        axis = new byte[n];
+        for (int i = 0; i < n; i++) {
+            double phi = Math.toRadians(lat[i]);
+            double lambda = Math.toRadians(lon[i]);
+            double cosPhi = Math.cos(phi);
+            xyz[3 * i] = cosPhi * Math.cos(lambda);
+            xyz[3 * i + 1] = cosPhi * Math.sin(lambda);
+            xyz[3 * i + 2] = Math.sin(phi);
+            order[i] = i;
+        }
+        build(0, n);
+    }
+
+    /** Number of points. */
+    int size() {
+        return order.length;
+    }
+
+    /**
+     * Squared chord length between unit vectors at a great-circle distance, for radius queries.
+     *
+     * @param km great-circle distance (km)
+     */
+    static double kmToChord2(double km) {
+        double angle = Math.min(Math.PI, km / EARTH_RADIUS_KM);
+        double chord = 2.0 * Math.sin(angle / 2.0);
+        return chord * chord;
+    }
+
+    /**
+     * Appends the other points within a squared chord length of a point of the tree, in tree order.
+     *
+     * @param query index of the query point (excluded from the result)
+     * @param maxChord2 squared chord length limit (inclusive)
+     * @param out receives the point indices
+     */
+    void within(int query, double maxChord2, IntList out) {
+        within(0, order.length, query, xyz[3 * query], xyz[3 * query + 1], xyz[3 * query + 2], maxChord2, out);
+    }
+
+    /**
+     * Finds the k nearest other points of a point of the tree.
+     *
+     * @param query index of the query point (excluded from the result)
+     * @param k number of neighbours (&gt; 0)
+     * @param outIndex receives the neighbour indices, length &ge; k
+     * @param outChord2 receives their squared chord lengths, length &ge; k; on return a max-heap, so
+     *        {@code outChord2[0]} is the k-th smallest
+     * @return number of neighbours found ({@code min(k, size() - 1)})
+     */
+    int nearest(int query, int k, int[] outIndex, double[] outChord2) {
+        if (k <= 0) {
+            throw new IllegalArgumentException("k must be positive: " + k);
+        }
+        double qx = xyz[3 * query];
+        double qy = xyz[3 * query + 1];
+        double qz = xyz[3 * query + 2];
+        int[] count = { 0 };
+        search(0, order.length, query, qx, qy, qz, k, outIndex, outChord2, count);
+        return count[0];
+    }
+
+    /**
+     * Distance (km, {@link HaversineDistance}) to the k-th nearest other point of every point, in input order;
+     * NaN where there are fewer than k other points.
+     *
+     * @param k neighbour rank (&gt; 0)
+     * @param partitions number of parallel partitions (1 = sequential)
+     */
+    double[] kthNeighbourKm(int k, int partitions) {
+        if (k <= 0) {
+            throw new IllegalArgumentException("k must be positive: " + k);
+        }
+        int n = order.length;
+        double[] result = new double[n];
+        SharedComputePool.forEachPartition(n, partitions, (part, from, to) -> {
+            HaversineDistance distance = new HaversineDistance();
+            int[] idx = new int[k];
+            double[] d2 = new double[k];
+            double[] a = new double[2];
+            double[] b = new double[2];
+            for (int i = from; i < to; i++) {
+                if (nearest(i, k, idx, d2) < k) {
+                    result[i] = Double.NaN;
+                    continue;
+                }
+                // The distance itself comes from the haversine formula, so the result matches a brute-force
+                // scan; the largest of the k nearest is the k-th smallest.
+                a[0] = lat[i];
+                a[1] = lon[i];
+                double kth = 0.0;
+                for (int j = 0; j < k; j++) {
+                    b[0] = lat[idx[j]];
+                    b[1] = lon[idx[j]];
+                    kth = Math.max(kth, distance.compute(a, b));
+                }
+                result[i] = kth;
+            }
+        });
+        return result;
+    }
+
+    private void build(int lo, int hi) {
+        if (hi - lo <= LEAF_SIZE) {
+            return;
+        }
+        double[] min = { Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY };
+        double[] max = { Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY };
+        for (int t = lo; t < hi; t++) {
+            int base = 3 * order[t];
+            for (int a = 0; a < 3; a++) {
+                double v = xyz[base + a];
+                if (v < min[a]) min[a] = v;
+                if (v > max[a]) max[a] = v;
+            }
+        }
+        int a = 0;
+        for (int c = 1; c < 3; c++) {
+            if (max[c] - min[c] > max[a] - min[a]) a = c;
+        }
+        int mid = (lo + hi) >>> 1;
+        select(lo, hi - 1, mid, a);
+        axis[mid] = (byte) a;
+        build(lo, mid);
+        build(mid + 1, hi);
+    }
+
+    /** Quickselect on {@code order[lo..hi]} by coordinate {@code a} so that position k holds its rank. */
+    private void select(int lo, int hi, int k, int a) {
+        while (hi > lo) {
+            double pivot = key(order[(lo + hi) >>> 1], a);
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (key(order[i], a) < pivot) i++;
+                while (key(order[j], a) > pivot) j--;
+                if (i <= j) {
+                    int tmp = order[i];
+                    order[i] = order[j];
+                    order[j] = tmp;
+                    i++;
+                    j--;
+                }
+            }
+            if (k <= j) {
+                hi = j;
+            } else if (k >= i) {
+                lo = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private double key(int point, int a) {
+        return xyz[3 * point + a];
+    }
+
+    private void within(int lo, int hi, int query, double qx, double qy, double qz, double maxChord2, IntList out) {
+        if (hi - lo <= LEAF_SIZE) {
+            for (int t = lo; t < hi; t++) {
+                int p = order[t];
+                if (p != query && chord2(p, qx, qy, qz) <= maxChord2) {
+                    out.add(p);
+                }
+            }
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        int p = order[mid];
+        if (p != query && chord2(p, qx, qy, qz) <= maxChord2) {
+            out.add(p);
+        }
+        int a = axis[mid];
+        double diff = (a == 0 ? qx : a == 1 ? qy : qz) - xyz[3 * p + a];
+        if (diff <= 0 || diff * diff <= maxChord2) {
+            within(lo, mid, query, qx, qy, qz, maxChord2, out);
+        }
+        if (diff >= 0 || diff * diff <= maxChord2) {
+            within(mid + 1, hi, query, qx, qy, qz, maxChord2, out);
+        }
+    }
+
+    private double chord2(int p, double qx, double qy, double qz) {
+        double dx = xyz[3 * p] - qx;
+        double dy = xyz[3 * p + 1] - qy;
+        double dz = xyz[3 * p + 2] - qz;
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    private void search(int lo, int hi, int query, double qx, double qy, double qz, int k,
+                        int[] heapIndex, double[] heapChord2, int[] count) {
+        if (hi - lo <= LEAF_SIZE) {
+            for (int t = lo; t < hi; t++) {
+                offer(order[t], query, qx, qy, qz, k, heapIndex, heapChord2, count);
+            }
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        int p = order[mid];
+        offer(p, query, qx, qy, qz, k, heapIndex, heapChord2, count);
+        int a = axis[mid];
+        double diff = (a == 0 ? qx : a == 1 ? qy : qz) - xyz[3 * p + a];
+        if (diff < 0) {
+            search(lo, mid, query, qx, qy, qz, k, heapIndex, heapChord2, count);
+            if (count[0] < k || diff * diff < heapChord2[0]) {
+                search(mid + 1, hi, query, qx, qy, qz, k, heapIndex, heapChord2, count);
+            }
+        } else {
+            search(mid + 1, hi, query, qx, qy, qz, k, heapIndex, heapChord2, count);
+            if (count[0] < k || diff * diff < heapChord2[0]) {
+                search(lo, mid, query, qx, qy, qz, k, heapIndex, heapChord2, count);
+            }
+        }
+    }
+
+    /** Adds a candidate to the bounded max-heap of the k nearest points. */
+    private void offer(int p, int query, double qx, double qy, double qz, int k,
+                       int[] heapIndex, double[] heapChord2, int[] count) {
+        if (p == query) {
+            return;
+        }
+        double d2 = chord2(p, qx, qy, qz);
+        int n = count[0];
+        if (n < k) {
+            // Sift up.
+            int i = n;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (heapChord2[parent] >= d2) break;
+                heapChord2[i] = heapChord2[parent];
+                heapIndex[i] = heapIndex[parent];
+                i = parent;
+            }
+            heapChord2[i] = d2;
+            heapIndex[i] = p;
+            count[0] = n + 1;
+        } else if (d2 < heapChord2[0]) {
+            // Replace the root and sift down.
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= k) break;
+                if (child + 1 < k && heapChord2[child + 1] > heapChord2[child]) child++;
+                if (heapChord2[child] <= d2) break;
+                heapChord2[i] = heapChord2[child];
+                heapIndex[i] = heapIndex[child];
+                i = child;
+            }
+            heapChord2[i] = d2;
+            heapIndex[i] = p;
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package com.treloc.xtreloc.solver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.ArrayRealVector;
+import org.apache.commons.math3.linear.CholeskyDecomposition;
+import org.apache.commons.math3.linear.DecompositionSolver;
+
+/**
+ * Spatial domain decomposition of a large TRD cluster into overlapping blocks.
+ *
+ * <p>The events are split by recursive median bisection along the wider horizontal extent until each block
+ * holds at most a given number of target events (its core). Each block is then extended by the events within
+ * an overlap distance of the core's bounding box (its halo), so that events near a block boundary keep their
+ * neighbours. Blocks are relocated independently; since each block solution is only determined up to a
+ * shift of the block as a whole, {@link #shifts} estimates one rigid shift per block from the events that
+ * were relocated in more than one block.
+ *
+ * @author xTreLoc Development Team
+ * @version 1.0
+ */
+final class TrdBlockDecomposition {
+
+    /** One block: core events (owned by this block) and all members (core and halo), both ascending. */
+    static final class Block {
+        final int[] core;
+        final int[] members;
+
+        Block(int[] core, int[] members) {
+            this.core = core;
+            this.members = members;
+        }
+    }
+
+    /** Reweighting passes of the shift estimation. */
+    private static final int IRLS_ITERATIONS = 10;
+    /**
+     * Weight of the zero-shift prior of a block whose links all misfit badly, relative to a weight of at most 1
+     * per link. The prior of a block fades out as the weights of its links add up to that of one well-fitting
+     * link, so it holds a block that only a few badly misfitting links would drag along, but does not bias the
+     * shifts estimated from a small overlap.
+     */
+    private static final double RIDGE = 1.0;
+    /** Prior weight left on a well-linked block; it only fixes the common shift of a group of linked blocks. */
+    private static final double MIN_RIDGE = 1e-6;
+
+    private TrdBlockDecomposition() {
+    }
+
+    /**
+     * Splits the events into blocks.
+     *
+     * @param x east coordinate of each event (km)
+     * @param y north coordinate of each event (km)
+     * @param isTarget whether each event is relocated (only targets count towards the block size)
+     * @param maxTargets maximum number of target events in a block core (&gt; 0)
+     * @param overlapKm halo width around each core's bounding box (km)
+     * @return blocks whose cores partition all events
+     */
+    static List<Block> partition(double[] x, double[] y, boolean[] isTarget, int maxTargets, double overlapKm) {
+        if (maxTargets <= 0) {
+            throw new IllegalArgumentException("maxTargets must be positive: " + maxTargets);
+        }
+        int n = x.length;
+        List<int[]> cores = new ArrayList<>();
+        int[] all = new int[n];
+        for (int i = 0; i < n; i++) {
+            all[i] = i;
+        }
+        split(all, x, y, isTarget, maxTargets, cores);
+
+        List<Block> blocks = new ArrayList<>(cores.size());
+        for (int[] core : cores) {
+            Arrays.sort(core);
+            double minX = Double.POSITIVE_INFINITY, maxX = Double.NEGATIVE_INFINITY;
+            double minY = Double.POSITIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+            for (int e : core) {
+                minX = Math.min(minX, x[e]);
+                maxX = Math.max(maxX, x[e]);
+                minY = Math.min(minY, y[e]);
+                maxY = Math.max(maxY, y[e]);
+            }
+            minX -= overlapKm;
+            maxX += overlapKm;
+            minY -= overlapKm;
+            maxY += overlapKm;
+            int[] members = new int[n];
+            int count = 0;
+            for (int e = 0; e < n; e++) {
+                if (x[e] >= minX && x[e] <= maxX && y[e] >= minY && y[e] <= maxY) {
+                    members[count++] = e;
+                }
+            }
+            blocks.add(new Block(core, Arrays.copyOf(members, count)));
+        }
+        return blocks;
+    }
+
+    private static void split(int[] idx, double[] x, double[] y, boolean[] isTarget, int maxTargets, List<int[]> out) {
+        int targets = 0;
+        double minX = Double.POSITIVE_INFINITY, maxX = Double.NEGATIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+        for (int e : idx) {
+            if (isTarget[e]) targets++;
+            minX = Math.min(minX, x[e]);
+            maxX = Math.max(maxX, x[e]);
+            minY = Math.min(minY, y[e]);
+            maxY = Math.max(maxY, y[e]);
+        }
+        if (targets <= maxTargets || idx.length < 2) {
+            out.add(idx);
+            return;
+        }
+        double[] coord = maxX - minX >= maxY - minY ? x : y;
+        Integer[] sorted = new Integer[idx.length];
+        for (int k = 0; k < idx.length; k++) {
+            sorted[k] = idx[k];
+        }
+        Arrays.sort(sorted, Comparator.comparingDouble((Integer e) -> coord[e]).thenComparingInt(e -> e));
+        // Split at the median target so both halves get about the same number of unknowns.
+        int half = targets / 2;
+        int cut = 0;
+        for (int seen = 0; cut < sorted.length && seen < half; cut++) {
+            if (isTarget[sorted[cut]]) seen++;
+        }
+        cut = Math.max(1, Math.min(sorted.length - 1, cut));
+        int[] left = new int[cut];
+        int[] right = new int[sorted.length - cut];
+        for (int k = 0; k < sorted.length; k++) {
+            if (k < cut) {
+                left[k] = sorted[k];
+            } else {
+                right[k - cut] = sorted[k];
+            }
+        }
+        split(left, x, y, isTarget, maxTargets, out);
+        split(right, x, y, isTarget, maxTargets, out);
+    }
+
+    /**
+     * Estimates one shift per block that aligns the events relocated in several blocks. For each event, every
+     * pair of consecutive blocks a, b containing it gives a link with residual {@code (p_a + s_a) - (p_b + s_b)};
+     * the shifts minimize the Cauchy loss of the link residuals plus a zero-shift prior on the blocks, by
+     * iteratively reweighted least squares. Links much longer than {@code scaleKm} (an event placed far apart
+     * by two blocks, e.g. because one block did not converge) get almost no weight, so a failed block does
+     * not move the others, and the prior keeps a block with only such links in place. The prior of a block
+     * with well-fitting links is negligible: within each group of such blocks the shifts sum to zero, and
+     * the differences between them follow the links. A block without links keeps a zero shift.
+     *
+     * @param numEvents number of events in the cluster
+     * @param blocks the blocks
+     * @param positions {@code positions[b][k]} = (x, y, z) in km of member k of block b after relocation
+     * @param valid {@code valid[b][k]} whether that position may be used (relocated and not ERR)
+     * @param scaleKm residual scale of the Cauchy loss (km)
+     * @return {@code shifts[b]} = (dx, dy, dz) in km to add to the positions of block b
+     */
+    static double[][] shifts(int numEvents, List<Block> blocks, double[][][] positions, boolean[][] valid,
+                             double scaleKm) {
+        int nb = blocks.size();
+        double[][] shifts = new double[nb][3];
+        if (nb < 2) {
+            return shifts;
+        }
+        // Links as (a, b, d) with d = p_a - p_b, so the residual is s_a - s_b + d.
+        int[] lastBlock = new int[numEvents];
+        int[] lastMember = new int[numEvents];
+        Arrays.fill(lastBlock, -1);
+        List<double[]> links = new ArrayList<>();
+        for (int b = 0; b < nb; b++) {
+            int[] members = blocks.get(b).members;
+            for (int k = 0; k < members.length; k++) {
+                if (!valid[b][k]) {
+                    continue;
+                }
+                int e = members[k];
+                int a = lastBlock[e];
+                if (a >= 0) {
+                    double[] pa = positions[a][lastMember[e]];
+                    double[] pb = positions[b][k];
+                    links.add(new double[] { a, b, pa[0] - pb[0], pa[1] - pb[1], pa[2] - pb[2] });
+                }
+                lastBlock[e] = b;
+                lastMember[e] = k;
+            }
+        }
+        if (links.isEmpty()) {
+            return shifts;
+        }
+        double scale = Math.max(scaleKm, 1e-3);
+        for (int iter = 0; iter < IRLS_ITERATIONS; iter++) {
+            double[][] normal = new double[nb][nb];
+            double[][] rhs = new double[3][nb];
+            double[] linkWeight = new double[nb];
+            for (double[] link : links) {
+                int a = (int) link[0];
+                int b = (int) link[1];
+                double r2 = 0.0;
+                for (int c = 0; c < 3; c++) {
+                    double r = shifts[a][c] - shifts[b][c] + link[2 + c];
+                    r2 += r * r;
+                }
+                double w = 1.0 / (1.0 + r2 / (scale * scale));
+                normal[a][a] += w;
+                normal[b][b] += w;
+                normal[a][b] -= w;
+                normal[b][a] -= w;
+                linkWeight[a] += w;
+                linkWeight[b] += w;
+                for (int c = 0; c < 3; c++) {
+                    rhs[c][a] -= w * link[2 + c];
+                    rhs[c][b] += w * link[2 + c];
+                }
+            }
+            for (int i = 0; i < nb; i++) {
+                normal[i][i] += RIDGE * Math.max(1.0 - linkWeight[i], MIN_RIDGE);
+                for (int j = 0; j < nb; j++) {
+                    normal[i][j] += RIDGE / nb;
+                }
+            }
+            // Weighted graph Laplacian plus prior: symmetric positive definite.
+            DecompositionSolver solver = new CholeskyDecomposition(new Array2DRowRealMatrix(normal, false)).getSolver();
+            for (int c = 0; c < 3; c++) {
+                double[] s = solver.solve(new ArrayRealVector(rhs[c], false)).toArray();
+                for (int b = 0; b < nb; b++) {
+                    shifts[b][c] = s[b];
+                }
+            }
+        }
+        return shifts;
+    }
+}
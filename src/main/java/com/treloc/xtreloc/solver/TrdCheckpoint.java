@@ -0,0 +1,173 @@
+package com.treloc.xtreloc.solver;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+/**
+ * Per-cluster checkpoint of a TRD relocation, written after each completed stage.
+ *
+ * <p>Holds the point states (position, errors, RMS, type) and the target mapping after the completed stage;
+ * each stage starts its solution from zero, so nothing else is needed to continue. A checkpoint is only
+ * restored when its fingerprint (parameters and input data) and point count match the current run. Binary
+ * layout (big-endian): magic TCK2, cluster ID, fingerprint, completed stages, complete flag, point count,
+ * per point lon/lat/dep/elon/elat/edep/res and type, and targMap. TCK1 files, which also held the last
+ * solution vector, are not read.
+ *
+ * @author xTreLoc Development Team
+ * @version 1.0
+ */
+final class TrdCheckpoint {
+
+    /** Magic number: "TCK2" in ASCII. */
+    private static final int MAGIC = 0x54434B32;
+
+    final int clusterId;
+    final long fingerprint;
+    /** Number of stages completed (the next stage to run). */
+    final int completedStages;
+    /** True once the cluster is finished, including the final RMS. */
+    final boolean complete;
+    final double[][] states;
+    final String[] types;
+    final int[] targMap;
+
+    private TrdCheckpoint(int clusterId, long fingerprint, int completedStages, boolean complete,
+                          double[][] states, String[] types, int[] targMap) {
+        this.clusterId = clusterId;
+        this.fingerprint = fingerprint;
+        this.completedStages = completedStages;
+        this.complete = complete;
+        this.states = states;
+        this.types = types;
+        this.targMap = targMap;
+    }
+
+    /**
+     * Returns the checkpoint file of a cluster.
+     *
+     * @param dir output directory
+     * @param clusterId cluster ID
+     * @return {@code <dir>/trd_checkpoint_<clusterId>.bin}
+     */
+    static File fileFor(File dir, int clusterId) {
+        return new File(dir, "trd_checkpoint_" + clusterId + ".bin");
+    }
+
+    /**
+     * Writes a checkpoint through a temporary file and a rename, so an interrupted write never replaces
+     * the previous checkpoint with a truncated one.
+     */
+    static void write(File file, int clusterId, long fingerprint, int completedStages, boolean complete,
+                      List<Point> points, int[] targMap) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream dos = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+            dos.writeInt(MAGIC);
+            dos.writeInt(clusterId);
+            dos.writeLong(fingerprint);
+            dos.writeInt(completedStages);
+            dos.writeBoolean(complete);
+            dos.writeInt(points.size());
+            for (Point p : points) {
+                dos.writeDouble(p.getLon());
+                dos.writeDouble(p.getLat());
+                dos.writeDouble(p.getDep());
+                dos.writeDouble(p.getElon());
+                dos.writeDouble(p.getElat());
+                dos.writeDouble(p.getEdep());
+                dos.writeDouble(p.getRes());
+                dos.writeUTF(p.getType() != null ? p.getType() : "");
+            }
+            for (int t : targMap) {
+                dos.writeInt(t);
+            }
+        }
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Reads a checkpoint.
+     *
+     * @param file checkpoint file
+     * @return the checkpoint
+     * @throws IOException if the file cannot be read or is not a checkpoint
+     */
+    static TrdCheckpoint read(File file) throws IOException {
+        try (DataInputStream dis = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            if (dis.readInt() != MAGIC) {
+                throw new IOException("Not a TRD checkpoint: " + file.getName());
+            }
+            int clusterId = dis.readInt();
+            long fingerprint = dis.readLong();
+            int completedStages = dis.readInt();
+            boolean complete = dis.readBoolean();
+            int n = dis.readInt();
+            if (n < 0 || completedStages < 0) {
+                throw new IOException("Invalid TRD checkpoint header in " + file.getName());
+            }
+            double[][] states = new double[n][7];
+            String[] types = new String[n];
+            for (int i = 0; i < n; i++) {
+                for (int k = 0; k < 7; k++) {
+                    states[i][k] = dis.readDouble();
+                }
+                types[i] = dis.readUTF();
+            }
+            int[] targMap = new int[n];
+            for (int i = 0; i < n; i++) {
+                targMap[i] = dis.readInt();
+            }
+            return new TrdCheckpoint(clusterId, fingerprint, completedStages, complete, states, types, targMap);
+        }
+    }
+
+    /**
+     * Whether this checkpoint was written for the same cluster, parameters and input data.
+     *
+     * @param clusterId cluster ID of the current run
+     * @param fingerprint fingerprint of the current run
+     * @param numPoints number of points of the cluster
+     * @param numStages number of stages of the current run
+     */
+    boolean matches(int clusterId, long fingerprint, int numPoints, int numStages) {
+        return this.clusterId == clusterId && this.fingerprint == fingerprint
+            && states.length == numPoints && completedStages <= numStages;
+    }
+
+    /**
+     * Restores the point states and the target mapping.
+     *
+     * @param points points of the cluster, in the order they were written
+     * @param targMapOut target mapping to overwrite
+     */
+    void restore(List<Point> points, int[] targMapOut) {
+        for (int i = 0; i < points.size(); i++) {
+            Point p = points.get(i);
+            double[] s = states[i];
+            p.setLon(s[0]);
+            p.setLat(s[1]);
+            p.setDep(s[2]);
+            p.setElon(s[3]);
+            p.setElat(s[4]);
+            p.setEdep(s[5]);
+            p.setRes(s[6]);
+            p.setType(types[i]);
+        }
+        System.arraycopy(targMap, 0, targMapOut, 0, targMap.length);
+    }
+}
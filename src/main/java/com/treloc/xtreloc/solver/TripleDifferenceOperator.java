@@ -0,0 +1,386 @@
+package com.treloc.xtreloc.solver;
+
+import java.util.Arrays;
+
+import com.treloc.xtreloc.util.SharedComputePool;
+
+/**
+ * Matrix-free design operator of the triple-difference system.
+ *
+ * <p>Row {@code r} of G belongs to one triple difference (events {@code eve0}, {@code eve1};
+ * stations {@code stn0}, {@code stn1}) and has at most six non-zeros:
+ * <pre>
+ *   G[r, 3*targ(eve1)+k] =   p[eve1][stn1][k] - p[eve1][stn0][k]
+ *   G[r, 3*targ(eve0)+k] = -(p[eve0][stn1][k] - p[eve0][stn0][k])     k = 0 (lon), 1 (lat), 2 (dep)
+ * </pre>
+ * where {@code p} is the partial-derivative table and {@code targ} the target map (REF events,
+ * {@code targ = -1}, have no columns). Three centroid constraint rows ({@code sum dm_k = 0})
+ * follow the data rows, as in the materialized matrix built by {@link HypoTripleDiff}, unless fixed
+ * events already tie the solution to their frame.
+ *
+ * <p>Nothing of G is stored: products are evaluated from the index arrays and the (flattened)
+ * partial table, so memory is O(rows) integers instead of O(nnz) entries. Row weights are applied
+ * inside the products, so re-weighting between iterations costs nothing. Both products are
+ * row-partitioned over {@link SharedComputePool}; the transpose product uses one accumulator per
+ * partition. An instance must not be used by several threads at the same time.
+ *
+ * @author xTreLoc Development Team
+ * @version 1.0
+ */
+public class TripleDifferenceOperator implements ScipyLSQR.LinearOperator {
+    /** Below this many rows per partition the parallel overhead is not worth paying. */
+    private static final int MIN_ROWS_PER_PARTITION = 1 << 13;
+
+    private final int rowCount;
+    private final int[] eve0;
+    private final int[] eve1;
+    private final int[] stn0;
+    private final int[] stn1;
+    private final double[] partials;
+    private final int numStations;
+    private final int[] targMap;
+    private final int numTarget;
+    private final int constraintRows;
+    private final int partitions;
+    private double[] weights;
+    private double[][] partialBuffers;
+
+    /**
+     * Creates the operator with the three centroid constraint rows. The index arrays must only contain rows
+     * whose target columns are valid (not both events REF, target index below {@code numTarget}).
+     *
+     * @param rowCount number of data rows (the first {@code rowCount} entries of the index arrays are used)
+     * @param eve0 first event index of each row
+     * @param eve1 second event index of each row
+     * @param stn0 first station index of each row
+     * @param stn1 second station index of each row
+     * @param partialTbl partial table {@code [event][station][dlon, dlat, ddep, travelTime]}
+     * @param targMap event index to target index ({@code -1} = fixed)
+     * @param numTarget number of target events (columns = 3 * numTarget)
+     * @param parallelism maximum number of partitions used by the products
+     */
+    public TripleDifferenceOperator(int rowCount, int[] eve0, int[] eve1, int[] stn0, int[] stn1,
+                                    double[][][] partialTbl, int[] targMap, int numTarget, int parallelism) {
+        this(rowCount, eve0, eve1, stn0, stn1, partialTbl, targMap, numTarget, parallelism, true);
+    }
+
+    /**
+     * Creates the operator, with or without the centroid constraint rows. Without them the data rows must
+     * fix the frame, e.g. through rows that tie the targets to fixed events.
+     *
+     * @param rowCount number of data rows (the first {@code rowCount} entries of the index arrays are used)
+     * @param eve0 first event index of each row
+     * @param eve1 second event index of each row
+     * @param stn0 first station index of each row
+     * @param stn1 second station index of each row
+     * @param partialTbl partial table {@code [event][station][dlon, dlat, ddep, travelTime]}
+     * @param targMap event index to target index ({@code -1} = fixed)
+     * @param numTarget number of target events (columns = 3 * numTarget)
+     * @param parallelism maximum number of partitions used by the products
+     * @param centroidConstraint whether to append the three rows {@code sum dm_k = 0}
+     */
+    public TripleDifferenceOperator(int rowCount, int[] eve0, int[] eve1, int[] stn0, int[] stn1,
+                                    double[][][] partialTbl, int[] targMap, int numTarget, int parallelism,
+                                    boolean centroidConstraint) {
+        this.rowCount = rowCount;
+        this.eve0 = eve0;
+        this.eve1 = eve1;
+        this.stn0 = stn0;
+        this.stn1 = stn1;
+        this.numStations = partialTbl.length > 0 ? partialTbl[0].length : 0;
+        this.partials = flatten(partialTbl, numStations);
+        this.targMap = targMap;
+        this.numTarget = numTarget;
+        this.constraintRows = centroidConstraint ? 3 : 0;
+        this.partitions = Math.max(1, Math.min(parallelism, rowCount / MIN_ROWS_PER_PARTITION));
+    }
+
+    private static double[] flatten(double[][][] partialTbl, int numStations) {
+        double[] flat = new double[partialTbl.length * numStations * 4];
+        int pos = 0;
+        for (double[][] event : partialTbl) {
+            for (int s = 0; s < numStations; s++) {
+                System.arraycopy(event[s], 0, flat, pos, 4);
+                pos += 4;
+            }
+        }
+        return flat;
+    }
+
+    @Override
+    public int getRowDimension() {
+        return rowCount + constraintRows;
+    }
+
+    @Override
+    public int getColumnDimension() {
+        return 3 * numTarget;
+    }
+
+    /**
+     * @return number of data (triple-difference) rows, excluding the constraint rows
+     */
+    public int getDataRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * Sets the row weights used by {@link #matvec(double[], double[])} and {@link #rmatvec(double[], double[])}.
+     *
+     * @param weights one weight per row (data rows followed by the constraint rows), or {@code null} for unit weights
+     */
+    public void setWeights(double[] weights) {
+        if (weights != null && weights.length != getRowDimension()) {
+            throw new IllegalArgumentException(String.format(
+                "Weight vector length mismatch: expected %d, got %d", getRowDimension(), weights.length));
+        }
+        this.weights = weights;
+    }
+
+    private int base(int event, int station) {
+        return (event * numStations + station) * 4;
+    }
+
+    /**
+     * Computes the data vector {@code d = tdTime - (cal1 - cal0)} (zeros on the constraint rows).
+     *
+     * @param tdTime observed triple difference of each data row
+     * @return unweighted data vector of length {@link #getRowDimension()}
+     */
+    public double[] observedMinusCalculated(double[] tdTime) {
+        double[] d = new double[getRowDimension()];
+        for (int r = 0; r < rowCount; r++) {
+            int e0 = eve0[r];
+            int e1 = eve1[r];
+            double cal0 = partials[base(e0, stn1[r]) + 3] - partials[base(e0, stn0[r]) + 3];
+            double cal1 = partials[base(e1, stn1[r]) + 3] - partials[base(e1, stn0[r]) + 3];
+            d[r] = tdTime[r] - (cal1 - cal0);
+        }
+        return d;
+    }
+
+    /**
+     * Computes the unweighted residual {@code d - G x}.
+     *
+     * @param d data vector (length {@link #getRowDimension()})
+     * @param x model vector (length {@link #getColumnDimension()})
+     * @return residual vector
+     */
+    public double[] residuals(double[] d, double[] x) {
+        if (x.length != getColumnDimension() || d.length != getRowDimension()) {
+            throw new IllegalArgumentException(String.format(
+                "Dimension mismatch in residuals: G is %dx%d, d length %d, x length %d",
+                getRowDimension(), getColumnDimension(), d.length, x.length));
+        }
+        double[] r = new double[d.length];
+        apply(x, r, null);
+        for (int i = 0; i < r.length; i++) {
+            r[i] = d[i] - r[i];
+        }
+        return r;
+    }
+
+    @Override
+    public void matvec(double[] x, double[] y) {
+        if (x.length != getColumnDimension() || y.length != getRowDimension()) {
+            throw new IllegalArgumentException(String.format(
+                "Vector length mismatch: expected x=%d, y=%d, got x=%d, y=%d",
+                getColumnDimension(), getRowDimension(), x.length, y.length));
+        }
+        apply(x, y, weights);
+    }
+
+    private void apply(double[] x, double[] y, double[] w) {
+        SharedComputePool.forEachPartition(rowCount, partitions, (part, from, to) -> {
+            for (int r = from; r < to; r++) {
+                double sum = 0.0;
+                int c1 = targMap[eve1[r]];
+                if (c1 >= 0) {
+                    int a = base(eve1[r], stn1[r]);
+                    int b = base(eve1[r], stn0[r]);
+                    int c = 3 * c1;
+                    sum += (partials[a] - partials[b]) * x[c]
+                        + (partials[a + 1] - partials[b + 1]) * x[c + 1]
+                        + (partials[a + 2] - partials[b + 2]) * x[c + 2];
+                }
+                int c0 = targMap[eve0[r]];
+                if (c0 >= 0) {
+                    int a = base(eve0[r], stn1[r]);
+                    int b = base(eve0[r], stn0[r]);
+                    int c = 3 * c0;
+                    sum -= (partials[a] - partials[b]) * x[c]
+                        + (partials[a + 1] - partials[b + 1]) * x[c + 1]
+                        + (partials[a + 2] - partials[b + 2]) * x[c + 2];
+                }
+                y[r] = w != null ? w[r] * sum : sum;
+            }
+        });
+        for (int k = 0; k < constraintRows; k++) {
+            double sum = 0.0;
+            for (int t = 0; t < numTarget; t++) {
+                sum += x[3 * t + k];
+            }
+            y[rowCount + k] = w != null ? w[rowCount + k] * sum : sum;
+        }
+    }
+
+    @Override
+    public void rmatvec(double[] y, double[] x) {
+        if (y.length != getRowDimension() || x.length != getColumnDimension()) {
+            throw new IllegalArgumentException(String.format(
+                "Vector length mismatch: expected y=%d, x=%d, got y=%d, x=%d",
+                getRowDimension(), getColumnDimension(), y.length, x.length));
+        }
+        final double[] w = weights;
+        if (partitions <= 1) {
+            Arrays.fill(x, 0.0);
+            scatterTranspose(y, w, x, 0, rowCount);
+        } else {
+            int cols = x.length;
+            if (partialBuffers == null || partialBuffers[0].length != cols) {
+                partialBuffers = new double[partitions][cols];
+            }
+            final double[][] acc = partialBuffers;
+            SharedComputePool.forEachPartition(rowCount, partitions, (part, from, to) -> {
+                Arrays.fill(acc[part], 0.0);
+                scatterTranspose(y, w, acc[part], from, to);
+            });
+            SharedComputePool.forEachPartition(cols, partitions, (part, from, to) -> {
+                for (int j = from; j < to; j++) {
+                    double sum = 0.0;
+                    for (double[] a : acc) {
+                        sum += a[j];
+                    }
+                    x[j] = sum;
+                }
+            });
+        }
+        for (int k = 0; k < constraintRows; k++) {
+            double yk = w != null ? w[rowCount + k] * y[rowCount + k] : y[rowCount + k];
+            for (int t = 0; t < numTarget; t++) {
+                x[3 * t + k] += yk;
+            }
+        }
+    }
+
+    /**
+     * Column norms of the weighted operator, computed in one pass over the rows.
+     */
+    @Override
+    public double[] columnNorms() {
+        double[] sq = new double[getColumnDimension()];
+        for (int r = 0; r < rowCount; r++) {
+            double wr = weights != null ? weights[r] : 1.0;
+            double w2 = wr * wr;
+            if (w2 == 0.0) {
+                continue;
+            }
+            int c1 = targMap[eve1[r]];
+            if (c1 >= 0) {
+                addSquares(sq, 3 * c1, base(eve1[r], stn1[r]), base(eve1[r], stn0[r]), w2);
+            }
+            int c0 = targMap[eve0[r]];
+            if (c0 >= 0) {
+                addSquares(sq, 3 * c0, base(eve0[r], stn1[r]), base(eve0[r], stn0[r]), w2);
+            }
+        }
+        for (int k = 0; k < constraintRows; k++) {
+            double wk = weights != null ? weights[rowCount + k] : 1.0;
+            for (int t = 0; t < numTarget; t++) {
+                sq[3 * t + k] += wk * wk;
+            }
+        }
+        for (int c = 0; c < sq.length; c++) {
+            sq[c] = Math.sqrt(sq[c]);
+        }
+        return sq;
+    }
+
+    /**
+     * Dense normal matrix of the weighted operator, accumulated from the (at most six) non-zeros of each row.
+     */
+    @Override
+    public double[][] normalMatrix() {
+        int n = getColumnDimension();
+        double[][] ata = new double[n][n];
+        int[] cols = new int[6];
+        double[] vals = new double[6];
+        for (int r = 0; r < rowCount; r++) {
+            double wr = weights != null ? weights[r] : 1.0;
+            if (wr == 0.0) {
+                continue;
+            }
+            int nnz = 0;
+            int c1 = targMap[eve1[r]];
+            if (c1 >= 0) {
+                int a = base(eve1[r], stn1[r]);
+                int b = base(eve1[r], stn0[r]);
+                for (int k = 0; k < 3; k++) {
+                    cols[nnz] = 3 * c1 + k;
+                    vals[nnz++] = wr * (partials[a + k] - partials[b + k]);
+                }
+            }
+            int c0 = targMap[eve0[r]];
+            if (c0 >= 0) {
+                int a = base(eve0[r], stn1[r]);
+                int b = base(eve0[r], stn0[r]);
+                for (int k = 0; k < 3; k++) {
+                    cols[nnz] = 3 * c0 + k;
+                    vals[nnz++] = -wr * (partials[a + k] - partials[b + k]);
+                }
+            }
+            for (int p = 0; p < nnz; p++) {
+                double[] row = ata[cols[p]];
+                for (int q = 0; q < nnz; q++) {
+                    row[cols[q]] += vals[p] * vals[q];
+                }
+            }
+        }
+        // Constraint row k has weight w on every column 3t+k.
+        for (int k = 0; k < constraintRows; k++) {
+            double wk = weights != null ? weights[rowCount + k] : 1.0;
+            double w2 = wk * wk;
+            for (int t = 0; t < numTarget; t++) {
+                double[] row = ata[3 * t + k];
+                for (int u = 0; u < numTarget; u++) {
+                    row[3 * u + k] += w2;
+                }
+            }
+        }
+        return ata;
+    }
+
+    private void addSquares(double[] sq, int c, int a, int b, double w2) {
+        for (int k = 0; k < 3; k++) {
+            double g = partials[a + k] - partials[b + k];
+            sq[c + k] += w2 * g * g;
+        }
+    }
+
+    private void scatterTranspose(double[] y, double[] w, double[] acc, int from, int to) {
+        for (int r = from; r < to; r++) {
+            double yr = w != null ? w[r] * y[r] : y[r];
+            if (yr == 0.0) {
+                continue;
+            }
+            int c1 = targMap[eve1[r]];
+            if (c1 >= 0) {
+                int a = base(eve1[r], stn1[r]);
+                int b = base(eve1[r], stn0[r]);
+                int c = 3 * c1;
+                acc[c] += (partials[a] - partials[b]) * yr;
+                acc[c + 1] += (partials[a + 1] - partials[b + 1]) * yr;
+                acc[c + 2] += (partials[a + 2] - partials[b + 2]) * yr;
+            }
+            int c0 = targMap[eve0[r]];
+            if (c0 >= 0) {
+                int a = base(eve0[r], stn1[r]);
+                int b = base(eve0[r], stn0[r]);
+                int c = 3 * c0;
+                acc[c] -= (partials[a] - partials[b]) * yr;
+                acc[c + 1] -= (partials[a + 1] - partials[b + 1]) * yr;
+                acc[c + 2] -= (partials[a + 2] - partials[b + 2]) * yr;
+            }
+        }
+    }
+}
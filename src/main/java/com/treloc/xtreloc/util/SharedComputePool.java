@@ -0,0 +1,120 @@
+package com.treloc.xtreloc.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Process-wide fork/join pool for fine-grained numeric kernels (sparse mat-vec, per-event loops).
+ *
+ * <p>Unlike the pools from {@link BatchExecutorFactory}, this pool is created once and reused, so kernels
+ * that run thousands of times per solve (e.g. inside LSQR) do not pay thread start-up costs. Work submitted
+ * from a thread that already belongs to the pool is executed with work-stealing joins, so nested use
+ * (cluster-level tasks calling parallel kernels) does not dead-lock.
+ */
+public final class SharedComputePool {
+
+    private static final AtomicInteger THREAD_SEQ = new AtomicInteger();
+    private static volatile ForkJoinPool pool;
+
+    private SharedComputePool() {
+    }
+
+    /**
+     * Body of a partitioned loop.
+     */
+    @FunctionalInterface
+    public interface RangeBody {
+        /**
+         * @param partition partition index (0-based, {@code < partitions})
+         * @param from first index (inclusive)
+         * @param to last index (exclusive)
+         */
+        void run(int partition, int from, int to);
+    }
+
+    /**
+     * Returns the shared pool, creating it on first use (one worker per available processor, daemon threads).
+     */
+    public static ForkJoinPool get() {
+        ForkJoinPool p = pool;
+        if (p == null) {
+            synchronized (SharedComputePool.class) {
+                p = pool;
+                if (p == null) {
+                    int n = Math.max(1, Runtime.getRuntime().availableProcessors());
+                    p = new ForkJoinPool(n, fjp -> {
+                        ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(fjp);
+                        t.setName("xtreloc-compute-" + THREAD_SEQ.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }, null, false);
+                    pool = p;
+                }
+            }
+        }
+        return p;
+    }
+
+    /**
+     * Number of worker threads of the shared pool.
+     */
+    public static int parallelism() {
+        return get().getParallelism();
+    }
+
+    /**
+     * Splits {@code [0, n)} into {@code partitions} contiguous ranges of (almost) equal length and runs
+     * {@code body} for each range on the shared pool. Runs inline when {@code partitions <= 1}.
+     */
+    public static void forEachPartition(int n, int partitions, RangeBody body) {
+        int p = Math.max(1, Math.min(partitions, n));
+        if (p <= 1) {
+            body.run(0, 0, n);
+            return;
+        }
+        int[] bounds = new int[p + 1];
+        for (int i = 0; i <= p; i++) {
+            bounds[i] = (int) ((long) n * i / p);
+        }
+        forEachPartition(bounds, body);
+    }
+
+    /**
+     * Runs {@code body} for each range {@code [bounds[i], bounds[i+1])} on the shared pool.
+     * Useful when ranges are balanced by work (e.g. non-zeros per row) rather than by length.
+     */
+    public static void forEachPartition(int[] bounds, RangeBody body) {
+        int p = bounds.length - 1;
+        if (p <= 1) {
+            if (p == 1) {
+                body.run(0, bounds[0], bounds[1]);
+            }
+            return;
+        }
+        List<RecursiveAction> tasks = new ArrayList<>(p);
+        for (int i = 0; i < p; i++) {
+            final int part = i;
+            tasks.add(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    body.run(part, bounds[part], bounds[part + 1]);
+                }
+            });
+        }
+        if (ForkJoinTask.inForkJoinPool()) {
+            ForkJoinTask.invokeAll(tasks);
+        } else {
+            get().invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    invokeAll(tasks);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package com.treloc.xtreloc.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@link TextTokenizer}: lines, fields and numbers must match the String-based parsing it replaces.
+ */
+public class TextTokenizerTest {
+
+    private static File write(String content) throws IOException {
+        File file = Files.createTempFile("tok", ".txt").toFile();
+        file.deleteOnExit();
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private static List<String> lines(File file, int bufferSize) throws IOException {
+        List<String> lines = new ArrayList<>();
+        try (TextTokenizer in = TextTokenizer.open(file, bufferSize)) {
+            while (in.nextLine()) {
+                assertEquals(lines.size() + 1, in.lineNumber());
+                lines.add(in.line());
+            }
+        }
+        return lines;
+    }
+
+    @Test
+    public void nextLine_handlesTerminatorsAndBufferBoundaries() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        List<String> expected = new ArrayList<>();
+        Random rand = new Random(3L);
+        String[] terminators = { "\n", "\r\n", "\r" };
+        for (int i = 0; i < 300; i++) {
+            String line = rand.nextInt(7) == 0 ? "  " : " line " + i + " " + "x".repeat(rand.nextInt(40)) + "\t";
+            sb.append(line).append(terminators[rand.nextInt(3)]);
+            expected.add(line.trim());
+        }
+        sb.append("last");
+        expected.add("last");
+        File file = write(sb.toString());
+        for (int bufferSize : new int[] { 2, 7, 64, 1 << 16 }) {
+            assertEquals(expected, lines(file, bufferSize));
+        }
+        assertTrue(lines(write(""), 4).isEmpty());
+        assertEquals(List.of("a", ""), lines(write("a\r\n\r\n"), 2));
+    }
+
+    @Test
+    public void split_matchesStringSplit() throws IOException {
+        String[] samples = { "a,b,,", "a, ,", ",,", "a", " x , y ,z ", "1,2,3,,5,", "a,,b" };
+        for (String sample : samples) {
+            try (TextTokenizer in = TextTokenizer.open(write(sample))) {
+                assertTrue(in.nextLine());
+                for (boolean keep : new boolean[] { true, false }) {
+                    String[] parts = sample.trim().split(",", keep ? -1 : 0);
+                    assertEquals(sample, parts.length, in.split(',', keep));
+                    for (int k = 0; k < parts.length; k++) {
+                        assertEquals(sample, parts[k].trim(), in.getString(k));
+                    }
+                }
+                String[] words = sample.trim().split("\\s+");
+                assertEquals(sample, words.length, in.splitWhitespace());
+                for (int k = 0; k < words.length; k++) {
+                    assertEquals(sample, words[k], in.getString(k));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void getDouble_matchesParseDouble() throws IOException {
+        List<String> values = new ArrayList<>(List.of("0", "-0", "-0.0", "+.5", "1.", "0.1", "1e5", "1E-5", "-2.5e+3",
+            "0.000000000000000000001234", "123456789012345", "1234567890123456789", "9007199254740993",
+            "1.7976931348623157e308", "4.9e-324", "1e-400", "1e400", "0e999", "NaN", "-Infinity", "1.5d", "0x1p3",
+            "1.000000000000000000000", "35.678901", "-139.000001"));
+        Random rand = new Random(5L);
+        for (int i = 0; i < 20000; i++) {
+            switch (i % 4) {
+                case 0: values.add(String.format("%.3f", rand.nextGaussian() * 100)); break;
+                case 1: values.add(String.format("%.6e", rand.nextDouble() * Math.pow(10, rand.nextInt(40) - 20))); break;
+                case 2: values.add(Double.toString(rand.nextDouble() * 1e6 - 5e5)); break;
+                default: values.add(Long.toString(rand.nextLong() >> rand.nextInt(60)) + "." + rand.nextInt(1000)); break;
+            }
+        }
+        try (TextTokenizer in = TextTokenizer.open(write(String.join("\n", values)))) {
+            for (String value : values) {
+                assertTrue(in.nextLine());
+                assertEquals(1, in.splitWhitespace());
+                assertEquals(value, Double.doubleToRawLongBits(Double.parseDouble(value)),
+                    Double.doubleToRawLongBits(in.getDouble(0)));
+            }
+        }
+    }
+
+    @Test
+    public void getNumbers_rejectInvalidInput() throws IOException {
+        for (String bad : new String[] { ".", "-", "1e", "1.2.3", "abc", "1,5" }) {
+            try (TextTokenizer in = TextTokenizer.open(write(bad))) {
+                in.nextLine();
+                in.splitWhitespace();
+                try {
+                    in.getDouble(0);
+                    fail("double accepted: " + bad);
+                } catch (NumberFormatException expected) {
+                }
+            }
+        }
+        for (String bad : new String[] { "", "+", "1.0", "2147483648", "12a" }) {
+            try (TextTokenizer in = TextTokenizer.open(write("x," + bad))) {
+                in.nextLine();
+                in.split(',', true);
+                try {
+                    in.getInt(1);
+                    fail("int accepted: " + bad);
+                } catch (NumberFormatException expected) {
+                }
+            }
+        }
+        try (TextTokenizer in = TextTokenizer.open(write("-2147483648 +17 0042"))) {
+            in.nextLine();
+            in.splitWhitespace();
+            assertEquals(Integer.MIN_VALUE, in.getInt(0));
+            assertEquals(17, in.getInt(1));
+            assertEquals(42, in.getInt(2));
+        }
+    }
+
+    @Test
+    public void lookup_findsLastIndexOfKey() throws IOException {
+        TextTokenizer.Dictionary dictionary = new TextTokenizer.Dictionary(new String[] { "N.AAA", "N.BBB", "N.AAA", "C" });
+        try (TextTokenizer in = TextTokenizer.open(write("N.AAA N.BBB C N.CC N.AA"))) {
+            in.nextLine();
+            in.splitWhitespace();
+            assertEquals(2, in.lookup(0, dictionary));
+            assertEquals(1, in.lookup(1, dictionary));
+            assertEquals(3, in.lookup(2, dictionary));
+            assertEquals(-1, in.lookup(3, dictionary));
+            assertEquals(-1, in.lookup(4, dictionary));
+        }
+    }
+}
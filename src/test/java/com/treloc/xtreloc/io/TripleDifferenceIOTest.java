@@ -0,0 +1,107 @@
+package com.treloc.xtreloc.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import com.treloc.xtreloc.io.TripleDifferenceIO.TripleDifference;
+
+/**
+ * Unit tests for {@link TripleDifferenceIO}.
+ */
+public class TripleDifferenceIOTest {
+
+    @Test
+    public void binaryRoundTrip_keepsRecordsAndHeaderCount() throws IOException {
+        List<TripleDifference> tds = new ArrayList<>();
+        tds.add(new TripleDifference(0, 1, 2, 3, 0.25, 4.5, 1, 0.01));
+        tds.add(new TripleDifference(1, 2, 0, 3, -0.5, 7.0, 1));
+        File file = Files.createTempFile("td", ".bin").toFile();
+        file.deleteOnExit();
+
+        TripleDifferenceIO.saveBinary(tds, file);
+        assertEquals(2, TripleDifferenceIO.readBinaryRecordCount(file));
+
+        List<TripleDifference> loaded = TripleDifferenceIO.loadBinary(file);
+        assertEquals(2, loaded.size());
+        assertEquals(3, loaded.get(0).stn1);
+        assertEquals(0.25, loaded.get(0).tdTime, 0.0);
+        assertEquals(0.01, loaded.get(0).residual, 0.0);
+        assertTrue(Double.isNaN(loaded.get(1).residual));
+    }
+
+    @Test
+    public void binaryRoundTrip_keepsPairDistanceBound() throws IOException {
+        TripleDifferenceTable table = new TripleDifferenceTable.Builder(2, 2)
+            .add(0, 1, 0, 1, 0.1, 1.5)
+            .add(0, 2, 0, 1, 0.2, 3.0)
+            .build();
+        table.sortByDistance();
+        File file = Files.createTempFile("td", ".bin").toFile();
+        file.deleteOnExit();
+
+        TripleDifferenceIO.saveBinary(table, file);
+        assertEquals(Double.POSITIVE_INFINITY, TripleDifferenceIO.loadBinaryTable(file).getMaxPairDistKm(), 0.0);
+
+        table.setMaxPairDistKm(12.5);
+        TripleDifferenceIO.saveBinary(table, file);
+        TripleDifferenceTable loaded = TripleDifferenceIO.loadBinaryTable(file);
+        assertEquals(12.5, loaded.getMaxPairDistKm(), 0.0);
+        assertTrue(loaded.isSortedByDistance());
+        assertEquals(12.5, loaded.filterByDistance(2.0).getMaxPairDistKm(), 0.0);
+
+        // The header holds the bound as a float.
+        table.setMaxPairDistKm(30.3);
+        TripleDifferenceIO.saveBinary(table, file);
+        assertEquals((float) 30.3, (float) TripleDifferenceIO.loadBinaryTable(file).getMaxPairDistKm(), 0.0);
+    }
+
+    @Test
+    public void binaryWriter_chunksMatchSingleSave() throws IOException {
+        TripleDifferenceTable.Builder b = new TripleDifferenceTable.Builder(3, 10);
+        for (int r = 0; r < 10; r++) {
+            b.add(r, r + 1, 0, 1, 0.1 * r, 0.7 * r, r % 3 == 0 ? Double.NaN : 0.01 * r);
+        }
+        TripleDifferenceTable table = b.build();
+        table.sortByDistance();
+        File whole = Files.createTempFile("td", ".bin").toFile();
+        File chunked = Files.createTempFile("td", ".bin").toFile();
+        whole.deleteOnExit();
+        chunked.deleteOnExit();
+
+        TripleDifferenceIO.saveBinary(table, whole);
+        try (TripleDifferenceIO.TableWriter writer =
+                 TripleDifferenceIO.openBinaryWriter(chunked, 3, 10, true, table.getDistKm(9), Double.POSITIVE_INFINITY)) {
+            writer.write(table.select(new boolean[] { true, true, true, true, false, false, false, false, false, false }));
+            writer.write(TripleDifferenceTable.empty(3));
+            writer.write(table.select(new boolean[] { false, false, false, false, true, true, true, true, true, true }));
+        }
+        assertArrayEquals(Files.readAllBytes(whole.toPath()), Files.readAllBytes(chunked.toPath()));
+        TripleDifferenceTable loaded = TripleDifferenceIO.loadBinaryTable(chunked);
+        assertEquals(4, loaded.countBelow(2.5));
+        assertEquals(0.08, loaded.getResidual(8), 0.0);
+        assertTrue(Double.isNaN(loaded.getResidual(9)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void binaryWriter_rejectsRowsOutOfDistanceOrder() throws IOException {
+        File file = Files.createTempFile("td", ".bin").toFile();
+        file.deleteOnExit();
+        try (TripleDifferenceIO.TableWriter writer =
+                 TripleDifferenceIO.openBinaryWriter(file, 1, 2, true, 5.0, Double.POSITIVE_INFINITY)) {
+            writer.write(new TripleDifferenceTable.Builder(1, 2).add(0, 1, 0, 1, 0.0, 4.0).add(0, 2, 0, 1, 0.0, 3.0).build());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void readBinaryRecordCount_truncatedFile_throws() throws IOException {
+        File file = Files.createTempFile("td", ".bin").toFile();
+        file.deleteOnExit();
+        TripleDifferenceIO.readBinaryRecordCount(file);
+    }
+}
@@ -0,0 +1,226 @@
+package com.treloc.xtreloc.io;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ReadOnlyBufferException;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@link TripleDifferenceTable}.
+ */
+public class TripleDifferenceTableTest {
+
+    private static TripleDifferenceTable sample() {
+        TripleDifferenceTable.Builder b = new TripleDifferenceTable.Builder(3, 1);
+        b.add(0, 1, 0, 1, 0.10, 5.0);
+        b.add(0, 2, 0, 2, 0.20, 2.0, 0.5);
+        b.add(1, 2, 1, 2, 0.30, 5.0);
+        b.add(1, 3, 0, 3, 0.40, 1.0, 0.25);
+        return b.build();
+    }
+
+    @Test
+    public void builder_growsAndKeepsRows() {
+        TripleDifferenceTable t = sample();
+        assertEquals(4, t.size());
+        assertEquals(3, t.getClusterId());
+        assertEquals(3, t.getStn1(3));
+        assertEquals(0.30, t.getTdTime(2), 0.0);
+        assertTrue(Double.isNaN(t.getResidual(0)));
+        assertEquals(0.5, t.getResidual(1), 0.0);
+    }
+
+    @Test
+    public void sortByDistance_isStable() {
+        TripleDifferenceTable t = sample();
+        t.sortByDistance();
+        assertEquals(1.0, t.getDistKm(0), 0.0);
+        assertEquals(2.0, t.getDistKm(1), 0.0);
+        // The two rows at 5 km keep their original order.
+        assertEquals(0.10, t.getTdTime(2), 0.0);
+        assertEquals(0.30, t.getTdTime(3), 0.0);
+        assertEquals(0.25, t.getResidual(0), 0.0);
+    }
+
+    @Test
+    public void builderAddAll_appendsRowsInOrder() {
+        TripleDifferenceTable.Builder a = new TripleDifferenceTable.Builder(3, 0);
+        a.add(4, 5, 1, 2, 0.7, 9.0);
+        TripleDifferenceTable.Builder b = new TripleDifferenceTable.Builder(3, 1);
+        b.add(0, 1, 0, 1, 0.10, 5.0).add(0, 2, 0, 2, 0.20, 2.0, 0.5);
+        TripleDifferenceTable t = a.addAll(b).addAll(new TripleDifferenceTable.Builder(3, 0)).build();
+        assertEquals(3, t.size());
+        assertEquals(4, t.getEve0(0));
+        assertEquals(0.10, t.getTdTime(1), 0.0);
+        assertEquals(0.5, t.getResidual(2), 0.0);
+        assertEquals(2, b.size());
+    }
+
+    @Test
+    public void subset_renumbersEventsAndKeepsOrder() {
+        TripleDifferenceTable t = sample();
+        t.sortByDistance();
+        TripleDifferenceTable sub = t.subset(new int[] { -1, 0, 1, 2 });
+        assertEquals(2, sub.size());
+        assertTrue(sub.isSortedByDistance());
+        // Rows (1, 3) at 1 km and (1, 2) at 5 km, events renumbered.
+        assertEquals(0, sub.getEve0(0));
+        assertEquals(2, sub.getEve1(0));
+        assertEquals(0.25, sub.getResidual(0), 0.0);
+        assertEquals(0, sub.getEve0(1));
+        assertEquals(1, sub.getEve1(1));
+        assertEquals(0.30, sub.getTdTime(1), 0.0);
+        assertEquals(3, sub.getClusterId());
+    }
+
+    @Test
+    public void filterByDistance_keepsRowsBelowThreshold() {
+        TripleDifferenceTable t = sample().filterByDistance(5.0);
+        assertEquals(2, t.size());
+        assertEquals(0.20, t.getTdTime(0), 0.0);
+        assertEquals(0.40, t.getTdTime(1), 0.0);
+        assertEquals(3, t.getClusterId());
+    }
+
+    @Test
+    public void binaryAndCsvRoundTrip_keepColumns() throws IOException {
+        TripleDifferenceTable t = sample();
+        File bin = Files.createTempFile("td", ".bin").toFile();
+        File csv = Files.createTempFile("td", ".csv").toFile();
+        bin.deleteOnExit();
+        csv.deleteOnExit();
+        TripleDifferenceIO.saveBinary(t, bin);
+        TripleDifferenceIO.saveCSV(t, csv);
+
+        for (TripleDifferenceTable loaded : new TripleDifferenceTable[] {
+                TripleDifferenceIO.loadBinaryTable(bin), TripleDifferenceIO.loadCSVTable(csv) }) {
+            assertEquals(4, loaded.size());
+            assertEquals(3, loaded.getClusterId());
+            for (int r = 0; r < 4; r++) {
+                assertEquals(t.getEve1(r), loaded.getEve1(r));
+                assertEquals(t.getStn0(r), loaded.getStn0(r));
+                assertEquals(t.getTdTime(r), loaded.getTdTime(r), 1e-9);
+                assertEquals(t.getDistKm(r), loaded.getDistKm(r), 1e-9);
+            }
+            assertTrue(Double.isNaN(loaded.getResidual(2)));
+            assertEquals(0.25, loaded.getResidual(3), 1e-9);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void fromRecords_mixedClusters_throws() {
+        TripleDifferenceTable.fromRecords(java.util.Arrays.asList(
+            new TripleDifferenceIO.TripleDifference(0, 1, 0, 1, 0.0, 1.0, 1),
+            new TripleDifferenceIO.TripleDifference(0, 1, 0, 1, 0.0, 1.0, 2)), 1);
+    }
+
+    @Test
+    public void tdf3_mapsSortedTableAndFiltersByIndex() throws IOException {
+        TripleDifferenceTable.Builder b = new TripleDifferenceTable.Builder(7, 16);
+        for (int r = 0; r < 50; r++) {
+            b.add(r % 5, r % 5 + 1, r % 3, r % 3 + 1, r * 0.01, (r * 37 % 50) * 0.3, r);
+        }
+        TripleDifferenceTable t = b.build();
+        t.sortByDistance();
+        File bin = Files.createTempFile("td", ".bin").toFile();
+        bin.deleteOnExit();
+        TripleDifferenceIO.saveBinary(t, bin);
+        assertEquals(50, TripleDifferenceIO.readBinaryRecordCount(bin));
+
+        TripleDifferenceTable mapped = TripleDifferenceIO.loadBinaryTable(bin);
+        assertEquals(7, mapped.getClusterId());
+        assertEquals(50, mapped.size());
+        assertTrue(mapped.isSortedByDistance());
+        for (int r = 0; r < 50; r++) {
+            assertEquals(t.getEve0(r), mapped.getEve0(r));
+            assertEquals(t.getTdTime(r), mapped.getTdTime(r), 0.0);
+            assertEquals(t.getResidual(r), mapped.getResidual(r), 0.0);
+        }
+        for (double threshold : new double[] { -1.0, 0.0, 0.3, 3.0, 4.5, 7.0, 14.7, 100.0 }) {
+            TripleDifferenceTable expected = t.filterByDistance(threshold);
+            TripleDifferenceTable actual = mapped.filterByDistance(threshold);
+            assertEquals("threshold " + threshold, expected.size(), actual.size());
+            for (int r = 0; r < expected.size(); r++) {
+                assertEquals(expected.getTdTime(r), actual.getTdTime(r), 0.0);
+            }
+        }
+    }
+
+    @Test(expected = ReadOnlyBufferException.class)
+    public void tdf3_mappedTableIsReadOnly() throws IOException {
+        File bin = Files.createTempFile("td", ".bin").toFile();
+        bin.deleteOnExit();
+        TripleDifferenceIO.saveBinary(sample(), bin);
+        TripleDifferenceIO.loadBinaryTable(bin).setResidual(0, 1.0);
+    }
+
+    @Test
+    public void loadBinaryTable_readsLegacyV2() throws IOException {
+        File bin = Files.createTempFile("td", ".bin").toFile();
+        bin.deleteOnExit();
+        try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(bin)))) {
+            dos.writeInt(0x54444602);
+            dos.writeInt(1);
+            dos.writeInt(0);
+            dos.writeInt(1);
+            dos.writeInt(2);
+            dos.writeInt(3);
+            dos.writeDouble(0.5);
+            dos.writeDouble(4.0);
+            dos.writeInt(9);
+            dos.writeDouble(0.125);
+        }
+        assertEquals(1, TripleDifferenceIO.readBinaryRecordCount(bin));
+        TripleDifferenceTable t = TripleDifferenceIO.loadBinaryTable(bin);
+        assertEquals(1, t.size());
+        assertEquals(9, t.getClusterId());
+        assertEquals(2, t.getStn0(0));
+        assertEquals(0.5, t.getTdTime(0), 0.0);
+        assertEquals(4.0, t.getDistKm(0), 0.0);
+        assertEquals(0.125, t.getResidual(0), 0.0);
+    }
+
+    @Test
+    public void filterByDistance_onSortedTable_isPrefixView() {
+        Random rand = new Random(11L);
+        TripleDifferenceTable.Builder b = new TripleDifferenceTable.Builder(1, 200);
+        for (int r = 0; r < 200; r++) {
+            b.add(0, 1, 0, 1, r, rand.nextInt(40) * 0.5);
+        }
+        TripleDifferenceTable t = b.build();
+        assertFalse(t.isSortedByDistance());
+        t.sortByDistance();
+        assertTrue(t.isSortedByDistance());
+        for (double threshold = -1.0; threshold <= 21.0; threshold += 0.25) {
+            int expected = 0;
+            for (int r = 0; r < t.size(); r++) {
+                if (t.getDistKm(r) < threshold) expected++;
+            }
+            TripleDifferenceTable view = t.filterByDistance(threshold);
+            assertEquals(expected, view.size());
+            assertTrue(view.isSortedByDistance());
+        }
+        TripleDifferenceTable view = t.filterByDistance(10.0);
+        view.setResidual(0, 0.75);
+        assertEquals(0.75, t.getResidual(0), 0.0);
+    }
+
+    @Test
+    public void loadedLegacyTable_detectsSortOrder() throws IOException {
+        File csv = Files.createTempFile("td", ".csv").toFile();
+        csv.deleteOnExit();
+        TripleDifferenceTable t = sample();
+        TripleDifferenceIO.saveCSV(t, csv);
+        assertFalse(TripleDifferenceIO.loadCSVTable(csv).isSortedByDistance());
+        t.sortByDistance();
+        TripleDifferenceIO.saveCSV(t, csv);
+        assertTrue(TripleDifferenceIO.loadCSVTable(csv).isSortedByDistance());
+    }
+}
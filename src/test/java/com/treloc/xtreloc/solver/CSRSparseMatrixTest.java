@@ -0,0 +1,138 @@
+package com.treloc.xtreloc.solver;
+
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@link CSRSparseMatrix} and the in-place LSQR path.
+ */
+public class CSRSparseMatrixTest {
+
+    private static CSRSparseMatrix randomMatrix(int m, int n, int perRow, int parallelism, long seed) {
+        Random rand = new Random(seed);
+        int[] rowPtr = new int[m + 1];
+        int[] colIdx = new int[m * perRow];
+        double[] values = new double[m * perRow];
+        for (int i = 0; i < m; i++) {
+            rowPtr[i + 1] = rowPtr[i] + perRow;
+            for (int k = 0; k < perRow; k++) {
+                colIdx[i * perRow + k] = rand.nextInt(n);
+                values[i * perRow + k] = rand.nextGaussian();
+            }
+        }
+        return new CSRSparseMatrix(m, n, rowPtr, colIdx, values, parallelism);
+    }
+
+    @Test
+    public void fromCOO_productsMatchCOO() {
+        COOSparseMatrix coo = new COOSparseMatrix(4, 3);
+        coo.setEntry(2, 1, 3.0);
+        coo.setEntry(0, 0, 1.0);
+        coo.setEntry(0, 2, -2.0);
+        coo.setEntry(3, 1, 0.5);
+        CSRSparseMatrix csr = CSRSparseMatrix.fromCOO(coo, 4);
+        assertEquals(4, csr.getNonZeroCount());
+
+        double[] x = { 1.0, 2.0, 3.0 };
+        double[] y = new double[4];
+        csr.operate(x, y);
+        assertArrayEquals(coo.operate(x), y, 1e-12);
+
+        double[] u = { 1.0, -1.0, 2.0, 4.0 };
+        double[] v = new double[3];
+        csr.transposeOperate(u, v);
+        assertArrayEquals(coo.transposeOperate(u), v, 1e-12);
+    }
+
+    @Test
+    public void parallelProducts_matchSequential() {
+        int m = 100000;
+        int n = 300;
+        CSRSparseMatrix seq = randomMatrix(m, n, 6, 1, 7L);
+        CSRSparseMatrix par = randomMatrix(m, n, 6, 8, 7L);
+        assertTrue(par.getPartitionCount() > 1);
+
+        Random rand = new Random(3L);
+        double[] x = new double[n];
+        double[] u = new double[m];
+        for (int i = 0; i < n; i++) {
+            x[i] = rand.nextGaussian();
+        }
+        for (int i = 0; i < m; i++) {
+            u[i] = rand.nextGaussian();
+        }
+        double[] y1 = new double[m];
+        double[] y2 = new double[m];
+        seq.operate(x, y1);
+        par.operate(x, y2);
+        assertArrayEquals(y1, y2, 0.0);
+
+        double[] v1 = new double[n];
+        double[] v2 = new double[n];
+        seq.transposeOperate(u, v1);
+        par.transposeOperate(u, v2);
+        assertArrayEquals(v1, v2, 1e-9);
+        // Second call must not accumulate on top of the first one.
+        par.transposeOperate(u, v2);
+        assertArrayEquals(v1, v2, 1e-9);
+    }
+
+    @Test
+    public void weightedOperator_matchesExplicitlyWeightedMatrix() {
+        int m = 40;
+        int n = 6;
+        Random rand = new Random(9L);
+        COOSparseMatrix a = new COOSparseMatrix(m, n);
+        COOSparseMatrix wa = new COOSparseMatrix(m, n);
+        double[] w = new double[m];
+        for (int i = 0; i < m; i++) {
+            w[i] = i % 7 == 0 ? 0.0 : rand.nextDouble();
+            for (int k = 0; k < 3; k++) {
+                int j = rand.nextInt(n);
+                double v = a.getEntry(i, j) + rand.nextGaussian();
+                a.setEntry(i, j, v);
+                wa.setEntry(i, j, w[i] * v);
+            }
+        }
+        ScipyLSQR.SparseLinearOperator weighted = new ScipyLSQR.SparseLinearOperator(a);
+        weighted.setWeights(w);
+        ScipyLSQR.SparseLinearOperator explicit = new ScipyLSQR.SparseLinearOperator(wa);
+
+        double[] x = new double[n];
+        double[] y = new double[m];
+        for (int j = 0; j < n; j++) {
+            x[j] = rand.nextGaussian();
+        }
+        for (int i = 0; i < m; i++) {
+            y[i] = rand.nextGaussian();
+        }
+        assertArrayEquals(explicit.matvec(x), weighted.matvec(x), 1e-12);
+        assertArrayEquals(explicit.rmatvec(y), weighted.rmatvec(y), 1e-12);
+        assertArrayEquals(explicit.columnNorms(), weighted.columnNorms(), 1e-12);
+        double[][] expected = explicit.normalMatrix();
+        double[][] actual = weighted.normalMatrix();
+        for (int j = 0; j < n; j++) {
+            assertArrayEquals(expected[j], actual[j], 1e-12);
+        }
+
+        weighted.setWeights(null);
+        assertArrayEquals(new ScipyLSQR.SparseLinearOperator(a).matvec(x), weighted.matvec(x), 0.0);
+    }
+
+    @Test
+    public void lsqr_overdeterminedSystem_matchesLeastSquaresSolution() {
+        COOSparseMatrix A = new COOSparseMatrix(5, 3);
+        A.setEntry(0, 0, 1.0);
+        A.setEntry(1, 1, 2.0);
+        A.setEntry(2, 2, 3.0);
+        A.setEntry(3, 0, 1.0);
+        A.setEntry(4, 1, 1.0);
+        double[] b = { 1.0, 2.0, 3.0, 4.0, 5.0 };
+        ScipyLSQR.LSQRResult result = ScipyLSQR.lsqr(
+            new ScipyLSQR.SparseLinearOperator(A, 2), b, 0.0, 1e-10, 1e-10, 1e8, 50, false, false, null, null);
+        assertEquals(2.5, result.x[0], 1e-9);
+        assertEquals(1.8, result.x[1], 1e-9);
+        assertEquals(1.0, result.x[2], 1e-9);
+    }
+}
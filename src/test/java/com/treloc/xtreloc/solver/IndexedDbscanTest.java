@@ -0,0 +1,76 @@
+package com.treloc.xtreloc.solver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.apache.commons.math3.ml.clustering.Cluster;
+import org.apache.commons.math3.ml.clustering.DBSCANClusterer;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@link IndexedDbscan}: results must equal commons-math {@link DBSCANClusterer}.
+ */
+public class IndexedDbscanTest {
+
+    private static List<Point> catalog(long seed, int n) {
+        Random rand = new Random(seed);
+        List<Point> points = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            double lat;
+            double lon;
+            if (i % 11 == 10) {
+                // Exact duplicate of the previous event.
+                lat = points.get(i - 1).getLat();
+                lon = points.get(i - 1).getLon();
+            } else if (i % 4 == 0) {
+                lat = 35.0 + rand.nextGaussian() * 0.03;
+                lon = 139.0 + rand.nextGaussian() * 0.03;
+            } else if (i % 4 == 1) {
+                lat = 35.2 + rand.nextGaussian() * 0.05;
+                lon = 139.1 + rand.nextGaussian() * 0.02;
+            } else {
+                lat = 34.5 + rand.nextDouble();
+                lon = 138.5 + rand.nextDouble();
+            }
+            points.add(new Point("000101.000000", lat, lon, 10.0, 0, 0, 0, 0, "e" + i + ".dat", "SYN", 0));
+        }
+        return points;
+    }
+
+    private static void assertSameClusters(List<Cluster<Point>> expected, List<Cluster<Point>> actual, String label) {
+        assertEquals(label + " cluster count", expected.size(), actual.size());
+        for (int c = 0; c < expected.size(); c++) {
+            List<Point> e = expected.get(c).getPoints();
+            List<Point> a = actual.get(c).getPoints();
+            assertEquals(label + " size of cluster " + c, e.size(), a.size());
+            for (int k = 0; k < e.size(); k++) {
+                assertSame(label + " cluster " + c + " point " + k, e.get(k), a.get(k));
+            }
+        }
+    }
+
+    @Test
+    public void cluster_matchesCommonsDbscan() {
+        List<Point> points = catalog(7L, 400);
+        for (double eps : new double[] { 0.0, 1.0, 3.0, 8.0 }) {
+            for (int minPts : new int[] { 0, 1, 4, 10 }) {
+                List<Cluster<Point>> expected =
+                    new DBSCANClusterer<Point>(eps, minPts, new HaversineDistance()).cluster(points);
+                String label = "eps=" + eps + " minPts=" + minPts;
+                assertSameClusters(expected, new IndexedDbscan(eps, minPts).cluster(points, 1), label);
+                assertSameClusters(expected, new IndexedDbscan(eps, minPts).cluster(points, 7), label + " parallel");
+            }
+        }
+    }
+
+    @Test
+    public void cluster_emptyInput() {
+        assertTrue(new IndexedDbscan(1.0, 3).cluster(new ArrayList<>(), 4).isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructor_rejectsNegativeEps() {
+        new IndexedDbscan(-1.0, 3);
+    }
+}
@@ -0,0 +1,70 @@
+package com.treloc.xtreloc.solver;
+
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@link LSMR}.
+ */
+public class LSMRTest {
+
+    private static ScipyLSQR.SparseLinearOperator randomOperator(int m, int n, long seed) {
+        Random rand = new Random(seed);
+        COOSparseMatrix a = new COOSparseMatrix(m, n);
+        for (int i = 0; i < m; i++) {
+            for (int k = 0; k < 3; k++) {
+                int j = rand.nextInt(n);
+                a.setEntry(i, j, a.getEntry(i, j) + rand.nextGaussian() * (j % 3 == 2 ? 0.01 : 1.0));
+            }
+        }
+        return new ScipyLSQR.SparseLinearOperator(a);
+    }
+
+    private static double[] randomVector(int n, long seed) {
+        Random rand = new Random(seed);
+        double[] v = new double[n];
+        for (int i = 0; i < n; i++) {
+            v[i] = rand.nextGaussian();
+        }
+        return v;
+    }
+
+    @Test
+    public void overdeterminedSystem_matchesLeastSquaresSolution() {
+        COOSparseMatrix a = new COOSparseMatrix(5, 3);
+        a.setEntry(0, 0, 1.0);
+        a.setEntry(1, 1, 2.0);
+        a.setEntry(2, 2, 3.0);
+        a.setEntry(3, 0, 1.0);
+        a.setEntry(4, 1, 1.0);
+        double[] b = { 1.0, 2.0, 3.0, 4.0, 5.0 };
+        ScipyLSQR.LSQRResult result = LSMR.lsmr(
+            new ScipyLSQR.SparseLinearOperator(a), b, 0.0, 1e-10, 1e-10, 1e8, 50, false, null, null);
+        assertEquals(2.5, result.x[0], 1e-9);
+        assertEquals(1.8, result.x[1], 1e-9);
+        assertEquals(1.0, result.x[2], 1e-9);
+        assertNull(result.var);
+    }
+
+    @Test
+    public void dampedSolution_matchesLsqr() {
+        ScipyLSQR.SparseLinearOperator a = randomOperator(200, 30, 1L);
+        double[] b = randomVector(200, 2L);
+        ScipyLSQR.LSQRResult lsqr = ScipyLSQR.lsqr(a, b, 0.3, 1e-12, 1e-12, 1e12, 1000, false, false, null, null);
+        ScipyLSQR.LSQRResult lsmr = LSMR.lsmr(a, b, 0.3, 1e-12, 1e-12, 1e12, 1000, false, null, null);
+        assertArrayEquals(lsqr.x, lsmr.x, 1e-7);
+        assertEquals(lsqr.r2norm, lsmr.r2norm, 1e-7);
+        assertEquals(lsqr.r1norm, lsmr.r1norm, 1e-7);
+    }
+
+    @Test
+    public void initialGuess_convergesToSameSolution() {
+        ScipyLSQR.SparseLinearOperator a = randomOperator(100, 20, 3L);
+        double[] b = randomVector(100, 4L);
+        ScipyLSQR.LSQRResult cold = LSMR.lsmr(a, b, 0.0, 1e-12, 1e-12, 1e12, 1000, false, null, null);
+        ScipyLSQR.LSQRResult warm = LSMR.lsmr(a, b, 0.0, 1e-12, 1e-12, 1e12, 1000, false, cold.x, null);
+        assertArrayEquals(cold.x, warm.x, 1e-8);
+        assertTrue(warm.itn <= 2);
+    }
+}
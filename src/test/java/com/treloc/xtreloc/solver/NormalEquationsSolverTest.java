@@ -0,0 +1,154 @@
+package com.treloc.xtreloc.solver;
+
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import org.apache.commons.math3.linear.NonPositiveDefiniteMatrixException;
+
+/**
+ * Unit tests for {@link NormalEquationsSolver} and the normal matrices of the operators.
+ */
+public class NormalEquationsSolverTest {
+
+    private static COOSparseMatrix randomMatrix(int m, int n, long seed) {
+        Random rand = new Random(seed);
+        COOSparseMatrix a = new COOSparseMatrix(m, n);
+        for (int i = 0; i < m; i++) {
+            for (int k = 0; k < 4; k++) {
+                int j = rand.nextInt(n);
+                a.setEntry(i, j, a.getEntry(i, j) + rand.nextGaussian() * (j % 3 == 2 ? 0.01 : 10.0));
+            }
+        }
+        return a;
+    }
+
+    @Test
+    public void normalMatrix_csrMatchesProbing() {
+        ScipyLSQR.SparseLinearOperator csr = new ScipyLSQR.SparseLinearOperator(randomMatrix(50, 8, 1L));
+        ScipyLSQR.LinearOperator plain = new ScipyLSQR.LinearOperator() {
+            public int getRowDimension() { return csr.getRowDimension(); }
+            public int getColumnDimension() { return csr.getColumnDimension(); }
+            public void matvec(double[] x, double[] y) { csr.matvec(x, y); }
+            public void rmatvec(double[] y, double[] x) { csr.rmatvec(y, x); }
+        };
+        double[][] expected = plain.normalMatrix();
+        double[][] actual = csr.normalMatrix();
+        for (int i = 0; i < 8; i++) {
+            assertArrayEquals(expected[i], actual[i], 1e-9);
+        }
+    }
+
+    @Test
+    public void normalMatrix_tripleDifferenceOperatorMatchesProbing() {
+        Random rand = new Random(5L);
+        int rows = 60;
+        int[] eve0 = new int[rows];
+        int[] eve1 = new int[rows];
+        int[] stn0 = new int[rows];
+        int[] stn1 = new int[rows];
+        for (int r = 0; r < rows; r++) {
+            eve0[r] = rand.nextInt(4);
+            eve1[r] = eve0[r] + 1 + rand.nextInt(4 - eve0[r]);
+            stn0[r] = rand.nextInt(3);
+            stn1[r] = stn0[r] + 1;
+        }
+        double[][][] p = new double[5][4][4];
+        for (double[][] e : p) {
+            for (double[] s : e) {
+                for (int k = 0; k < 4; k++) {
+                    s[k] = rand.nextGaussian();
+                }
+            }
+        }
+        TripleDifferenceOperator op = new TripleDifferenceOperator(
+            rows, eve0, eve1, stn0, stn1, p, new int[] { 0, -1, 1, 2, 3 }, 4, 1);
+        double[] w = new double[rows + 3];
+        for (int r = 0; r < w.length; r++) {
+            w[r] = rand.nextDouble();
+        }
+        op.setWeights(w);
+        ScipyLSQR.LinearOperator plain = new ScipyLSQR.LinearOperator() {
+            public int getRowDimension() { return op.getRowDimension(); }
+            public int getColumnDimension() { return op.getColumnDimension(); }
+            public void matvec(double[] x, double[] y) { op.matvec(x, y); }
+            public void rmatvec(double[] y, double[] x) { op.rmatvec(y, x); }
+        };
+        double[][] expected = plain.normalMatrix();
+        double[][] actual = op.normalMatrix();
+        for (int i = 0; i < expected.length; i++) {
+            assertArrayEquals(expected[i], actual[i], 1e-12);
+        }
+    }
+
+    @Test
+    public void solve_matchesConvergedLsqrAndExactVariance() {
+        COOSparseMatrix a = randomMatrix(120, 12, 7L);
+        Random rand = new Random(8L);
+        double[] b = new double[120];
+        for (int i = 0; i < b.length; i++) {
+            b[i] = rand.nextGaussian();
+        }
+        ScipyLSQR.SparseLinearOperator op = new ScipyLSQR.SparseLinearOperator(a);
+        ScipyLSQR.LSQRResult lsqr = ScipyLSQR.lsqr(op, b, 0.5, 1e-14, 1e-14, 1e16, 10000, false, false, null, null);
+        ScipyLSQR.LSQRResult direct = NormalEquationsSolver.solve(op, b, 0.5, true);
+        assertArrayEquals(lsqr.x, direct.x, 1e-9);
+        assertEquals(lsqr.r2norm, direct.r2norm, 1e-9);
+        assertEquals(0.0, direct.arnorm, 1e-8);
+        // var = diag((A'A + damp^2 I)^-1), by Gauss-Jordan on the dense normal matrix.
+        double[][] n = op.normalMatrix();
+        for (int j = 0; j < 12; j++) {
+            n[j][j] += 0.25;
+        }
+        double[][] inv = invert(n);
+        for (int j = 0; j < 12; j++) {
+            assertEquals(inv[j][j], direct.var[j], 1e-12 * Math.abs(inv[j][j]) + 1e-15);
+        }
+    }
+
+    private static double[][] invert(double[][] a) {
+        int n = a.length;
+        double[][] m = new double[n][2 * n];
+        for (int i = 0; i < n; i++) {
+            System.arraycopy(a[i], 0, m[i], 0, n);
+            m[i][n + i] = 1.0;
+        }
+        for (int c = 0; c < n; c++) {
+            int piv = c;
+            for (int r = c + 1; r < n; r++) {
+                if (Math.abs(m[r][c]) > Math.abs(m[piv][c])) {
+                    piv = r;
+                }
+            }
+            double[] t = m[c];
+            m[c] = m[piv];
+            m[piv] = t;
+            double d = m[c][c];
+            for (int k = 0; k < 2 * n; k++) {
+                m[c][k] /= d;
+            }
+            for (int r = 0; r < n; r++) {
+                if (r != c && m[r][c] != 0.0) {
+                    double f = m[r][c];
+                    for (int k = 0; k < 2 * n; k++) {
+                        m[r][k] -= f * m[c][k];
+                    }
+                }
+            }
+        }
+        double[][] inv = new double[n][n];
+        for (int i = 0; i < n; i++) {
+            System.arraycopy(m[i], n, inv[i], 0, n);
+        }
+        return inv;
+    }
+
+    @Test(expected = NonPositiveDefiniteMatrixException.class)
+    public void solve_rankDeficientWithoutDamping_throws() {
+        COOSparseMatrix a = new COOSparseMatrix(3, 2);
+        a.setEntry(0, 0, 1.0);
+        a.setEntry(1, 0, 2.0);
+        a.setEntry(2, 0, 3.0);
+        NormalEquationsSolver.solve(new ScipyLSQR.SparseLinearOperator(a), new double[] { 1, 1, 1 }, 0.0, false);
+    }
+}
@@ -34,6 +34,35 @@ public class PointsHandlerTest {
         }
     }
 
+    @Test(timeout = 10000)
+    public void readDatFile_blankAndShortLines_areSkipped() throws Exception {
+        Path tmp = Files.createTempFile("point", ".dat");
+        try {
+            String content = "35.0 140.0 10.0 SYN\r\n"
+                + "\r\n"
+                + "STA1 STA2 0.15 1.0\r\n"
+                + "STA1\r\n"
+                + "   \r\n"
+                + "STA2 STA3 -0.25\r\n"
+                + "STA1 XXX 0.5 1.0\r\n"
+                + "STA1 STA3 0.35 0.2\r\n";
+            Files.writeString(tmp, content);
+            PointsHandler handler = new PointsHandler();
+            String[] codes = { "STA1", "STA2", "STA3" };
+            handler.readDatFile(tmp.toString(), codes, 0.5);
+            Point main = handler.getMainPoint();
+            assertEquals("SYN", main.getType());
+            assertEquals(0.0, main.getRes(), 0.0);
+            double[][] lagTable = main.getLagTable();
+            assertEquals(2, lagTable.length);
+            assertArrayEquals(new double[] { 0, 1, 0.15, 1.0 }, lagTable[0], 0.0);
+            assertArrayEquals(new double[] { 1, 2, -0.25, 1.0 }, lagTable[1], 0.0);
+            assertArrayEquals(new int[] { 0, 1, 2 }, main.getUsedIdx());
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
     @Test(expected = IOException.class)
     public void readDatFile_emptyFile_throws() throws Exception {
         Path tmp = Files.createTempFile("point", ".dat");
@@ -0,0 +1,97 @@
+package com.treloc.xtreloc.solver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@link RobustStatistics}.
+ */
+public class RobustStatisticsTest {
+
+    private static double sortedMedian(double[] values) {
+        List<Double> list = new ArrayList<>();
+        for (double v : values) {
+            list.add(v);
+        }
+        Collections.sort(list);
+        int n = list.size();
+        return n % 2 == 0 ? (list.get(n / 2 - 1) + list.get(n / 2)) / 2.0 : list.get(n / 2);
+    }
+
+    @Test
+    public void median_matchesSortedMedian() {
+        Random rand = new Random(3L);
+        for (int n = 1; n < 300; n += 7) {
+            double[] v = new double[n];
+            for (int i = 0; i < n; i++) {
+                // Few distinct values so that ties are common.
+                v[i] = n % 2 == 0 ? rand.nextGaussian() : rand.nextInt(5) - 2.0;
+            }
+            double[] copy = v.clone();
+            assertEquals("n=" + n, sortedMedian(v), RobustStatistics.median(v), 0.0);
+            assertArrayEquals(copy, v, 0.0);
+        }
+        assertEquals(0.0, RobustStatistics.median(new double[0]), 0.0);
+        assertEquals(2.5, RobustStatistics.median(new double[] { 4, 1, 3, 2 }), 0.0);
+    }
+
+    @Test
+    public void median_ranksNaNLast() {
+        assertEquals(3.0, RobustStatistics.median(new double[] { Double.NaN, 3, 1, 2, Double.NaN }), 0.0);
+        assertEquals(sortedMedian(new double[] { Double.NaN, 1, 2, Double.NaN }),
+            RobustStatistics.median(new double[] { Double.NaN, 1, 2, Double.NaN }), 0.0);
+        assertTrue(Double.isNaN(RobustStatistics.median(new double[] { Double.NaN, 1, Double.NaN })));
+    }
+
+    @Test
+    public void tukeyBiweight_matchesReferenceFormula() {
+        Random rand = new Random(9L);
+        double[] r = new double[501];
+        for (int i = 0; i < r.length; i++) {
+            r[i] = rand.nextGaussian() * (i % 50 == 0 ? 20.0 : 1.0);
+        }
+        double median = sortedMedian(r);
+        double[] dev = new double[r.length];
+        for (int i = 0; i < r.length; i++) {
+            dev[i] = Math.abs(r[i] - median);
+        }
+        double scale = 4.685 * sortedMedian(dev) + Double.MIN_VALUE;
+        double[] w = RobustStatistics.tukeyBiweight(r, 4.685);
+        for (int i = 0; i < r.length; i++) {
+            double u = r[i] / scale;
+            double expected = Math.abs(u) > 1.0 ? 0.0 : Math.pow(1.0 - u * u, 2);
+            assertEquals(expected, w[i], 1e-15);
+        }
+    }
+
+    @Test
+    public void tukeyBiweight_zeroMadKeepsExactResiduals() {
+        double[] w = RobustStatistics.tukeyBiweight(new double[] { 0, 0, 0, 1.5 }, 4.685);
+        assertArrayEquals(new double[] { 1, 1, 1, 0 }, w, 0.0);
+    }
+
+    @Test
+    public void selectSmallest_partitionsKeys() {
+        Random rand = new Random(17L);
+        for (int n = 1; n < 400; n += 13) {
+            long[] keys = new long[n];
+            for (int i = 0; i < n; i++) {
+                keys[i] = ((long) rand.nextInt(20) << 32) | i;
+            }
+            long[] sorted = keys.clone();
+            Arrays.sort(sorted);
+            for (int k : new int[] { 0, 1, n / 3, n / 2, n - 1, n }) {
+                long[] a = keys.clone();
+                RobustStatistics.selectSmallest(a, k);
+                long[] head = Arrays.copyOf(a, k);
+                Arrays.sort(head);
+                assertArrayEquals("n=" + n + " k=" + k, Arrays.copyOf(sorted, k), head);
+            }
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package com.treloc.xtreloc.solver;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import com.treloc.xtreloc.io.TripleDifferenceIO;
+import com.treloc.xtreloc.io.TripleDifferenceTable;
+
+import net.sf.geographiclib.Geodesic;
+
+/**
+ * Unit tests for the triple-difference join of {@link SpatialClustering}.
+ */
+public class SpatialClusteringTest {
+
+    private static List<Point> cluster(long seed, int n, int stations) {
+        Random rand = new Random(seed);
+        List<Point> points = new ArrayList<>();
+        for (int e = 0; e < n; e++) {
+            String type = e % 17 == 3 ? "REF" : e % 29 == 5 ? "ERR" : "SYN";
+            Point p = new Point("000101.000000", 35.0 + rand.nextDouble() * 0.2, 139.0 + rand.nextDouble() * 0.2,
+                10.0, 0, 0, 0, 0, "e" + e + ".dat", type, 1);
+            if (e % 13 != 7) {
+                List<double[]> rows = new ArrayList<>();
+                for (int s0 = 0; s0 < stations; s0++) {
+                    for (int s1 = s0 + 1; s1 < stations; s1++) {
+                        if (rand.nextInt(3) > 0) {
+                            rows.add(new double[] { s0, s1, rand.nextGaussian(), 1.0 });
+                        }
+                    }
+                }
+                if (!rows.isEmpty() && e % 5 == 0) {
+                    // Duplicate station pair: every combination is kept.
+                    double[] dup = rows.get(0).clone();
+                    dup[2] += 0.5;
+                    rows.add(dup);
+                }
+                java.util.Collections.shuffle(rows, rand);
+                p.setLagTable(rows.toArray(new double[0][]));
+            }
+            points.add(p);
+        }
+        return points;
+    }
+
+    /** The nested-loop join the indexed version replaces. */
+    private static TripleDifferenceTable reference(List<Point> points, int clusterId) {
+        TripleDifferenceTable.Builder b = new TripleDifferenceTable.Builder(clusterId, 16);
+        for (int eid1 = 0; eid1 < points.size(); eid1++) {
+            for (int eid2 = eid1 + 1; eid2 < points.size(); eid2++) {
+                Point p1 = points.get(eid1);
+                Point p2 = points.get(eid2);
+                if ((p1.getType().equals("REF") && p2.getType().equals("REF"))
+                    || p1.getType().equals("ERR") || p2.getType().equals("ERR")
+                    || p1.getLagTable() == null || p2.getLagTable() == null) {
+                    continue;
+                }
+                double distKm = Geodesic.WGS84.Inverse(p1.getLat(), p1.getLon(), p2.getLat(), p2.getLon()).s12 / 1000.0;
+                for (double[] row1 : p1.getLagTable()) {
+                    for (double[] row2 : p2.getLagTable()) {
+                        if (row1[0] == row2[0] && row1[1] == row2[1]) {
+                            b.add(eid1, eid2, (int) row1[0], (int) row1[1], row2[2] - row1[2], distKm);
+                        }
+                    }
+                }
+            }
+        }
+        TripleDifferenceTable t = b.build();
+        t.sortByDistance();
+        return t;
+    }
+
+    private static void assertSameRows(TripleDifferenceTable expected, TripleDifferenceTable actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int r = 0; r < expected.size(); r++) {
+            assertEquals(expected.getEve0(r), actual.getEve0(r));
+            assertEquals(expected.getEve1(r), actual.getEve1(r));
+            assertEquals(expected.getStn0(r), actual.getStn0(r));
+            assertEquals(expected.getStn1(r), actual.getStn1(r));
+            assertEquals(expected.getTdTime(r), actual.getTdTime(r), 0.0);
+            assertEquals(expected.getDistKm(r), actual.getDistKm(r), 0.0);
+        }
+    }
+
+    @Test
+    public void calcTripleDifferences_matchesNestedLoopJoin() {
+        List<Point> points = cluster(3L, 40, 9);
+        assertSameRows(reference(points, 2), SpatialClustering.calcTripleDifferences(points, 2));
+    }
+
+    @Test
+    public void calcTripleDifferences_parallelKeepsRowOrder() {
+        // Enough event pairs for the parallel path.
+        List<Point> points = cluster(8L, 230, 5);
+        assertSameRows(reference(points, 1), SpatialClustering.calcTripleDifferences(points, 1));
+    }
+
+    @Test
+    public void calcTripleDifferences_boundedKeepsNearPairsOnly() {
+        List<Point> points = cluster(5L, 230, 5);
+        TripleDifferenceTable all = reference(points, 4);
+        double maxPairDistKm = 9.0;
+        boolean[] keep = new boolean[all.size()];
+        for (int r = 0; r < keep.length; r++) {
+            keep[r] = Geodesic.WGS84.Inverse(points.get(all.getEve0(r)).getLat(), points.get(all.getEve0(r)).getLon(),
+                points.get(all.getEve1(r)).getLat(), points.get(all.getEve1(r)).getLon()).s12 / 1000.0 <= maxPairDistKm;
+        }
+        TripleDifferenceTable bounded = SpatialClustering.calcTripleDifferences(points, 4, maxPairDistKm);
+        assertTrue(bounded.size() > 0 && bounded.size() < all.size());
+        assertSameRows(all.select(keep), bounded);
+        assertEquals(maxPairDistKm, bounded.getMaxPairDistKm(), 0.0);
+        assertEquals(Double.POSITIVE_INFINITY, SpatialClustering.calcTripleDifferences(points, 4).getMaxPairDistKm(), 0.0);
+    }
+
+    @Test
+    public void pairJoin_rangesConcatenateToFullTable() {
+        List<Point> points = cluster(6L, 60, 7);
+        SpatialClustering.PairJoin join = SpatialClustering.PairJoin.of(points, 3, Double.POSITIVE_INFINITY);
+        int[] counts = join.countRows();
+        TripleDifferenceTable.Builder chunks = new TripleDifferenceTable.Builder(3, 16);
+        int rows = 0;
+        for (int from = 0; from < join.size(); from += 37) {
+            int to = Math.min(join.size(), from + 37);
+            TripleDifferenceTable.Builder chunk = join.join(from, to);
+            for (int k = from; k < to; k++) {
+                rows += counts[k];
+            }
+            assertEquals(rows, chunks.size() + chunk.size());
+            chunks.addAll(chunk);
+        }
+        assertSameRows(reference(points, 3), chunks.build());
+    }
+
+    @Test
+    public void pairJoin_newEventsOnlyJoinsPairsWithNewEvent() {
+        List<Point> points = cluster(9L, 230, 5);
+        int firstNew = 180;
+        for (double maxPairDistKm : new double[] { Double.POSITIVE_INFINITY, 9.0 }) {
+            TripleDifferenceTable all = maxPairDistKm == Double.POSITIVE_INFINITY
+                ? reference(points, 2) : SpatialClustering.calcTripleDifferences(points, 2, maxPairDistKm);
+            boolean[] keep = new boolean[all.size()];
+            for (int r = 0; r < keep.length; r++) {
+                keep[r] = all.getEve1(r) >= firstNew;
+            }
+            SpatialClustering.PairJoin join = SpatialClustering.PairJoin.of(points, 2, maxPairDistKm, firstNew);
+            TripleDifferenceTable added = join.join(0, join.size()).build();
+            added.sortByDistance();
+            assertSameRows(all.select(keep), added);
+        }
+        SpatialClustering.PairJoin none = SpatialClustering.PairJoin.of(points, 2, Double.POSITIVE_INFINITY, points.size());
+        assertEquals(0, none.size());
+    }
+
+    @Test
+    public void mergeTripleDifferences_appendedFileMatchesFullRun() throws IOException {
+        List<Point> points = cluster(12L, 230, 5);
+        int firstNew = 170;
+        double maxPairDistKm = 9.3; // not exact as a float
+        Random rand = new Random(13L);
+        double[][] trvTbl = new double[points.size()][5];
+        for (double[] row : trvTbl) {
+            for (int s = 0; s < row.length; s++) {
+                row[s] = 5.0 + rand.nextDouble() * 20.0;
+            }
+        }
+        TripleDifferenceTable full = SpatialClustering.calcTripleDifferences(points, 5, maxPairDistKm);
+        SpatialClustering.attachResiduals(trvTbl, full);
+        TripleDifferenceTable earlier = SpatialClustering.calcTripleDifferences(points.subList(0, firstNew), 5, maxPairDistKm);
+        SpatialClustering.attachResiduals(trvTbl, earlier);
+
+        File earlierFile = Files.createTempFile("td", ".bin").toFile();
+        File mergedFile = Files.createTempFile("td", ".bin").toFile();
+        earlierFile.deleteOnExit();
+        mergedFile.deleteOnExit();
+        TripleDifferenceIO.saveBinary(earlier, earlierFile);
+        TripleDifferenceTable existing = TripleDifferenceIO.loadBinaryTable(earlierFile);
+        assertEquals((float) maxPairDistKm, (float) existing.getMaxPairDistKm(), 0.0);
+
+        SpatialClustering.PairJoin join = SpatialClustering.PairJoin.of(points, 5, maxPairDistKm, firstNew);
+        int[] counts = join.countRows();
+        int added = 0;
+        for (int c : counts) {
+            added += c;
+        }
+        assertTrue(added > 0 && existing.size() > 0);
+        assertEquals(full.size(), existing.size() + added);
+        try (TripleDifferenceIO.TableWriter writer = TripleDifferenceIO.openBinaryWriter(mergedFile, 5, full.size(),
+                true, full.getDistKm(full.size() - 1), maxPairDistKm)) {
+            SpatialClustering.mergeTripleDifferences(existing, join, counts, trvTbl, writer);
+        }
+        TripleDifferenceTable merged = TripleDifferenceIO.loadBinaryTable(mergedFile);
+        assertSameRows(full, merged);
+        for (int r = 0; r < full.size(); r++) {
+            assertEquals(full.getResidual(r), merged.getResidual(r), 0.0);
+        }
+        assertEquals((float) maxPairDistKm, (float) merged.getMaxPairDistKm(), 0.0);
+    }
+
+    @Test
+    public void attachResiduals_parallelMatchesRowFormula() {
+        List<Point> points = cluster(4L, 160, 8);
+        TripleDifferenceTable table = SpatialClustering.calcTripleDifferences(points, 1);
+        assertTrue(table.size() >= 1 << 16);
+        Random rand = new Random(11L);
+        double[][] trvTbl = new double[points.size()][8];
+        for (double[] row : trvTbl) {
+            for (int s = 0; s < row.length; s++) {
+                row[s] = rand.nextInt(10) == 0 ? Double.MAX_VALUE : 5.0 + rand.nextDouble() * 20.0;
+            }
+        }
+        int invalid = SpatialClustering.attachResiduals(trvTbl, table);
+        int expectedInvalid = 0;
+        for (int r = 0; r < table.size(); r++) {
+            double[] tt0 = trvTbl[table.getEve0(r)];
+            double[] tt1 = trvTbl[table.getEve1(r)];
+            int s0 = table.getStn0(r);
+            int s1 = table.getStn1(r);
+            if (tt0[s0] == Double.MAX_VALUE || tt0[s1] == Double.MAX_VALUE
+                    || tt1[s0] == Double.MAX_VALUE || tt1[s1] == Double.MAX_VALUE) {
+                assertTrue(Double.isNaN(table.getResidual(r)));
+                expectedInvalid++;
+            } else {
+                double predTd = (tt1[s0] - tt1[s1]) - (tt0[s0] - tt0[s1]);
+                assertEquals(Math.abs(table.getTdTime(r) - predTd), table.getResidual(r), 0.0);
+            }
+        }
+        assertEquals(expectedInvalid, invalid);
+    }
+
+    @Test
+    public void directoryIndex_matchesFileExists() throws IOException {
+        File dir = Files.createTempDirectory("clsdat").toFile();
+        File sub = new File(dir, "sub");
+        assertTrue(sub.mkdir());
+        assertTrue(new File(dir, "000101.000000.dat").createNewFile());
+        assertTrue(new File(sub, "a.dat").createNewFile());
+        SpatialClustering.DirectoryIndex index = new SpatialClustering.DirectoryIndex();
+        File[] candidates = {
+            new File(dir, "000101.000000.dat"), new File(dir, "000101.010000.dat"), new File(dir, "sub/a.dat"),
+            new File(dir, "sub/b.dat"), new File(dir, "missing/a.dat"), sub, new File(dir, "sub/../000101.000000.dat")
+        };
+        for (File f : candidates) {
+            assertEquals(f.getPath(), f.exists(), index.exists(f));
+            assertEquals(f.getPath(), f.isDirectory(), index.isDirectory(f));
+        }
+    }
+
+    @Test
+    public void calcTripleDifferences_emptyCluster() {
+        assertTrue(SpatialClustering.calcTripleDifferences(new ArrayList<>(), 1).isEmpty());
+    }
+}
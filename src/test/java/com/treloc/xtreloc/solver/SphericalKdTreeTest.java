@@ -0,0 +1,103 @@
+package com.treloc.xtreloc.solver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@link SphericalKdTree} and the k-distance estimation built on it.
+ */
+public class SphericalKdTreeTest {
+
+    private static double[][] catalog(long seed, int n) {
+        Random rand = new Random(seed);
+        double[] lat = new double[n];
+        double[] lon = new double[n];
+        for (int i = 0; i < n; i++) {
+            // Two dense swarms, a sparse background and a few duplicates.
+            if (i % 10 == 9 && i > 0) {
+                lat[i] = lat[i - 1];
+                lon[i] = lon[i - 1];
+            } else if (i % 3 == 0) {
+                lat[i] = 35.0 + rand.nextGaussian() * 0.02;
+                lon[i] = 139.0 + rand.nextGaussian() * 0.02;
+            } else if (i % 3 == 1) {
+                lat[i] = 36.5 + rand.nextGaussian() * 0.1;
+                lon[i] = 140.2 + rand.nextGaussian() * 0.05;
+            } else {
+                lat[i] = 30.0 + rand.nextDouble() * 10.0;
+                lon[i] = 130.0 + rand.nextDouble() * 15.0;
+            }
+        }
+        return new double[][] { lat, lon };
+    }
+
+    private static double bruteForceKth(double[] lat, double[] lon, int i, int k) {
+        HaversineDistance distance = new HaversineDistance();
+        double[] d = new double[lat.length - 1];
+        int m = 0;
+        for (int j = 0; j < lat.length; j++) {
+            if (j != i) {
+                d[m++] = distance.compute(new double[] { lat[i], lon[i] }, new double[] { lat[j], lon[j] });
+            }
+        }
+        Arrays.sort(d);
+        return d[k - 1];
+    }
+
+    @Test
+    public void kthNeighbour_matchesBruteForce() {
+        double[][] c = catalog(11L, 700);
+        SphericalKdTree tree = new SphericalKdTree(c[0], c[1]);
+        for (int k : new int[] { 1, 4, 17 }) {
+            double[] sequential = tree.kthNeighbourKm(k, 1);
+            double[] parallel = tree.kthNeighbourKm(k, 8);
+            assertArrayEquals(sequential, parallel, 0.0);
+            for (int i = 0; i < c[0].length; i++) {
+                assertEquals("k=" + k + " i=" + i, bruteForceKth(c[0], c[1], i, k), sequential[i], 1e-9);
+            }
+        }
+    }
+
+    @Test
+    public void nearest_returnsOtherPointsOnly() {
+        double[] lat = { 35.0, 35.0, 35.1 };
+        double[] lon = { 139.0, 139.0, 139.0 };
+        SphericalKdTree tree = new SphericalKdTree(lat, lon);
+        int[] idx = new int[3];
+        double[] d2 = new double[3];
+        assertEquals(2, tree.nearest(0, 3, idx, d2));
+        assertEquals(1, tree.nearest(0, 1, idx, d2));
+        assertEquals(1, idx[0]);
+        assertEquals(0.0, d2[0], 0.0);
+        assertTrue(Double.isNaN(tree.kthNeighbourKm(3, 1)[0]));
+    }
+
+    @Test
+    public void computeKDistance_matchesSortedScan() {
+        double[][] c = catalog(23L, 300);
+        List<Point> points = new ArrayList<>();
+        for (int i = 0; i < c[0].length; i++) {
+            points.add(new Point("000101.000000", c[0][i], c[1][i], 10.0, 0, 0, 0, 0, "e" + i + ".dat", "SYN", 0));
+        }
+        List<Double> kDistances = SpatialClustering.computeKDistance(points, 5);
+        assertEquals(points.size(), kDistances.size());
+        double[] expected = new double[points.size()];
+        for (int i = 0; i < expected.length; i++) {
+            expected[i] = bruteForceKth(c[0], c[1], i, 5);
+        }
+        Arrays.sort(expected);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], kDistances.get(i), 1e-9);
+        }
+        assertTrue(SpatialClustering.computeKDistance(points.subList(0, 5), 5).isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nearest_rejectsNonPositiveK() {
+        new SphericalKdTree(new double[] { 0, 1 }, new double[] { 0, 1 }).nearest(0, 0, new int[1], new double[1]);
+    }
+}
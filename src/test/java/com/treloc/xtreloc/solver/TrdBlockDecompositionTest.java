@@ -0,0 +1,133 @@
+package com.treloc.xtreloc.solver;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@link TrdBlockDecomposition}.
+ */
+public class TrdBlockDecompositionTest {
+
+    @Test
+    public void partition_coresCoverAllEventsWithinSize() {
+        Random rand = new Random(5L);
+        int n = 200;
+        double[] x = new double[n];
+        double[] y = new double[n];
+        boolean[] isTarget = new boolean[n];
+        for (int i = 0; i < n; i++) {
+            x[i] = rand.nextDouble() * 100.0;
+            y[i] = rand.nextDouble() * 40.0;
+            isTarget[i] = i % 5 != 0;
+        }
+        List<TrdBlockDecomposition.Block> blocks = TrdBlockDecomposition.partition(x, y, isTarget, 30, 5.0);
+        assertTrue(blocks.size() > 1);
+        int[] owner = new int[n];
+        Arrays.fill(owner, -1);
+        for (int b = 0; b < blocks.size(); b++) {
+            TrdBlockDecomposition.Block block = blocks.get(b);
+            int targets = 0;
+            for (int e : block.core) {
+                assertEquals("event " + e + " in two cores", -1, owner[e]);
+                owner[e] = b;
+                if (isTarget[e]) targets++;
+                assertTrue(Arrays.binarySearch(block.members, e) >= 0);
+            }
+            assertTrue(targets <= 30);
+            assertTrue(block.members.length >= block.core.length);
+        }
+        for (int e = 0; e < n; e++) {
+            assertTrue(owner[e] >= 0);
+        }
+    }
+
+    @Test
+    public void partition_haloReachesAcrossTheCut() {
+        double[] x = { 0, 1, 2, 3, 10, 11, 12, 13 };
+        double[] y = new double[8];
+        boolean[] isTarget = new boolean[8];
+        Arrays.fill(isTarget, true);
+        List<TrdBlockDecomposition.Block> blocks = TrdBlockDecomposition.partition(x, y, isTarget, 4, 7.5);
+        assertEquals(2, blocks.size());
+        assertArrayEquals(new int[] { 0, 1, 2, 3 }, blocks.get(0).core);
+        // Halos: [-7.5, 10.5] and [2.5, 20.5] km.
+        assertArrayEquals(new int[] { 0, 1, 2, 3, 4 }, blocks.get(0).members);
+        assertArrayEquals(new int[] { 3, 4, 5, 6, 7 }, blocks.get(1).members);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void partition_rejectsNonPositiveSize() {
+        TrdBlockDecomposition.partition(new double[1], new double[1], new boolean[1], 0, 1.0);
+    }
+
+    @Test
+    public void shifts_alignSharedEventsAndIgnoreDivergedBlock() {
+        // Three blocks over events 0..5; block 1 is displaced by (2, -1, 0.5) km, block 2 has diverged.
+        List<TrdBlockDecomposition.Block> blocks = Arrays.asList(
+            new TrdBlockDecomposition.Block(new int[] { 0, 1 }, new int[] { 0, 1, 2, 3 }),
+            new TrdBlockDecomposition.Block(new int[] { 2, 3 }, new int[] { 0, 1, 2, 3, 4 }),
+            new TrdBlockDecomposition.Block(new int[] { 4, 5 }, new int[] { 3, 4, 5 }));
+        double[][] truth = new double[6][];
+        for (int e = 0; e < 6; e++) {
+            truth[e] = new double[] { e, 2.0 * e, 5.0 };
+        }
+        double[] offset = { 2.0, -1.0, 0.5 };
+        double[][][] positions = new double[3][][];
+        boolean[][] valid = new boolean[3][];
+        for (int b = 0; b < 3; b++) {
+            int[] members = blocks.get(b).members;
+            positions[b] = new double[members.length][];
+            valid[b] = new boolean[members.length];
+            for (int k = 0; k < members.length; k++) {
+                double[] p = truth[members[k]].clone();
+                for (int c = 0; c < 3; c++) {
+                    p[c] += b == 1 ? offset[c] : b == 2 ? 500.0 * (k + 1) : 0.0;
+                }
+                positions[b][k] = p;
+                valid[b][k] = true;
+            }
+        }
+        double[][] shifts = TrdBlockDecomposition.shifts(6, blocks, positions, valid, 10.0);
+        for (int c = 0; c < 3; c++) {
+            // Four shared events; the two badly misfitting links to block 2 still pull a little.
+            assertEquals(-offset[c], shifts[1][c] - shifts[0][c], 0.02);
+            // Small against the divergence of several hundred km.
+            assertEquals(0.0, shifts[2][c], 0.5);
+        }
+    }
+
+    @Test
+    public void shifts_unbiasedForSingleSharedEvent() {
+        // A narrow overlap: blocks 0 and 1 share event 1 only, block 1 is displaced.
+        List<TrdBlockDecomposition.Block> blocks = Arrays.asList(
+            new TrdBlockDecomposition.Block(new int[] { 0 }, new int[] { 0, 1 }),
+            new TrdBlockDecomposition.Block(new int[] { 1, 2 }, new int[] { 1, 2 }));
+        double[] offset = { 3.0, -2.0, 1.0 };
+        double[][][] positions = {
+            { { 0, 0, 5 }, { 1, 1, 5 } },
+            { { 1 + offset[0], 1 + offset[1], 5 + offset[2] }, { 2 + offset[0], 2 + offset[1], 5 + offset[2] } } };
+        boolean[][] valid = { { true, true }, { true, true } };
+        double[][] shifts = TrdBlockDecomposition.shifts(3, blocks, positions, valid, 2.0);
+        for (int c = 0; c < 3; c++) {
+            assertEquals(-offset[c], shifts[1][c] - shifts[0][c], 1e-4);
+            assertEquals(0.0, shifts[0][c] + shifts[1][c], 1e-4);
+        }
+    }
+
+    @Test
+    public void shifts_zeroForSingleBlockOrNoSharedEvents() {
+        List<TrdBlockDecomposition.Block> blocks = Arrays.asList(
+            new TrdBlockDecomposition.Block(new int[] { 0 }, new int[] { 0 }),
+            new TrdBlockDecomposition.Block(new int[] { 1 }, new int[] { 1 }));
+        double[][][] positions = { { { 1, 2, 3 } }, { { 4, 5, 6 } } };
+        boolean[][] valid = { { true }, { true } };
+        double[][] shifts = TrdBlockDecomposition.shifts(2, blocks, positions, valid, 10.0);
+        assertArrayEquals(new double[] { 0, 0, 0 }, shifts[0], 0.0);
+        assertArrayEquals(new double[] { 0, 0, 0 }, shifts[1], 0.0);
+        assertArrayEquals(new double[] { 0, 0, 0 },
+            TrdBlockDecomposition.shifts(2, blocks.subList(0, 1), positions, valid, 10.0)[0], 0.0);
+    }
+}
@@ -0,0 +1,75 @@
+package com.treloc.xtreloc.solver;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@link TrdCheckpoint}.
+ */
+public class TrdCheckpointTest {
+
+    private static List<Point> points() {
+        Point a = new Point("000101.000000", 35.1, 139.2, 10.5, 0.1, 0.2, 0.3, 0.04, "a.dat", "TRD", 1);
+        Point b = new Point("000101.010000", 35.2, 139.3, 12.0, 0, 0, 0, 0.0, "b.dat", "REF", 1);
+        Point c = new Point("000101.020000", 35.3, 139.4, 99.0, 0, 0, 0, 0.0, "c.dat", "ERR", 1);
+        return Arrays.asList(a, b, c);
+    }
+
+    @Test
+    public void writeAndRead_restoresPointsAndTargMap() throws IOException {
+        File dir = Files.createTempDirectory("trdck").toFile();
+        File file = TrdCheckpoint.fileFor(dir, 4);
+        assertEquals("trd_checkpoint_4.bin", file.getName());
+        List<Point> written = points();
+        TrdCheckpoint.write(file, 4, 123456789L, 1, false, written, new int[] { 0, -1, -1 });
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+
+        TrdCheckpoint cp = TrdCheckpoint.read(file);
+        assertTrue(cp.matches(4, 123456789L, 3, 2));
+        assertFalse(cp.matches(4, 123456788L, 3, 2));
+        assertFalse(cp.matches(5, 123456789L, 3, 2));
+        assertFalse(cp.matches(4, 123456789L, 2, 2));
+        assertEquals(1, cp.completedStages);
+        assertFalse(cp.complete);
+
+        List<Point> restored = Arrays.asList(
+            new Point("000101.000000", 0, 0, 0, 0, 0, 0, 0, "a.dat", "TRD", 1),
+            new Point("000101.010000", 0, 0, 0, 0, 0, 0, 0, "b.dat", "TRD", 1),
+            new Point("000101.020000", 0, 0, 0, 0, 0, 0, 0, "c.dat", "TRD", 1));
+        int[] targMap = new int[3];
+        cp.restore(restored, targMap);
+        assertArrayEquals(new int[] { 0, -1, -1 }, targMap);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(written.get(i).getLat(), restored.get(i).getLat(), 0.0);
+            assertEquals(written.get(i).getLon(), restored.get(i).getLon(), 0.0);
+            assertEquals(written.get(i).getDep(), restored.get(i).getDep(), 0.0);
+            assertEquals(written.get(i).getElat(), restored.get(i).getElat(), 0.0);
+            assertEquals(written.get(i).getRes(), restored.get(i).getRes(), 0.0);
+            assertEquals(written.get(i).getType(), restored.get(i).getType());
+        }
+    }
+
+    @Test
+    public void completeCheckpoint_rejectedPastConfiguredStages() throws IOException {
+        File dir = Files.createTempDirectory("trdck").toFile();
+        File file = TrdCheckpoint.fileFor(dir, 1);
+        TrdCheckpoint.write(file, 1, 7L, 2, true, points(), new int[] { 0, -1, -1 });
+        TrdCheckpoint cp = TrdCheckpoint.read(file);
+        assertTrue(cp.complete);
+        // A checkpoint past the configured stages belongs to a different stage setup.
+        assertFalse(cp.matches(1, 7L, 3, 1));
+    }
+
+    @Test(expected = IOException.class)
+    public void read_rejectsOtherFiles() throws IOException {
+        File file = Files.createTempFile("trdck", ".bin").toFile();
+        file.deleteOnExit();
+        Files.write(file.toPath(), new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 });
+        TrdCheckpoint.read(file);
+    }
+}
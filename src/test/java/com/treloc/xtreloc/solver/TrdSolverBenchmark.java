@@ -0,0 +1,80 @@
+package com.treloc.xtreloc.solver;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.treloc.xtreloc.io.AppConfig;
+import com.treloc.xtreloc.io.ConfigLoader;
+
+/**
+ * Compares LSQR and LSMR on a TRD run: total solver iterations and wall time per solver.
+ * <p>
+ * Run from project root (after {@code mvn test-compile}):
+ * {@code java -cp target/test-classes:target/classes:$(mvn -q dependency:build-classpath -Dmdep.outputFile=/dev/stdout -q) com.treloc.xtreloc.solver.TrdSolverBenchmark [config.json] [repeats]}
+ * <p>
+ * The default config is {@code demo/locating_example/config.json} (TRD input {@code dat-cls}); results are written
+ * to a temporary directory, not to the configured TRD output directory. {@code directSolverMaxUnknowns} is set to 0,
+ * so every stage goes through the iterative solver being measured rather than the dense normal-equations solver.
+ */
+public final class TrdSolverBenchmark {
+
+    private TrdSolverBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        Path config = Path.of(args.length > 0 ? args[0] : "demo/locating_example/config.json");
+        int repeats = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        System.out.println("| solver | LSQR steps | solver iterations | wall time (ms, best of " + repeats + ") |");
+        System.out.println("|---|---|---|---|");
+        for (String solver : new String[] { "lsqr", "lsmr" }) {
+            long best = Long.MAX_VALUE;
+            int[] counts = null;
+            for (int r = 0; r < repeats; r++) {
+                int[] c = new int[2];
+                long elapsed = run(config, solver, c);
+                if (elapsed < best) {
+                    best = elapsed;
+                    counts = c;
+                }
+            }
+            System.out.println(String.format(Locale.ROOT, "| %s | %d | %d | %.1f |",
+                solver, counts[0], counts[1], best / 1e6));
+        }
+    }
+
+    /**
+     * Runs TRD once with the given iterative solver for all stages (direct solves disabled).
+     *
+     * @param counts receives {number of LSQR steps, total solver iterations}
+     * @return wall time in nanoseconds
+     */
+    private static long run(Path config, String solver, int[] counts) throws Exception {
+        AppConfig appConfig = new ConfigLoader(config).getConfig();
+        Path outDir = Files.createTempDirectory("trd-bench-" + solver);
+        appConfig.io.get("TRD").outDirectory = outDir;
+        ObjectNode params = (ObjectNode) appConfig.params.get("TRD");
+        params.put("solver", solver);
+        params.put("lsqrShowLog", false);
+        params.put("directSolverMaxUnknowns", 0);
+
+        HypoTripleDiff trd = new HypoTripleDiff(appConfig);
+        trd.setConvergenceCallback(new ConvergenceCallback() {
+            @Override
+            public void onResidualUpdate(int iteration, double residual) {
+            }
+
+            @Override
+            public void onClusterResidualUpdate(int clusterId, int iteration, double residual, int solverIterations) {
+                synchronized (counts) {
+                    counts[0]++;
+                    counts[1] += solverIterations;
+                }
+            }
+        });
+        long t0 = System.nanoTime();
+        trd.start(null, null);
+        return System.nanoTime() - t0;
+    }
+}
@@ -0,0 +1,186 @@
+package com.treloc.xtreloc.solver;
+
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@link TripleDifferenceOperator}.
+ */
+public class TripleDifferenceOperatorTest {
+
+    private static final int NUM_EVENTS = 6;
+    private static final int NUM_STATIONS = 4;
+
+    private static double[][][] randomPartials(Random rand) {
+        double[][][] p = new double[NUM_EVENTS][NUM_STATIONS][4];
+        for (double[][] e : p) {
+            for (double[] s : e) {
+                for (int k = 0; k < 4; k++) {
+                    s[k] = rand.nextGaussian();
+                }
+            }
+        }
+        return p;
+    }
+
+    /** Dense G built row by row as in the materialized design matrix. */
+    private static double[][] denseG(int rows, int[] eve0, int[] eve1, int[] stn0, int[] stn1,
+                                     double[][][] p, int[] targMap, int numTarget) {
+        double[][] g = new double[rows + 3][3 * numTarget];
+        for (int r = 0; r < rows; r++) {
+            int c1 = targMap[eve1[r]];
+            int c0 = targMap[eve0[r]];
+            for (int k = 0; k < 3; k++) {
+                if (c1 >= 0) {
+                    g[r][3 * c1 + k] += p[eve1[r]][stn1[r]][k] - p[eve1[r]][stn0[r]][k];
+                }
+                if (c0 >= 0) {
+                    g[r][3 * c0 + k] -= p[eve0[r]][stn1[r]][k] - p[eve0[r]][stn0[r]][k];
+                }
+            }
+        }
+        for (int t = 0; t < numTarget; t++) {
+            for (int k = 0; k < 3; k++) {
+                g[rows + k][3 * t + k] = 1.0;
+            }
+        }
+        return g;
+    }
+
+    @Test
+    public void products_matchDenseMatrixWithWeights() {
+        Random rand = new Random(11L);
+        int rows = 40;
+        int[] eve0 = new int[rows];
+        int[] eve1 = new int[rows];
+        int[] stn0 = new int[rows];
+        int[] stn1 = new int[rows];
+        for (int r = 0; r < rows; r++) {
+            eve0[r] = rand.nextInt(NUM_EVENTS - 1);
+            eve1[r] = eve0[r] + 1 + rand.nextInt(NUM_EVENTS - 1 - eve0[r]);
+            stn0[r] = rand.nextInt(NUM_STATIONS - 1);
+            stn1[r] = stn0[r] + 1;
+        }
+        // Event 0 is a fixed reference event.
+        int[] targMap = { -1, 0, 1, 2, 3, 4 };
+        int numTarget = 5;
+        double[][][] p = randomPartials(rand);
+        double[][] g = denseG(rows, eve0, eve1, stn0, stn1, p, targMap, numTarget);
+
+        TripleDifferenceOperator op = new TripleDifferenceOperator(
+            rows, eve0, eve1, stn0, stn1, p, targMap, numTarget, 1);
+        assertEquals(rows + 3, op.getRowDimension());
+        assertEquals(3 * numTarget, op.getColumnDimension());
+
+        double[] w = new double[rows + 3];
+        for (int r = 0; r < w.length; r++) {
+            w[r] = rand.nextDouble();
+        }
+        op.setWeights(w);
+
+        double[] x = new double[3 * numTarget];
+        for (int i = 0; i < x.length; i++) {
+            x[i] = rand.nextGaussian();
+        }
+        double[] y = new double[rows + 3];
+        op.matvec(x, y);
+        for (int r = 0; r < y.length; r++) {
+            double expected = 0.0;
+            for (int c = 0; c < x.length; c++) {
+                expected += g[r][c] * x[c];
+            }
+            assertEquals(w[r] * expected, y[r], 1e-12);
+        }
+
+        double[] u = new double[rows + 3];
+        for (int r = 0; r < u.length; r++) {
+            u[r] = rand.nextGaussian();
+        }
+        double[] v = new double[3 * numTarget];
+        op.rmatvec(u, v);
+        for (int c = 0; c < v.length; c++) {
+            double expected = 0.0;
+            for (int r = 0; r < u.length; r++) {
+                expected += g[r][c] * w[r] * u[r];
+            }
+            assertEquals(expected, v[c], 1e-12);
+        }
+
+        double[] norms = op.columnNorms();
+        for (int c = 0; c < norms.length; c++) {
+            double sq = 0.0;
+            for (int r = 0; r < rows + 3; r++) {
+                sq += w[r] * g[r][c] * w[r] * g[r][c];
+            }
+            assertEquals(Math.sqrt(sq), norms[c], 1e-12);
+        }
+
+        // Residuals are unweighted: d - G x.
+        double[] d = new double[rows + 3];
+        double[] res = op.residuals(d, x);
+        for (int r = 0; r < rows + 3; r++) {
+            double gx = 0.0;
+            for (int c = 0; c < x.length; c++) {
+                gx += g[r][c] * x[c];
+            }
+            assertEquals(-gx, res[r], 1e-12);
+        }
+    }
+
+    @Test
+    public void observedMinusCalculated_usesTravelTimes() {
+        double[][][] p = new double[2][2][4];
+        p[0][0][3] = 1.0;
+        p[0][1][3] = 1.5;
+        p[1][0][3] = 2.0;
+        p[1][1][3] = 2.8;
+        TripleDifferenceOperator op = new TripleDifferenceOperator(
+            1, new int[] { 0 }, new int[] { 1 }, new int[] { 0 }, new int[] { 1 },
+            p, new int[] { 0, 1 }, 2, 1);
+        double[] d = op.observedMinusCalculated(new double[] { 0.5 });
+        assertEquals(4, d.length);
+        // cal1 - cal0 = 0.8 - 0.5 = 0.3
+        assertEquals(0.2, d[0], 1e-12);
+        assertEquals(0.0, d[3], 0.0);
+    }
+
+    @Test
+    public void withoutCentroidRows_fixedEventsSetTheFrame() {
+        // Events 0-2 are fixed (incremental mode), events 3-5 all moved by the same offset.
+        Random rand = new Random(17L);
+        int rows = 60;
+        int[] eve0 = new int[rows];
+        int[] eve1 = new int[rows];
+        int[] stn0 = new int[rows];
+        int[] stn1 = new int[rows];
+        for (int r = 0; r < rows; r++) {
+            eve1[r] = 3 + rand.nextInt(NUM_EVENTS - 3);
+            eve0[r] = rand.nextInt(eve1[r]);
+            stn0[r] = rand.nextInt(NUM_STATIONS - 1);
+            stn1[r] = stn0[r] + 1 + rand.nextInt(NUM_STATIONS - 1 - stn0[r]);
+        }
+        int[] targMap = { -1, -1, -1, 0, 1, 2 };
+        int numTarget = 3;
+        double[][][] p = randomPartials(rand);
+        double[] offset = { 0.02, -0.01, 1.5 };
+        double[] truth = new double[3 * numTarget];
+        for (int t = 0; t < numTarget; t++) {
+            System.arraycopy(offset, 0, truth, 3 * t, 3);
+        }
+
+        TripleDifferenceOperator free = new TripleDifferenceOperator(
+            rows, eve0, eve1, stn0, stn1, p, targMap, numTarget, 1, false);
+        assertEquals(rows, free.getRowDimension());
+        double[] d = new double[rows];
+        free.matvec(truth, d);
+        assertArrayEquals(truth, NormalEquationsSolver.solve(free, d, 0.0, false).x, 1e-9);
+
+        // The centroid rows contradict the common offset and pull the solution away from it.
+        TripleDifferenceOperator constrained = new TripleDifferenceOperator(
+            rows, eve0, eve1, stn0, stn1, p, targMap, numTarget, 1, true);
+        double[] x = NormalEquationsSolver.solve(constrained, java.util.Arrays.copyOf(d, rows + 3), 0.0, false).x;
+        double mean = (x[2] + x[5] + x[8]) / 3.0;
+        assertTrue("depth offset " + mean, Math.abs(mean - offset[2]) > 0.1);
+    }
+}